@@ -9,6 +9,7 @@ public interface DdPreferenceConstants
   
   // Spectrogram settings
   public static final String P_VIS_SPECLABEL        = "dlabpro.vis.speclabel" ;
+  public static final String P_VIS_SPECPYRAMIDS     = "dlabpro.vis.specpyramids" ;
   
   // 3D-view settings
   public static final String P_VIS_3DPERSPECTIVE    = "dlabpro.vis.threeDperspective" ;
@@ -4,8 +4,6 @@
 
 package de.tucottbus.kt.jlab.datadisplays.data;
 
-import java.lang.reflect.Array;
-
 import de.tucottbus.kt.jlab.datadisplays.utils.DdUtils;
 import de.tucottbus.kt.jlab.datadisplays.widgets.displays.BarDiagram;
 import de.tucottbus.kt.jlab.datadisplays.widgets.displays.LabelDisplay;
@@ -101,7 +99,8 @@ public class DataCompInfo
   }
 
   /**
-   * Computes and stores the minimal and maximal data value
+   * Computes and stores the minimal and maximal data value. NaN values are ignored. The values
+   * are taken from the cached {@link DataStatistics} of the component.
    * @param bVcenter
    *           Force min=-max
    * @param bZero
@@ -109,20 +108,13 @@ public class DataCompInfo
    */
   public void computeMinMax(boolean bVcenter, boolean bZero)
   {
-    if (JlData.isNumericType(iData.getCompType(nComp)))
+    DataStatistics iStat = DataStatistics.get(iData,nComp);
+    if (iStat!=null)
     {
       nMin = bZero ? 0 : Double.MAX_VALUE;
       nMax = bZero ? 0 : -Double.MAX_VALUE;
-      
-      int    nXR   = iData.getLength();
-      Object aData = iData.getComp(nComp); 
-      for (int nR=0; nR<nXR; nR++)
-      {
-        double nVal = Array.getDouble(aData,nR);
-        if (nVal==Double.NaN) continue;
-        if (nVal<nMin) nMin = nVal;
-        if (nVal>nMax) nMax = nVal;
-      }
+      if (iStat.getMin()<nMin) nMin = iStat.getMin();
+      if (iStat.getMax()>nMax) nMax = iStat.getMax();
       if (bVcenter)
       {
         nMax = Math.max(Math.abs(nMin),Math.abs(nMax));
@@ -136,6 +128,24 @@ public class DataCompInfo
     }
   }
 
+  /**
+   * Determines the minimal and maximal data value of a range of records (e.g. for scaling a
+   * display to the visible records). NaN values are ignored.
+   * @param nFirst
+   *          Zero-based index of the first record
+   * @param nCount
+   *          Number of records
+   * @param aMinMax
+   *          Array to receive the minimum (element 0) and maximum (element 1)
+   * @return <code>false</code> if the component is not numeric or the range contains no values
+   *         other than NaN
+   */
+  public boolean getMinMax(int nFirst, int nCount, double[] aMinMax)
+  {
+    DataStatistics iStat = DataStatistics.get(iData,nComp);
+    return iStat!=null && iStat.getMinMax(nFirst,nCount,aMinMax);
+  }
+
   /**
    * Creates an array of initialized <code>DataCompInfo</code>s for a
    * <code>JlData</code> instance. 
@@ -0,0 +1,270 @@
+// dLabPro Plugin for Eclipse
+// - Cached statistics of data components
+//
+
+package de.tucottbus.kt.jlab.datadisplays.data;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.tucottbus.kt.jlab.kernel.JlData;
+
+/**
+ * Cached statistics of a numeric data component: minimum, maximum, and number of NaN values. The
+ * statistics of all numeric components of a data instance are computed in parallel on first
+ * access and attached to the data instance. If records are appended, only the new records are
+ * scanned; call {@link #invalidate(JlData)} after modifying records.
+ *
+ * <p>Range queries ({@link #getMinMax(int, int, double[])}) are answered by the
+ * {@link MinMaxPyramid} of the component from a logarithmic number of bins. The pyramid is built
+ * in the background; until it covers the range, and for components with less than
+ * {@link MinMaxPyramid#MIN_RECORDS} records, the records are scanned directly.</p>
+ *
+ * @author Matthias Wolff
+ */
+public final class DataStatistics
+{
+  /**
+   * Statistics per data instance and component (<code>null</code> for non-numeric components).
+   */
+  private static final Map<JlData,DataStatistics[]> iCache
+    = new WeakHashMap<JlData,DataStatistics[]>();
+
+  /**
+   * Worker threads computing the statistics of several components in parallel.
+   */
+  private static final ExecutorService iWorkers = Executors.newFixedThreadPool(
+    Runtime.getRuntime().availableProcessors(),
+    new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"DataStatistics worker");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+  private final WeakReference<JlData> iDataRef; // Data instance (weakly referenced)
+  private final int    nComp;     // Component index
+  private double       nMin;      // Minimum (NaN if no values other than NaN)
+  private double       nMax;      // Maximum (NaN if no values other than NaN)
+  private int          nNaN;      // Number of NaN values
+  private int          nCovered;  // Number of records covered
+
+  private DataStatistics(JlData iData, int nComp)
+  {
+    this.iDataRef = new WeakReference<JlData>(iData);
+    this.nComp    = nComp;
+    reset();
+  }
+
+  // -- Operations --
+
+  /**
+   * Returns the statistics of a data component. The statistics are computed or updated if
+   * records were appended since the last call. All outdated components of the data instance are
+   * updated at once, in parallel.
+   *
+   * @param iData
+   *          The data instance.
+   * @param nComp
+   *          The zero-based component index.
+   * @return The statistics or <code>null</code> if the component is not numeric.
+   */
+  public static DataStatistics get(JlData iData, int nComp)
+  {
+    if (iData==null || nComp<0 || nComp>=iData.getDimension()) return null;
+    DataStatistics[] aStat;
+    synchronized (iCache)
+    {
+      aStat = iCache.get(iData);
+      if (aStat==null || aStat.length!=iData.getDimension())
+      {
+        aStat = new DataStatistics[iData.getDimension()];
+        for (int nC=0; nC<aStat.length; nC++)
+          if (JlData.isNumericType(iData.getCompType(nC)))
+            aStat[nC] = new DataStatistics(iData,nC);
+        iCache.put(iData,aStat);
+      }
+    }
+    if (aStat[nComp]==null) return null;
+
+    // Update all outdated components in parallel
+    ArrayList<Callable<Void>> aTasks = new ArrayList<Callable<Void>>();
+    for (final DataStatistics iStat : aStat)
+      if (iStat!=null && iStat.isOutdated())
+        aTasks.add(new Callable<Void>()
+        {
+          public Void call()
+          {
+            iStat.update();
+            return null;
+          }
+        });
+    if (aTasks.size()==1)
+      aStat[nComp].update();
+    else if (aTasks.size()>1)
+      try
+      {
+        for (Future<Void> f : iWorkers.invokeAll(aTasks)) f.get();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        aStat[nComp].update();
+      }
+      catch (ExecutionException e)
+      {
+        throw new RuntimeException(e.getCause());
+      }
+    return aStat[nComp];
+  }
+
+  /**
+   * Discards the statistics of a data instance. Call this method after modifying records.
+   * {@link MinMaxPyramid}s and {@link SpectrogramPyramid}s of the data instance are discarded as
+   * well.
+   *
+   * @param iData
+   *          The data instance.
+   */
+  public static void invalidate(JlData iData)
+  {
+    synchronized (iCache)
+    {
+      iCache.remove(iData);
+    }
+    MinMaxPyramid.invalidate(iData);
+    SpectrogramPyramid.invalidate(iData);
+  }
+
+  /**
+   * Returns the minimal value or NaN if there are no values other than NaN.
+   */
+  public synchronized double getMin()
+  {
+    return nMin;
+  }
+
+  /**
+   * Returns the maximal value or NaN if there are no values other than NaN.
+   */
+  public synchronized double getMax()
+  {
+    return nMax;
+  }
+
+  /**
+   * Returns the number of NaN values.
+   */
+  public synchronized int getNaNCount()
+  {
+    return nNaN;
+  }
+
+  /**
+   * Returns the number of records covered by the statistics.
+   */
+  public synchronized int getLength()
+  {
+    return nCovered;
+  }
+
+  /**
+   * Determines the minimum and maximum of a range of records. If necessary, the
+   * {@link MinMaxPyramid} of the component is built or updated in the background (not in the
+   * calling thread, which may be the GUI thread); records not yet covered are scanned.
+   *
+   * @param nFirst
+   *          The zero-based index of the first record.
+   * @param nCount
+   *          The number of records.
+   * @param aMinMax
+   *          Array to receive the minimum (element 0) and maximum (element 1).
+   * @return <code>false</code> if the range contains no values other than NaN.
+   */
+  public boolean getMinMax(int nFirst, int nCount, double[] aMinMax)
+  {
+    aMinMax[0] = Double.NaN;
+    aMinMax[1] = Double.NaN;
+    JlData iData = iDataRef.get();
+    if (iData==null) return false;
+    MinMaxPyramid iPyr = MinMaxPyramid.get(iData,nComp,null);
+    if (iPyr!=null) return iPyr.query(nFirst,nCount,aMinMax);
+
+    // Short component or pyramid still being built: scan
+    Object aData = iData.getComp(nComp);
+    int    nEnd  = Math.min(nFirst+nCount,Math.min(iData.getLength(),
+                     java.lang.reflect.Array.getLength(aData)));
+    double nMin  = Double.POSITIVE_INFINITY;
+    double nMax  = Double.NEGATIVE_INFINITY;
+    for (int nR=Math.max(nFirst,0); nR<nEnd; nR++)
+    {
+      double nVal = MinMaxPyramid.value(aData,nR);
+      if (nVal<nMin) nMin = nVal;
+      if (nVal>nMax) nMax = nVal;
+    }
+    if (nMin>nMax) return false;
+    aMinMax[0] = nMin;
+    aMinMax[1] = nMax;
+    return true;
+  }
+
+  // -- Workers --
+
+  private synchronized boolean isOutdated()
+  {
+    JlData iData = iDataRef.get();
+    return iData!=null && nCovered!=iData.getLength();
+  }
+
+  private void reset()
+  {
+    nMin     = Double.NaN;
+    nMax     = Double.NaN;
+    nNaN     = 0;
+    nCovered = 0;
+  }
+
+  /**
+   * Scans the records appended since the last update (all records if the data instance shrunk).
+   */
+  private synchronized void update()
+  {
+    JlData iData = iDataRef.get();
+    if (iData==null) return;
+    int nLength = iData.getLength();
+    if (nLength<nCovered) reset();
+    if (nLength==nCovered) return;
+
+    Object aData = iData.getComp(nComp);
+    nLength = Math.min(nLength,java.lang.reflect.Array.getLength(aData));
+    double nUmin = Double.POSITIVE_INFINITY;
+    double nUmax = Double.NEGATIVE_INFINITY;
+    for (int nR=nCovered; nR<nLength; nR++)
+    {
+      double nVal = MinMaxPyramid.value(aData,nR);
+      if (Double.isNaN(nVal)) { nNaN++; continue; }
+      if (nVal<nUmin) nUmin = nVal;
+      if (nVal>nUmax) nUmax = nVal;
+    }
+    if (nUmin<=nUmax)
+    {
+      if (Double.isNaN(nMin) || nUmin<nMin) nMin = nUmin;
+      if (Double.isNaN(nMax) || nUmax>nMax) nMax = nUmax;
+    }
+    nCovered = nLength;
+  }
+
+}
+
+// EOF
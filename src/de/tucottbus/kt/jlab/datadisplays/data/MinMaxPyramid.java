@@ -0,0 +1,414 @@
+// dLabPro Plugin for Eclipse
+// - Multi-resolution min/max envelope of a data component
+//
+
+package de.tucottbus.kt.jlab.datadisplays.data;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import de.tucottbus.kt.jlab.kernel.JlData;
+
+/**
+ * Multi-resolution minimum/maximum envelope of a numeric data component. Level 0 stores the
+ * minimum and maximum of each block of {@link #BASE} records, each further level combines
+ * {@link #FACTOR} bins of the level below. {@link #query(int, int, double[])} determines the
+ * minimum and maximum of an arbitrary record range from a logarithmic number of bins, so that the
+ * cost of painting a zoomed-out oscillogram depends on the display width, not on the number of
+ * records.
+ *
+ * <p>Pyramids are obtained through {@link #get(JlData, int, Runnable)}, which builds them in a
+ * background thread. If records are appended to the data instance, the pyramid is extended
+ * incrementally; records not (yet) covered by the pyramid are scanned directly. NaN values are
+ * ignored; the envelope of a range containing only NaNs is NaN.</p>
+ *
+ * <p>Bins are stored as <code>double</code>, so the envelope is the exact minimum and maximum of
+ * {@link #value(Object, int)}. This is lossless for all component types except <code>long</code>
+ * values beyond &plusmn;2<sup>53</sup>, which are rounded to the nearest <code>double</code>.</p>
+ *
+ * @author Matthias Wolff
+ */
+public final class MinMaxPyramid
+{
+  /**
+   * Number of records per bin at level 0.
+   */
+  public static final int BASE = 16;
+
+  /**
+   * Number of bins of level <i>n</i> combined in one bin of level <i>n</i>+1.
+   */
+  public static final int FACTOR = 4;
+
+  /**
+   * Minimal number of records for which a pyramid is built.
+   */
+  public static final int MIN_RECORDS = 65536;
+
+  /**
+   * Pyramids per data instance and component.
+   */
+  private static final Map<JlData,MinMaxPyramid[]> iCache
+    = new WeakHashMap<JlData,MinMaxPyramid[]>();
+
+  /**
+   * Background builder thread.
+   */
+  private static final ExecutorService iBuilder = Executors.newSingleThreadExecutor(
+    new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"MinMaxPyramid builder");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+
+  private final WeakReference<JlData> iDataRef; // Data instance (weak, the pyramid is a cache value)
+  private final int    nComp;       // Component index
+  private double[][]   aMin;        // Minima per level and bin
+  private double[][]   aMax;        // Maxima per level and bin
+  private int          nCovered;    // Number of records covered by the pyramid
+  private boolean      bPending;    // Build or update scheduled
+  private final Object iUpdateLock = new Object(); // Serializes updates
+
+  private MinMaxPyramid(JlData iData, int nComp)
+  {
+    this.iDataRef = new WeakReference<JlData>(iData);
+    this.nComp    = nComp;
+    this.aMin  = new double[0][];
+    this.aMax  = new double[0][];
+  }
+
+  // -- Operations --
+
+  /**
+   * Returns the pyramid of a data component. If there is no pyramid or it does not cover all
+   * records, the pyramid is built or updated in the background.
+   *
+   * @param iData
+   *          The data instance.
+   * @param nComp
+   *          The zero-based component index.
+   * @param iOnUpdate
+   *          Called from the builder thread after the pyramid was built or updated, may be
+   *          <code>null</code>.
+   * @return The pyramid (which may not yet cover all records) or <code>null</code> if the
+   *         component is not numeric, has less than {@link #MIN_RECORDS} records, or the pyramid
+   *         is still being built.
+   */
+  public static MinMaxPyramid get(JlData iData, int nComp, final Runnable iOnUpdate)
+  {
+    final MinMaxPyramid iPyr = lookup(iData,nComp);
+    if (iPyr==null) return null;
+
+    synchronized (iPyr)
+    {
+      if (iPyr.nCovered!=iData.getLength() && !iPyr.bPending)
+      {
+        iPyr.bPending = true;
+        iBuilder.execute(new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              iPyr.update();
+            }
+            finally
+            {
+              synchronized (iPyr)
+              {
+                iPyr.bPending = false;
+              }
+            }
+            if (iOnUpdate!=null) iOnUpdate.run();
+          }
+        });
+      }
+      return iPyr.nCovered>0 ? iPyr : null;
+    }
+  }
+
+  /**
+   * Discards the pyramids of a data instance. Call this method after modifying records.
+   *
+   * @param iData
+   *          The data instance.
+   */
+  public static void invalidate(JlData iData)
+  {
+    synchronized (iCache)
+    {
+      iCache.remove(iData);
+    }
+  }
+
+  /**
+   * Determines the minimum and maximum of a range of records.
+   *
+   * @param nFirst
+   *          The zero-based index of the first record.
+   * @param nCount
+   *          The number of records.
+   * @param aMinMax
+   *          Array to receive the minimum (element 0) and maximum (element 1).
+   * @return <code>false</code> if the range contains no values other than NaN.
+   */
+  public boolean query(int nFirst, int nCount, double[] aMinMax)
+  {
+    JlData iData = iDataRef.get();
+    if (iData==null)
+    {
+      aMinMax[0] = Double.NaN;
+      aMinMax[1] = Double.NaN;
+      return false;
+    }
+    Object aData = iData.getComp(nComp);
+    int    nEnd  = Math.min(nFirst+nCount,Math.min(iData.getLength(),length(aData)));
+    int    nBeg  = Math.max(nFirst,0);
+    double nMin  = Double.POSITIVE_INFINITY;
+    double nMax  = Double.NEGATIVE_INFINITY;
+
+    double[][] aMin;
+    double[][] aMax;
+    int nCovered;
+    synchronized (this)
+    {
+      aMin     = this.aMin;
+      aMax     = this.aMax;
+      nCovered = this.nCovered;
+    }
+
+    // Records at the start of the range not aligned with a bin boundary
+    int nPos = nBeg;
+    int nLim = Math.min(nEnd,Math.min(align(nBeg,BASE),nCovered));
+    for (; nPos<nLim; nPos++)
+    {
+      double nVal = value(aData,nPos);
+      if (nVal<nMin) nMin = nVal;
+      if (nVal>nMax) nMax = nVal;
+    }
+
+    // Bins: climb up while aligned, then descend
+    int nCovEnd = Math.min(nEnd,nCovered/BASE*BASE);
+    if (nPos%BASE==0 && nPos<nCovEnd)
+    {
+      int nLevel = 0;
+      int nSize  = BASE;
+      while (nPos+BASE<=nCovEnd) // Until not even a level 0 bin fits
+      {
+        // Climb while the position is aligned to the next level and the bin fits
+        while (nLevel+1<aMin.length && nPos%(nSize*FACTOR)==0 && nPos+nSize*FACTOR<=nCovEnd)
+        {
+          nLevel++;
+          nSize *= FACTOR;
+        }
+        // Descend while the bin does not fit
+        while (nPos+nSize>nCovEnd && nLevel>0)
+        {
+          nLevel--;
+          nSize /= FACTOR;
+        }
+        if (nPos+nSize>nCovEnd) break;
+        int nBin = nPos/nSize;
+        if (aMin[nLevel][nBin]<nMin) nMin = aMin[nLevel][nBin];
+        if (aMax[nLevel][nBin]>nMax) nMax = aMax[nLevel][nBin];
+        nPos += nSize;
+      }
+    }
+
+    // Remaining records
+    for (; nPos<nEnd; nPos++)
+    {
+      double nVal = value(aData,nPos);
+      if (nVal<nMin) nMin = nVal;
+      if (nVal>nMax) nMax = nVal;
+    }
+
+    if (nMin>nMax)
+    {
+      aMinMax[0] = Double.NaN;
+      aMinMax[1] = Double.NaN;
+      return false;
+    }
+    aMinMax[0] = nMin;
+    aMinMax[1] = nMax;
+    return true;
+  }
+
+  /**
+   * Returns the value of a record of a numeric component array as double. Unlike
+   * {@link JlData#dFetch(int, int)} this method does not rely on exceptions for non-double
+   * arrays.
+   *
+   * @param aData
+   *          The component array.
+   * @param nRec
+   *          The zero-based record index.
+   */
+  public static double value(Object aData, int nRec)
+  {
+    if (aData instanceof double[]) return ((double[])aData)[nRec];
+    if (aData instanceof float []) return ((float [])aData)[nRec];
+    if (aData instanceof short []) return ((short [])aData)[nRec];
+    if (aData instanceof int   []) return ((int   [])aData)[nRec];
+    if (aData instanceof long  []) return ((long  [])aData)[nRec];
+    if (aData instanceof byte  []) return ((byte  [])aData)[nRec];
+    if (aData instanceof char  []) return ((char  [])aData)[nRec];
+    return java.lang.reflect.Array.getDouble(aData,nRec);
+  }
+
+  // -- Workers --
+
+  /**
+   * Returns the cached pyramid of a data component, creating an empty one if necessary.
+   *
+   * @return The pyramid or <code>null</code> if the component is not numeric or has less than
+   *         {@link #MIN_RECORDS} records.
+   */
+  private static MinMaxPyramid lookup(JlData iData, int nComp)
+  {
+    if (iData==null || nComp<0 || nComp>=iData.getDimension()) return null;
+    if (!JlData.isNumericType(iData.getCompType(nComp))) return null;
+    if (iData.getLength()<MIN_RECORDS) return null;
+
+    synchronized (iCache)
+    {
+      MinMaxPyramid[] aPyr = iCache.get(iData);
+      if (aPyr==null || aPyr.length!=iData.getDimension())
+      {
+        aPyr = new MinMaxPyramid[iData.getDimension()];
+        iCache.put(iData,aPyr);
+      }
+      if (aPyr[nComp]==null) aPyr[nComp] = new MinMaxPyramid(iData,nComp);
+      return aPyr[nComp];
+    }
+  }
+
+  /**
+   * Builds or extends the pyramid to cover all records of the data instance. Concurrent calls
+   * are serialized.
+   */
+  private void update()
+  {
+    JlData iData = iDataRef.get();
+    if (iData==null) return;
+    synchronized (iUpdateLock)
+    {
+      while (true)
+      {
+        int nFrom;
+        double[][] aMin;
+        double[][] aMax;
+        int nLength = iData.getLength();
+        synchronized (this)
+        {
+          // Data shrunk: rebuild
+          if (nLength<nCovered)
+          {
+            this.aMin = new double[0][];
+            this.aMax = new double[0][];
+            nCovered  = 0;
+          }
+          if (nLength==nCovered) return;
+          nFrom = nCovered/BASE*BASE; // Recompute last incomplete bin
+          aMin  = Arrays.copyOf(this.aMin,this.aMin.length);
+          aMax  = Arrays.copyOf(this.aMax,this.aMax.length);
+        }
+
+        // Levels and bins
+        int nLevels = 1;
+        for (long nSize=(long)BASE*FACTOR; nSize<nLength; nSize*=FACTOR) nLevels++;
+        if (aMin.length<nLevels)
+        {
+          aMin = Arrays.copyOf(aMin,nLevels);
+          aMax = Arrays.copyOf(aMax,nLevels);
+        }
+
+        // Level 0 from records
+        Object aData = iData.getComp(nComp);
+        nLength = Math.min(nLength,length(aData));
+        int nBins = (nLength+BASE-1)/BASE;
+        grow(aMin,aMax,0,nBins);
+        for (int nBin=nFrom/BASE; nBin<nBins; nBin++)
+        {
+          double nMin = Double.NaN;
+          double nMax = Double.NaN;
+          for (int nR=nBin*BASE, nE=Math.min(nR+BASE,nLength); nR<nE; nR++)
+          {
+            double nVal = value(aData,nR);
+            if (Double.isNaN(nVal)) continue;
+            if (Double.isNaN(nMin) || nVal<nMin) nMin = nVal;
+            if (Double.isNaN(nMax) || nVal>nMax) nMax = nVal;
+          }
+          aMin[0][nBin] = nMin;
+          aMax[0][nBin] = nMax;
+        }
+
+        // Upper levels from lower levels
+        for (int nLevel=1, nSize=BASE*FACTOR; nLevel<nLevels; nLevel++, nSize*=FACTOR)
+        {
+          int nLBins = (nLength+nSize-1)/nSize;                   // Bins at this level
+          int nBBins = (nLength+nSize/FACTOR-1)/(nSize/FACTOR);    // Bins at level below
+          grow(aMin,aMax,nLevel,nLBins);
+          for (int nBin=nFrom/nSize; nBin<nLBins; nBin++)
+          {
+            double nMin = Double.NaN;
+            double nMax = Double.NaN;
+            int nLow = nBin*FACTOR;
+            for (int nB=nLow, nE=Math.min(nLow+FACTOR,nBBins); nB<nE; nB++)
+            {
+              double nBmin = aMin[nLevel-1][nB];
+              double nBmax = aMax[nLevel-1][nB];
+              if (Double.isNaN(nMin) || nBmin<nMin) nMin = nBmin;
+              if (Double.isNaN(nMax) || nBmax>nMax) nMax = nBmax;
+            }
+            aMin[nLevel][nBin] = nMin;
+            aMax[nLevel][nBin] = nMax;
+          }
+        }
+
+        synchronized (this)
+        {
+          this.aMin = aMin;
+          this.aMax = aMax;
+          nCovered  = nLength;
+        }
+      }
+    }
+  }
+
+  /**
+   * Ensures a level has room for the given number of bins (growing by 50%). Bins are updated in
+   * place; this is safe because queries only read bins completely covered by the pyramid, which
+   * are never rewritten.
+   */
+  private static void grow(double[][] aMin, double[][] aMax, int nLevel, int nBins)
+  {
+    if (aMin[nLevel]!=null && aMin[nLevel].length>=nBins) return;
+    int nCap = aMin[nLevel]==null ? nBins : Math.max(nBins,aMin[nLevel].length*3/2);
+    aMin[nLevel] = aMin[nLevel]==null ? new double[nCap] : Arrays.copyOf(aMin[nLevel],nCap);
+    aMax[nLevel] = aMax[nLevel]==null ? new double[nCap] : Arrays.copyOf(aMax[nLevel],nCap);
+  }
+
+  private static int align(int nPos, int nSize)
+  {
+    return (nPos+nSize-1)/nSize*nSize;
+  }
+
+  private static int length(Object aData)
+  {
+    return aData==null ? 0 : java.lang.reflect.Array.getLength(aData);
+  }
+
+}
+
+// EOF
@@ -0,0 +1,626 @@
+// dLabPro Plugin for Eclipse
+// - Multi-resolution time-decimated spectrogram
+//
+
+package de.tucottbus.kt.jlab.datadisplays.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.tucottbus.kt.jlab.kernel.JlData;
+import de.tucottbus.kt.jlab.kernel.JlObject;
+
+/**
+ * Multi-resolution spectrogram decimated along the time (record) axis. Level 0 pools each block
+ * of {@link #BASE} records into one bin per component, each further level pools {@link #FACTOR}
+ * bins of the level below. Pooling takes the maximum ({@link #MAX}) or the mean ({@link #MEAN})
+ * of the values, NaN values are ignored. Displays showing many records per pixel read the level
+ * matching the zoom (see {@link #getLevel(double)}) instead of the records, so that the cost of
+ * painting an overview does not depend on the length of the recording.
+ *
+ * <p>Pyramids are obtained through {@link #get(JlData, int, Runnable)}, which builds them in a
+ * background thread; the bins of each level are pooled in parallel. If records are appended to
+ * the data instance, the pyramid is extended incrementally. If a data file was registered through
+ * {@link #setDataFile(JlData, File)} (as <code>ComponentPanel.open</code> does if the preference
+ * <code>DdPreferenceConstants.P_VIS_SPECPYRAMIDS</code> is set), the pyramid is stored next to
+ * that file once it is built and reloaded instead of rebuilt as long as the file is unchanged.
+ * Incremental extensions are not stored.</p>
+ *
+ * @author Matthias Wolff
+ */
+public final class SpectrogramPyramid
+{
+  /**
+   * Pooling mode: maximum of the pooled values.
+   */
+  public static final int MAX = 0;
+
+  /**
+   * Pooling mode: mean of the pooled values.
+   */
+  public static final int MEAN = 1;
+
+  /**
+   * Number of records per bin at level 0.
+   */
+  public static final int BASE = 16;
+
+  /**
+   * Number of bins of level <i>n</i> pooled in one bin of level <i>n</i>+1.
+   */
+  public static final int FACTOR = 2;
+
+  /**
+   * Minimal number of records for which a pyramid is built.
+   */
+  public static final int MIN_RECORDS = 4096;
+
+  /**
+   * Number of bins pooled by one parallel task.
+   */
+  private static final int CHUNK = 1024;
+
+  /**
+   * Header tag of stored pyramids.
+   */
+  private static final int MAGIC = 0x4A4C5350; // "JLSP"
+
+  /**
+   * Pyramids per data instance and pooling mode.
+   */
+  private static final Map<JlData,SpectrogramPyramid[]> iCache
+    = new WeakHashMap<JlData,SpectrogramPyramid[]>();
+
+  /**
+   * Data files registered for storing pyramids.
+   */
+  private static final Map<JlData,File> iFiles = new WeakHashMap<JlData,File>();
+
+  /**
+   * Background builder thread.
+   */
+  private static final ExecutorService iBuilder = Executors.newSingleThreadExecutor(
+    new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"SpectrogramPyramid builder");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+
+  /**
+   * Worker threads pooling bins in parallel.
+   */
+  private static final ExecutorService iWorkers = Executors.newFixedThreadPool(
+    Math.max(1,Runtime.getRuntime().availableProcessors()-1),
+    new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"SpectrogramPyramid worker");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+
+  private final WeakReference<JlData> iDataRef; // Data instance (weak, must not outlive the data)
+  private final int    nPooling;    // Pooling mode
+  private final int    nComps;      // Number of components
+  private float[][]    aBins;       // Bins per level, component-interleaved (bin*nComps+comp)
+  private int          nCovered;    // Number of records covered by the pyramid
+  private boolean      bPending;    // Build or update scheduled
+
+  private SpectrogramPyramid(JlData iData, int nPooling)
+  {
+    this.iDataRef = new WeakReference<JlData>(iData);
+    this.nPooling = nPooling;
+    this.nComps   = iData.getDimension();
+    this.aBins    = new float[0][];
+  }
+
+  // -- Operations --
+
+  /**
+   * Returns the pyramid of a data instance. If there is no pyramid or it does not cover all
+   * records, the pyramid is loaded, built, or updated in the background.
+   *
+   * @param iData
+   *          The data instance.
+   * @param nPooling
+   *          The pooling mode, {@link #MAX} or {@link #MEAN}.
+   * @param iOnUpdate
+   *          Called from the builder thread after the pyramid was built or updated, may be
+   *          <code>null</code>.
+   * @return The pyramid (which may not yet cover all records) or <code>null</code> if the data
+   *         instance is not numeric, has less than {@link #MIN_RECORDS} records, or the pyramid is
+   *         still being built.
+   */
+  public static SpectrogramPyramid get(JlData iData, int nPooling, final Runnable iOnUpdate)
+  {
+    if (iData==null || iData.getDimension()==0) return null;
+    if (nPooling!=MAX && nPooling!=MEAN) return null;
+    if (iData.getLength()<MIN_RECORDS) return null;
+    for (int nC=0; nC<iData.getDimension(); nC++)
+      if (!JlData.isNumericType(iData.getCompType(nC))) return null;
+
+    final SpectrogramPyramid iPyr;
+    synchronized (iCache)
+    {
+      SpectrogramPyramid[] aPyr = iCache.get(iData);
+      if (aPyr==null) iCache.put(iData,aPyr=new SpectrogramPyramid[2]);
+      if (aPyr[nPooling]==null || aPyr[nPooling].nComps!=iData.getDimension())
+        aPyr[nPooling] = new SpectrogramPyramid(iData,nPooling);
+      iPyr = aPyr[nPooling];
+    }
+
+    synchronized (iPyr)
+    {
+      if (iPyr.nCovered!=iData.getLength() && !iPyr.bPending)
+      {
+        iPyr.bPending = true;
+        iBuilder.execute(new Runnable()
+        {
+          public void run()
+          {
+            iPyr.update();
+            if (iOnUpdate!=null) iOnUpdate.run();
+          }
+        });
+      }
+      return iPyr.nCovered>0 ? iPyr : null;
+    }
+  }
+
+  /**
+   * Registers the file a data instance was read from. Pyramids of the data instance are then
+   * stored next to the file (see {@link #getPyramidFile(File, int)}) and reloaded as long as the
+   * file is unchanged.
+   *
+   * @param iData
+   *          The data instance.
+   * @param iDataFile
+   *          The data file, <code>null</code> to not store pyramids.
+   */
+  public static void setDataFile(JlData iData, File iDataFile)
+  {
+    synchronized (iFiles)
+    {
+      if (iDataFile!=null) iFiles.put(iData,iDataFile);
+      else iFiles.remove(iData);
+    }
+  }
+
+  /**
+   * Returns the file a pyramid of a data file is stored in.
+   *
+   * @param iDataFile
+   *          The data file.
+   * @param nPooling
+   *          The pooling mode.
+   */
+  public static File getPyramidFile(File iDataFile, int nPooling)
+  {
+    return new File(iDataFile.getPath()+(nPooling==MAX ? ".max" : ".mean")+".pyr");
+  }
+
+  /**
+   * Discards the pyramids of a data instance. Call this method after modifying records. Stored
+   * pyramids are not deleted; they are rejected when the data file has changed.
+   *
+   * @param iData
+   *          The data instance.
+   */
+  public static void invalidate(JlData iData)
+  {
+    synchronized (iCache)
+    {
+      iCache.remove(iData);
+    }
+  }
+
+  /**
+   * Returns the finest level whose bins pool at most a given number of records.
+   *
+   * @param nRecsPerPixel
+   *          The number of records per pixel.
+   * @return The level or -1 if records should be read directly.
+   */
+  public int getLevel(double nRecsPerPixel)
+  {
+    int nLevel = -1;
+    int nLevels;
+    synchronized (this)
+    {
+      nLevels = aBins.length;
+    }
+    for (long nSize=BASE; nSize<=nRecsPerPixel && nLevel+1<nLevels; nSize*=FACTOR) nLevel++;
+    return nLevel;
+  }
+
+  /**
+   * Returns the number of records pooled in one bin of a level.
+   */
+  public static int getBinSize(int nLevel)
+  {
+    int nSize = BASE;
+    for (int i=0; i<nLevel; i++) nSize *= FACTOR;
+    return nSize;
+  }
+
+  /**
+   * Returns the number of records covered by the pyramid.
+   */
+  public synchronized int getCoveredRecords()
+  {
+    return nCovered;
+  }
+
+  /**
+   * Returns the bins of a level together with the number of valid bins. Both are read in one
+   * step, so they match even while the builder extends the pyramid. The value of component
+   * <code>c</code> of bin <code>b</code> is stored at index <code>b*getDimension()+c</code>. Valid
+   * bins are never rewritten.
+   *
+   * @param nLevel
+   *          The level.
+   * @param aValid
+   *          Array to receive the number of valid bins (element 0), i.e. the bins completely
+   *          covered by the pyramid.
+   * @return The bins or <code>null</code> if the level does not exist.
+   */
+  public synchronized float[] getBins(int nLevel, int[] aValid)
+  {
+    if (nLevel<0 || nLevel>=aBins.length)
+    {
+      aValid[0] = 0;
+      return null;
+    }
+    aValid[0] = Math.min(nCovered/getBinSize(nLevel),aBins[nLevel].length/nComps);
+    return aBins[nLevel];
+  }
+
+  /**
+   * Returns the number of components per bin.
+   */
+  public int getDimension()
+  {
+    return nComps;
+  }
+
+  /**
+   * Returns the pooled value of the bin containing a record.
+   *
+   * @param nLevel
+   *          The level.
+   * @param nRec
+   *          The zero-based record index.
+   * @param nComp
+   *          The zero-based component index.
+   * @return The value or NaN if the bin is not (completely) covered.
+   */
+  public double value(int nLevel, int nRec, int nComp)
+  {
+    float[] aLevel;
+    int nCovered;
+    synchronized (this)
+    {
+      if (nLevel<0 || nLevel>=aBins.length) return Double.NaN;
+      aLevel   = aBins[nLevel];
+      nCovered = this.nCovered;
+    }
+    int nSize = getBinSize(nLevel);
+    int nBin  = nRec/nSize;
+    if (nRec<0 || nComp<0 || nComp>=nComps || (nBin+1)*nSize>nCovered) return Double.NaN;
+    return aLevel[nBin*nComps+nComp];
+  }
+
+  // -- Workers --
+
+  /**
+   * Loads, builds, or extends the pyramid to cover all records of the data instance.
+   */
+  private void update()
+  {
+    JlData iData = iDataRef.get();
+    if (iData==null) return;
+    try
+    {
+      File iFile;
+      synchronized (iFiles)
+      {
+        iFile = iFiles.get(iData);
+      }
+      if (nCovered==0 && iFile!=null && load(iFile)) return;
+
+      // Store initial builds only: an extended pyramid covers records appended in memory, which
+      // do not match the data file, and rewriting the file on each extension costs O(n^2) I/O
+      boolean bStore   = iFile!=null && getCoveredRecords()==0;
+      boolean bChanged = false;
+      while (true)
+      {
+        int nFrom;
+        float[][] aBins;
+        int nLength = iData.getLength();
+        synchronized (this)
+        {
+          // Data shrunk: rebuild
+          if (nLength<nCovered)
+          {
+            this.aBins = new float[0][];
+            nCovered   = 0;
+          }
+          if (nLength==nCovered) break;
+          nFrom = nCovered/BASE*BASE; // Recompute last incomplete bin
+          aBins = Arrays.copyOf(this.aBins,this.aBins.length);
+        }
+
+        // Levels
+        int nLevels = 1;
+        for (long nSize=(long)BASE*FACTOR; nSize<nLength; nSize*=FACTOR) nLevels++;
+        if (aBins.length<nLevels) aBins = Arrays.copyOf(aBins,nLevels);
+
+        // Level 0 from records, upper levels from lower levels
+        Object[] aComps = new Object[nComps];
+        for (int nC=0; nC<nComps; nC++)
+        {
+          aComps[nC] = iData.getComp(nC);
+          nLength = Math.min(nLength,java.lang.reflect.Array.getLength(aComps[nC]));
+        }
+        for (int nLevel=0, nSize=BASE; nLevel<nLevels; nLevel++, nSize*=FACTOR)
+        {
+          int nBins = (nLength+nSize-1)/nSize;
+          grow(aBins,nLevel,nBins*nComps);
+          pool(aComps,aBins,nLevel,nFrom/nSize,nBins,nLength);
+        }
+
+        synchronized (this)
+        {
+          this.aBins = aBins;
+          nCovered   = nLength;
+        }
+        bChanged = true;
+      }
+      if (bChanged && bStore) save(iFile);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        bPending = false;
+      }
+    }
+  }
+
+  /**
+   * Pools the bins <code>[nFirst,nEnd)</code> of a level in parallel.
+   */
+  private void pool(final Object[] aComps, final float[][] aBins, final int nLevel, int nFirst,
+    int nEnd, final int nLength) throws InterruptedException
+  {
+    ArrayList<Callable<Void>> aTasks = new ArrayList<Callable<Void>>();
+    for (int nBin=nFirst; nBin<nEnd; nBin+=CHUNK)
+    {
+      final int nB0 = nBin;
+      final int nB1 = Math.min(nBin+CHUNK,nEnd);
+      aTasks.add(new Callable<Void>()
+      {
+        public Void call()
+        {
+          if (nLevel==0) poolRecords(aComps,aBins[0],nB0,nB1,nLength);
+          else poolBins(aBins[nLevel-1],aBins[nLevel],nB0,nB1,
+            (nLength+getBinSize(nLevel-1)-1)/getBinSize(nLevel-1));
+          return null;
+        }
+      });
+    }
+    if (aTasks.size()==1)
+    {
+      try
+      {
+        aTasks.get(0).call();
+      }
+      catch (Exception e)
+      {
+        throw new RuntimeException(e);
+      }
+      return;
+    }
+    for (Future<Void> f : iWorkers.invokeAll(aTasks))
+      try
+      {
+        f.get();
+      }
+      catch (ExecutionException e)
+      {
+        throw new RuntimeException(e.getCause());
+      }
+  }
+
+  /**
+   * Pools records into the level 0 bins <code>[nB0,nB1)</code>.
+   */
+  private void poolRecords(Object[] aComps, float[] aLevel, int nB0, int nB1, int nLength)
+  {
+    for (int nC=0; nC<nComps; nC++)
+    {
+      Object aData = aComps[nC];
+      for (int nBin=nB0; nBin<nB1; nBin++)
+      {
+        double nAcc = nPooling==MAX ? Double.NEGATIVE_INFINITY : 0.;
+        int    nCnt = 0;
+        for (int nR=nBin*BASE, nE=Math.min(nR+BASE,nLength); nR<nE; nR++)
+        {
+          double nVal = MinMaxPyramid.value(aData,nR);
+          if (Double.isNaN(nVal)) continue;
+          if (nPooling==MAX) { if (nVal>nAcc) nAcc = nVal; }
+          else nAcc += nVal;
+          nCnt++;
+        }
+        aLevel[nBin*nComps+nC] = nCnt==0 ? Float.NaN
+          : (float)(nPooling==MAX ? nAcc : nAcc/nCnt);
+      }
+    }
+  }
+
+  /**
+   * Pools bins of the level below into the bins <code>[nB0,nB1)</code>.
+   */
+  private void poolBins(float[] aBelow, float[] aLevel, int nB0, int nB1, int nBelow)
+  {
+    for (int nBin=nB0; nBin<nB1; nBin++)
+      for (int nC=0; nC<nComps; nC++)
+      {
+        float nAcc = nPooling==MAX ? Float.NEGATIVE_INFINITY : 0f;
+        int   nCnt = 0;
+        for (int nB=nBin*FACTOR, nE=Math.min(nB+FACTOR,nBelow); nB<nE; nB++)
+        {
+          float nVal = aBelow[nB*nComps+nC];
+          if (Float.isNaN(nVal)) continue;
+          if (nPooling==MAX) { if (nVal>nAcc) nAcc = nVal; }
+          else nAcc += nVal;
+          nCnt++;
+        }
+        aLevel[nBin*nComps+nC] = nCnt==0 ? Float.NaN : nPooling==MAX ? nAcc : nAcc/nCnt;
+      }
+  }
+
+  /**
+   * Ensures a level has room for the given number of values (growing by 50%). Bins are updated in
+   * place; this is safe because readers only use bins completely covered by the pyramid, which
+   * are never rewritten.
+   */
+  private static void grow(float[][] aBins, int nLevel, int nValues)
+  {
+    if (aBins[nLevel]!=null && aBins[nLevel].length>=nValues) return;
+    if (aBins[nLevel]==null) aBins[nLevel] = new float[nValues];
+    else aBins[nLevel] = Arrays.copyOf(aBins[nLevel],Math.max(nValues,aBins[nLevel].length*3/2));
+  }
+
+  /**
+   * Stores the pyramid next to a data file.
+   */
+  private void save(File iDataFile)
+  {
+    float[][] aBins;
+    int nCovered;
+    synchronized (this)
+    {
+      aBins    = this.aBins;
+      nCovered = this.nCovered;
+    }
+    File iFile = getPyramidFile(iDataFile,nPooling);
+    try
+    {
+      RandomAccessFile raf = new RandomAccessFile(iFile,"rw");
+      try
+      {
+        raf.setLength(0);
+        FileChannel fc = raf.getChannel();
+        ByteBuffer bb = ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MAGIC).putInt(nPooling).putInt(nComps).putInt(nCovered).putInt(aBins.length)
+          .putLong(iDataFile.length()).putLong(iDataFile.lastModified());
+        for (int nLevel=0; nLevel<aBins.length; nLevel++)
+        {
+          int nValues = (nCovered+getBinSize(nLevel)-1)/getBinSize(nLevel)*nComps;
+          for (int i=0; i<nValues; i++)
+          {
+            if (bb.remaining()<4) { bb.flip(); while (bb.hasRemaining()) fc.write(bb); bb.clear(); }
+            bb.putFloat(aBins[nLevel][i]);
+          }
+        }
+        bb.flip();
+        while (bb.hasRemaining()) fc.write(bb);
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    catch (IOException e)
+    {
+      JlObject.WARNING("Cannot store spectrogram pyramid \""+iFile+"\": "+e.getMessage());
+      iFile.delete();
+    }
+  }
+
+  /**
+   * Loads the pyramid stored next to a data file.
+   *
+   * @return <code>true</code> if a matching pyramid was loaded
+   */
+  private boolean load(File iDataFile)
+  {
+    JlData iData = iDataRef.get();
+    File   iFile = getPyramidFile(iDataFile,nPooling);
+    if (iData==null || !iFile.isFile()) return false;
+    try
+    {
+      RandomAccessFile raf = new RandomAccessFile(iFile,"r");
+      try
+      {
+        FileChannel fc = raf.getChannel();
+        ByteBuffer bh = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+        while (bh.hasRemaining() && fc.read(bh)>=0) {}
+        bh.flip();
+        if (bh.remaining()<36 || bh.getInt()!=MAGIC || bh.getInt()!=nPooling
+          || bh.getInt()!=nComps) return false;
+        int nRecs   = bh.getInt();
+        int nLevels = bh.getInt();
+        if (nRecs!=iData.getLength() || bh.getLong()!=iDataFile.length()
+          || bh.getLong()!=iDataFile.lastModified() || nLevels<1 || nLevels>32) return false;
+
+        float[][] aBins = new float[nLevels][];
+        for (int nLevel=0; nLevel<nLevels; nLevel++)
+        {
+          int nValues = (nRecs+getBinSize(nLevel)-1)/getBinSize(nLevel)*nComps;
+          ByteBuffer bb = ByteBuffer.allocate(nValues*4).order(ByteOrder.LITTLE_ENDIAN);
+          while (bb.hasRemaining() && fc.read(bb)>=0) {}
+          if (bb.hasRemaining()) return false;
+          bb.flip();
+          aBins[nLevel] = new float[nValues];
+          bb.asFloatBuffer().get(aBins[nLevel]);
+        }
+        synchronized (this)
+        {
+          this.aBins = aBins;
+          nCovered   = nRecs;
+        }
+        return true;
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+}
+
+// EOF
@@ -1,6 +1,8 @@
 
 package de.tucottbus.kt.jlab.datadisplays.utils;
 
+import java.util.Arrays;
+
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Color;
@@ -195,45 +197,17 @@ public class ColorManager implements DdPreferenceConstants
     disposeCompColors();
     if (nCompColorTable < 0) nCompColorTable = m_nCurCompColorTable + 1;
 
-    // Component color table #1 (MS Excel)
-    if (nCompColorTable == 1)
-    {
-      m_aCompBgColor = new Color[8];
-      m_aCompBgColor[0] = new Color(null,153,153,255);
-      m_aCompBgColor[1] = new Color(null,153,051,102);
-      m_aCompBgColor[2] = new Color(null,255,255,204);
-      m_aCompBgColor[3] = new Color(null,204,255,255);
-      m_aCompBgColor[4] = new Color(null,102,000,102);
-      m_aCompBgColor[5] = new Color(null,255,128,128);
-      m_aCompBgColor[6] = new Color(null,000,102,204);
-      m_aCompBgColor[7] = new Color(null,204,204,255);
-      m_nCurCompColorTable = 1;
-    }
-    // Component color table #0 (default)
-    else
-    {
-      m_aCompBgColor = new Color[5];
-      m_aCompBgColor[0] = new Color(null,192,192,192);
-      m_aCompBgColor[1] = new Color(null,255,051,102);
-      m_aCompBgColor[2] = new Color(null,000,102,204);
-      m_aCompBgColor[3] = new Color(null,051,204,102);
-      m_aCompBgColor[4] = new Color(null,255,255,102);
-      m_nCurCompColorTable = 0;
-    }
-    
-    // Create foreground colors from background colors
-    m_aCompFgColor = new Color[m_aCompBgColor.length];
-    for (int i = 0; i < m_aCompBgColor.length; i++)
+    // Create background and foreground colors
+    int[] aRgb = getCompColorRgbs(nCompColorTable);
+    m_aCompBgColor = new Color[aRgb.length];
+    m_aCompFgColor = new Color[aRgb.length];
+    for (int i = 0; i < aRgb.length; i++)
     {
-      int r = m_aCompBgColor[i].getRed();
-      int g = m_aCompBgColor[i].getGreen();
-      int b = m_aCompBgColor[i].getBlue();
-      double p1 = 220./(double)(Math.max(Math.max(r,g),b));
-      double p2 = 300./(double)(r+g+b);
-      double p = (p1+p2)/2; if (p>1) p=1;
-      //double p = Math.min(p1,p2); if (p>1) p=1;
-      m_aCompFgColor[i] = new Color(null,(int)(p*r),(int)(p*g),(int)(p*b));
+      int nFg = getCompFgRgb(aRgb[i]);
+      m_aCompBgColor[i] = new Color(null,(aRgb[i] >> 16) & 0xFF,(aRgb[i] >> 8) & 0xFF,aRgb[i] & 0xFF);
+      m_aCompFgColor[i] = new Color(null,(nFg >> 16) & 0xFF,(nFg >> 8) & 0xFF,nFg & 0xFF);
     }
+    m_nCurCompColorTable = nCompColorTable == 1 ? 1 : 0;
     
     // Create color icons
     m_aCompColorIcon = new Image[m_aCompBgColor.length];
@@ -249,6 +223,50 @@ public class ColorManager implements DdPreferenceConstants
     }
   }
   
+  /**
+   * Returns the background colors of a data component color table as RGB values
+   * (<code>0xRRGGBB</code>). The method does not require a display.
+   * 
+   * @param nCompColorTable
+   *          A color table index (see {@link #getCompColorTables()})
+   * @return The colors
+   */
+  public static int[] getCompColorRgbs(int nCompColorTable)
+  {
+    // Component color table #1 (MS Excel)
+    if (nCompColorTable == 1)
+      return new int[]
+      {
+        rgb(153,153,255), rgb(153,051,102), rgb(255,255,204), rgb(204,255,255),
+        rgb(102,000,102), rgb(255,128,128), rgb(000,102,204), rgb(204,204,255)
+      };
+
+    // Component color table #0 (default)
+    return new int[]
+    {
+      rgb(192,192,192), rgb(255,051,102), rgb(000,102,204), rgb(051,204,102), rgb(255,255,102)
+    };
+  }
+
+  /**
+   * Derives the foreground color representing a data component from its background color.
+   * 
+   * @param nBgRgb
+   *          The background color (<code>0xRRGGBB</code>)
+   * @return The foreground color (<code>0xRRGGBB</code>)
+   */
+  public static int getCompFgRgb(int nBgRgb)
+  {
+    int r = (nBgRgb >> 16) & 0xFF;
+    int g = (nBgRgb >> 8) & 0xFF;
+    int b = nBgRgb & 0xFF;
+    double p1 = 220./(double)(Math.max(Math.max(r,g),b));
+    double p2 = 300./(double)(r+g+b);
+    double p = (p1+p2)/2; if (p>1) p=1;
+    //double p = Math.min(p1,p2); if (p>1) p=1;
+    return rgb((int)(p*r),(int)(p*g),(int)(p*b));
+  }
+  
   /**
    * Disposes the all data component colors.
    */
@@ -310,105 +328,124 @@ public class ColorManager implements DdPreferenceConstants
     // Initialize
     disposeValueColors();
     if (nValueColorTable < 0) nValueColorTable = m_nCurValueColorTable + 1;
+    if (nValueColorTable < 1 || nValueColorTable > 4) nValueColorTable = 0;
+
+    // Create colors
+    int[] aRgb = getValueColorRgbs(nValueColorTable);
+    m_aValueColor = new Color[aRgb.length];
+    for (int i = 0; i < aRgb.length; i++)
+      m_aValueColor[i] = new Color(null,(aRgb[i] >> 16) & 0xFF,(aRgb[i] >> 8) & 0xFF,aRgb[i] & 0xFF);
+    m_nCurValueColorTable = nValueColorTable;
+  }
+
+  /**
+   * Returns a data value color table as RGB values (<code>0xRRGGBB</code>). The method does not
+   * require a display.
+   * 
+   * @param nValueColorTable
+   *          A color table index (see {@link #getValueColorTables()})
+   * @return The colors, from the lowest to the highest value
+   */
+  public static int[] getValueColorRgbs(int nValueColorTable)
+  {
+    int[] aRgb = new int[65];
+    Arrays.fill(aRgb,-1);
 
     // Value color table #1
     if (nValueColorTable == 1)
     {
-      m_aValueColor = new Color[65];
-      m_aValueColor[0] = new Color(null,0,0,0);
-      m_aValueColor[1] = new Color(null,0,0,255);
-      m_aValueColor[63] = new Color(null,255,230,0);
-      m_aValueColor[64] = new Color(null,255,0,0);
-      m_nCurValueColorTable = 1;
+      aRgb[0] = rgb(0,0,0);
+      aRgb[1] = rgb(0,0,255);
+      aRgb[63] = rgb(255,230,0);
+      aRgb[64] = rgb(255,0,0);
     }
     // Value color table #2
     else if (nValueColorTable == 2)
     {
-      m_aValueColor = new Color[65];
-      m_aValueColor[0] = new Color(null,3,121,83);
-      m_aValueColor[2] = new Color(null,9,104,99);
-      m_aValueColor[4] = new Color(null,18,82,121);
-      m_aValueColor[6] = new Color(null,26,60,143);
-      m_aValueColor[8] = new Color(null,35,40,162);
-      m_aValueColor[10] = new Color(null,43,21,179);
-      m_aValueColor[12] = new Color(null,52,4,191);
-      m_aValueColor[14] = new Color(null,60,13,199);
-      m_aValueColor[16] = new Color(null,69,23,202);
-      m_aValueColor[18] = new Color(null,77,34,199);
-      m_aValueColor[20] = new Color(null,86,42,191);
-      m_aValueColor[22] = new Color(null,95,47,179);
-      m_aValueColor[24] = new Color(null,103,49,162);
-      m_aValueColor[26] = new Color(null,112,49,143);
-      m_aValueColor[28] = new Color(null,120,45,121);
-      m_aValueColor[30] = new Color(null,129,39,99);
-      m_aValueColor[32] = new Color(null,137,30,77);
-      m_aValueColor[34] = new Color(null,145,20,59);
-      m_aValueColor[36] = new Color(null,153,7,41);
-      m_aValueColor[38] = new Color(null,162,8,27);
-      m_aValueColor[40] = new Color(null,170,26,17);
-      m_aValueColor[42] = new Color(null,179,45,12);
-      m_aValueColor[44] = new Color(null,187,66,12);
-      m_aValueColor[46] = new Color(null,196,88,18);
-      m_aValueColor[48] = new Color(null,205,110,28);
-      m_aValueColor[50] = new Color(null,213,132,43);
-      m_aValueColor[52] = new Color(null,222,155,61);
-      m_aValueColor[54] = new Color(null,230,177,82);
-      m_aValueColor[56] = new Color(null,239,198,104);
-      m_aValueColor[58] = new Color(null,247,218,126);
-      m_aValueColor[60] = new Color(null,254,237,147);
-      m_aValueColor[62] = new Color(null,246,253,166);
-      m_aValueColor[64] = new Color(null,238,244,180);
-      m_nCurValueColorTable = 2;
+      aRgb[0] = rgb(3,121,83);
+      aRgb[2] = rgb(9,104,99);
+      aRgb[4] = rgb(18,82,121);
+      aRgb[6] = rgb(26,60,143);
+      aRgb[8] = rgb(35,40,162);
+      aRgb[10] = rgb(43,21,179);
+      aRgb[12] = rgb(52,4,191);
+      aRgb[14] = rgb(60,13,199);
+      aRgb[16] = rgb(69,23,202);
+      aRgb[18] = rgb(77,34,199);
+      aRgb[20] = rgb(86,42,191);
+      aRgb[22] = rgb(95,47,179);
+      aRgb[24] = rgb(103,49,162);
+      aRgb[26] = rgb(112,49,143);
+      aRgb[28] = rgb(120,45,121);
+      aRgb[30] = rgb(129,39,99);
+      aRgb[32] = rgb(137,30,77);
+      aRgb[34] = rgb(145,20,59);
+      aRgb[36] = rgb(153,7,41);
+      aRgb[38] = rgb(162,8,27);
+      aRgb[40] = rgb(170,26,17);
+      aRgb[42] = rgb(179,45,12);
+      aRgb[44] = rgb(187,66,12);
+      aRgb[46] = rgb(196,88,18);
+      aRgb[48] = rgb(205,110,28);
+      aRgb[50] = rgb(213,132,43);
+      aRgb[52] = rgb(222,155,61);
+      aRgb[54] = rgb(230,177,82);
+      aRgb[56] = rgb(239,198,104);
+      aRgb[58] = rgb(247,218,126);
+      aRgb[60] = rgb(254,237,147);
+      aRgb[62] = rgb(246,253,166);
+      aRgb[64] = rgb(238,244,180);
     }
     // Value color table #3
     else if (nValueColorTable == 3)
     {
-      m_aValueColor = new Color[65];
-      m_aValueColor[0] = new Color(null,255,255,255);
-      m_aValueColor[64] = new Color(null,0,0,0);
-      m_nCurValueColorTable = 3;
+      aRgb[0] = rgb(255,255,255);
+      aRgb[64] = rgb(0,0,0);
     }
     // Value color table #4
     else if (nValueColorTable == 4)
     {
-      m_aValueColor = new Color[65];
-      m_aValueColor[0] = new Color(null,0,0,0);
-      m_aValueColor[64] = new Color(null,255,255,255);
-      m_nCurValueColorTable = 4;
+      aRgb[0] = rgb(0,0,0);
+      aRgb[64] = rgb(255,255,255);
     }
     // Value color table #0 (default)
     else
     {
-      m_aValueColor = new Color[65];
-      m_aValueColor[0] = new Color(null,0,17,37);
-      m_aValueColor[43] = new Color(null,0,115,255);
-      m_aValueColor[58] = new Color(null,255,238,0);
-      m_aValueColor[64] = new Color(null,255,0,47);
-      m_nCurValueColorTable = 0;
+      aRgb[0] = rgb(0,17,37);
+      aRgb[43] = rgb(0,115,255);
+      aRgb[58] = rgb(255,238,0);
+      aRgb[64] = rgb(255,0,47);
     }
 
     // Interpolate missing colors
-    if (m_aValueColor[0] == null) m_aValueColor[0] = new Color(null,0,0,0);
-    if (m_aValueColor[m_aValueColor.length - 1] == null) m_aValueColor[m_aValueColor.length - 1] = new Color(
-        null,255,255,255);
-    for (int i = 0, j; i < m_aValueColor.length;)
+    if (aRgb[0] < 0) aRgb[0] = rgb(0,0,0);
+    if (aRgb[aRgb.length - 1] < 0) aRgb[aRgb.length - 1] = rgb(255,255,255);
+    for (int i = 0, j; i < aRgb.length;)
     {
-      for (j = i + 1; j < m_aValueColor.length && m_aValueColor[j] == null; j++)
+      for (j = i + 1; j < aRgb.length && aRgb[j] < 0; j++)
         ;
       if (j > i + 1) for (int k = i + 1; k < j; k++)
       {
         double nInt = (double)(k - i) / (double)(j - i);
-        int nR = (int)(nInt * (m_aValueColor[j].getRed() - m_aValueColor[i].getRed()) + m_aValueColor[i]
-            .getRed());
-        int nG = (int)(nInt
-            * (m_aValueColor[j].getGreen() - m_aValueColor[i].getGreen()) + m_aValueColor[i]
-            .getGreen());
-        int nB = (int)(nInt * (m_aValueColor[j].getBlue() - m_aValueColor[i].getBlue()) + m_aValueColor[i]
-            .getBlue());
-        m_aValueColor[k] = new Color(null,nR,nG,nB);
+        int nR0 = (aRgb[i] >> 16) & 0xFF, nR1 = (aRgb[j] >> 16) & 0xFF;
+        int nG0 = (aRgb[i] >> 8) & 0xFF,  nG1 = (aRgb[j] >> 8) & 0xFF;
+        int nB0 = aRgb[i] & 0xFF,         nB1 = aRgb[j] & 0xFF;
+        int nR = (int)(nInt * (nR1 - nR0) + nR0);
+        int nG = (int)(nInt * (nG1 - nG0) + nG0);
+        int nB = (int)(nInt * (nB1 - nB0) + nB0);
+        aRgb[k] = rgb(nR,nG,nB);
       }
       i = j;
     }
+    return aRgb;
+  }
+
+  /**
+   * Packs color components into an RGB value (<code>0xRRGGBB</code>).
+   */
+  public static int rgb(int r, int g, int b)
+  {
+    return (r << 16) | (g << 8) | b;
   }
 
   /**
@@ -0,0 +1,629 @@
+package de.tucottbus.kt.jlab.datadisplays.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.eclipse.swt.graphics.PaletteData;
+
+import de.tucottbus.kt.jlab.datadisplays.DdPreferenceConstants;
+import de.tucottbus.kt.jlab.datadisplays.data.DataCompInfo;
+import de.tucottbus.kt.jlab.datadisplays.data.DataException;
+import de.tucottbus.kt.jlab.datadisplays.data.MinMaxPyramid;
+import de.tucottbus.kt.jlab.datadisplays.widgets.displays.LabelDisplay;
+import de.tucottbus.kt.jlab.datadisplays.widgets.displays.Spectrogram;
+import de.tucottbus.kt.jlab.datadisplays.widgets.displays.ThreeDDisplay;
+import de.tucottbus.kt.jlab.kernel.JlCorpusLoader;
+import de.tucottbus.kt.jlab.kernel.JlData;
+
+/**
+ * Renders the data displays of a data instance into an image without creating widgets. The
+ * components are grouped as by a {@link de.tucottbus.kt.jlab.datadisplays.widgets.ComponentPanel
+ * ComponentPanel} with the same property string, and each group is rendered as a track, from
+ * top to bottom: oscillograms and bar diagrams as value envelopes, spectrograms and 3D displays
+ * as value color maps, and label displays as label segments (without texts).
+ *
+ * <p>The pixels are computed in pure Java and written through an {@link ImageLoader}; no
+ * display, graphics context, or font is required. Hence the renderer runs on machines without a
+ * (virtual) frame buffer and in any number of threads. {@link #renderBatch(List, File, String,
+ * int)} renders a list of data files in parallel.</p>
+ *
+ * @author Matthias Wolff
+ */
+public class DataImageRenderer
+{
+  /**
+   * Height of label tracks in pixels.
+   */
+  public static final int LABEL_HEIGHT = 16;
+
+  private static final int SEPARATOR = 0xC0C0C0; // Track separator color
+  private static final int ZEROLINE  = 0xE0E0E0; // Zero line color
+  private static final int LABELSEG  = 0xF0F0F0; // Label segment color
+  private static final int LABELFG   = 0x000000; // Label boundary color
+
+  private final int nWidth;                      // Image width
+  private final int nHeight;                     // Image height
+  private int       nBgRgb = 0xFFFFFF;           // Background color (0xRRGGBB)
+  private int[]     aCompRgb;                    // Component colors (0xRRGGBB)
+  private int[]     aValueRgb;                   // Value colors (0xRRGGBB)
+
+  /**
+   * Creates a renderer. The color tables are taken from the preferences if available.
+   *
+   * @param nWidth
+   *          The image width in pixels.
+   * @param nHeight
+   *          The image height in pixels.
+   * @throws IllegalArgumentException
+   *          If the image size is invalid.
+   */
+  public DataImageRenderer(int nWidth, int nHeight) throws IllegalArgumentException
+  {
+    if (nWidth<1 || nHeight<1)
+      throw new IllegalArgumentException("Invalid image size "+nWidth+"x"+nHeight);
+    this.nWidth  = nWidth;
+    this.nHeight = nHeight;
+
+    int nCompColorTable  = 0;
+    int nValueColorTable = 0;
+    try
+    {
+      IPreferenceStore iStore = DdUtils.getPreferenceStore();
+      nCompColorTable  = iStore.getInt(DdPreferenceConstants.P_VIS_COMPCOLORTAB );
+      nValueColorTable = iStore.getInt(DdPreferenceConstants.P_VIS_VALUECOLORTAB);
+    }
+    catch (Throwable e)
+    {
+      // No preferences, use default color tables
+    }
+    setColorTables(nCompColorTable,nValueColorTable);
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Selects the color tables.
+   *
+   * @param nCompColorTable
+   *          The component color table (see {@link ColorManager#getCompColorTables()}).
+   * @param nValueColorTable
+   *          The value color table (see {@link ColorManager#getValueColorTables()}).
+   */
+  public void setColorTables(int nCompColorTable, int nValueColorTable)
+  {
+    int[] aRgb = ColorManager.getCompColorRgbs(nCompColorTable);
+    for (int i=0; i<aRgb.length; i++) aRgb[i] = ColorManager.getCompFgRgb(aRgb[i]);
+    this.aCompRgb  = aRgb;
+    this.aValueRgb = ColorManager.getValueColorRgbs(nValueColorTable);
+  }
+
+  /**
+   * Sets the background color.
+   *
+   * @param nBgRgb
+   *          The color (<code>0xRRGGBB</code>), default is white.
+   */
+  public void setBackground(int nBgRgb)
+  {
+    this.nBgRgb = nBgRgb & 0xFFFFFF;
+  }
+
+  // -- Operations --
+
+  /**
+   * Renders the data displays of a data instance. The method may be called concurrently.
+   *
+   * @param iData
+   *          The data instance.
+   * @param sProps
+   *          Property string defining the layout (see {@link DataCompInfo}), <code>null</code>
+   *          or empty for the automatic layout.
+   * @return The image.
+   * @throws DataException
+   *          If the property string is invalid.
+   */
+  public ImageData render(JlData iData, String sProps) throws DataException
+  {
+    int[] aPix = new int[nWidth*nHeight];
+    Arrays.fill(aPix,nBgRgb);
+
+    // Group components into tracks (as ComponentPanel.createDisplays)
+    DataCompInfo[] aDci = DataCompInfo.createFromData(iData,sProps!=null ? sProps : "");
+    List<DataCompInfo[]> lTracks = new ArrayList<DataCompInfo[]>();
+    int nLabels = 0;
+    for (int nC=0, nC0=0, nVisible=0; nC<aDci.length; nC++)
+    {
+      if (aDci[nC].bVisible) nVisible++;
+      if (nC==aDci.length-1 || aDci[nC].nGroup<0 || aDci[nC+1].nGroup!=aDci[nC].nGroup)
+      {
+        if (nVisible>0)
+        {
+          lTracks.add(Arrays.copyOfRange(aDci,nC0,nC+1));
+          if (isLabelTrack(aDci[nC0])) nLabels++;
+        }
+        nC0      = nC+1;
+        nVisible = 0;
+      }
+    }
+
+    // Lay out and paint tracks
+    int nOthers = lTracks.size()-nLabels;
+    int nSpace  = nHeight-nLabels*LABEL_HEIGHT-Math.max(lTracks.size()-1,0);
+    int nTop    = 0;
+    for (int i=0; i<lTracks.size() && nTop<nHeight; i++)
+    {
+      DataCompInfo[] aTrack = lTracks.get(i);
+      if (i>0)
+      {
+        fillRect(aPix,0,nTop,nWidth,1,SEPARATOR);
+        nTop++;
+      }
+      int nH;
+      if (isLabelTrack(aTrack[0]))
+        nH = LABEL_HEIGHT;
+      else
+      {
+        nH = (int)Math.round((double)Math.max(nSpace,0)/nOthers);
+        nSpace -= nH;
+        nOthers--;
+      }
+      nH = Math.min(nH,nHeight-nTop);
+      if (nH<=0) continue;
+
+      String sType = aTrack[0].sDisplayType;
+      if (isLabelTrack(aTrack[0]))
+        paintLabels(aPix,aTrack[0],nTop,nH);
+      else if (Spectrogram.class.getName().equals(sType) || ThreeDDisplay.class.getName().equals(sType))
+        paintSpectrogram(aPix,aTrack,nTop,nH);
+      else
+        paintOscillogram(aPix,aTrack,nTop,nH);
+      nTop += nH;
+    }
+
+    // Convert to image data
+    ImageData iImg = new ImageData(nWidth,nHeight,24,new PaletteData(0xFF0000,0xFF00,0xFF));
+    byte[] aBuf = iImg.data;
+    for (int y=0; y<nHeight; y++)
+      for (int x=0, o=y*iImg.bytesPerLine, p=y*nWidth; x<nWidth; x++, o+=3, p++)
+      {
+        int c = aPix[p];
+        aBuf[o  ] = (byte)(c>>16);
+        aBuf[o+1] = (byte)(c>>8);
+        aBuf[o+2] = (byte)c;
+      }
+    return iImg;
+  }
+
+  /**
+   * Renders the data displays of a data instance into a PNG file. The method may be called
+   * concurrently.
+   *
+   * @param iData
+   *          The data instance.
+   * @param sProps
+   *          Property string defining the layout (see {@link #render(JlData, String)}).
+   * @param iFile
+   *          The image file.
+   * @throws DataException
+   *          If the property string is invalid.
+   * @throws org.eclipse.swt.SWTException
+   *          If the file cannot be written.
+   */
+  public void write(JlData iData, String sProps, File iFile) throws DataException
+  {
+    ImageLoader iLoader = new ImageLoader();
+    iLoader.data = new ImageData[] { render(iData,sProps) };
+    iLoader.save(iFile.getPath(),SWT.IMAGE_PNG);
+  }
+
+  /**
+   * Renders a list of data files into PNG files in parallel. Each file is read through
+   * {@link JlCorpusLoader#readFile(File, boolean)}, rendered, and written to
+   * <code>iOutDir</code> as <code><i>path</i>.png</code>, where <i>path</i> is the path of the
+   * data file relative to the deepest directory containing all data files (e.g.
+   * <code>spk1/0001.wav</code> and <code>spk2/0001.wav</code> are written to
+   * <code>spk1/0001.wav.png</code> and <code>spk2/0001.wav.png</code>). Files whose output file
+   * would clash with the one of a preceding file are not rendered but reported as errors. At most
+   * <code>nThreads</code> data instances are held in memory at a time.
+   *
+   * @param lFiles
+   *          The data files.
+   * @param iOutDir
+   *          The output directory.
+   * @param sProps
+   *          Property string defining the layout (see {@link #render(JlData, String)}).
+   * @param nThreads
+   *          The number of threads, 0 for the number of processors.
+   * @return The errors by file, empty if all files were rendered.
+   * @throws InterruptedException
+   *          If the calling thread was interrupted.
+   */
+  public Map<File,Throwable> renderBatch
+  (
+    List<File>   lFiles,
+    final File   iOutDir,
+    final String sProps,
+    int          nThreads
+  )
+  throws InterruptedException
+  {
+    if (nThreads<=0) nThreads = Runtime.getRuntime().availableProcessors();
+    final Map<File,Throwable> mErrors
+      = Collections.synchronizedMap(new LinkedHashMap<File,Throwable>());
+    final AtomicInteger nThread = new AtomicInteger();
+    ExecutorService iPool = Executors.newFixedThreadPool(nThreads,new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"DataImageRenderer-"+nThread.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    final Map<File,File> mOutFiles = getOutputFiles(lFiles,iOutDir,mErrors);
+    try
+    {
+      for (final File iFile : mOutFiles.keySet())
+        iPool.execute(new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              JlData idData = JlCorpusLoader.readFile(iFile,false);
+              File   iOut   = mOutFiles.get(iFile);
+              iOut.getParentFile().mkdirs();
+              write(idData,sProps,iOut);
+            }
+            catch (Throwable e)
+            {
+              mErrors.put(iFile,e);
+            }
+          }
+        });
+    }
+    finally
+    {
+      iPool.shutdown();
+    }
+    try
+    {
+      iPool.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+    }
+    catch (InterruptedException e)
+    {
+      iPool.shutdownNow();
+      throw e;
+    }
+    return mErrors;
+  }
+
+  /**
+   * Determines the output files of {@link #renderBatch(List, File, String, int)}.
+   *
+   * @param lFiles
+   *          The data files.
+   * @param iOutDir
+   *          The output directory.
+   * @param mErrors
+   *          Receives an error for each data file whose output file clashes with the one of a
+   *          preceding data file.
+   * @return The output files by data file, in the order of <code>lFiles</code>.
+   */
+  private static Map<File,File> getOutputFiles
+  (
+    List<File>          lFiles,
+    File                iOutDir,
+    Map<File,Throwable> mErrors
+  )
+  {
+    // Find the deepest directory containing all files
+    Path iRoot = null;
+    for (int i=0; i<lFiles.size(); i++)
+    {
+      Path iDir = lFiles.get(i).toPath().toAbsolutePath().normalize().getParent();
+      if (i==0)
+        iRoot = iDir;
+      else
+        while (iRoot!=null && (iDir==null || !iDir.startsWith(iRoot)))
+          iRoot = iRoot.getParent();
+    }
+
+    // Map the relative paths into the output directory
+    Map<File,File>   mOutFiles = new LinkedHashMap<File,File>();
+    Map<String,File> mOwners   = new HashMap<String,File>();
+    for (File iFile : lFiles)
+    {
+      Path iPath = iFile.toPath().toAbsolutePath().normalize();
+      Path iRel  = iRoot!=null ? iRoot.relativize(iPath)
+                 : iPath.getRoot()!=null ? iPath.getRoot().relativize(iPath) : iPath;
+      File iOut  = new File(iOutDir,iRel.toString()+".png");
+      String sKey = iOut.getAbsolutePath().toLowerCase(Locale.ENGLISH); // Case-insensitive FS
+      File iOwner = mOwners.get(sKey);
+      if (iOwner!=null)
+        mErrors.put(iFile,new IOException("Output file "+iOut+" is already written for "
+          +iOwner));
+      else
+      {
+        mOwners.put(sKey,iFile);
+        mOutFiles.put(iFile,iOut);
+      }
+    }
+    return mOutFiles;
+  }
+
+  // -- Painting --
+
+  private static boolean isLabelTrack(DataCompInfo iDci)
+  {
+    return LabelDisplay.class.getName().equals(iDci.sDisplayType)
+      || iDci.iData.getCompType(iDci.nComp)==String.class;
+  }
+
+  /**
+   * Returns the first record shown in pixel column <code>x</code>.
+   */
+  private int getFirstRec(int x, int nXR)
+  {
+    return (int)((long)x*nXR/nWidth);
+  }
+
+  /**
+   * Paints the value envelopes of a group of components. If there are more records than pixel
+   * columns, the minimum and maximum of each column are taken from the component statistics,
+   * otherwise the records are connected by lines.
+   */
+  private void paintOscillogram(int[] aPix, DataCompInfo[] aDci, int nTop, int nH)
+  {
+    JlData iData = aDci[0].iData;
+    int    nXR   = iData.getLength();
+    double nMin  = Double.MAX_VALUE;
+    double nMax  = -Double.MAX_VALUE;
+    for (DataCompInfo iDci : aDci)
+    {
+      if (!iDci.bVisible) continue;
+      if (iDci.nMin<nMin) nMin = iDci.nMin;
+      if (iDci.nMax>nMax) nMax = iDci.nMax;
+    }
+    if (nXR==0 || nMin>nMax) return;
+    if (nMin==nMax) { nMin -= 1; nMax += 1; }
+    double nScale = (nH-1)/(nMax-nMin);
+    int    nBot   = nTop+nH-1;
+
+    // Zero line
+    if (nMin<0 && nMax>0)
+      fillRect(aPix,0,nBot-(int)Math.round(-nMin*nScale),nWidth,1,ZEROLINE);
+
+    double[] aMinMax = new double[2];
+    for (int k=0; k<aDci.length; k++)
+    {
+      if (!aDci[k].bVisible) continue;
+      int nClr = aCompRgb[k%aCompRgb.length];
+      if (nXR>=nWidth)
+      {
+        // Envelope (each column includes the first record of the next one)
+        for (int x=0; x<nWidth; x++)
+        {
+          int nFirst = getFirstRec(x,nXR);
+          int nLast  = Math.min(getFirstRec(x+1,nXR),nXR-1);
+          if (!aDci[k].getMinMax(nFirst,nLast-nFirst+1,aMinMax)) continue;
+          int y0 = nBot-(int)Math.round((aMinMax[1]-nMin)*nScale);
+          int y1 = nBot-(int)Math.round((aMinMax[0]-nMin)*nScale);
+          fillRect(aPix,x,y0,1,y1-y0+1,nClr);
+        }
+      }
+      else
+      {
+        // Polyline
+        Object aData = iData.getComp(aDci[k].nComp);
+        int    xp    = -1;
+        int    yp    = 0;
+        for (int r=0; r<nXR; r++)
+        {
+          double v = MinMaxPyramid.value(aData,r);
+          if (Double.isNaN(v)) { xp = -1; continue; }
+          int x = (int)((r+0.5)*nWidth/nXR);
+          int y = nBot-(int)Math.round((v-nMin)*nScale);
+          if (xp<0) fillRect(aPix,x,y,1,1,nClr);
+          else      drawLine(aPix,xp,yp,x,y,nClr);
+          xp = x;
+          yp = y;
+        }
+      }
+    }
+  }
+
+  /**
+   * Paints the values of a group of components as colors, the first component at the bottom. If
+   * there are more records than pixel columns, the values of each column are pooled (maximum or,
+   * if {@link DdUtils#bSpecPoolMean} is set, mean).
+   */
+  private void paintSpectrogram(int[] aPix, DataCompInfo[] aDci, int nTop, int nH)
+  {
+    JlData iData = aDci[0].iData;
+    int    nXR   = iData.getLength();
+    int    nK    = aDci.length;
+    double nMin  = Double.MAX_VALUE;
+    double nMax  = -Double.MAX_VALUE;
+    for (DataCompInfo iDci : aDci)
+    {
+      if (!iDci.bVisible) continue;
+      if (iDci.nMin<nMin) nMin = iDci.nMin;
+      if (iDci.nMax>nMax) nMax = iDci.nMax;
+    }
+    if (nXR==0 || nMin>nMax) return;
+    double nRatio = nMax>nMin ? aValueRgb.length/(nMax-nMin) : 0;
+
+    // Map pixel rows to components
+    Object[] aData = new Object[nK];
+    int[]    aRow  = new int[nH];
+    for (int k=0; k<nK; k++) aData[k] = iData.getComp(aDci[k].nComp);
+    for (int y=0; y<nH; y++)
+    {
+      int k = (int)((long)(nH-1-y)*nK/nH);
+      aRow[y] = aDci[k].bVisible ? k : -1;
+    }
+
+    boolean  bMean = DdUtils.bSpecPoolMean;
+    double[] aCol  = new double[nK];
+    for (int x=0; x<nWidth; x++)
+    {
+      // Pool the records of this column
+      int nFirst = getFirstRec(x,nXR);
+      int nEnd   = Math.max(nFirst+1,getFirstRec(x+1,nXR));
+      for (int k=0; k<nK; k++)
+      {
+        if (!aDci[k].bVisible) continue;
+        double nPool = bMean ? 0 : Double.NEGATIVE_INFINITY;
+        int    nCnt  = 0;
+        for (int r=nFirst; r<nEnd; r++)
+        {
+          double v = MinMaxPyramid.value(aData[k],r);
+          if (Double.isNaN(v)) continue;
+          if (bMean) nPool += v; else if (v>nPool) nPool = v;
+          nCnt++;
+        }
+        aCol[k] = nCnt==0 ? Double.NaN : bMean ? nPool/nCnt : nPool;
+      }
+
+      // Paint the column
+      for (int y=0, p=nTop*nWidth+x; y<nH; y++, p+=nWidth)
+      {
+        if (aRow[y]<0) continue;
+        double v = aCol[aRow[y]];
+        if (Double.isNaN(v)) continue;
+        int nCol = (int)Math.round((v-nMin)*nRatio);
+        if (nCol>=aValueRgb.length) nCol = aValueRgb.length-1;
+        if (nCol<0) nCol = 0;
+        aPix[p] = aValueRgb[nCol];
+      }
+    }
+  }
+
+  /**
+   * Paints the segments of a label component: non-empty labels are shaded, label boundaries are
+   * drawn as vertical lines.
+   */
+  private void paintLabels(int[] aPix, DataCompInfo iDci, int nTop, int nH)
+  {
+    JlData   iData = iDci.iData;
+    int      nXR   = iData.getLength();
+    String[] asLab = iData.getCompType(iDci.nComp)==String.class
+                   ? (String[])iData.getComp(iDci.nComp) : null;
+
+    int    nX0 = 0;
+    String s0  = null;
+    for (int r=0; r<=nXR; r++)
+    {
+      String s = null;
+      if (r<nXR)
+      {
+        s = asLab!=null && r<asLab.length ? asLab[r] : iData.sFetch(r,iDci.nComp);
+        if (s==null) s = "";
+        if (s.equals(s0)) continue;
+      }
+      int nX1 = r<nXR ? (int)((long)r*nWidth/nXR) : nWidth;
+      if (s0!=null && s0.length()>0 && nX1>nX0+1)
+        fillRect(aPix,nX0+1,nTop+1,nX1-nX0-1,nH-2,LABELSEG);
+      if (r>0 && r<nXR) fillRect(aPix,nX1,nTop,1,nH,LABELFG);
+      nX0 = nX1;
+      s0  = s;
+    }
+
+    // Border
+    fillRect(aPix,0,nTop,nWidth,1,LABELFG);
+    fillRect(aPix,0,nTop+nH-1,nWidth,1,LABELFG);
+    fillRect(aPix,0,nTop,1,nH,LABELFG);
+    fillRect(aPix,nWidth-1,nTop,1,nH,LABELFG);
+  }
+
+  private void fillRect(int[] aPix, int x, int y, int w, int h, int nClr)
+  {
+    int x0 = Math.max(x,0), x1 = Math.min(x+w,nWidth);
+    int y0 = Math.max(y,0), y1 = Math.min(y+h,nHeight);
+    if (x1<=x0) return;
+    for (int yy=y0; yy<y1; yy++) Arrays.fill(aPix,yy*nWidth+x0,yy*nWidth+x1,nClr);
+  }
+
+  private void drawLine(int[] aPix, int x1, int y1, int x2, int y2, int nClr)
+  {
+    int dx = Math.abs(x2-x1), sx = x1<x2 ? 1 : -1;
+    int dy = -Math.abs(y2-y1), sy = y1<y2 ? 1 : -1;
+    int e  = dx+dy;
+    while (true)
+    {
+      if (x1>=0 && x1<nWidth && y1>=0 && y1<nHeight) aPix[y1*nWidth+x1] = nClr;
+      if (x1==x2 && y1==y2) break;
+      int e2 = 2*e;
+      if (e2>=dy) { e += dy; x1 += sx; }
+      if (e2<=dx) { e += dx; y1 += sy; }
+    }
+  }
+
+  // -- Main method --
+
+  /**
+   * Renders data files into PNG files.
+   *
+   * <pre>DataImageRenderer [-w width] [-h height] [-p props] [-t threads] outdir file ...</pre>
+   */
+  public static void main(String[] args)
+  {
+    int    nW      = 800;
+    int    nH      = 300;
+    int    nThr    = 0;
+    String sProps  = "";
+    int    i       = 0;
+    try
+    {
+      for (; i<args.length-1 && args[i].startsWith("-"); i+=2)
+        if      (args[i].equals("-w")) nW     = Integer.parseInt(args[i+1]);
+        else if (args[i].equals("-h")) nH     = Integer.parseInt(args[i+1]);
+        else if (args[i].equals("-t")) nThr   = Integer.parseInt(args[i+1]);
+        else if (args[i].equals("-p")) sProps = args[i+1];
+        else throw new IllegalArgumentException("Unknown option "+args[i]);
+      if (args.length-i<2)
+        throw new IllegalArgumentException("Missing output directory or files");
+
+      File iOutDir = new File(args[i++]);
+      List<File> lFiles = new ArrayList<File>();
+      for (; i<args.length; i++) lFiles.add(new File(args[i]));
+      long nStart = System.currentTimeMillis();
+      Map<File,Throwable> mErrors = new DataImageRenderer(nW,nH)
+        .renderBatch(lFiles,iOutDir,sProps,nThr);
+      for (Map.Entry<File,Throwable> e : mErrors.entrySet())
+        System.err.println("ERROR: "+e.getKey()+": "+e.getValue());
+      System.out.println((lFiles.size()-mErrors.size())+" of "+lFiles.size()
+        +" files rendered in "+(System.currentTimeMillis()-nStart)+" ms");
+      if (!mErrors.isEmpty()) System.exit(1);
+    }
+    catch (Exception e)
+    {
+      System.err.println("ERROR: "+e.toString());
+      System.err.println("Usage: DataImageRenderer [-w width] [-h height] [-p props] "
+        +"[-t threads] outdir file ...");
+      System.exit(2);
+    }
+  }
+
+}
+
+// EOF
@@ -13,6 +13,8 @@ public class DdUtils
   
   public static boolean bSpecShowValues = true;
   public static boolean bSpecShowLevels = false;
+  public static boolean bSpecInterpolate = false;
+  public static boolean bSpecPoolMean = false;
   
   public static int VERBOSE = 0;
   
@@ -1,10 +1,16 @@
 package de.tucottbus.kt.jlab.datadisplays.widgets;
 
+import java.io.File;
 import java.lang.reflect.Constructor;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Vector;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.events.DisposeEvent;
 import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.events.MouseEvent;
@@ -25,10 +31,13 @@ import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.ScrollBar;
 
+import de.tucottbus.kt.jlab.datadisplays.DdPreferenceConstants;
 import de.tucottbus.kt.jlab.datadisplays.data.DataCompInfo;
 import de.tucottbus.kt.jlab.datadisplays.data.DataException;
+import de.tucottbus.kt.jlab.datadisplays.data.SpectrogramPyramid;
 import de.tucottbus.kt.jlab.datadisplays.events.DisplayEvent;
 import de.tucottbus.kt.jlab.datadisplays.events.HdetailEvent;
 import de.tucottbus.kt.jlab.datadisplays.events.IDisplayEventListener;
@@ -42,6 +51,7 @@ import de.tucottbus.kt.jlab.datadisplays.widgets.displays.ThreeDDisplay;
 import de.tucottbus.kt.jlab.datadisplays.widgets.rulers.DummyRuler;
 import de.tucottbus.kt.jlab.datadisplays.widgets.rulers.Ruler;
 import de.tucottbus.kt.jlab.datadisplays.widgets.rulers.RulerCalculator;
+import de.tucottbus.kt.jlab.kernel.JlCorpusLoader;
 import de.tucottbus.kt.jlab.kernel.JlData;
 
 /**
@@ -53,15 +63,44 @@ import de.tucottbus.kt.jlab.kernel.JlData;
  */
 public class ComponentPanel extends Composite {
 	
+  /**
+   * Minimal height of a data display in pixels. If not all displays fit into the panel at this
+   * height, only the displays in the viewport are shown and a vertical scroll bar appears.
+   */
+  public static final int MIN_DISPLAY_HEIGHT = 48;
+
+  /**
+   * Maximal number of display panels kept for reuse outside the viewport.
+   */
+  private static final int MAX_HIDDEN_PANELS = 32;
+
+  /**
+   * Display constructors by class name.
+   */
+  private static final Map<String,Constructor<?>> s_iDisplayConstructors
+    = new HashMap<String,Constructor<?>>();
+
   private   Vector m_iDisplayEventListeners;
   protected LinkedList<DataDisplayPanel> mDataDisplayPanelList;
-  private   LinkedList mVerticalSeparatorList;
+  private   DataCompInfo[][] m_aGroups;
+  private   DataDisplayPanel[] m_aGroupPanels;
+  private   VerticalSeparator[] m_aGroupSeparators;
+  private   int m_nFirstGroup;
+  private   int m_nGroupSlots;
   private   HorizontalRulerPanel mHorizontalRulerPanel;
   protected Ruler mHorizontalRuler;
   private   JlData m_data;
   private   Point m_iSizeBuf;
   private   Color backgroundColor;
   private   SelectionListener hsbrSelectionListener;
+  @SuppressWarnings("deprecation") // java.util.Observable is jLab's notification mechanism
+  private   Observable m_iLiveSource;
+  @SuppressWarnings("deprecation")
+  private   Observer m_iLiveObserver;
+  private   int m_nLivePeriod;
+  private   int m_nLiveLength;
+  private   long m_nLiveTime;
+  private   volatile boolean m_bLivePending;
 
 	// -- Constructors --
 	
@@ -89,7 +128,7 @@ public class ComponentPanel extends Composite {
 	 */
 	public ComponentPanel(Composite parent, JlData iData, String sProps)
 	{
-		super(parent, SWT.H_SCROLL);
+		super(parent, SWT.H_SCROLL | SWT.V_SCROLL);
 		if (iData==null)
 		{
 		  iData = new JlData(new double[16000],"");
@@ -99,7 +138,6 @@ public class ComponentPanel extends Composite {
 		m_data = iData;
     backgroundColor = parent.getBackground();
 		mDataDisplayPanelList = new LinkedList();
-		mVerticalSeparatorList = new LinkedList();
     setBackground(backgroundColor);
 
     try
@@ -124,16 +162,46 @@ public class ComponentPanel extends Composite {
 	 */
 	public ComponentPanel(Composite parent, Exception e)
   {
-    super(parent, SWT.H_SCROLL);
+    super(parent, SWT.H_SCROLL | SWT.V_SCROLL);
     m_data = null;
     backgroundColor = parent.getBackground();
     mDataDisplayPanelList = new LinkedList();
-    mVerticalSeparatorList = new LinkedList();
     setBackground(backgroundColor);
 
     initialSetup(e);
   }
 
+  /**
+   * Creates a ComponentPanel showing the content of a file. The file is read by
+   * {@link JlCorpusLoader#readFile(File, boolean)}. If the boolean preference
+   * {@link DdPreferenceConstants#P_VIS_SPECPYRAMIDS} is set (default: not set), the file is
+   * registered with {@link SpectrogramPyramid#setDataFile(JlData, File)}, so spectrogram pyramids
+   * of the data are stored next to the file and reloaded when the file is opened again.
+   * 
+   * @param parent
+   *          The parent widget
+   * @param iFile
+   *          The audio, dLabPro XML, or jLab binary data file
+   * @param sProps
+   *          Property string defining the layout (see <code>DataCompInfo</code>)
+   * @return The panel showing the data or, if the file cannot be read, the error
+   */
+  public static ComponentPanel open(Composite parent, File iFile, String sProps)
+  {
+    JlData iData;
+    try
+    {
+      iData = JlCorpusLoader.readFile(iFile,false);
+    }
+    catch (Exception e)
+    {
+      return new ComponentPanel(parent,e);
+    }
+    if (DdUtils.getPreferenceStore().getBoolean(DdPreferenceConstants.P_VIS_SPECPYRAMIDS))
+      SpectrogramPyramid.setDataFile(iData,iFile);
+    return new ComponentPanel(parent,iData,sProps);
+  }
+
 	// -- Layout --
 
 	/**
@@ -161,6 +229,25 @@ public class ComponentPanel extends Composite {
       {
       }
     };
+    getVerticalBar().setVisible(false);
+    getVerticalBar().addSelectionListener(new SelectionListener()
+    {
+      public void widgetSelected(SelectionEvent e)
+      {
+        scrollComponentsVertical();
+      }
+
+      public void widgetDefaultSelected(SelectionEvent e)
+      {
+      }
+    });
+    addListener(SWT.Resize, new Listener()
+    {
+      public void handleEvent(Event e)
+      {
+        fitGroupsToViewport();
+      }
+    });
     if (aDci!=null)
     {
       createDisplays(aDci);
@@ -194,6 +281,7 @@ public class ComponentPanel extends Composite {
     iLabel = new Label(this,SWT.NONE);
     iLabel.setText(e.getMessage());
     getHorizontalBar().setVisible(false);
+    getVerticalBar().setVisible(false);
   }
 	
 	/**
@@ -213,6 +301,7 @@ public class ComponentPanel extends Composite {
     initScrollbar();
     setBounds(r);
     if (rd!=null) setRecDetail(rd.x,rd.y,false);
+    fitGroupsToViewport();
     layout();
   }	
 
@@ -220,27 +309,27 @@ public class ComponentPanel extends Composite {
    * Clears the entire component panel
    */
   private final void clearPanel() {
-    Control c;
-    for (int i = 0; i < mDataDisplayPanelList.size(); i++) {
-      c = (Control) mDataDisplayPanelList.get(i);
-      if (c != null) {
-        c.dispose();
-      }
-      if (i < mVerticalSeparatorList.size()) {
-        c = (Control) mVerticalSeparatorList.get(i);
-        if (c != null) {
-          c.dispose();
+    if (m_aGroups!=null)
+      for (int i = 0; i < m_aGroups.length; i++) {
+        if (m_aGroupPanels[i] != null) {
+          m_aGroupPanels[i].dispose();
+        }
+        if (m_aGroupSeparators[i] != null) {
+          m_aGroupSeparators[i].dispose();
         }
       }
-    }
     if (mHorizontalRulerPanel!=null)
       mHorizontalRulerPanel.dispose();
-    mVerticalSeparatorList = new LinkedList();
+    m_aGroups = null;
+    m_aGroupPanels = null;
+    m_aGroupSeparators = null;
     mDataDisplayPanelList = new LinkedList();
   }
 	
   /**
-   * Creates all data displays.
+   * Groups the components into displays and creates the data displays in the viewport. The
+   * remaining displays are created when they are scrolled into the viewport (see
+   * {@link #showGroups()}).
    * 
    * @param aDci
    *          Array of DataCompInfo objects defining the display data.
@@ -248,10 +337,10 @@ public class ComponentPanel extends Composite {
   private final void createDisplays(DataCompInfo[] aDci)
   {
     if (aDci==null || aDci.length==0) return;                                   // Must have data comp. info array!
-    Vector  iDciGrp  = new Vector();                                            // Components of current group
-    int     nXC      = aDci.length;                                             // Number of components
-    int     nVisible = 0;                                                       // No. visible comps. in current group
-    boolean bFirst   = true;                                                    // First display flag
+    Vector<DataCompInfo>   iDciGrp  = new Vector<DataCompInfo>();               // Components of current group
+    Vector<DataCompInfo[]> iGroups  = new Vector<DataCompInfo[]>();             // Component arrays of displays
+    int                    nXC      = aDci.length;                              // Number of components
+    int                    nVisible = 0;                                        // No. visible comps. in current group
 
     for (int nC=0; nC<nXC; nC++)                                                // Loop over components
     {                                                                           // >>
@@ -266,16 +355,21 @@ public class ComponentPanel extends Composite {
       {                                                                         //   >>
         if (iDciGrp.size()>0 && nVisible>0)                                     //     Visible comps. in current group
         {                                                                       //     >>
-          if (!bFirst) createAVerticalSeparator();                              //       Separate display panels
           DataCompInfo[] aDciGrp = {};                                          //       Comp. array of current group
-          aDciGrp = (DataCompInfo[])iDciGrp.toArray(aDciGrp);                   //       Get component info array
-          createDisplay(aDciGrp);                                               //       Create display
-          bFirst = false;                                                       //       The next one is not the first
+          aDciGrp = iDciGrp.toArray(aDciGrp);                                   //       Get component info array
+          iGroups.add(aDciGrp);                                                 //       Add to display groups
         }                                                                       //     <<
         iDciGrp.clear();                                                        //     Start new component vector
         nVisible = 0;                                                           //     Clear no. of visible components
       }                                                                         //   <<
     }                                                                           // <<
+
+    m_aGroups          = iGroups.toArray(new DataCompInfo[0][]);                // Display groups
+    m_aGroupPanels     = new DataDisplayPanel[m_aGroups.length];                // Panels are created on demand
+    m_aGroupSeparators = new VerticalSeparator[m_aGroups.length];               // Separators, too
+    m_nFirstGroup      = 0;                                                     // Start at the top
+    m_nGroupSlots      = computeGroupSlots();                                   // Displays fitting into the viewport
+    showGroups();                                                               // Create displays in viewport
   }
 	
   /**
@@ -284,28 +378,28 @@ public class ComponentPanel extends Composite {
    * @param aDci
    *          Array of DataCompInfo objects defining the data of a single
    *          display.
+   * @return The display panel or <code>null</code> if the display could not
+   *         be created.
    */
-  private void createDisplay(DataCompInfo[] aDci)
+  private DataDisplayPanel createDisplay(DataCompInfo[] aDci)
   {
     int nRightSpacer = 10;
     int nGridStyle   = GridData.FILL_BOTH;
     
-    if (aDci==null || aDci.length==0) return;
+    if (aDci==null || aDci.length==0) return null;
 
+    DataDisplayPanel iPanel = null;
     try
     {
       // What to create?
-      Class iDspCls = Class.forName(aDci[0].sDisplayType);
+      Constructor<?> iDspCns = getDisplayConstructor(aDci[0].sDisplayType);
       DdUtils.MSG("Creating a "+aDci[0].sDisplayType+
         " for comps "+aDci[0].nComp+" through "+(aDci[0].nComp+aDci.length-1)+
         " ("+aDci[0].iData.getLength()+" records)");
-      if (iDspCls.equals(Oscillogram.class)) nRightSpacer = 0;
+      if (iDspCns.getDeclaringClass().equals(Oscillogram.class)) nRightSpacer = 0;
       
       // Create a new data display panel and data display
-      DataDisplayPanel iPanel = new DataDisplayPanel(this);
-      Class[] aCnsSgn =
-      { Composite.class, int.class, DataCompInfo[].class, Ruler.class };
-      Constructor iDspCns = iDspCls.getConstructor(aCnsSgn);
+      iPanel = new DataDisplayPanel(this);
       Object[] aCnsArgs = { iPanel, new Integer(0), aDci, mHorizontalRuler };
       AbstractDataDisplay iDisplay = (AbstractDataDisplay)iDspCns
           .newInstance(aCnsArgs);
@@ -350,17 +444,168 @@ public class ComponentPanel extends Composite {
       iPanel.addVerticalRuler(iVRuler);
       iPanel.addDataDisplay(iDisplay);
       iPanel.addRightSpacer(nRightSpacer);
-      mDataDisplayPanelList.add(iPanel);
       if (iVRuler instanceof DummyRuler) nGridStyle = GridData.FILL_HORIZONTAL;
       else                               nGridStyle = GridData.FILL_BOTH; 
       iPanel.setLayoutData(new GridData(nGridStyle));
+      return iPanel;
     }
     catch (Exception e)
     {
       e.printStackTrace();
+      if (iPanel!=null) iPanel.dispose();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the constructor <code>(Composite,int,DataCompInfo[],Ruler)</code>
+   * of a data display class. The constructors are looked up once per class.
+   * 
+   * @param sDisplayType
+   *          The fully qualified class name of the data display.
+   */
+  private static Constructor<?> getDisplayConstructor(String sDisplayType)
+  throws ClassNotFoundException, NoSuchMethodException
+  {
+    synchronized (s_iDisplayConstructors)
+    {
+      Constructor<?> iDspCns = s_iDisplayConstructors.get(sDisplayType);
+      if (iDspCns==null)
+      {
+        iDspCns = Class.forName(sDisplayType).getConstructor(Composite.class,
+          int.class,DataCompInfo[].class,Ruler.class);
+        s_iDisplayConstructors.put(sDisplayType,iDspCns);
+      }
+      return iDspCns;
     }
   }
 
+  // -- Viewport --
+
+  /**
+   * Returns the number of displays fitting into the viewport at
+   * {@link #MIN_DISPLAY_HEIGHT}.
+   */
+  private int computeGroupSlots()
+  {
+    int nGroups = m_aGroups!=null ? m_aGroups.length : 0;
+    int nHeight = getClientArea().height;
+    if (mHorizontalRulerPanel!=null && !mHorizontalRulerPanel.isDisposed())
+      nHeight -= mHorizontalRulerPanel.computeSize(SWT.DEFAULT,SWT.DEFAULT).y;
+    if (nHeight<=0) return Math.min(nGroups,DdUtils.VOP_DEF_VISIBLE_DISPLAYS);
+    int nSlots = (nHeight+DdUtils.VS_VERTICAL_SPACE)/(MIN_DISPLAY_HEIGHT+DdUtils.VS_VERTICAL_SPACE);
+    return Math.max(1,Math.min(nGroups,nSlots));
+  }
+
+  /**
+   * Adapts the number of displays in the viewport to the panel height.
+   */
+  private void fitGroupsToViewport()
+  {
+    if (isDisposed() || m_aGroups==null || getClientArea().height<=0) return;
+    int nSlots = computeGroupSlots();
+    if (nSlots==m_nGroupSlots) return;
+    m_nGroupSlots = nSlots;
+    showGroups();
+  }
+
+  /**
+   * Scrolls the displays to the vertical scroll bar position.
+   */
+  private void scrollComponentsVertical()
+  {
+    if (m_aGroups==null) return;
+    int nFirst = getVerticalBar().getSelection();
+    if (nFirst==m_nFirstGroup) return;
+    m_nFirstGroup = nFirst;
+    showGroups();
+  }
+
+  /**
+   * Shows the displays in the viewport. Displays are created when they are
+   * scrolled into the viewport for the first time. Displays scrolled out of
+   * the viewport are hidden and reused when they are scrolled in again; if
+   * there are more than {@link #MAX_HIDDEN_PANELS} hidden displays, the ones
+   * farthest from the viewport are disposed.
+   */
+  private void showGroups()
+  {
+    if (m_aGroups==null) return;
+    int   nGroups = m_aGroups.length;
+    m_nFirstGroup = Math.max(0,Math.min(m_nFirstGroup,nGroups-m_nGroupSlots));
+    int   nLast   = m_nFirstGroup+m_nGroupSlots-1;
+    Point rd      = mDataDisplayPanelList.isEmpty() ? null : getRecDetail();
+
+    // Create, show and hide display panels and separators
+    int nHidden = 0;
+    for (int i=0; i<nGroups; i++)
+    {
+      boolean bShow = i>=m_nFirstGroup && i<=nLast;
+      if (bShow && m_aGroupPanels[i]==null)
+      {
+        m_aGroupPanels[i] = createDisplay(m_aGroups[i]);
+        if (m_aGroupPanels[i]!=null)
+        {
+          AbstractDataDisplay d = m_aGroupPanels[i].getDataDisplay();
+          if (mHorizontalRuler!=null) d.setHorizontalRuler(mHorizontalRuler);
+          if (rd!=null) d.setRecDetail(rd.x,rd.y);
+        }
+      }
+      if (bShow && i>m_nFirstGroup && m_aGroupSeparators[i]==null)
+        m_aGroupSeparators[i] = createAVerticalSeparator();
+      setShown(m_aGroupPanels[i],bShow);
+      setShown(m_aGroupSeparators[i],bShow && i>m_nFirstGroup);
+      if (!bShow && m_aGroupPanels[i]!=null) nHidden++;
+    }
+
+    // Dispose hidden display panels farthest from the viewport
+    for (int nLo=0, nHi=nGroups-1; nHidden>MAX_HIDDEN_PANELS; )
+    {
+      int i = m_nFirstGroup-nLo>nHi-nLast ? nLo++ : nHi--;
+      if (m_aGroupPanels[i]==null) continue;
+      m_aGroupPanels[i].dispose();
+      m_aGroupPanels[i] = null;
+      if (m_aGroupSeparators[i]!=null) m_aGroupSeparators[i].dispose();
+      m_aGroupSeparators[i] = null;
+      nHidden--;
+    }
+
+    // Restore the order of the controls and the list of display panels
+    mDataDisplayPanelList = new LinkedList<DataDisplayPanel>();
+    for (int i=0; i<nGroups; i++)
+    {
+      if (m_aGroupSeparators[i]!=null) m_aGroupSeparators[i].moveBelow(null);
+      if (m_aGroupPanels[i]==null) continue;
+      m_aGroupPanels[i].moveBelow(null);
+      mDataDisplayPanelList.add(m_aGroupPanels[i]);
+    }
+    if (mHorizontalRulerPanel!=null && !mHorizontalRulerPanel.isDisposed())
+      mHorizontalRulerPanel.moveBelow(null);
+
+    updateVerticalScrollbar();
+    layout(true);
+  }
+
+  /**
+   * Shows or hides a control and excludes hidden controls from the layout.
+   */
+  private static void setShown(Control c, boolean bShow)
+  {
+    if (c==null || c.getVisible()==bShow) return;
+    ((GridData)c.getLayoutData()).exclude = !bShow;
+    c.setVisible(bShow);
+  }
+
+  private final void updateVerticalScrollbar()
+  {
+    ScrollBar vBar = getVerticalBar();
+    boolean bScroll = m_aGroups!=null && m_nGroupSlots<m_aGroups.length;
+    if (bScroll)
+      vBar.setValues(m_nFirstGroup,0,m_aGroups.length,m_nGroupSlots,1,
+        Math.max(1,m_nGroupSlots-1));
+    if (vBar.getVisible()!=bScroll) vBar.setVisible(bScroll);
+  }
+
   /**
    * Returns a point describing the receiver's size. The method is implemented
    * asynchronously and may be called form outside the UI process.
@@ -392,6 +637,156 @@ public class ComponentPanel extends Composite {
     return m_iSizeBuf;
   }
 
+  // -- Live Display --
+
+  /**
+   * Refreshes the live display (GUI thread). In polling mode the refresh reschedules itself.
+   */
+  private final Runnable m_iLiveRefresh = new Runnable()
+  {
+    public void run()
+    {
+      m_bLivePending = false;
+      if (isDisposed() || m_nLivePeriod<=0) return;
+      refreshLive();
+      if (m_iLiveSource==null) scheduleLiveRefresh();
+    }
+  };
+
+  /**
+   * Switches the live display mode on or off. In live display mode the panel follows records
+   * appended to its data instance: the horizontal ruler and the scroll bar are extended, the
+   * value ranges of the components are updated incrementally, and the displays are refreshed at
+   * most <code>nMaxRate</code> times per second. If the last record was shown before, the view
+   * scrolls along with the new records keeping its width (or keeps showing all records). Only
+   * the tiles of the new records are rendered then, unless the value range or the scale
+   * changes.
+   * 
+   * @param iSource
+   *          The observable appending the records, typically the
+   *          {@link de.tucottbus.kt.jlab.kernel.JlDataLogger JlDataLogger} whose data instance
+   *          this panel displays, or <code>null</code> to poll the length of the data instance.
+   *          The source must append records while holding its monitor; the panel reads the
+   *          number of records while holding it as well.
+   * @param nMaxRate
+   *          The maximal number of refreshes per second, 0 to switch the live display mode off.
+   */
+  @SuppressWarnings("deprecation") // java.util.Observable is jLab's notification mechanism
+  public void setLive(Observable iSource, int nMaxRate)
+  {
+    if (m_iLiveSource!=null) m_iLiveSource.deleteObserver(m_iLiveObserver);
+    if (!isDisposed()) getDisplay().timerExec(-1,m_iLiveRefresh);
+    m_iLiveSource   = null;
+    m_iLiveObserver = null;
+    m_bLivePending  = false;
+    m_nLivePeriod   = nMaxRate>0 ? Math.max(1,1000/nMaxRate) : 0;
+    if (m_nLivePeriod==0 || isDisposed() || m_data==null) return;
+
+    m_nLiveLength = m_data.getLength();
+    if (iSource==null)
+    {
+      scheduleLiveRefresh();
+      return;
+    }
+    m_iLiveSource   = iSource;
+    m_iLiveObserver = new Observer()
+    {
+      public void update(Observable o, Object arg)
+      {
+        requestLiveRefresh();
+      }
+    };
+    iSource.addObserver(m_iLiveObserver);
+  }
+
+  /**
+   * Determines if this panel is in live display mode.
+   */
+  public boolean isLive()
+  {
+    return m_nLivePeriod>0;
+  }
+
+  /**
+   * Requests a refresh of the live display. The method may be called from any thread; requests
+   * arriving while a refresh is pending are dropped.
+   */
+  private void requestLiveRefresh()
+  {
+    if (m_bLivePending) return;
+    m_bLivePending = true;
+    try
+    {
+      getDisplay().asyncExec(new Runnable()
+      {
+        public void run()
+        {
+          if (!isDisposed() && m_nLivePeriod>0) scheduleLiveRefresh();
+        }
+      });
+    }
+    catch (SWTException e)
+    {
+      // Widget or display disposed
+    }
+  }
+
+  /**
+   * Schedules the next refresh of the live display observing the maximal refresh rate (GUI
+   * thread).
+   */
+  private void scheduleLiveRefresh()
+  {
+    long nWait = m_nLiveTime+m_nLivePeriod-System.currentTimeMillis();
+    getDisplay().timerExec((int)Math.max(1,Math.min(nWait,m_nLivePeriod)),m_iLiveRefresh);
+  }
+
+  /**
+   * Shows the records appended since the last refresh of the live display.
+   */
+  private void refreshLive()
+  {
+    m_nLiveTime = System.currentTimeMillis();
+    int nOld = m_nLiveLength;
+    int nNew;
+    if (m_iLiveSource!=null)
+      synchronized (m_iLiveSource)
+      {
+        nNew = m_data.getLength();
+      }
+    else
+      nNew = m_data.getLength();
+    if (nNew==nOld) return;
+    m_nLiveLength = nNew;
+    if (nNew<=0) return;
+
+    // Update value ranges
+    Point rd = getRecDetail();
+    for (int i = 0; i < mDataDisplayPanelList.size(); i++)
+    {
+      DataDisplayPanel iPanel = (DataDisplayPanel)mDataDisplayPanelList.get(i);
+      if (iPanel!=null && !iPanel.isDisposed())
+        iPanel.getDataDisplay().onRecordsAppended(Math.min(nOld,nNew),nNew);
+    }
+
+    // Extend scroll bar and follow the new records
+    getHorizontalBar().setMaximum(nNew-1);
+    int nFirst = rd.x;
+    int nLast  = rd.y;
+    if (nNew<nOld || (rd.x<=0 && rd.y>=nOld-1))
+    {
+      nFirst = 0;
+      nLast  = nNew-1;
+    }
+    else if (rd.y>=nOld-1)
+    {
+      nLast  = nNew-1;
+      nFirst = nLast-(rd.y-rd.x);
+    }
+    setRecDetail(nFirst,nLast,false);
+    if (nFirst!=rd.x || nLast!=rd.y) fireDisplayEvent(new HdetailEvent(null,nFirst,nLast));
+  }
+
   // -- Sound Play Back --
   
   /**
@@ -490,6 +885,7 @@ public class ComponentPanel extends Composite {
     {
       DataDisplayPanel iDdp = (DataDisplayPanel)mDataDisplayPanelList.get(i);
       AbstractDataDisplay iDd = iDdp.getDataDisplay();
+      if (!iDdp.getVisible()) continue; // Outside viewport
       if (iDd instanceof LabelDisplay)
         nVspaceAvail -= 3*nRhX/2;
       else
@@ -500,6 +896,7 @@ public class ComponentPanel extends Composite {
     {
       DataDisplayPanel iDdp = (DataDisplayPanel)mDataDisplayPanelList.get(i);
       AbstractDataDisplay iDd = iDdp.getDataDisplay();
+      if (!iDdp.getVisible()) continue; // Outside viewport
 
       iVrc = new RulerCalculator(iDdp.getVerticalRuler().getCalculator());
       nHd  = (int)Math.round((double)nVspaceAvail/(double)nDataDisplays);
@@ -696,10 +1093,10 @@ public class ComponentPanel extends Composite {
 		// layout();
 	}
 
-	private final void createAVerticalSeparator() {
+	private final VerticalSeparator createAVerticalSeparator() {
 		VerticalSeparator vs = new VerticalSeparator(this);
 		vs.setLayoutData(new GridData(GridData.FILL_HORIZONTAL));
-		mVerticalSeparatorList.add(vs);
+		return vs;
 	}
 	
 	private final void createHorizontalRuler()
@@ -724,16 +1121,19 @@ public class ComponentPanel extends Composite {
 	
 	private final void activateScrollbar(int start, int end) {
 		ScrollBar hBar = getHorizontalBar();
-		if(!hBar.isVisible())
-			hBar.setVisible(true);
-		
 		hBar.setThumb(end - start);
 		hBar.setSelection(start);
-    getParent().layout(true,true);
+		if(!hBar.isVisible())
+		{
+			hBar.setVisible(true);
+	    getParent().layout(true,true);
+		}
 	}
 	
 	private final void deactivateScrollbar() {
-		getHorizontalBar().setVisible(false);
+	  ScrollBar hBar = getHorizontalBar();
+	  if (!hBar.isVisible()) return;
+		hBar.setVisible(false);
 		getParent().layout(true,true);
 	}
 
@@ -748,7 +1148,7 @@ public class ComponentPanel extends Composite {
 	}
 
 	private void widgetDisposed(DisposeEvent e) {
-
+	  setLive(null,0);
 	}
 
 	public final void scrollComponentsHorizontal()
@@ -792,7 +1192,6 @@ public class ComponentPanel extends Composite {
         {
           d = p.getDataDisplay();
           d.setHorizontalRuler(mHorizontalRuler);
-          if (!(d instanceof ThreeDDisplay)) bAll3D = false; 
         }
         catch (Exception e)
         {
@@ -800,6 +1199,10 @@ public class ComponentPanel extends Composite {
         }
       }
     }
+    if (m_aGroups!=null)
+      for (int i = 0; i < m_aGroups.length; i++)
+        if (!ThreeDDisplay.class.getCanonicalName().equals(m_aGroups[i][0].sDisplayType))
+          bAll3D = false;
     mHorizontalRuler.setEnabled(!bAll3D);
   }
 
@@ -4,7 +4,10 @@
 
 package de.tucottbus.kt.jlab.datadisplays.widgets.displays;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 import org.eclipse.swt.events.DisposeEvent;
 import org.eclipse.swt.events.DisposeListener;
@@ -13,7 +16,10 @@ import org.eclipse.swt.events.MouseMoveListener;
 import org.eclipse.swt.events.MouseTrackListener;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
+import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Composite;
@@ -40,6 +46,95 @@ public abstract class AbstractDataDisplay extends AbstractComponent
   public static final int DRAW_DATA    = 0x0002;
   public static final int DRAW_MARKERS = 0x0004;
   public static final int DRAW_ALL     = 0xFFFF;
+
+  // -- TILE CACHE -------------------------------------------------------------
+
+  /**
+   * Nominal width of off-screen data tiles (in pixels).
+   */
+  public static final int TILE_WIDTH = 256;
+
+  /**
+   * Key of an off-screen data tile.
+   */
+  private static final class TileKey
+  {
+    final AbstractDataDisplay iOwner;
+    final int  nGeneration;  // Owner's tile generation (see invalidateTiles)
+    final int  nTile;        // Tile index
+    final int  nRecs;        // Records per tile
+    final int  nWidth;       // Tile width (pixels)
+    final int  nHeight;      // Tile height (pixels)
+    final long nVlo;         // Vertical ruler low value (bits)
+    final long nVhi;         // Vertical ruler high value (bits)
+    final int  nFirstComp;   // First shown component
+    final int  nLastComp;    // Last shown component
+    final int  nVisible;     // Hash of component visibility flags
+    final int  nAvail;       // Records available in the tile (grows on append)
+
+    TileKey(AbstractDataDisplay iOwner, int nTile, int nRecs, int nWidth, RulerCalculator iVrc,
+      int nAvail)
+    {
+      this.iOwner      = iOwner;
+      this.nGeneration = iOwner.m_nTileGeneration;
+      this.nTile       = nTile;
+      this.nRecs       = nRecs;
+      this.nWidth      = nWidth;
+      this.nHeight     = iVrc.getLength();
+      this.nVlo        = Double.doubleToLongBits(iVrc.getLowValue());
+      this.nVhi        = Double.doubleToLongBits(iVrc.getHighValue());
+      this.nFirstComp  = iOwner.m_nFirstComp;
+      this.nLastComp   = iOwner.m_nLastComp;
+      int nVisible = 1;
+      for (DataCompInfo iDci : iOwner.m_aDci) nVisible = 31*nVisible+(iDci.bVisible ? 1 : 0);
+      this.nVisible    = nVisible;
+      this.nAvail      = nAvail;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof TileKey)) return false;
+      TileKey k = (TileKey)obj;
+      return iOwner==k.iOwner && nGeneration==k.nGeneration && nTile==k.nTile
+        && nRecs==k.nRecs && nWidth==k.nWidth && nHeight==k.nHeight && nVlo==k.nVlo
+        && nVhi==k.nVhi && nFirstComp==k.nFirstComp && nLastComp==k.nLastComp
+        && nVisible==k.nVisible && nAvail==k.nAvail;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = System.identityHashCode(iOwner);
+      h = 31*h+nGeneration;
+      h = 31*h+nTile;
+      h = 31*h+nRecs;
+      h = 31*h+nWidth;
+      h = 31*h+nHeight;
+      h = 31*h+(int)(nVlo^(nVlo>>>32));
+      h = 31*h+(int)(nVhi^(nVhi>>>32));
+      h = 31*h+nFirstComp;
+      h = 31*h+nLastComp;
+      h = 31*h+nVisible;
+      return 31*h+nAvail;
+    }
+  }
+
+  /**
+   * Off-screen data tiles of all displays in LRU order (accessed by the GUI thread only).
+   */
+  private static final LinkedHashMap<TileKey,Image> s_iTiles
+    = new LinkedHashMap<TileKey,Image>(64,0.75f,true);
+
+  /**
+   * Memory budget of the tile cache (in bytes).
+   */
+  private static long s_nTileBudget = 32L<<20;
+
+  /**
+   * Memory currently occupied by cached tiles (in bytes, estimated).
+   */
+  private static long s_nTileBytes = 0;
   
 	// -- FIELDS -----------------------------------------------------------------
   
@@ -105,6 +200,11 @@ public abstract class AbstractDataDisplay extends AbstractComponent
 	 */
 	protected LinkedList<IDisplayInfoListener> m_iDisplayInfoListeners;
 
+  /**
+   * Tile generation, incremented by {@link #invalidateTiles()}
+   */
+  private int m_nTileGeneration;
+
 	// -- CONSTRUCTORS AND STATIC METHODS ----------------------------------------
 
 	/**
@@ -170,14 +270,18 @@ public abstract class AbstractDataDisplay extends AbstractComponent
         // NOTE: This may time out and re-run over and over -->
         // drawOn(iPe.gc);
         // <--
-        paintCanvas(iPe.gc,null,m_iHruler.getCalculator(),m_iVruler.getCalculator());
-        paintData(iPe.gc,null,m_iHruler.getCalculator(),m_iVruler.getCalculator());
-        paintMarkers(iPe.gc,null,m_iHruler.getCalculator(),m_iVruler.getCalculator());
+        RulerCalculator iHrc = m_iHruler.getCalculator();
+        RulerCalculator iVrc = m_iVruler.getCalculator();
+        paintCanvas(iPe.gc,null,iHrc,iVrc);
+        if (!isTileable() || !paintTiles(iPe.gc,iHrc,iVrc))
+          paintData(iPe.gc,null,iHrc,iVrc);
+        paintMarkers(iPe.gc,null,iHrc,iVrc);
       }
     });
 
 		addDisposeListener(new DisposeListener() {
 			public void widgetDisposed(DisposeEvent iDe) {
+				invalidateTiles();
 				onDisposed(iDe);
 			}
 		});
@@ -448,6 +552,37 @@ public abstract class AbstractDataDisplay extends AbstractComponent
 		return new Point(m_nFirstRec, m_nLastRec);
 	}
 
+  /**
+   * Notifies this display that records were appended to its data instance (live display mode,
+   * see {@link de.tucottbus.kt.jlab.datadisplays.widgets.ComponentPanel#setLive(java.util.Observable,
+   * int) ComponentPanel.setLive}). The method updates the value ranges of the components, which
+   * scans the appended records only, and calls {@link #onValueRangeChanged()} if they changed.
+   * The record detail is adjusted by the caller afterwards.
+   * 
+   * @param nOldLength
+   *          The number of records before the append.
+   * @param nNewLength
+   *          The number of completely appended records; records beyond may still be written.
+   */
+  public void onRecordsAppended(int nOldLength, int nNewLength)
+  {
+    double nMin = getMinValue();
+    double nMax = getMaxValue();
+    for (DataCompInfo iDci : m_aDci) iDci.computeMinMax(false,false);
+    if (getMinValue()!=nMin || getMaxValue()!=nMax) onValueRangeChanged();
+  }
+
+  /**
+   * Called when the value range of the components changed. The default implementation discards
+   * the cached tiles and redraws the display. Derived classes adjust their value rulers or color
+   * scales before calling this implementation.
+   */
+  protected void onValueRangeChanged()
+  {
+    invalidateTiles();
+    redraw();
+  }
+
 	/**
 	 * Sets the component viewing detail. The method calls
 	 * <code>invalidate()</code> and <code>redraw()</code>. It will be called on
@@ -621,6 +756,165 @@ public abstract class AbstractDataDisplay extends AbstractComponent
   {
   }	
 	
+  /**
+   * Determines whether this display paints its data through the off-screen tile cache. Tiled
+   * displays must paint data records at positions obtained from the horizontal ruler calculator
+   * passed to {@link #paintData(GC, Rectangle, RulerCalculator, RulerCalculator)} and only
+   * between {@link #m_nFirstRec} and {@link #m_nLastRec}. They must not paint the background.
+   * The default implementation returns <code>false</code>.
+   */
+  protected boolean isTileable()
+  {
+    return false;
+  }
+
+  /**
+   * Sets the memory budget of the off-screen tile cache shared by all data displays. Least
+   * recently used tiles are discarded if the budget is exceeded.
+   * 
+   * @param nBytes
+   *          The budget in bytes, 0 to disable the tile cache.
+   */
+  public static void setTileBudget(long nBytes)
+  {
+    s_nTileBudget = Math.max(nBytes,0);
+    trimTiles();
+  }
+
+  /**
+   * Returns the memory budget of the off-screen tile cache (in bytes).
+   */
+  public static long getTileBudget()
+  {
+    return s_nTileBudget;
+  }
+
+  /**
+   * Discards all cached off-screen tiles of this display. Derived classes must call this
+   * method if the appearance of the data changes for other reasons than scrolling, zooming,
+   * changing the component detail or visibility, or appending records (e.g. when the colors or
+   * the record contents change).
+   */
+  public void invalidateTiles()
+  {
+    m_nTileGeneration++;
+    for (Iterator<Map.Entry<TileKey,Image>> it = s_iTiles.entrySet().iterator(); it.hasNext(); )
+    {
+      Map.Entry<TileKey,Image> e = it.next();
+      if (e.getKey().iOwner!=this) continue;
+      s_nTileBytes -= tileBytes(e.getValue());
+      e.getValue().dispose();
+      it.remove();
+    }
+  }
+
+  /**
+   * Paints the data by blitting cached off-screen tiles; only tiles not in the cache are
+   * rendered.
+   * 
+   * @return <code>false</code> if the data could not be painted through tiles
+   */
+  private boolean paintTiles(GC iGc, RulerCalculator iHrc, RulerCalculator iVrc)
+  {
+    int nCount  = m_nLastRec-m_nFirstRec+1;
+    int nLen    = iHrc.getLength();
+    int nHeight = iVrc.getLength();
+    if (s_nTileBudget==0 || nCount<=1 || nLen<=0 || nHeight<=0) return false;
+
+    double nPpr   = (double)nLen/nCount;                              // Pixels per record
+    int    nRecs  = Math.max(1,(int)Math.round(TILE_WIDTH/nPpr));     // Records per tile
+    int    nWidth = (int)Math.ceil(nRecs*nPpr);                       // Tile width
+    int    nXR    = getJlData().getLength();
+    for (int nTile=m_nFirstRec/nRecs; nTile<=m_nLastRec/nRecs; nTile++)
+    {
+      int nAvail = Math.max(0,Math.min(nXR,(nTile+1)*nRecs+1)-nTile*nRecs);
+      TileKey iKey = new TileKey(this,nTile,nRecs,nWidth,iVrc,nAvail);
+      Image iTile = s_iTiles.get(iKey);
+      if (iTile==null)
+      {
+        iTile = renderTile(nTile,nRecs,nWidth,iVrc,nXR);
+        if (iTile==null) continue;
+        s_iTiles.put(iKey,iTile);
+        s_nTileBytes += tileBytes(iTile);
+      }
+      iGc.drawImage(iTile,(int)Math.round((nTile*nRecs-m_nFirstRec)*nPpr),0);
+    }
+    trimTiles();
+    return true;
+  }
+
+  /**
+   * Renders one off-screen tile. The tile contains the records
+   * <code>[nTile*nRecs-1,(nTile+1)*nRecs]</code>, the record before and after the tile are
+   * included so that lines connecting data points cross the tile borders.
+   */
+  private Image renderTile(int nTile, int nRecs, int nWidth, RulerCalculator iVrc, int nXR)
+  {
+    int nFirstRec = m_nFirstRec;
+    int nLastRec  = m_nLastRec;
+    m_nFirstRec = Math.max(0,nTile*nRecs-1);
+    m_nLastRec  = Math.min(nXR-1,(nTile+1)*nRecs);
+    if (m_nFirstRec>=m_nLastRec)
+    {
+      m_nFirstRec = nFirstRec;
+      m_nLastRec  = nLastRec;
+      return null;
+    }
+    Image iImg = new Image(getDisplay(),nWidth,iVrc.getLength());
+    GC    iGc  = new GC(iImg);
+    try
+    {
+      RulerCalculator iThrc = new RulerCalculator(false);
+      iThrc.setPosInfo(nWidth);
+      iThrc.setDataRange(nTile*nRecs,nRecs,0.,1.,null);
+      Color iBg = m_iVcm.getBgColor(getDisplay());
+      iGc.setBackground(iBg);
+      iGc.fillRectangle(0,0,nWidth,iVrc.getLength());
+      paintData(iGc,null,iThrc,iVrc);
+      iGc.dispose();
+      iGc = null;
+
+      // Make background transparent so that the canvas shines through
+      ImageData iData = iImg.getImageData();
+      iData.transparentPixel = iData.palette.getPixel(iBg.getRGB());
+      iImg.dispose();
+      iImg = new Image(getDisplay(),iData);
+      return iImg;
+    }
+    catch (RuntimeException e)
+    {
+      iImg.dispose();
+      throw e;
+    }
+    finally
+    {
+      if (iGc!=null) iGc.dispose();
+      m_nFirstRec = nFirstRec;
+      m_nLastRec  = nLastRec;
+    }
+  }
+
+  /**
+   * Discards least recently used tiles until the tile cache fits into its budget.
+   */
+  private static void trimTiles()
+  {
+    Iterator<Image> it = s_iTiles.values().iterator();
+    while (s_nTileBytes>s_nTileBudget && it.hasNext())
+    {
+      Image iTile = it.next();
+      s_nTileBytes -= tileBytes(iTile);
+      iTile.dispose();
+      it.remove();
+    }
+  }
+
+  private static long tileBytes(Image iTile)
+  {
+    Rectangle r = iTile.getBounds();
+    return 4L*r.width*r.height;
+  }
+
 	/**
 	 * EXPERIMENTAL:
 	 * 
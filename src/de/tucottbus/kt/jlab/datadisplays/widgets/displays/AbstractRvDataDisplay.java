@@ -80,6 +80,16 @@ public abstract class AbstractRvDataDisplay extends AbstractDataDisplay {
 	 * (non-Javadoc)
 	 */
 	protected Ruler int_createVerticalRuler(Composite iParent)
+  {
+    m_iVruler = new Ruler(iParent,true);
+    updateVerticalRuler();
+    return m_iVruler;
+  }
+
+  /**
+   * Sets the range of the vertical ruler to the value range of the components.
+   */
+  protected void updateVerticalRuler()
   {
 	  String sUnit = "";
 	  double vinc  = 0.;
@@ -89,9 +99,16 @@ public abstract class AbstractRvDataDisplay extends AbstractDataDisplay {
 	    sUnit = new String(this.m_aDci[0].iData.vunit);
 	  }
 	  catch (Exception e) {}
-    m_iVruler = new Ruler(iParent,true);
     m_iVruler.setRange(getMinValue(),getMaxValue(),vinc,sUnit); 
-    return m_iVruler;
+  }
+
+  /*
+   * (non-Javadoc)
+   */
+  protected void onValueRangeChanged()
+  {
+    if (m_iVruler!=null) updateVerticalRuler();
+    super.onValueRangeChanged();
   }
 
 	/*
@@ -10,6 +10,7 @@ import org.eclipse.swt.widgets.Composite;
 
 import de.tucottbus.kt.jlab.datadisplays.data.DataCompInfo;
 import de.tucottbus.kt.jlab.datadisplays.data.DataException;
+import de.tucottbus.kt.jlab.datadisplays.data.MinMaxPyramid;
 import de.tucottbus.kt.jlab.datadisplays.events.DisplayInfoMouseMoveEvent;
 import de.tucottbus.kt.jlab.datadisplays.utils.DdUtils;
 import de.tucottbus.kt.jlab.datadisplays.widgets.rulers.Ruler;
@@ -42,19 +43,44 @@ public class BarDiagram extends AbstractRvDataDisplay
       throw new DataException("Cannot display component set");
 
     // Force zero line
-    m_nMin = Double.MAX_VALUE;
-    m_nMax = -Double.MAX_VALUE;
-    int nXR = m_aDci[0].iData.getLength();
+    m_nMin = 0;
+    m_nMax = 0;
+    computeRange(0,m_aDci[0].iData.getLength());
+  }
+
+  /**
+   * Extends the value range (including the zero line) by the records
+   * <code>[nFirstRec,nXR)</code>.
+   */
+  private void computeRange(int nFirstRec, int nXR)
+  {
+    // Visible components
+    int      nVis   = 0;
+    Object[] aComps = new Object[m_aDci.length];
+    for (int nC = 0; nC < m_aDci.length; nC++)
+      if (m_aDci[nC].bVisible)
+        aComps[nVis++] = getJlData().getComp(m_aDci[nC].nComp);
+
+    // One bar: range from the component statistics
+    if (nVis == 1)
+    {
+      for (int nC = 0; nC < m_aDci.length; nC++)
+        if (m_aDci[nC].bVisible)
+        {
+          if (m_aDci[nC].nMin < m_nMin) m_nMin = m_aDci[nC].nMin;
+          if (m_aDci[nC].nMax > m_nMax) m_nMax = m_aDci[nC].nMax;
+        }
+      return;
+    }
 
-    // Loop over components
-    for (int nR = 0; nR < nXR; nR++)
+    // Stacked bars: loop over records
+    for (int nR = nFirstRec; nR < nXR; nR++)
     {
       double nMin = 0;
       double nMax = 0;
-      for (int nC = 0; nC < m_aDci.length; nC++)
+      for (int nC = 0; nC < nVis; nC++)
       {
-        if (!m_aDci[nC].bVisible) continue;
-        double nVal = getJlData().dFetch(nR,m_aDci[nC].nComp);
+        double nVal = MinMaxPyramid.value(aComps[nC],nR);
         if (nVal > 0) nMax += nVal;
         if (nVal < 0) nMin += nVal;
       }
@@ -89,11 +115,31 @@ public class BarDiagram extends AbstractRvDataDisplay
   protected Ruler int_createVerticalRuler(Composite iParent)
   {
     m_iVruler = new Ruler(iParent,true);
+    updateVerticalRuler();
+    DdUtils.MSG("- BarDiagram: min="+m_nMin+", max="+m_nMax);
+    return m_iVruler;
+  }
+
+  /*
+   * (non-Javadoc)
+   */
+  protected void updateVerticalRuler()
+  {
     double vinc = 0.;
     try { vinc = this.m_aDci[0].iData.vinc; } catch (Exception e) { e.printStackTrace(); }
     m_iVruler.setRange(m_nMin,m_nMax,vinc,0,new String(this.m_aDci[0].iData.vunit));
-    DdUtils.MSG("- BarDiagram: min="+m_nMin+", max="+m_nMax);
-    return m_iVruler;
+  }
+
+  /*
+   * (non-Javadoc)
+   */
+  public void onRecordsAppended(int nOldLength, int nNewLength)
+  {
+    for (DataCompInfo iDci : m_aDci) iDci.computeMinMax(false,false);
+    double nMin = m_nMin;
+    double nMax = m_nMax;
+    computeRange(nOldLength,nNewLength);
+    if (m_nMin!=nMin || m_nMax!=nMax) onValueRangeChanged();
   }
 
   /*
@@ -14,6 +14,7 @@ import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
 import org.eclipse.jface.action.IAction;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Rectangle;
@@ -21,6 +22,7 @@ import org.eclipse.swt.widgets.Composite;
 
 import de.tucottbus.kt.jlab.datadisplays.data.DataCompInfo;
 import de.tucottbus.kt.jlab.datadisplays.data.DataException;
+import de.tucottbus.kt.jlab.datadisplays.data.MinMaxPyramid;
 import de.tucottbus.kt.jlab.datadisplays.events.DisplayInfoMouseMoveEvent;
 import de.tucottbus.kt.jlab.datadisplays.interfaces.Playable;
 import de.tucottbus.kt.jlab.datadisplays.utils.DdUtils;
@@ -70,12 +72,44 @@ public class Oscillogram extends AbstractRvDataDisplay implements Playable
 
 	// -- Paining --
 
+  /*
+   * (non-Javadoc)
+   */
+  protected boolean isTileable()
+  {
+    return true;
+  }
+
+  /**
+   * Redraws this display after a min/max pyramid has been built or updated. Called from the
+   * pyramid builder thread.
+   */
+  private final Runnable m_iPyramidUpdate = new Runnable()
+  {
+    public void run()
+    {
+      if (isDisposed()) return;
+      try
+      {
+        getDisplay().asyncExec(new Runnable()
+        {
+          public void run()
+          {
+            if (!isDisposed()) redraw();
+          }
+        });
+      }
+      catch (SWTException e)
+      {
+        // Disposed meanwhile
+      }
+    }
+  };
+
 	/*
 	 * (non-Javadoc)
 	 */
 	protected void paintData(GC iGc, Rectangle iDamage, RulerCalculator iHrc, RulerCalculator iVrc)
-  // TODO: Consider painting on BufferedImage. This would help a lot quickening
-  //       scrolling, overlaid markers, selections etc.
 	{
     int size = iHrc.getLength();
     int shownRecords = m_nLastRec - m_nFirstRec;
@@ -89,16 +123,17 @@ public class Oscillogram extends AbstractRvDataDisplay implements Playable
     int nDotX = (new DpiConverter(iGc.getDevice().getDPI().x)).pt2px(1.2);
     int nDotY = (new DpiConverter(iGc.getDevice().getDPI().y)).pt2px(1.2);    
     
-    // Get direct references to data
-    float [][] afComp = new float [m_nLastComp+1][];
-    double[][] adComp = new double[m_nLastComp+1][];
+    // Get direct references to data and min/max pyramids (for zoomed-out views)
+    Object       [] aComp   = new Object[m_nLastComp+1];
+    MinMaxPyramid[] aPyr    = new MinMaxPyramid[m_nLastComp+1];
+    double       [] aMinMax = new double[2];
+    int             nXR     = m_aDci[0].iData.getLength();
     for (int j = m_nFirstComp, k=0; j <= m_nLastComp; j++, k++)
     {
       int comp = m_aDci[k].nComp;
-      if (m_aDci[k].iData.getCompType(comp)==float.class)
-        afComp[j]=(float[])m_aDci[k].iData.getComp(comp);
-      else if (m_aDci[k].iData.getCompType(comp)==double.class)
-        adComp[j]=(double[])m_aDci[k].iData.getComp(comp);
+      aComp[j] = m_aDci[k].iData.getComp(comp);
+      if (step > MinMaxPyramid.BASE && m_aDci[k].bVisible)
+        aPyr[j] = MinMaxPyramid.get(m_aDci[k].iData,comp,m_iPyramidUpdate);
     }
     
     // iterate over records;
@@ -113,32 +148,31 @@ public class Oscillogram extends AbstractRvDataDisplay implements Playable
       {
         if (!m_aDci[k].bVisible) continue;
         iGc.setForeground(m_iVcm.getCompFgColor(k));
-        int comp = m_aDci[k].nComp;
         double val;
 
         if (step > 1)
         {
           double min;
-          if      (afComp[j]!=null) min = afComp[j][i];
-          else if (adComp[j]!=null) min = adComp[j][i];
-          else                      min = m_aDci[k].iData.dFetch(i,comp);
-          double max = min;
-          bNan = Double.isNaN(max);
-          for (int c = 1; c < step; c++)
+          double max;
+          if (aPyr[j]!=null)
           {
-            try
-            {
-              if      (afComp[j]!=null) val = afComp[j][i+c];
-              else if (adComp[j]!=null) val = adComp[j][i+c];
-              else                      val = m_aDci[k].iData.dFetch(i+c,comp);
-            }
-            catch (ArrayIndexOutOfBoundsException e)
+            // Envelope from pyramid
+            bNan = !aPyr[j].query(i,step,aMinMax);
+            min = aMinMax[0];
+            max = aMinMax[1];
+          }
+          else
+          {
+            // Scan records (NaNs are ignored)
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            for (int c = i, e = Math.min(i+step,nXR); c < e; c++)
             {
-              val = m_aDci[k].iData.dFetch(i+c,comp);
+              val = MinMaxPyramid.value(aComp[j],c);
+              if (val > max) max = val;
+              if (val < min) min = val;
             }
-            bNan &= Double.isNaN(val);
-            if (val > max) max = val;
-            if (val < min) min = val;
+            bNan = min > max;
           }
           int yPos0 = iVrc.getPosOfVal(min);
           int yPos1 = iVrc.getPosOfVal(max);
@@ -150,9 +184,7 @@ public class Oscillogram extends AbstractRvDataDisplay implements Playable
         }
         else
         {
-          if      (afComp[j]!=null) val = afComp[j][i];
-          else if (adComp[j]!=null) val = adComp[j][i];
-          else                      val = m_aDci[k].iData.dFetch(i,comp);
+          val = i < nXR ? MinMaxPyramid.value(aComp[j],i) : Double.NaN;
           bNan = Double.isNaN(val);
           int yPos = iVrc.getPosOfVal(val);
           current[k] = bNan ? null : new Point(xPos,yPos);
@@ -4,17 +4,26 @@
 
 package de.tucottbus.kt.jlab.datadisplays.widgets.displays;
 
+import java.util.Arrays;
+
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
 import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Composite;
 
 import de.tucottbus.kt.jlab.datadisplays.DdPreferenceConstants;
 import de.tucottbus.kt.jlab.datadisplays.data.DataCompInfo;
 import de.tucottbus.kt.jlab.datadisplays.data.DataException;
+import de.tucottbus.kt.jlab.datadisplays.data.MinMaxPyramid;
+import de.tucottbus.kt.jlab.datadisplays.data.SpectrogramPyramid;
 import de.tucottbus.kt.jlab.datadisplays.utils.ColorManager;
 import de.tucottbus.kt.jlab.datadisplays.utils.DdUtils;
 import de.tucottbus.kt.jlab.datadisplays.utils.NumberFormatter;
@@ -30,12 +39,52 @@ implements DdPreferenceConstants
 
 	private double m_nMinValue;
 
-	private double[][] m_nVal;
+  /**
+   * Component arrays of the data instance (refreshed on every repaint)
+   */
+  private Object[] m_aComps;
+
+  /**
+   * Number of records of the data instance (refreshed on every repaint)
+   */
+  private int m_nXR;
 	
   private Color[] m_aColors;
   
   private double m_nRatio; 
 
+  /**
+   * Minimal width and height of a data point's rectangle (in pixels) for level curves and data
+   * labels to be painted over the value colors.
+   */
+  private static final int MIN_CELL_SIZE = 4;
+
+  /**
+   * Redraws the display when a spectrogram pyramid was built or updated (called from the
+   * pyramid builder thread).
+   */
+  private final Runnable m_iPyramidUpdate = new Runnable()
+  {
+    public void run()
+    {
+      if (isDisposed()) return;
+      try
+      {
+        getDisplay().asyncExec(new Runnable()
+        {
+          public void run()
+          {
+            if (!isDisposed()) redraw();
+          }
+        });
+      }
+      catch (SWTException e)
+      {
+        // Disposed meanwhile
+      }
+    }
+  };
+
   private double[] m_nLevels;
   
   private int m_nSig = 0; 
@@ -91,18 +140,14 @@ implements DdPreferenceConstants
 	 */
 	private boolean Borderline(int r1, int c1, int r2, int c2, double v0)
 	{
-	  try
-	  {
-	    double v1 = m_nVal[r1][c1];
-	    double v2 = m_nVal[r2][c2];
-	    return ((v1-v0)*(v2-v0))<=0.;
-	  }
-    // Never mind these ...
-	  catch (ArrayIndexOutOfBoundsException e) { return false; }
+    double v1 = getValue(r1,c1);
+    double v2 = getValue(r2,c2);
+    return ((v1-v0)*(v2-v0))<=0.;
 	}
 	
 	/**
-	 * Paints one data point
+	 * Paints the level curves and the data label of one data point. The data point's rectangle
+	 * is filled with the value color by {@link #paintValues(GC, RulerCalculator, RulerCalculator)}.
 	 * 
 	 * @param iGc
 	 *          the graphics context
@@ -121,23 +166,13 @@ implements DdPreferenceConstants
 	 */
 	protected void paintDataPoint(GC iGc, int x, int y, int w, int h, int r, int c)
 	{
-    double v = m_nVal[r][c];
+    double v = getValue(r,c);
 	  if (Double.isNaN(v)) return;
 	  
-    // Paint data point
-    int col = (int)Math.round((v - m_nMinValue) * m_nRatio);
-	  if (DdUtils.bSpecShowValues)
-	  {
-      if (col >= m_aColors.length) col = m_aColors.length - 1;
-      if (col < 0) col = 0;
-      iGc.setBackground(m_aColors[col]);
-      iGc.fillRectangle(x,y,w,h);
-	  }
-
     // Chose a contrasty foreground color
     Color iFgColor = getDisplay().getSystemColor(SWT.COLOR_BLACK);
     if (DdUtils.bSpecShowValues)
-      if (ColorManager.getColorValue(m_aColors[col])<128)
+      if (ColorManager.getColorValue(m_aColors[getColorIndex(v)])<128)
         iFgColor = getDisplay().getSystemColor(SWT.COLOR_WHITE);
 
     // Paint level curve
@@ -168,6 +203,185 @@ implements DdPreferenceConstants
       }
     }
 	}
+
+  /**
+   * Returns the index of the value color of a data value in {@link #m_aColors}.
+   */
+  private int getColorIndex(double v)
+  {
+    int col = (int)Math.round((v - m_nMinValue) * m_nRatio);
+    if (col >= m_aColors.length) col = m_aColors.length - 1;
+    if (col < 0) col = 0;
+    return col;
+  }
+
+  /**
+   * Paints the value colors of all visible data points. The colors are written into a pixel
+   * buffer through a lookup table and the buffer is drawn as one image. Each pixel is mapped to
+   * one data point (nearest neighbor) or, if {@link DdUtils#bSpecInterpolate} is set, interpolated
+   * between the four surrounding data points (bilinear). If a pixel covers more than
+   * {@link SpectrogramPyramid#BASE} records, the value is read from the matching level of the
+   * spectrogram pyramid (pooled as selected by {@link DdUtils#bSpecPoolMean}). The painting time
+   * depends on the display size only, not on the number of data points.
+   * 
+   * @param iGc
+   *          the graphics context
+   * @param iHrc
+   *          the horizontal ruler calculator
+   * @param iVrc
+   *          the vertical ruler calculator
+   */
+  protected void paintValues(GC iGc, RulerCalculator iHrc, RulerCalculator iVrc)
+  {
+    int nW = iHrc.getLength();
+    int nH = iVrc.getLength();
+    int nK = m_nLastComp - m_nFirstComp + 1;
+    if (nW <= 0 || nH <= 0 || nK <= 0 || m_nLastRec < m_nFirstRec) return;
+    int xoff = (iHrc.getPosOfDataPoint(m_nFirstRec + 1) - iHrc
+        .getPosOfDataPoint(m_nFirstRec)) / 2;
+    int yoff = (iVrc.getPosOfDataPoint(0) - iVrc
+        .getPosOfDataPoint(1)) / 2;
+
+    // Color lookup table (index 0 is the background for undefined values)
+    RGB   iBg  = iGc.getBackground().getRGB();
+    int[] aLut = new int[m_aColors.length + 1];
+    aLut[0] = (iBg.red << 16) | (iBg.green << 8) | iBg.blue;
+    for (int i = 0; i < m_aColors.length; i++)
+      aLut[i + 1] = (m_aColors[i].getRed() << 16) | (m_aColors[i].getGreen() << 8)
+        | m_aColors[i].getBlue();
+
+    // Map pixel columns to records and pixel rows to components (as in paintDataPoint)
+    int[] aRec  = new int[nW];
+    int[] aComp = new int[nH];
+    Arrays.fill(aRec, -1);
+    Arrays.fill(aComp, -1);
+    for (int i = m_nFirstRec, x0 = 0; i <= m_nLastRec; i++)
+    {
+      int x1 = iHrc.getPosOfDataPoint(i) + xoff;
+      for (int x = Math.max(x0, 0); x < Math.min(x1, nW); x++) aRec[x] = i;
+      x0 = x1;
+    }
+    for (int k = 0, y1 = nH; k < nK; k++)
+    {
+      int y0 = iVrc.getPosOfDataPoint(k) - yoff;
+      if (m_aDci[m_nFirstComp + k - m_nMinComp].bVisible)
+        for (int y = Math.max(y0, 0); y < Math.min(y1, nH); y++) aComp[y] = k;
+      y1 = y0;
+    }
+
+    // Decimated values for zoomed-out views
+    double  nRpp   = (double)(m_nLastRec - m_nFirstRec + 1) / nW;
+    float[] aLevel = null;
+    int     nSize  = 1;
+    int     nBins  = 0;
+    int     nPc    = 1;
+    if (nRpp >= SpectrogramPyramid.BASE)
+    {
+      SpectrogramPyramid iPyr = SpectrogramPyramid.get(m_aDci[0].iData,
+        DdUtils.bSpecPoolMean ? SpectrogramPyramid.MEAN : SpectrogramPyramid.MAX,
+        m_iPyramidUpdate);
+      int nLevel = iPyr != null ? iPyr.getLevel(nRpp) : -1;
+      if (nLevel >= 0)
+      {
+        int[] aValid = new int[1];
+        nSize  = SpectrogramPyramid.getBinSize(nLevel);
+        nPc    = iPyr.getDimension();
+        aLevel = iPyr.getBins(nLevel,aValid);
+        nBins  = aValid[0];
+      }
+    }
+
+    // Bilinear interpolation weights
+    boolean bInterpolate = DdUtils.bSpecInterpolate && aLevel == null;
+    float[] aFx = null;
+    float[] aFy = null;
+    if (bInterpolate)
+    {
+      aFx = new float[nW];
+      aFy = new float[nH];
+      double p0 = iHrc.getPosOfDataPoint(m_nFirstRec);
+      double pn = iHrc.getPosOfDataPoint(m_nLastRec);
+      for (int x = 0; x < nW; x++)
+      {
+        double u = pn > p0 ? (x - p0) / (pn - p0) * (m_nLastRec - m_nFirstRec) : 0.;
+        u = Math.max(0., Math.min(u, m_nLastRec - m_nFirstRec));
+        aFx[x] = (float)(u - Math.floor(u));
+        if (aRec[x] >= 0) aRec[x] = m_nFirstRec + (int)Math.floor(u);
+      }
+      double q0 = iVrc.getPosOfDataPoint(0);
+      double qn = iVrc.getPosOfDataPoint(nK - 1);
+      for (int y = 0; y < nH; y++)
+      {
+        double u = qn < q0 ? (q0 - y) / (q0 - qn) * (nK - 1) : 0.;
+        u = Math.max(0., Math.min(u, nK - 1));
+        int k = (int)Math.floor(u);
+        if (aComp[y] >= 0 && m_aDci[m_nFirstComp + k - m_nMinComp].bVisible)
+        {
+          aComp[y] = k;
+          aFy[y] = (float)(u - k);
+        }
+      }
+    }
+
+    // Fill the pixel buffer (24 bit, R-G-B byte order)
+    ImageData iData = new ImageData(nW, nH, 24, new PaletteData(0xFF0000, 0xFF00, 0xFF));
+    byte[] aPix = iData.data;
+    int    nBpl = iData.bytesPerLine;
+    int    nC   = m_aColors.length;
+    for (int y = 0; y < nH; y++)
+    {
+      int k = aComp[y];
+      int o = y * nBpl;
+      if (y > 0 && k == aComp[y - 1] && !bInterpolate)
+      {
+        // Same component as the previous row
+        System.arraycopy(aPix, o - nBpl, aPix, o, nW * 3);
+        continue;
+      }
+      int c = m_nFirstComp + k - m_nMinComp;
+      for (int x = 0; x < nW; x++, o += 3)
+      {
+        int r = aRec[x];
+        int rgb = aLut[0];
+        if (k >= 0 && r >= 0)
+        {
+          int    b = r / nSize;
+          double v = b < nBins ? aLevel[b * nPc + c] : getValue(r, c);
+          if (bInterpolate)
+          {
+            double v1 = v;
+            boolean bR = r < m_nLastRec;
+            boolean bK = k < nK - 1 && m_aDci[c + 1].bVisible;
+            if (bR) v1 = getValue(r + 1, c);
+            double v2 = bK ? getValue(r, c + 1) : v;
+            double v3 = bR && bK ? getValue(r + 1, c + 1) : v2;
+            double fx = aFx[x];
+            double fy = aFy[y];
+            double vi = (v * (1 - fx) + v1 * fx) * (1 - fy) + (v2 * (1 - fx) + v3 * fx) * fy;
+            if (!Double.isNaN(vi)) v = vi;
+          }
+          if (!Double.isNaN(v))
+          {
+            int col = (int)Math.round((v - m_nMinValue) * m_nRatio);
+            rgb = aLut[(col >= nC ? nC - 1 : col < 0 ? 0 : col) + 1];
+          }
+        }
+        aPix[o    ] = (byte)(rgb >> 16);
+        aPix[o + 1] = (byte)(rgb >> 8);
+        aPix[o + 2] = (byte)rgb;
+      }
+    }
+
+    Image iImg = new Image(getDisplay(), iData);
+    try
+    {
+      iGc.drawImage(iImg, 0, 0);
+    }
+    finally
+    {
+      iImg.dispose();
+    }
+  }
 	
 	/*
 	 * (non-Javadoc)
@@ -187,7 +401,8 @@ implements DdPreferenceConstants
     DdUtils.MSG("  components [" + m_nMinComp + "..." + m_nMaxComp + "]");
     DdUtils.MSG("  visible    [" + m_nFirstComp + "..." + m_nLastComp + "]");
 
-    // Get color information
+    // Get data and color information
+    getValues();
     m_aColors = m_iVcm.getValueColors();
     m_nRatio  = m_aColors.length / (m_nMaxValue - m_nMinValue);
     Color iBkColor = iGc.getBackground();
@@ -210,37 +425,50 @@ implements DdPreferenceConstants
       }
     }
     else m_nSig = -1;
-    
-    // iterate over records;
-    for (int i = m_nFirstRec; i <= m_nLastRec; i++)
-    {
-      int xPos = iHrc.getPosOfDataPoint(i);
-      xPos += xoff;
-      current = new Point[m_nLastComp - m_nFirstComp + 1];
 
-      // iterate over components
-      for (int j = m_nFirstComp, k = 0; j <= m_nLastComp; j++, k++)
+    // - Level curves and labels over value colors only if the data points are large enough to
+    //   show them
+    boolean bOverlay = (DdUtils.bSpecShowLevels || m_nSig>=0)
+      && (!DdUtils.bSpecShowValues || xoff*2>=MIN_CELL_SIZE && yoff*2>=MIN_CELL_SIZE);
+
+    // Paint value colors
+    if (DdUtils.bSpecShowValues)
+      paintValues(iGc,iHrc,iVrc);
+
+    // Paint level curves and labels
+    if (bOverlay)
+    {
+      // iterate over records;
+      for (int i = m_nFirstRec; i <= m_nLastRec; i++)
       {
-        int yPos = iVrc.getPosOfDataPoint(k);
-        yPos -= yoff;
-        current[k] = new Point(xPos,yPos);
-        DataCompInfo iDci = m_aDci[j-m_nMinComp]; 
+        int xPos = iHrc.getPosOfDataPoint(i);
+        xPos += xoff;
+        current = new Point[m_nLastComp - m_nFirstComp + 1];
 
-        if (iDci.bVisible)
+        // iterate over components
+        for (int j = m_nFirstComp, k = 0; j <= m_nLastComp; j++, k++)
         {
-          // Compute y-coordinate
-          int prevY = sizeY;
-          if (k > 0) prevY = current[k - 1].y;
-
-          if (last == null)
-            // start at the left edge of the display
-            paintDataPoint(iGc,0,yPos,xPos,prevY-yPos,i,j-m_nMinComp);
-          else
-            paintDataPoint(iGc,last[k].x,yPos,xPos-last[k].x,prevY-yPos,i,j-m_nMinComp);
+          int yPos = iVrc.getPosOfDataPoint(k);
+          yPos -= yoff;
+          current[k] = new Point(xPos,yPos);
+          DataCompInfo iDci = m_aDci[j-m_nMinComp]; 
+
+          if (iDci.bVisible)
+          {
+            // Compute y-coordinate
+            int prevY = sizeY;
+            if (k > 0) prevY = current[k - 1].y;
+
+            if (last == null)
+              // start at the left edge of the display
+              paintDataPoint(iGc,0,yPos,xPos,prevY-yPos,i,j-m_nMinComp);
+            else
+              paintDataPoint(iGc,last[k].x,yPos,xPos-last[k].x,prevY-yPos,i,j-m_nMinComp);
+          }
         }
+        last = current;
+        current = null;
       }
-      last = current;
-      current = null;
     }
     
     // Restore GC colors
@@ -248,18 +476,36 @@ implements DdPreferenceConstants
     iGc.setForeground(iFgColor);
   }
 	
+  /**
+   * Fetches the component arrays of the data instance. The data values are read directly from
+   * these arrays on demand, no copy is made.
+   */
 	private final void getValues()
 	{
 	  JlData iData = m_aDci[0].iData;
-	  int    nXR   = iData.getLength();
 	  int    nXC   = iData.getDimension();
 	  
-	  m_nVal = new double[nXR][nXC];
-	  for (int nR=0; nR<nXR; nR++)
-	    for (int nC=0; nC<nXC; nC++)
-	      m_nVal[nR][nC] = iData.dFetch(nR,nC);
+	  m_nXR    = iData.getLength();
+	  m_aComps = new Object[nXC];
+	  for (int nC=0; nC<nXC; nC++)
+	    m_aComps[nC] = iData.getComp(nC);
 	}
 
+  /**
+   * Returns a data value.
+   * 
+   * @param r
+   *          the record index
+   * @param c
+   *          the component index
+   * @return the value or {@link Double#NaN} if the indexes are out of range
+   */
+  private final double getValue(int r, int c)
+  {
+    if (r<0 || r>=m_nXR || c<0 || c>=m_aComps.length) return Double.NaN;
+    return MinMaxPyramid.value(m_aComps[c],r);
+  }
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -288,6 +534,16 @@ implements DdPreferenceConstants
 		super.setCompDetail(first, last);
 	}
 
+  /*
+   * (non-Javadoc)
+   */
+  protected void onValueRangeChanged()
+  {
+    computeValueRange();
+    m_nLevels = DdUtils.decimalZoning(m_nMinValue, m_nMaxValue, 10);
+    super.onValueRangeChanged();
+  }
+
 	private final void computeValueRange() {
 		m_nMaxValue = -Double.MAX_VALUE;
 		m_nMinValue = Double.MAX_VALUE;
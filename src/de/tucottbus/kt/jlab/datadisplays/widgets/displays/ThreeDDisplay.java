@@ -1,36 +1,41 @@
 package de.tucottbus.kt.jlab.datadisplays.widgets.displays;
 
-import java.util.Date;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.dialogs.ErrorDialog;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.events.DisposeEvent;
 import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.events.MouseEvent;
 import org.eclipse.swt.events.MouseListener;
 import org.eclipse.swt.graphics.Color;
-import org.eclipse.swt.graphics.Cursor;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
-import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.graphics.Rectangle;
-import org.eclipse.swt.graphics.Region;
 import org.eclipse.swt.printing.Printer;
 import org.eclipse.swt.widgets.Composite;
 
 import de.tucottbus.kt.jlab.datadisplays.DdPreferenceConstants;
 import de.tucottbus.kt.jlab.datadisplays.data.DataCompInfo;
 import de.tucottbus.kt.jlab.datadisplays.data.DataException;
+import de.tucottbus.kt.jlab.datadisplays.data.MinMaxPyramid;
+import de.tucottbus.kt.jlab.datadisplays.data.SpectrogramPyramid;
 import de.tucottbus.kt.jlab.datadisplays.events.DisplayInfoMouseMoveEvent;
 import de.tucottbus.kt.jlab.datadisplays.events.DisplayInfoScrollEvent;
 import de.tucottbus.kt.jlab.datadisplays.utils.DdUtils;
 import de.tucottbus.kt.jlab.datadisplays.widgets.rulers.Ruler;
 import de.tucottbus.kt.jlab.datadisplays.widgets.rulers.RulerCalculator;
 import de.tucottbus.kt.jlab.kernel.JlData;
+import de.tucottbus.kt.jlab.kernel.JlObject;
 import de.tucottbus.kt.jlab.utils.ResourceUtil;
 
 public class ThreeDDisplay extends AbstractDataDisplay
@@ -53,15 +58,81 @@ implements DdPreferenceConstants
   public static final int PERSP_BIRD_NW =  14; // Bird's-eye view from north-west
   public static final int PERSP_EXP     = 100; // Experimental perspective
 
-  protected static final int MAX_FACES = 1000;
-  
+  /**
+   * Number of pixels per face determining the face budget of the display (see
+   * {@link #getFaceBudget(int, int)}).
+   */
+  protected static final int PIXELS_PER_FACE = 8;
+
+  /**
+   * Minimal and maximal face budget.
+   */
+  protected static final int MIN_FACES =   2000;
+  protected static final int MAX_FACES = 500000;
+
+  /**
+   * Background thread rendering the frames of all 3D displays.
+   */
+  private static final ExecutorService s_iRenderer = Executors.newSingleThreadExecutor(
+    new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"ThreeDDisplay renderer");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
   protected Ruler         m_iVruler;
   protected Perspective   m_iPersp;
-  protected TreeSet<Face> m_iFaces;
-  protected Face          m_iLastPaintedFace;
-  protected int           m_nWaitingPaints = -1;
   protected Image         m_iImgRepaint;
 
+  /**
+   * The last rendered frame, blitted by {@link #paintData(GC, Rectangle, RulerCalculator,
+   * RulerCalculator)}
+   */
+  private Image m_iFrame;
+
+  /**
+   * Key of {@link #m_iFrame} and of the frame being rendered
+   */
+  private String m_sFrameKey;
+  private volatile String m_sPendingKey;
+
+  /**
+   * Frame generation, incremented whenever the frame must be rendered again
+   */
+  private int m_nGeneration;
+
+  /**
+   * Re-renders the frame when a spectrogram pyramid was built or updated (called from the
+   * pyramid builder thread).
+   */
+  private final Runnable m_iPyramidUpdate = new Runnable()
+  {
+    public void run()
+    {
+      if (isDisposed()) return;
+      try
+      {
+        getDisplay().asyncExec(new Runnable()
+        {
+          public void run()
+          {
+            if (isDisposed()) return;
+            m_nGeneration++;
+            redraw();
+          }
+        });
+      }
+      catch (SWTException e)
+      {
+        // Disposed meanwhile
+      }
+    }
+  };
+
   public ThreeDDisplay
   (
     Composite      iParent, 
@@ -88,8 +159,7 @@ implements DdPreferenceConstants
       {
         if (e.x>getSize().x-20 && e.y<20 && e.button==1)
         {
-          m_iLastPaintedFace = null;
-          m_nWaitingPaints = -1;
+          getValues();
           redraw(); update();
         }
       }
@@ -100,6 +170,8 @@ implements DdPreferenceConstants
       public void widgetDisposed(DisposeEvent e)
       {
         if (m_iImgRepaint!=null) m_iImgRepaint.dispose();
+        if (m_iFrame!=null) m_iFrame.dispose();
+        m_sPendingKey = null;
       }
     });
   }
@@ -168,142 +240,178 @@ implements DdPreferenceConstants
     iGc.drawImage(m_iImgRepaint,x,y);
   }
   
+  /**
+   * Paints the 3D view. The view is rendered into an off-screen frame by a background thread;
+   * this method only blits the last finished frame and requests a new one if the frame is
+   * outdated. When printing, the frame is rendered synchronously at the printer's resolution.
+   */
   @Override
   protected void paintData(GC iGc, Rectangle iDamage, RulerCalculator iHrc, RulerCalculator iVrc)
   {
-    class PaintRunnable implements Runnable
+    int nW = iHrc.getLength();
+    int nH = iVrc.getLength();
+    if (nW<=0 || nH<=0) return;
+
+    if (iGc.getDevice() instanceof Printer)
+    {
+      ImageData iData = createRasterizer(nW,nH,iGc.getBackground().getRGB()).render();
+      Image     iImg  = new Image(iGc.getDevice(),iData);
+      iGc.drawImage(iImg,0,0);
+      iImg.dispose();
+      return;
+    }
+
+    String sKey = getFrameKey(nW,nH);
+    if (!sKey.equals(m_sFrameKey) && !sKey.equals(m_sPendingKey))
+      requestFrame(sKey,createRasterizer(nW,nH,m_iVcm.getBgColor(getDisplay()).getRGB()));
+    if (m_iFrame!=null) iGc.drawImage(m_iFrame,0,0);
+    drawRepaintIcon(iGc,nW-20,4);
+  }
+
+  /**
+   * Returns the face budget for a display size.
+   */
+  protected int getFaceBudget(int nW, int nH)
+  {
+    return Math.max(MIN_FACES,Math.min(MAX_FACES,nW*nH/PIXELS_PER_FACE));
+  }
+
+  /**
+   * Returns a key describing everything the appearance of the frame depends on.
+   */
+  private String getFrameKey(int nW, int nH)
+  {
+    IPreferenceStore iStore = DdUtils.getPreferenceStore();
+    int nVisible = 1;
+    for (DataCompInfo iDci : m_aDci) nVisible = 31*nVisible+(iDci.bVisible ? 1 : 0);
+    return m_nGeneration+":"+nW+"x"+nH+":"+m_nFirstRec+"-"+m_nLastRec+":"+m_nFirstComp+"-"
+      +m_nLastComp+":"+nVisible+":"+iStore.getInt(P_VIS_3DSURFACE)+":"
+      +iStore.getInt(P_VIS_3DTRANSPARENCY)+":"+getJlData().getLength();
+  }
+
+  /**
+   * Renders a frame in the background and installs it on the GUI thread (unless a newer frame
+   * was requested meanwhile).
+   */
+  private void requestFrame(final String sKey, final Rasterizer iRasterizer)
+  {
+    m_sPendingKey = sKey;
+    s_iRenderer.execute(new Runnable()
     {
-      GC              iGc;
-      RulerCalculator iHrc;
-      RulerCalculator iVrc;
-      
-      public PaintRunnable(GC iGc, RulerCalculator iHrc, RulerCalculator iVrc)
-      {
-        this.iGc  = iGc;
-        this.iHrc = iHrc;
-        this.iVrc = iVrc;
-      }
-      
       public void run()
-      {        
-        if (isDisposed()) return;
-
-        boolean bDisposeGc = false;
-       
-        Face f1 = new Face(null,1,0,0,0,0,1); f1.transform(m_iPersp);
-        Face f2 = new Face(null,1,0,1,1,0,1); f2.transform(m_iPersp);
-        
-        // Get preferences
-        IPreferenceStore iStore = DdUtils.getPreferenceStore();
-        int nSrfce = iStore.getInt(P_VIS_3DSURFACE);
-        int nAlpha = 255-(int)((float)iStore.getInt(P_VIS_3DTRANSPARENCY)*2.55);
-
-        int nW = iHrc.getLength();
-        int nH = iVrc.getLength();
-        if (iGc.isDisposed())
+      {
+        if (!sKey.equals(m_sPendingKey)) return; // Superseded
+        ImageData iData   = null;
+        String    sErr    = null;
+        String    sReason = null;
+        try
         {
-          iGc = new GC(ThreeDDisplay.this);
-          bDisposeGc = true;
+          iData = iRasterizer.render();
         }
-        iGc.setForeground(iGc.getDevice().getSystemColor(SWT.COLOR_BLACK));
-        iGc.setBackground(iGc.getDevice().getSystemColor(SWT.COLOR_WHITE));
-        iGc.setAdvanced(true);
-
-        Color[] aColors = m_iVcm.getValueColors();
-        
-        Iterator<Face> iFite = m_iFaces.iterator();
-        if (m_iLastPaintedFace!=null)
+        catch (OutOfMemoryError e)
         {
-          iFite = m_iFaces.tailSet(m_iLastPaintedFace).iterator();
-          if (iFite.hasNext()) iFite.next();
+          sErr    = "Too many faces to draw. Switch to another diagram type!";
+          sReason = "Out of memory";
         }
-        int  nCtr = 0;
-        Face f    = null;
-        while (iFite.hasNext())
+        catch (Throwable e)
         {
-          f = iFite.next();
-          if (m_nWaitingPaints==0)
+          JlObject.ERROR("ThreeDDisplay: cannot render frame ("+e+")");
+          sErr    = "Cannot draw the 3D view.";
+          sReason = e.toString();
+        }
+        final ImageData iResult = iData;
+        final String    sError  = sErr;
+        final String    sStatus = sReason;
+        try
+        {
+          getDisplay().asyncExec(new Runnable()
           {
-            int x1 = (int)Math.round(f.X1*nW); int y1 = (int)Math.round(f.Y1*nH);
-            int x2 = (int)Math.round(f.X2*nW); int y2 = (int)Math.round(f.Y2*nH);
-            int x3 = (int)Math.round(f.X3*nW); int y3 = (int)Math.round(f.Y3*nH);
-            if (m_iPersp.b3>=0) { y1 = nH-y1; y2=nH-y2; y3=nH-y3; }
-            float v = (f.v1+f.v2+f.v3)/3;
-  
-            Color iClr = iGc.getDevice().getSystemColor(SWT.COLOR_WHITE);
-            if (nSrfce>0)
+            public void run()
             {
-              boolean bBack;
-              if (f.x2==f.x3) bBack=(f.B!=f1.B);
-              else            bBack=(f.B!=f2.B);
-              if (m_iPersp.b3<0) bBack = !bBack;
-              
-              if (bBack)
-                iClr = iGc.getDevice().getSystemColor(SWT.COLOR_GRAY);
-              else
+              if (isDisposed() || !sKey.equals(m_sPendingKey)) return;
+              try
               {
-                int col = (int)Math.round(v * aColors.length);
-                if (col >= aColors.length) col = aColors.length - 1;
-                if (col < 0) col = 0;
-                iClr = aColors[col];
+                m_sFrameKey = sKey;
+                if (m_iFrame!=null) m_iFrame.dispose();
+                m_iFrame = null;
+                if (sError!=null)
+                  ErrorDialog.openError(getShell(),"3D-View Error",sError,
+                    new Status(Status.ERROR,"de.tucottbus.kt.jlab.datadisplays",-1,sStatus,null));
+                else
+                  m_iFrame = new Image(getDisplay(),iResult);
               }
+              finally
+              {
+                m_sPendingKey = null;
+              }
+              redraw();
             }
-            iGc.setBackground(iClr);
-            if (iGc.getAdvanced()) iGc.setAlpha(nAlpha);
-            iGc.fillPolygon (new int[]{x1,y1,x2,y2,x3,y3});
-            if (iGc.getAdvanced()) iGc.setAlpha(255);
-            if (nSrfce!=1)
-            {
-              iGc.setForeground(nSrfce==3 ? iClr : iGc.getDevice().getSystemColor(SWT.COLOR_BLACK));
-              iGc.drawPolyline(new int[]{x1,y1,x2,y2,x3,y3});
-            }
-          }
-          if (++nCtr==MAX_FACES) break; 
+          });
         }
-        if (iFite.hasNext())
+        catch (SWTException e)
         {
-          m_iLastPaintedFace = f;
+          // Disposed meanwhile
         }
-        else
-        {
-          m_iLastPaintedFace = null;
-          m_nWaitingPaints--;
-        }
-        if (!(iGc.getDevice() instanceof Printer))
-          drawRepaintIcon(iGc,iHrc.getLength()-20,4);
-        
-        if (bDisposeGc) iGc.dispose();
       }
-    }
+    });
+  }
 
-    /* SWT (or someone else?) will interrupt sync and async runnables on the GUI
-     * thread if they do not finish within two seconds or so. The work-around is
-     * to do the painting in several shorter parts (paint runners). Paint
-     * runners for the widget are called asynchronously to keep the GUI reacting
-     * to user input. Painting runners for printers are called synchronously as
-     * the printer must not start until all painting is done.
-     * 
-     * This is no solution to be happy with. One issue is that repainting is
-     * missed sometimes leaving an incomplete image on the screen. 
-     */
-    if (iGc.getDevice() instanceof Printer) optimizeFaces(5000);
-    m_nWaitingPaints++;
-    int nRunners = m_iFaces.size()/MAX_FACES +1;
-    for (int i=0; i<nRunners; i++)
-      if (iGc.getDevice() instanceof Printer)
-        getDisplay().syncExec(new PaintRunnable(iGc,iHrc,iVrc));
-      else
-        getDisplay().asyncExec(new PaintRunnable(iGc,iHrc,iVrc));
-    if (!(iGc.getDevice() instanceof Printer))
-      drawRepaintIcon(iGc,iHrc.getLength()-20,4);
+  /**
+   * Creates a rasterizer for the current view. Must be called on the GUI thread.
+   */
+  private Rasterizer createRasterizer(int nW, int nH, RGB iBg)
+  {
+    JlData           iData  = getJlData();
+    IPreferenceStore iStore = DdUtils.getPreferenceStore();
+    Rasterizer       r      = new Rasterizer();
+    r.iData      = iData;
+    r.iPersp     = m_iPersp;
+    r.nFirstRec  = m_nFirstRec;
+    r.nLastRec   = Math.min(m_nLastRec,iData.getLength()-1);
+    r.nFirstComp = m_nFirstComp;
+    r.nLastComp  = m_nLastComp;
+    r.nMinComp   = m_nMinComp;
+    r.nMinV      = getMinValue();
+    r.nMaxV      = getMaxValue();
+    r.nWidth     = nW;
+    r.nHeight    = nH;
+    r.nSurface   = iStore.getInt(P_VIS_3DSURFACE);
+    r.nAlpha     = 255-(int)((float)iStore.getInt(P_VIS_3DTRANSPARENCY)*2.55);
+    r.nBg        = rgb(iBg);
+    r.aVisible   = new boolean[m_aDci.length];
+    for (int i=0; i<m_aDci.length; i++) r.aVisible[i] = m_aDci[i].bVisible;
+    Color[] aColors = m_iVcm.getValueColors();
+    r.aLut = new int[aColors.length];
+    for (int i=0; i<aColors.length; i++) r.aLut[i] = rgb(aColors[i].getRGB());
 
+    // Decimate to the face budget (records first, pooled through the spectrogram pyramid)
+    int    nRecs   = Math.max(r.nLastRec-r.nFirstRec,1);
+    int    nComps  = Math.max(r.nLastComp-r.nFirstComp,1);
+    double nFactor = Math.sqrt(2.*nRecs*nComps/getFaceBudget(nW,nH));
+    r.nCompStep = Math.max(1,(int)Math.min(Math.floor(nFactor),nComps));
+    r.nRecStep  = Math.max(1,(int)Math.ceil(2.*nRecs*nComps/r.nCompStep/getFaceBudget(nW,nH)));
+    r.nLevel    = -1;
+    if (r.nRecStep>=SpectrogramPyramid.BASE)
+    {
+      r.iPyr = SpectrogramPyramid.get(iData,
+        DdUtils.bSpecPoolMean ? SpectrogramPyramid.MEAN : SpectrogramPyramid.MAX,
+        m_iPyramidUpdate);
+      if (r.iPyr!=null) r.nLevel = r.iPyr.getLevel(r.nRecStep);
+      if (r.nLevel>=0) r.nRecStep = SpectrogramPyramid.getBinSize(r.nLevel);
+    }
+    return r;
   }
-  
+
+  private static int rgb(RGB iRgb)
+  {
+    return (iRgb.red<<16)|(iRgb.green<<8)|iRgb.blue;
+  }
+
+  /**
+   * Reads the perspective from the preferences and invalidates the frame.
+   */
   private final void getValues()
   {
-    JlData           iData  = m_aDci[0].iData;
-    double           nMinV  = getMinValue();
-    double           nMaxV  = getMaxValue();
     IPreferenceStore iStore = DdUtils.getPreferenceStore();      
     
     if (iStore.getInt(P_VIS_3DPERSPECTIVE)==PERSP_BIRD)
@@ -315,91 +423,20 @@ implements DdPreferenceConstants
     else
       m_iPersp = new Perspective(iStore.getInt(P_VIS_3DPERSPECTIVE));
     //m_iPersp = new Perspective(PERSP_EXP);
-
-    // Create faces list (sorted by distance from viewing plain)
-    m_iFaces = new TreeSet<Face>();
-    try
-    {
-      for (int nR=m_nFirstRec+1; nR<=m_nLastRec; nR++)
-        for (int nC=m_nFirstComp+1; nC<=m_nLastComp; nC++)
-        {
-          if (!m_aDci[nC].bVisible) continue;
-          Face f1 = new Face(iData,nR,nC-1,nR-1,nC-1,nR-1,nC);
-          f1.normalize(m_nFirstRec,m_nLastRec,m_nFirstComp,m_nLastComp,nMinV,nMaxV);
-          f1.transform(m_iPersp);
-          m_iFaces.add(f1);
-          Face f2 = new Face(iData,nR,nC-1,nR,nC,nR-1,nC);
-          f2.normalize(m_nFirstRec,m_nLastRec,m_nFirstComp,m_nLastComp,nMinV,nMaxV);
-          f2.transform(m_iPersp);
-          m_iFaces.add(f2);
-        }
-    }
-    catch (OutOfMemoryError e)
-    {
-      m_iFaces.clear();
-      ErrorDialog.openError(getShell(),"3D-View Error",
-        "Too many faces to draw. Switch to another diagram type!",
-        new Status(Status.ERROR,"de.tucottbus.kt.jlab.datadisplays",-1,"Out of memory",e));
-    }
+    m_nGeneration++;
   }
 
   /**
-   * Optimize faces list (remove covered faces); obviously only if no
-   * transparency is used
+   * Determines from the transformed vertices whether a face is seen from behind.
+   * TODO: works for south-eastern bird's-eye views only :(
    */
-  void optimizeFaces(long nTimeout)
+  static boolean isSeenFromBehind(float X1, float Y1, float X2, float Y2, float X3, float Y3)
   {
-    /* TODO: Will crash the JVM on some Linuxes */
-    if (DdUtils.isLinux()) return;
-
-    /* TODO: This code is for compatibility with Java 1.5. It makes a copy of
-     * the face list to be able to iterate it backwards. The likely
-     * OutOfMemoryError is caught and ignored (i.e. there's no optimization
-     * in this case). When migrating this code to Java 1.6, simply use
-     * NavigatableSet.descendingIterator!
-     */
-    IPreferenceStore iStore = DdUtils.getPreferenceStore();      
-    if (iStore.getInt(P_VIS_3DTRANSPARENCY)!=0) return;
-
-    Cursor iC = new Cursor(getShell().getDisplay(), SWT.CURSOR_WAIT);
-    getShell().setCursor(iC);
-    try
-    {
-      System.out.print("ThreeDDisplay: optimizeFaces from "+m_iFaces.size());
-      long nStartTime = (new Date()).getTime();
-      Region iR = new Region();
-      Object[] aF = m_iFaces.toArray();
-      for (int nF = aF.length - 1; nF >= 0; nF--)
-      {
-        Face f = (Face)aF[nF];
-        Point P1 = new Point((int)(1000 * f.X1), (int)(1000 * f.Y1));
-        Point P2 = new Point((int)(1000 * f.X2), (int)(1000 * f.Y2));
-        Point P3 = new Point((int)(1000 * f.X3), (int)(1000 * f.Y3));
-        Region r = new Region();
-        r.add(new int[] { P1.x, P1.y, P2.x, P2.y, P3.x, P3.y });
-        r.subtract(iR);
-        if (r.isEmpty()) m_iFaces.remove(f);
-        else
-        {
-          r.add(new int[] { P1.x, P1.y, P2.x, P2.y, P3.x, P3.y });
-          iR.add(r);
-        }
-        r.dispose();
-        if (nF % 1000 == 0 && (new Date()).getTime() - nStartTime > nTimeout)
-        {
-          System.out.print(" (timed out, aborted)");
-          break;
-        }
-      }
-      iR.dispose();
-    }
-    catch (OutOfMemoryError e)
-    {
-      System.out.print(" (out-of-memory, cancelled)");
-    }
-    getShell().setCursor(null);
-    iC.dispose();
-    System.out.println(" down to "+m_iFaces.size());
+    if (X2==X3) return false;
+    float m = (Y3-Y2)/(X3-X2);
+    float n = (X2*Y3-X3*Y2)/(X2-X3);
+    float g = m*X1-Y1+n;
+    return g<0;
   }
   
   class Perspective
@@ -487,88 +524,224 @@ implements DdPreferenceConstants
     }
   }
   
-  class Face implements Comparable<Face>
+  /**
+   * Renders the 3D surface into a pixel buffer. All inputs are copied on the GUI thread, so that
+   * {@link #render()} can run in any thread. The surface is decimated to the record and component
+   * steps, projected and depth sorted on primitive arrays, and painted back to front (painter's
+   * algorithm).
+   */
+  static final class Rasterizer
   {
-    float   x1, x2, x3; // Original x-coordinates (records)
-    float   y1, y2, y3; // Original y-coordinates (components)
-    float   v1, v2, v3; // Original values coordinates
-    float   X1, X2, X3; // Transformed x-coordinates
-    float   Y1, Y2, Y3; // Transformed y-coordinates
-    float   Dmin, Dmax; // Minimal and maximal distance from view plain
-    boolean B;          // Transformed face is seen from behind!
+    JlData             iData;      // Data instance
+    SpectrogramPyramid iPyr;       // Pyramid for decimated records or null
+    int                nLevel;     // Pyramid level or -1
+    Perspective        iPersp;     // Perspective
+    int                nFirstRec;  // First record
+    int                nLastRec;   // Last record
+    int                nRecStep;   // Record step
+    int                nFirstComp; // First component
+    int                nLastComp;  // Last component
+    int                nCompStep;  // Component step
+    int                nMinComp;   // First component of the display
+    boolean[]          aVisible;   // Component visibility flags (index 0: nMinComp)
+    double             nMinV;      // Minimal data value
+    double             nMaxV;      // Maximal data value
+    int                nWidth;     // Frame width
+    int                nHeight;    // Frame height
+    int                nSurface;   // Surface mode (P_VIS_3DSURFACE)
+    int                nAlpha;     // Face opacity (0..255)
+    int                nBg;        // Background color (0xRRGGBB)
+    int[]              aLut;       // Value colors (0xRRGGBB)
 
-    
-    public Face(JlData iData, int x1, int y1, int x2, int y2, int x3, int y3)
+    private int[] aPix;            // Pixel buffer (0xRRGGBB)
+
+    /**
+     * Renders the frame.
+     *
+     * @return The frame, the background is transparent.
+     */
+    ImageData render()
     {
-      this.x1 = x1; this.y1 = y1; 
-      this.x2 = x2; this.y2 = y2; 
-      this.x3 = x3; this.y3 = y3; 
-      if (iData!=null)
+      // Grid columns (records) and rows (components)
+      int[] aRec  = grid(nFirstRec,nLastRec,nRecStep);
+      int[] aComp = grid(nFirstComp,nLastComp,nCompStep);
+      int   nCols = aRec.length;
+      int   nRows = aComp.length;
+
+      // Project vertices
+      Object[] aData  = new Object[aVisible.length];  // Index 0: nMinComp
+      for (int nC=0; nC<aData.length; nC++) aData[nC] = iData.getComp(nMinComp+nC);
+      float    nRngX  = nLastRec>nFirstRec ? nLastRec-nFirstRec : 1;
+      float    nRngY  = nLastComp>nFirstComp ? nLastComp-nFirstComp : 1;
+      double   nRngV  = nMaxV-nMinV; if (nRngV==0) nRngV = 1;
+      int      nVerts = nCols*nRows;
+      float[]  aX     = new float[nVerts];
+      float[]  aY     = new float[nVerts];
+      float[]  aD     = new float[nVerts];
+      float[]  aV     = new float[nVerts];
+      for (int i=0; i<nCols; i++)
+        for (int j=0; j<nRows; j++)
+        {
+          int    n = i*nRows+j;
+          float  x = (aRec[i]-nFirstRec)/nRngX;
+          float  y = (aComp[j]-nFirstComp)/nRngY;
+          double v = iPyr!=null ? iPyr.value(nLevel,aRec[i],aComp[j]) : Double.NaN;
+          if (Double.isNaN(v)) v = MinMaxPyramid.value(aData[aComp[j]-nMinComp],aRec[i]);
+          v = (v-nMinV)/nRngV;
+          if (Double.isNaN(v)) v = 0;
+          aV[n] = (float)v;
+          aX[n] = iPersp.transformX(x,y,aV[n]);
+          aY[n] = iPersp.transformY(x,y,aV[n]);
+          aD[n] = -iPersp.transformY(x,y,0);
+        }
+
+      // Faces (two per grid cell), sort keys: minimal distance from view plane and face index
+      int nFaces = 0;
+      for (int j=1; j<nRows; j++) if (aVisible[aComp[j]-nMinComp]) nFaces += 2*(nCols-1);
+      int[]  aF    = new int[3*nFaces];
+      long[] aKeys = new long[nFaces];
+      int    f     = 0;
+      for (int i=1; i<nCols; i++)
+        for (int j=1; j<nRows; j++)
+        {
+          if (!aVisible[aComp[j]-nMinComp]) continue;
+          int n00 = (i-1)*nRows+j-1, n01 = (i-1)*nRows+j;
+          int n10 = i*nRows+j-1,     n11 = i*nRows+j;
+          f = addFace(aF,aKeys,aD,f,n10,n00,n01);
+          f = addFace(aF,aKeys,aD,f,n10,n11,n01);
+        }
+      Arrays.parallelSort(aKeys);
+
+      // Faces seen from behind are determined relative to reference faces
+      boolean bRef1 = isSeenFromBehind(
+        iPersp.transformX(1,0,0),iPersp.transformY(1,0,0),
+        iPersp.transformX(0,0,0),iPersp.transformY(0,0,0),
+        iPersp.transformX(0,1,0),iPersp.transformY(0,1,0));
+      boolean bRef2 = isSeenFromBehind(
+        iPersp.transformX(1,0,0),iPersp.transformY(1,0,0),
+        iPersp.transformX(1,1,0),iPersp.transformY(1,1,0),
+        iPersp.transformX(0,1,0),iPersp.transformY(0,1,0));
+
+      // Paint faces back to front
+      aPix = new int[nWidth*nHeight];
+      Arrays.fill(aPix,nBg);
+      boolean bFlip = iPersp.b3>=0;
+      for (int k=0; k<nFaces; k++)
       {
-        this.v1 = (float)iData.dFetch(x1,y1);
-        this.v2 = (float)iData.dFetch(x2,y2);
-        this.v3 = (float)iData.dFetch(x3,y3);
+        int nF = (int)aKeys[k];
+        int n1 = aF[3*nF], n2 = aF[3*nF+1], n3 = aF[3*nF+2];
+        int x1 = Math.round(aX[n1]*nWidth); int y1 = Math.round(aY[n1]*nHeight);
+        int x2 = Math.round(aX[n2]*nWidth); int y2 = Math.round(aY[n2]*nHeight);
+        int x3 = Math.round(aX[n3]*nWidth); int y3 = Math.round(aY[n3]*nHeight);
+        if (bFlip) { y1 = nHeight-y1; y2 = nHeight-y2; y3 = nHeight-y3; }
+
+        int nClr = 0xFFFFFF;
+        if (nSurface>0)
+        {
+          boolean bBack = isSeenFromBehind(aX[n1],aY[n1],aX[n2],aY[n2],aX[n3],aY[n3]);
+          bBack = (nF&1)==0 ? bBack!=bRef1 : bBack!=bRef2;
+          if (iPersp.b3<0) bBack = !bBack;
+          if (bBack)
+            nClr = 0xC0C0C0;
+          else
+          {
+            float v   = (aV[n1]+aV[n2]+aV[n3])/3;
+            int   col = Math.round(v*aLut.length);
+            if (col>=aLut.length) col = aLut.length-1;
+            if (col<0) col = 0;
+            nClr = aLut[col];
+          }
+        }
+        fillTriangle(x1,y1,x2,y2,x3,y3,nClr);
+        if (nSurface!=1)
+        {
+          int nLine = nSurface==3 ? nClr : 0x000000;
+          drawLine(x1,y1,x2,y2,nLine);
+          drawLine(x2,y2,x3,y3,nLine);
+        }
       }
-      else
-        this.v1=this.v2=this.v3=0;
+
+      // Convert to image data
+      ImageData iImg = new ImageData(nWidth,nHeight,24,new PaletteData(0xFF0000,0xFF00,0xFF));
+      byte[] aBuf = iImg.data;
+      for (int y=0; y<nHeight; y++)
+        for (int x=0, o=y*iImg.bytesPerLine, p=y*nWidth; x<nWidth; x++, o+=3, p++)
+        {
+          int c = aPix[p];
+          aBuf[o  ] = (byte)(c>>16);
+          aBuf[o+1] = (byte)(c>>8);
+          aBuf[o+2] = (byte)c;
+        }
+      iImg.transparentPixel = nBg;
+      aPix = null;
+      return iImg;
     }
-    
-    public void normalize(float nMinX, float nMaxX, float nMinY, float nMaxY, double nMinV, double nMaxV)
+
+    private static int[] grid(int nFirst, int nLast, int nStep)
     {
-      float  nRngX = nMaxX-nMinX; if (nRngX==0) nRngX = 1;
-      float  nRngY = nMaxY-nMinY; if (nRngY==0) nRngY = 1;
-      double nRngV = nMaxV-nMinV; if (nRngV==0) nRngV = 1; 
-      x1=(x1-nMinX)/nRngX; y1=(y1-nMinY)/nRngY; v1=(float)((v1-nMinV)/nRngV);
-      x2=(x2-nMinX)/nRngX; y2=(y2-nMinY)/nRngY; v2=(float)((v2-nMinV)/nRngV);
-      x3=(x3-nMinX)/nRngX; y3=(y3-nMinY)/nRngY; v3=(float)((v3-nMinV)/nRngV);
+      int nCount = (nLast-nFirst+nStep-1)/nStep+1;
+      if (nCount<1) return new int[0];
+      int[] aGrid = new int[nCount];
+      for (int i=0; i<nCount; i++) aGrid[i] = Math.min(nFirst+i*nStep,nLast);
+      return aGrid;
     }
-    
-    public void transform(Perspective T)
+
+    private static int addFace(int[] aF, long[] aKeys, float[] aD, int f, int n1, int n2, int n3)
     {
-      X1 = T.transformX(x1,y1,v1);
-      X2 = T.transformX(x2,y2,v2);
-      X3 = T.transformX(x3,y3,v3);
-      Y1 = T.transformY(x1,y1,v1);
-      Y2 = T.transformY(x2,y2,v2);
-      Y3 = T.transformY(x3,y3,v3);
-      
-      // Find out, if face is seen from behind
-      // TODO: works for south-eastern bird's-eye views only :(
-      if (X2!=X3)
+      aF[3*f] = n1; aF[3*f+1] = n2; aF[3*f+2] = n3;
+      float nDmin = Math.min(aD[n1],Math.min(aD[n2],aD[n3]));
+      int   nBits = Float.floatToIntBits(nDmin);
+      nBits ^= (nBits>>31)&0x7FFFFFFF; // Make bits sortable as signed int
+      aKeys[f] = ((long)nBits<<32)|f;
+      return f+1;
+    }
+
+    private void blend(int p, int nClr)
+    {
+      if (nAlpha>=255) { aPix[p] = nClr; return; }
+      int d = aPix[p];
+      int a = nAlpha, b = 255-nAlpha;
+      int r = (((nClr>>16)&0xFF)*a+((d>>16)&0xFF)*b)/255;
+      int g = (((nClr>>8 )&0xFF)*a+((d>>8 )&0xFF)*b)/255;
+      int l = (( nClr     &0xFF)*a+( d     &0xFF)*b)/255;
+      aPix[p] = (r<<16)|(g<<8)|l;
+    }
+
+    private void fillTriangle(int x1, int y1, int x2, int y2, int x3, int y3, int nClr)
+    {
+      // Sort vertices by y
+      if (y2<y1) { int t=x1; x1=x2; x2=t; t=y1; y1=y2; y2=t; }
+      if (y3<y1) { int t=x1; x1=x3; x3=t; t=y1; y1=y3; y3=t; }
+      if (y3<y2) { int t=x2; x2=x3; x3=t; t=y2; y2=y3; y3=t; }
+      int yb = Math.max(y1,0);
+      int ye = Math.min(y3,nHeight-1);
+      for (int y=yb; y<=ye; y++)
       {
-        float m = (Y3-Y2)/(X3-X2);
-        float n = (X2*Y3-X3*Y2)/(X2-X3);
-        float g = m*X1-Y1+n;
-        B = g<0;
+        double xa = y3==y1 ? x1 : x1+(double)(x3-x1)*(y-y1)/(y3-y1);
+        double xb;
+        if (y<y2) xb = x1+(double)(x2-x1)*(y-y1)/(y2-y1);
+        else      xb = y3==y2 ? x2 : x2+(double)(x3-x2)*(y-y2)/(y3-y2);
+        int xl = (int)Math.round(Math.min(xa,xb));
+        int xr = (int)Math.round(Math.max(xa,xb));
+        if (xl<0) xl = 0;
+        if (xr>=nWidth) xr = nWidth-1;
+        for (int x=xl, p=y*nWidth+xl; x<=xr; x++, p++) blend(p,nClr);
       }
-      
-      // Compute distance from view plain
-      float D1 = -T.transformY(x1,y1,0);
-      float D2 = -T.transformY(x2,y2,0);
-      float D3 = -T.transformY(x3,y3,0);
-      Dmin = Math.min(D1,Math.min(D2,D3));
-      Dmax = Math.max(D1,Math.max(D2,D3));
     }
-    
-    public int compareTo(Face o)
+
+    private void drawLine(int x1, int y1, int x2, int y2, int nClr)
     {
-      if (Dmin>o.Dmax) return 1;
-      if (Dmax<o.Dmin) return -1;
-      if (Dmin>o.Dmin) return 1;
-      if (Dmin<o.Dmin) return -1;
-      if (Dmax>o.Dmax) return 1;
-      if (Dmax<o.Dmax) return -1;
-      if (Dmax+Dmin>o.Dmax+o.Dmin) return 1;
-      if (Dmax+Dmin<o.Dmax+o.Dmin) return -1;
-      if (!B && o.B) return 1;
-      if (!o.B && B) return -1;
-      if (x1>o.x1) return 1; if (x1<o.x1) return -1;
-      if (y1>o.y1) return 1; if (y1<o.y1) return -1;
-      if (x2>o.x2) return 1; if (x2<o.x2) return -1;
-      if (y2>o.y2) return 1; if (y2<o.y2) return -1;
-      if (x3>o.x3) return 1; if (x3<o.x3) return -1;
-      if (y3>o.y3) return 1; if (y3<o.y3) return -1;
-      return 0;
+      int dx = Math.abs(x2-x1), sx = x1<x2 ? 1 : -1;
+      int dy = -Math.abs(y2-y1), sy = y1<y2 ? 1 : -1;
+      int e  = dx+dy;
+      while (true)
+      {
+        if (x1>=0 && x1<nWidth && y1>=0 && y1<nHeight) aPix[y1*nWidth+x1] = nClr;
+        if (x1==x2 && y1==y2) break;
+        int e2 = 2*e;
+        if (e2>=dy) { e += dy; x1 += sx; }
+        if (e2<=dx) { e += dx; y1 += sy; }
+      }
     }
   }
   
@@ -352,6 +352,22 @@ public class RulerCalculator
     return getPosOfVal((nDataPoint-this.nDatLo)*this.nValQn+this.nValLo+this.nValQn/2);
   }  
   
+  /**
+   * Returns the low value (left/bottom end of the ruler, including the margin).
+   */
+  public double getLowValue()
+  {
+    return nValLo;
+  }
+
+  /**
+   * Returns the high value (right/top end of the ruler, including the margin).
+   */
+  public double getHighValue()
+  {
+    return nValHi;
+  }
+
   /**
    * Returns the displayed length of this ruler calculator (in pixels).
    */
@@ -0,0 +1,554 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FIFO queue writing sample blocks into RIFF/WAVE files. Unlike
+ * {@link JlDataFile#writeAudioFile(JlData, int, java.io.OutputStream)}, which requires the complete
+ * signal in memory, the sink encodes each block into a direct byte buffer and appends it to the
+ * file through a file channel. The memory consumption does not depend on the recording length.
+ *
+ * <p>The sink accepts two kinds of blocks:</p>
+ * <ul>
+ *   <li>{@link JlData} instances with one numeric component per channel, and</li>
+ *   <li>numeric arrays containing interleaved samples (like {@link JlDataLogger}); the array
+ *     length must be a multiple of the number of channels.</li>
+ * </ul>
+ * <p>Input values are scaled by <code>2<sup>nBitsPerSample-1</sup>/nFullScale</code> (integer
+ * formats) or <code>1/nFullScale</code> (float format), see {@link #setFullScale(double)}.
+ * <code>null</code> marks the end of a stream: the current file is closed, the next block opens a
+ * new file. The RIFF chunk sizes (and the sample count of the <code>fact</code> chunk of float
+ * files) are patched whenever a file is closed and on {@link #sync()}; a file still being written
+ * carries zero sizes which {@link JlMappedAudioFile} accepts. Data chunks of odd length are
+ * followed by a pad byte.</p>
+ *
+ * <p>Invalid blocks are discarded without writing anything. An I/O error discards the block being
+ * written and closes the current file; the next block opens a new file. In both cases the error is
+ * reported (see {@link #getError()}) and the sink keeps processing.</p>
+ *
+ * <p>Files can be rotated by size or duration (see {@link #setRotation(long, double)}). The
+ * first file is the one passed to the constructor, the following files are named
+ * <code>&lt;name&gt;_1.wav</code>, <code>&lt;name&gt;_2.wav</code>, etc. Files are always rotated
+ * before reaching the RIFF size limit of 4 GB. Observers are notified asynchronously with the
+ * {@link File} whenever a file has been completed.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public class AudioFileSink extends JlFifoQueue
+{
+  private static final int  WAVE_FORMAT_PCM        = 0x0001;
+  private static final int  WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+  private static final int  HEADER_SIZE_PCM        = 44;
+  private static final int  HEADER_SIZE_FLOAT      = 58; // With cbSize and fact chunk
+  private static final long MAX_DATA               = 0xFFFFFFFFL-HEADER_SIZE_FLOAT-1;
+  private static final int  BUFFER_SIZE            = 65536;
+
+  private final File        iFile;             // First output file
+  private final float       nSampleRate;       // Sampling rate in Hz
+  private final int         nChannels;         // Number of channels
+  private final int         nBitsPerSample;    // Bits per sample
+  private final boolean     bFloat;            // IEEE float samples
+  private final int         nBlockAlign;       // Bytes per frame
+  private final int         nHeaderSize;       // Bytes before the sample data
+  private final Object      iLock = new Object(); // Guards the file state below
+  private double            nScale;            // Input to output scale factor
+  private long              nMaxBytes   = 0;   // Rotation size limit (0: none)
+  private double            nMaxSeconds = 0;   // Rotation duration limit (0: none)
+  private final ByteBuffer  iBuffer;           // Encoding buffer (direct)
+  private final double[]    aValues;           // Input values of one buffer of frames
+  private final Object[]    aSources;          // Component arrays of the current block
+  private RandomAccessFile  iRaf        = null; // Current file
+  private FileChannel       iChannel    = null; // Channel of current file
+  private long              nDataBytes  = 0;   // Data bytes in current file
+  private long              nFrames     = 0;   // Frames written in total
+  private final List<File>  lFiles      = new ArrayList<File>(); // Files written
+  private volatile Exception iError     = null; // Last error
+
+  /**
+   * Creates and starts a new audio file sink.
+   *
+   * @param iFile
+   *          The (first) output file.
+   * @param nSampleRate
+   *          The sampling rate in Hz.
+   * @param nChannels
+   *          The number of channels.
+   * @param nBitsPerSample
+   *          The sample size, 16, 24, or 32 bits.
+   * @param bFloat
+   *          If <code>true</code> samples are written as 32 bit IEEE floats.
+   * @param nCapacity
+   *          The maximal number of blocks to be held in the queue (0 for infinite).
+   * @throws IllegalArgumentException
+   *          If an argument is invalid.
+   */
+  public AudioFileSink(File iFile, float nSampleRate, int nChannels, int nBitsPerSample,
+    boolean bFloat, int nCapacity) throws IllegalArgumentException
+  {
+    super(nCapacity);
+    if (iFile==null)
+      throw new IllegalArgumentException("No file");
+    if (nSampleRate<=0)
+      throw new IllegalArgumentException("Invalid sampling rate "+nSampleRate);
+    if (nChannels<1 || nChannels>0xFFFF)
+      throw new IllegalArgumentException("Invalid number of channels "+nChannels);
+    if (bFloat ? nBitsPerSample!=32 : nBitsPerSample!=16 && nBitsPerSample!=24 && nBitsPerSample!=32)
+      throw new IllegalArgumentException("Sample size must be 16, 24, or 32 bit (float: 32 bit)");
+    this.iFile          = iFile;
+    this.nSampleRate    = nSampleRate;
+    this.nChannels      = nChannels;
+    this.nBitsPerSample = nBitsPerSample;
+    this.bFloat         = bFloat;
+    this.nBlockAlign    = nChannels*nBitsPerSample/8;
+    this.nHeaderSize    = bFloat ? HEADER_SIZE_FLOAT : HEADER_SIZE_PCM;
+    int nBufFrames      = Math.max(BUFFER_SIZE/nBlockAlign,1);
+    this.iBuffer        = ByteBuffer.allocateDirect(nBufFrames*nBlockAlign)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+    this.aValues        = new double[nBufFrames*nChannels];
+    this.aSources       = new Object[nChannels];
+    setFullScale(bFloat ? 1 : Math.pow(2,nBitsPerSample-1));
+  }
+
+  /**
+   * Creates and starts a new audio file sink writing 16 bit samples.
+   *
+   * @param iFile
+   *          The (first) output file.
+   * @param nSampleRate
+   *          The sampling rate in Hz.
+   * @param nChannels
+   *          The number of channels.
+   * @throws IllegalArgumentException
+   *          If an argument is invalid.
+   */
+  public AudioFileSink(File iFile, float nSampleRate, int nChannels)
+  throws IllegalArgumentException
+  {
+    this(iFile,nSampleRate,nChannels,16,false,0);
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Sets the input value corresponding to full scale. The default is
+   * <code>2<sup>nBitsPerSample-1</sup></code> for integer formats (input values are written
+   * unchanged) and 1 for the float format. Use 1 for normalized input (see
+   * {@link JlDataFile#readAudioFile(File, boolean)}) and 32768 to write 16 bit input into 24 bit,
+   * 32 bit, or float files.
+   *
+   * @param nFullScale
+   *          The full scale input value.
+   */
+  public void setFullScale(double nFullScale)
+  {
+    if (nFullScale<=0) throw new IllegalArgumentException("Invalid full scale "+nFullScale);
+    synchronized (iLock)
+    {
+      nScale = (bFloat ? 1 : Math.pow(2,nBitsPerSample-1))/nFullScale;
+    }
+  }
+
+  /**
+   * Enables file rotation. A new file is started when the current file would exceed the
+   * maximal size or duration.
+   *
+   * @param nMaxBytes
+   *          The maximal file size in bytes, 0 for no limit.
+   * @param nMaxSeconds
+   *          The maximal duration of a file in seconds, 0 for no limit.
+   */
+  public void setRotation(long nMaxBytes, double nMaxSeconds)
+  {
+    synchronized (iLock)
+    {
+      this.nMaxBytes   = Math.max(nMaxBytes,0);
+      this.nMaxSeconds = Math.max(nMaxSeconds,0);
+    }
+  }
+
+  /**
+   * Returns the files written so far (including the current file).
+   */
+  public List<File> getFiles()
+  {
+    synchronized (iLock)
+    {
+      return new ArrayList<File>(lFiles);
+    }
+  }
+
+  /**
+   * Returns the total number of frames written so far.
+   */
+  public long getFramesWritten()
+  {
+    synchronized (iLock)
+    {
+      return nFrames;
+    }
+  }
+
+  /**
+   * Returns the last error or <code>null</code> if there was no error. Invalid blocks are
+   * reported as {@link IllegalArgumentException}s, write errors as {@link IOException}s.
+   */
+  public Exception getError()
+  {
+    return iError;
+  }
+
+  // -- Operations --
+
+  /**
+   * Writes all buffered samples to the current file and patches its RIFF chunk sizes, so that
+   * the file is valid up to the last block written.
+   *
+   * @throws IOException
+   *          On I/O errors.
+   */
+  public void sync() throws IOException
+  {
+    synchronized (iLock)
+    {
+      if (iChannel==null) return;
+      drain();
+      patchHeader();
+      iChannel.force(false);
+    }
+  }
+
+  /**
+   * Stops the queue, writes all remaining blocks and closes the current file.
+   */
+  @Override
+  public void stop()
+  {
+    super.stop();
+    synchronized (iLock)
+    {
+      try
+      {
+        closeFile();
+      }
+      catch (IOException e)
+      {
+        error(e);
+      }
+    }
+  }
+
+  // -- Queue implementation --
+
+  @Override
+  protected void process(boolean bFlush)
+  {
+    while (length() > 0)
+    {
+      Object aBuffer = get(HEAD);
+      remove(HEAD);
+      synchronized (iLock)
+      {
+        try
+        {
+          if (aBuffer==null)
+            closeFile();
+          else
+            write(aBuffer);
+        }
+        catch (IllegalArgumentException e)
+        {
+          error(e);
+        }
+        catch (IOException e)
+        {
+          error(e);
+          try
+          {
+            closeFile();
+          }
+          catch (IOException e2) {}
+        }
+      }
+      if (!bFlush) break;
+    }
+  }
+
+  // -- Workers --
+
+  /**
+   * Encodes and writes one block. Must be called while holding <code>iLock</code>.
+   *
+   * @throws IllegalArgumentException
+   *          If the block is invalid (nothing is written in this case).
+   */
+  private void write(Object aBuffer) throws IllegalArgumentException, IOException
+  {
+    JlData idBlock = aBuffer instanceof JlData ? (JlData)aBuffer : null;
+    int nXF;
+    if (idBlock!=null)
+    {
+      if (idBlock.getDimension()!=nChannels)
+        throw new IllegalArgumentException("Block has "+idBlock.getDimension()
+          +" components (should be "+nChannels+")");
+      for (int nC=0; nC<nChannels; nC++)
+        if (!JlData.isNumericType(idBlock.getCompType(nC)))
+          throw new IllegalArgumentException("Component "+nC+" of block is not numeric");
+      for (int nC=0; nC<nChannels; nC++)
+        aSources[nC] = idBlock.getComp(nC);
+      nXF = idBlock.getLength();
+    }
+    else
+    {
+      if (!JlData.isNumericType(aBuffer.getClass().getComponentType()))
+        throw new IllegalArgumentException("Invalid buffer type ("
+          +aBuffer.getClass().getSimpleName()+") for this queue (should be JlData or a numeric "
+          +"array)");
+      int nXS = Array.getLength(aBuffer);
+      if (nXS%nChannels!=0)
+        throw new IllegalArgumentException("Buffer length ("+nXS+") is not a multiple of the "
+          +"number of channels ("+nChannels+")");
+      nXF = nXS/nChannels;
+    }
+
+    // Write in chunks which fit into the encoding buffer and the current file
+    for (int nF=0; nF<nXF; )
+    {
+      if (iChannel==null || framesLeft()<=0) openFile();
+      if (iBuffer.remaining()<nBlockAlign) drain();
+      int nN = (int)Math.min(Math.min(nXF-nF,framesLeft()),iBuffer.remaining()/nBlockAlign);
+      for (int nC=0; nC<nChannels; nC++)
+        if (idBlock!=null)
+          fetch(aSources[nC],nF,1,nN,nC);
+        else
+          fetch(aBuffer,nF*nChannels+nC,nChannels,nN,nC);
+      encode(nN*nChannels);
+      nDataBytes += (long)nN*nBlockAlign;
+      nFrames    += nN;
+      nF         += nN;
+    }
+  }
+
+  /**
+   * Copies input values of one channel into {@link #aValues}. The type of the source array is
+   * determined once per call.
+   *
+   * @param aSrc
+   *          The source array.
+   * @param nOfs
+   *          The index of the first value in <code>aSrc</code>.
+   * @param nStride
+   *          The distance between two values in <code>aSrc</code>.
+   * @param nCount
+   *          The number of values to copy.
+   * @param nC
+   *          The channel index.
+   */
+  private void fetch(Object aSrc, int nOfs, int nStride, int nCount, int nC)
+  {
+    int nS = nOfs;
+    int nD = nC;
+    int nE = nC+nCount*nChannels;
+    if (aSrc instanceof short[])
+    {
+      short[] a = (short[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+    else if (aSrc instanceof float[])
+    {
+      float[] a = (float[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+    else if (aSrc instanceof double[])
+    {
+      double[] a = (double[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+    else if (aSrc instanceof int[])
+    {
+      int[] a = (int[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+    else if (aSrc instanceof byte[])
+    {
+      byte[] a = (byte[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+    else if (aSrc instanceof long[])
+    {
+      long[] a = (long[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+    else if (aSrc instanceof char[])
+    {
+      char[] a = (char[])aSrc;
+      for (; nD<nE; nD+=nChannels, nS+=nStride) aValues[nD] = a[nS];
+    }
+  }
+
+  /**
+   * Scales and encodes the first <code>nCount</code> values of {@link #aValues} into the encoding
+   * buffer.
+   */
+  private void encode(int nCount)
+  {
+    if (bFloat)
+    {
+      for (int i=0; i<nCount; i++)
+        iBuffer.putFloat((float)(aValues[i]*nScale));
+      return;
+    }
+    double nMaxVal = Math.pow(2,nBitsPerSample-1)-1;
+    double nMinVal = -nMaxVal-1;
+    for (int i=0; i<nCount; i++)
+    {
+      double nVal = Math.rint(aValues[i]*nScale);
+      int nSmp = nVal>nMaxVal ? (int)nMaxVal : nVal<nMinVal ? (int)nMinVal : (int)nVal;
+      switch (nBitsPerSample)
+      {
+      case 16: iBuffer.putShort((short)nSmp); break;
+      case 24: iBuffer.put((byte)nSmp).put((byte)(nSmp>>8)).put((byte)(nSmp>>16)); break;
+      default: iBuffer.putInt(nSmp);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of frames which still fit into the current file. An empty file takes at
+   * least one frame.
+   */
+  private long framesLeft()
+  {
+    long nLeft = (MAX_DATA-nDataBytes)/nBlockAlign;
+    if (nMaxBytes>0)
+      nLeft = Math.min(nLeft,(nMaxBytes-nHeaderSize-nDataBytes)/nBlockAlign);
+    if (nMaxSeconds>0)
+      nLeft = Math.min(nLeft,(long)(nMaxSeconds*nSampleRate)-nDataBytes/nBlockAlign);
+    return nDataBytes==0 ? Math.max(nLeft,1) : nLeft;
+  }
+
+  /**
+   * Closes the current file (if any) and opens the next one.
+   */
+  private void openFile() throws IOException
+  {
+    closeFile();
+    File iNext = iFile;
+    if (!lFiles.isEmpty())
+    {
+      String sName = iFile.getName();
+      int    nDot  = sName.lastIndexOf('.');
+      String sBase = nDot>0 ? sName.substring(0,nDot) : sName;
+      String sExt  = nDot>0 ? sName.substring(nDot) : ".wav";
+      iNext = new File(iFile.getParentFile(),sBase+"_"+lFiles.size()+sExt);
+    }
+    iRaf = new RandomAccessFile(iNext,"rw");
+    iRaf.setLength(0);
+    iChannel   = iRaf.getChannel();
+    nDataBytes = 0;
+    lFiles.add(iNext);
+
+    // RIFF/WAVE header with zero sizes (patched on sync and close)
+    ByteBuffer iHdr = ByteBuffer.allocate(nHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+    iHdr.putInt(fourcc("RIFF")).putInt(0).putInt(fourcc("WAVE"));
+    iHdr.putInt(fourcc("fmt ")).putInt(bFloat ? 18 : 16);
+    iHdr.putShort((short)(bFloat ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM));
+    iHdr.putShort((short)nChannels);
+    iHdr.putInt(Math.round(nSampleRate));
+    iHdr.putInt(Math.round(nSampleRate)*nBlockAlign);
+    iHdr.putShort((short)nBlockAlign);
+    iHdr.putShort((short)nBitsPerSample);
+    if (bFloat)
+    {
+      iHdr.putShort((short)0);                                  // cbSize
+      iHdr.putInt(fourcc("fact")).putInt(4).putInt(0);          // Sample frames
+    }
+    iHdr.putInt(fourcc("data")).putInt(0);
+    iHdr.flip();
+    while (iHdr.hasRemaining()) iChannel.write(iHdr);
+  }
+
+  /**
+   * Writes the buffered samples, patches the header and closes the current file.
+   */
+  private void closeFile() throws IOException
+  {
+    if (iChannel==null) return;
+    File iDone = lFiles.get(lFiles.size()-1);
+    try
+    {
+      drain();
+      patchHeader();
+    }
+    finally
+    {
+      iBuffer.clear();
+      iRaf.close();
+      iRaf     = null;
+      iChannel = null;
+    }
+    setChanged();
+    notifyObserversAsync(iDone);
+  }
+
+  /**
+   * Writes the content of the encoding buffer to the current file.
+   */
+  private void drain() throws IOException
+  {
+    iBuffer.flip();
+    while (iBuffer.hasRemaining()) iChannel.write(iBuffer);
+    iBuffer.clear();
+  }
+
+  /**
+   * Writes the RIFF and data chunk sizes, the sample count of the <code>fact</code> chunk, and
+   * the pad byte of an odd-length data chunk of the current file (without moving the file
+   * position; the pad byte is overwritten by the next block).
+   */
+  private void patchHeader() throws IOException
+  {
+    int nPad = (int)(nDataBytes&1);
+    ByteBuffer iSize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    if (nPad>0)
+    {
+      iSize.put(0,(byte)0).limit(1);
+      iChannel.write(iSize,nHeaderSize+nDataBytes);
+      iSize.clear();
+    }
+    iSize.putInt(0,(int)(nHeaderSize-8+nDataBytes+nPad));
+    iChannel.write(iSize,4);
+    iSize.clear();
+    if (bFloat)
+    {
+      iSize.putInt(0,(int)(nDataBytes/nBlockAlign));
+      iChannel.write(iSize,nHeaderSize-12);
+      iSize.clear();
+    }
+    iSize.putInt(0,(int)nDataBytes);
+    iChannel.write(iSize,nHeaderSize-4);
+  }
+
+  private void error(Exception e)
+  {
+    JlObject.ERROR("AudioFileSink: "+e.getMessage());
+    iError = e;
+  }
+
+  private static int fourcc(String s)
+  {
+    return (s.charAt(0)&0xFF)|(s.charAt(1)&0xFF)<<8|(s.charAt(2)&0xFF)<<16|(s.charAt(3)&0xFF)<<24;
+  }
+
+}
+
+// EOF
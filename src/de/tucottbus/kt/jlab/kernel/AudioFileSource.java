@@ -0,0 +1,372 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Observable;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Streams an audio file block by block into a {@link JlFifoQueue}. Unlike
+ * {@link JlDataStreamer}, which streams a {@link JlData} instance held in memory, the source reads
+ * and decodes one block at a time from the file. The memory consumption is bounded by the block
+ * length and the capacity of the target queue, not by the length of the file.
+ *
+ * <p>Blocks are streamed in one of two modes:</p>
+ * <ul>
+ *   <li><b>real time</b>: one block per block duration, like {@link JlDataStreamer},</li>
+ *   <li><b>as fast as possible</b> (default): the source waits while the target queue is full
+ *     (backpressure) and never causes a {@link JlFifoQueueOverflowException}.</li>
+ * </ul>
+ * <p>If a channel is selected (see {@link #setChannel(int)}) the blocks are the component arrays
+ * of that channel, exactly as streamed by {@link JlDataStreamer}. Otherwise the blocks are
+ * {@link JlData} instances containing all channels, with <code>rofs</code> set to the time of the
+ * first frame of the block. The sample type is the one {@link JlDataFile#readAudioFile(File,
+ * boolean)} would produce. After the last block (or on errors or {@link #stop()}) the source puts
+ * <code>null</code> into the target queue.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public class AudioFileSource extends Observable implements Runnable
+{
+  private final File           iFile;             // Audio file
+  private final JlFifoQueue    iTarget;           // Target queue
+  private final int            nBlockLength;      // Frames per block
+  private int                  nChannel  = -1;    // Streamed channel (-1: all channels)
+  private boolean              bNorm     = false; // Normalize samples to [-1,1]
+  private boolean              bRealTime = false; // Pace blocks in real time
+  private volatile boolean     bActive   = false; // Streamer thread's run flag
+  private volatile boolean     bPause    = false; // Pause flag
+  private volatile long        nFrames   = 0;     // Frames streamed so far
+  private volatile IOException iError    = null;  // Last error
+  private Thread               iRunner   = null;  // Streamer thread
+
+  /**
+   * Creates a new audio file source. Use {@link #start()} to start streaming.
+   *
+   * @param iFile
+   *          The audio file.
+   * @param iTarget
+   *          The queue to stream the blocks to.
+   * @param nBlockLength
+   *          The number of frames per block.
+   * @throws IllegalArgumentException
+   *          If <code>iFile</code> or <code>iTarget</code> is <code>null</code>.
+   */
+  public AudioFileSource(File iFile, JlFifoQueue iTarget, int nBlockLength)
+  throws IllegalArgumentException
+  {
+    if (iFile==null) throw new IllegalArgumentException("No file");
+    if (iTarget==null) throw new IllegalArgumentException("No target queue");
+    this.iFile        = iFile;
+    this.iTarget      = iTarget;
+    this.nBlockLength = Math.max(nBlockLength,1);
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Returns the audio file.
+   */
+  public File getFile()
+  {
+    return iFile;
+  }
+
+  /**
+   * Returns the number of frames per block.
+   */
+  public int getBlockLength()
+  {
+    return nBlockLength;
+  }
+
+  /**
+   * Selects the channel to stream.
+   *
+   * @param nChannel
+   *          The zero-based channel index, -1 to stream {@link JlData} blocks containing all
+   *          channels (default).
+   */
+  public void setChannel(int nChannel)
+  {
+    this.nChannel = Math.max(nChannel,-1);
+  }
+
+  /**
+   * Returns the streamed channel, -1 for all channels.
+   */
+  public int getChannel()
+  {
+    return nChannel;
+  }
+
+  /**
+   * Determines whether samples are normalized.
+   *
+   * @param bNorm
+   *          If <code>true</code> the samples will be streamed as doubles normalized to a range
+   *          between -1 and 1 (default is <code>false</code>).
+   */
+  public void setNorm(boolean bNorm)
+  {
+    this.bNorm = bNorm;
+  }
+
+  /**
+   * Returns <code>true</code> if samples are streamed normalized.
+   */
+  public boolean isNorm()
+  {
+    return bNorm;
+  }
+
+  /**
+   * Determines whether blocks are paced in real time.
+   *
+   * @param bRealTime
+   *          If <code>true</code> one block is streamed per block duration, otherwise blocks are
+   *          streamed as fast as the target queue accepts them (default).
+   */
+  public void setRealTime(boolean bRealTime)
+  {
+    this.bRealTime = bRealTime;
+  }
+
+  /**
+   * Returns <code>true</code> if blocks are paced in real time.
+   */
+  public boolean isRealTime()
+  {
+    return bRealTime;
+  }
+
+  /**
+   * Returns <code>true</code> if this source is streaming or paused.
+   */
+  public boolean isActive()
+  {
+    Thread iRunner = this.iRunner;
+    return iRunner!=null && iRunner.isAlive();
+  }
+
+  /**
+   * Returns <code>true</code> if this source is paused.
+   */
+  public boolean isPaused()
+  {
+    return isActive() && bPause;
+  }
+
+  /**
+   * Returns the number of frames streamed so far.
+   */
+  public long getFramesStreamed()
+  {
+    return nFrames;
+  }
+
+  /**
+   * Returns the error which terminated the last streaming run or <code>null</code> if there was
+   * no error.
+   */
+  public IOException getError()
+  {
+    return iError;
+  }
+
+  // -- Operations --
+
+  /**
+   * Starts streaming in a background thread.
+   *
+   * @throws IllegalThreadStateException
+   *          If streaming is already in progress.
+   */
+  public synchronized void start() throws IllegalThreadStateException
+  {
+    if (isActive())
+      throw new IllegalThreadStateException("Already streaming");
+    bActive = true;
+    bPause  = false;
+    nFrames = 0;
+    iError  = null;
+    iRunner = new Thread(this,"AudioFileSource "+iFile.getName());
+    iRunner.setDaemon(true);
+    if (bRealTime) iRunner.setPriority(Thread.MAX_PRIORITY);
+    iRunner.start();
+    setChanged();
+    notifyObservers();
+  }
+
+  /**
+   * Stops streaming and waits for the streamer thread to terminate. The source puts
+   * <code>null</code> into the target queue.
+   */
+  public void stop()
+  {
+    Thread iRunner = this.iRunner;
+    bActive = false;
+    if (iRunner==null || iRunner==Thread.currentThread()) return;
+    iRunner.interrupt();
+    try { iRunner.join(1000); } catch (InterruptedException e) {}
+    if (iRunner.isAlive())
+      JlObject.WARNING("Audio file source did not stop.");
+  }
+
+  /**
+   * Pauses this source. The method does nothing if the source is not active.
+   */
+  public void pause()
+  {
+    if (!isActive() || bPause) return;
+    bPause = true;
+    setChanged();
+    notifyObservers();
+  }
+
+  /**
+   * Resumes this source. The method does nothing if the source is not paused.
+   */
+  public void resume()
+  {
+    if (!isPaused()) return;
+    bPause = false;
+    synchronized (this) { notifyAll(); }
+    setChanged();
+    notifyObservers();
+  }
+
+  // -- Implementation of the Runnable interface --
+
+  @Override
+  public void run()
+  {
+    AudioInputStream ais = null;
+    try
+    {
+      ais = AudioSystem.getAudioInputStream(new BufferedInputStream(new FileInputStream(iFile)));
+      AudioFormat iFmt = ais.getFormat();
+      int      nXC  = iFmt.getChannels();
+      int      nBps = iFmt.getSampleSizeInBits();
+      int      nYps = nBps/8;
+      int      nBpf = iFmt.getFrameSize();
+      Encoding enc  = iFmt.getEncoding();
+      if (nYps*8!=nBps || nYps<1 || nYps>4 || nBpf!=nXC*nYps)
+        throw new IOException("Sample size of "+nBps+" bits not supported");
+      if (enc!=Encoding.PCM_SIGNED && enc!=Encoding.PCM_UNSIGNED)
+        throw new IOException("Audio encoding "+enc+" not supported");
+      if (nChannel>=nXC)
+        throw new IOException("Invalid channel index "+nChannel+" ("+nXC+" channels)");
+
+      Class<?> cType    = bNorm ? double.class : nBps>16 ? int.class : short.class;
+      double   nNorm    = bNorm ? Math.pow(2,nBps-1) : 1;
+      boolean  bSgn     = enc==Encoding.PCM_SIGNED;
+      boolean  bBen     = iFmt.isBigEndian();
+      double   nRinc    = 1/(double)iFmt.getSampleRate();
+      long     nInterval = (long)(nBlockLength*nRinc*1E9); // Block interval in nanoseconds
+      byte[]   aBytes   = new byte[nBlockLength*nBpf];
+      int[]    aTmp     = new int[nBlockLength];
+      Object[] aComps   = new Object[nXC];
+      long     nStart   = System.nanoTime();
+      long     nIte     = 0;
+
+      while (bActive)
+      {
+        // Wait while paused, the pacing clock does not run meanwhile
+        synchronized (this)
+        {
+          if (bPause && bActive)
+          {
+            long nPaused = System.nanoTime();
+            while (bPause && bActive) wait();
+            nStart += System.nanoTime()-nPaused;
+          }
+        }
+
+        // Read one block
+        int nFill = 0, nRead = 0;
+        while (nFill<aBytes.length && (nRead=ais.read(aBytes,nFill,aBytes.length-nFill))!=-1)
+          nFill += nRead;
+        int nXF = nFill/nBpf;
+        if (nXF==0) break;
+
+        // Decode into fresh arrays (downstream queues keep the references)
+        JlData idBlock = null;
+        if (nChannel<0)
+        {
+          idBlock = new JlData();
+          idBlock.addNComps(cType,nXC);
+          idBlock.allocate(nXF);
+          idBlock.addRecs(nXF,0);
+          idBlock.rinc  = nRinc;
+          idBlock.rofs  = nFrames*nRinc;
+          idBlock.runit = "s";
+          for (int nC=0; nC<nXC; nC++) aComps[nC] = idBlock.getComp(nC);
+        }
+        else
+          for (int nC=0; nC<nXC; nC++)
+            aComps[nC] = nC==nChannel ? Array.newInstance(cType,nXF) : null;
+        JlDataFile.decodePcm(aBytes,nXF,nXC,nBps,bSgn,bBen,aComps,0,nNorm,aTmp);
+
+        // Pace: real time or backpressure
+        if (bRealTime)
+        {
+          long nWait = nStart+nIte*nInterval-System.nanoTime();
+          if (nWait>0) Thread.sleep(nWait/1000000,(int)(nWait%1000000));
+          else if (nIte>0) JlObject.WARNING("Data buffer dispatched too late");
+          nIte++;
+        }
+        while (bActive && !iTarget.awaitSpace(100)) {}
+        if (!bActive) break;
+        iTarget.put(idBlock!=null ? idBlock : aComps[nChannel]);
+        nFrames += nXF;
+        if (nXF*nBpf<aBytes.length) break;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // Stopped
+    }
+    catch (UnsupportedAudioFileException e)
+    {
+      iError = new IOException(e.getMessage(),e);
+    }
+    catch (IOException e)
+    {
+      iError = e;
+    }
+    finally
+    {
+      if (ais!=null)
+        try { ais.close(); } catch (IOException e) {}
+      if (iError!=null)
+        JlObject.ERROR("AudioFileSource: "+iError.getMessage(),true);
+      bActive = false;
+      Thread.interrupted(); // Clear interrupt flag from stop()
+      try
+      {
+        iTarget.awaitSpace(1000);
+        iTarget.put(null);
+      }
+      catch (Exception e)
+      {
+        JlObject.WARNING("AudioFileSource: cannot signal end of stream ("+e+")");
+      }
+      setChanged();
+      notifyObservers();
+    }
+  }
+
+}
+
+// EOF
@@ -0,0 +1,330 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process cache of decoded audio files. Reopening a cached file returns the decoded
+ * {@link JlData} instance without reading or decoding the file again.
+ *
+ * <p>Entries are keyed by the canonical path, the time stamp, and the size of the file as well
+ * as the normalization flag. A modified file is therefore decoded again. The cache has two tiers:
+ * the recently used entries are held strongly up to a total number of sample bytes (see
+ * {@link #setMaxBytes(long)}). Entries evicted from this tier (least recently used first) are
+ * kept as soft references which the garbage collector clears when memory runs low.</p>
+ *
+ * <p><b style="color:red">NOTE:</b> Cached instances are shared. Callers must not modify them;
+ * use {@link JlData#JlData(JlData)} to obtain a private copy.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public final class JlAudioCache
+{
+  /**
+   * Cache key: canonical path, time stamp, size, and normalization flag.
+   */
+  private static final class Key
+  {
+    final String  sPath;
+    final long    nLastModified;
+    final long    nLength;
+    final boolean bNorm;
+
+    Key(File iFile, boolean bNorm) throws IOException
+    {
+      this.sPath         = iFile.getCanonicalPath();
+      this.nLastModified = iFile.lastModified();
+      this.nLength       = iFile.length();
+      this.bNorm         = bNorm;
+    }
+
+    boolean isSameFile(Key iKey)
+    {
+      return sPath.equals(iKey.sPath) && bNorm==iKey.bNorm;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof Key)) return false;
+      Key iKey = (Key)obj;
+      return isSameFile(iKey) && nLastModified==iKey.nLastModified && nLength==iKey.nLength;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return sPath.hashCode()*31+Long.hashCode(nLastModified)*17+Long.hashCode(nLength)
+        +(bNorm ? 1 : 0);
+    }
+  }
+
+  /**
+   * Soft reference remembering its key, so that cleared references can be removed.
+   */
+  private static final class SoftEntry extends SoftReference<JlData>
+  {
+    final Key iKey;
+
+    SoftEntry(Key iKey, JlData idData, ReferenceQueue<JlData> iQueue)
+    {
+      super(idData,iQueue);
+      this.iKey = iKey;
+    }
+  }
+
+  private static long                          nMaxBytes = 256L<<20; // Strong tier limit
+  private static long                          nBytes    = 0;        // Bytes in strong tier
+  private static long                          nHits     = 0;        // Hits in strong tier
+  private static long                          nSoftHits = 0;        // Hits in soft tier
+  private static long                          nMisses   = 0;        // Misses
+  private static final LinkedHashMap<Key,JlData> mStrong
+    = new LinkedHashMap<Key,JlData>(16,0.75f,true);
+  private static final HashMap<Key,SoftEntry>  mSoft     = new HashMap<Key,SoftEntry>();
+  private static final ReferenceQueue<JlData>  iRefQueue = new ReferenceQueue<JlData>();
+
+  private JlAudioCache()
+  {
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Sets the maximal total number of sample bytes held strongly (default: 256 MB). Least recently
+   * used entries exceeding the limit are moved to the soft reference tier. Entries larger than
+   * the limit are held only softly.
+   *
+   * @param nMaxBytes
+   *          The limit in bytes, 0 to hold entries only softly.
+   */
+  public static synchronized void setMaxBytes(long nMaxBytes)
+  {
+    JlAudioCache.nMaxBytes = Math.max(nMaxBytes,0);
+    trim();
+  }
+
+  /**
+   * Returns the maximal total number of sample bytes held strongly.
+   */
+  public static synchronized long getMaxBytes()
+  {
+    return nMaxBytes;
+  }
+
+  /**
+   * Returns the total number of sample bytes currently held strongly.
+   */
+  public static synchronized long getBytes()
+  {
+    return nBytes;
+  }
+
+  /**
+   * Returns the number of cache hits in the strongly held tier.
+   */
+  public static synchronized long getHits()
+  {
+    return nHits;
+  }
+
+  /**
+   * Returns the number of cache hits in the soft reference tier.
+   */
+  public static synchronized long getSoftHits()
+  {
+    return nSoftHits;
+  }
+
+  /**
+   * Returns the number of cache misses (files decoded).
+   */
+  public static synchronized long getMisses()
+  {
+    return nMisses;
+  }
+
+  // -- Operations --
+
+  /**
+   * Reads an audio file through the cache. See {@link JlDataFile#readAudioFile(File, boolean)}
+   * for the arguments.
+   *
+   * @return The shared, decoded data instance. Callers must not modify it. If the file cannot be
+   *         decoded an empty instance is returned (and not cached).
+   * @throws IOException
+   *          If the canonical path of the file cannot be determined.
+   */
+  public static JlData readAudioFile(File iFile, boolean bNorm) throws IOException
+  {
+    Key iKey = new Key(iFile,bNorm);
+    synchronized (JlAudioCache.class)
+    {
+      JlData idData = lookup(iKey);
+      if (idData!=null) return idData;
+      nMisses++;
+    }
+
+    // Decode outside the lock (concurrent misses on the same file decode twice)
+    JlData idData = JlDataFile.readAudioFile(iFile,bNorm);
+    if (idData.getDimension()==0) return idData;
+
+    synchronized (JlAudioCache.class)
+    {
+      // Drop entries of previous versions of the file
+      for (Iterator<Map.Entry<Key,JlData>> it = mStrong.entrySet().iterator(); it.hasNext(); )
+      {
+        Map.Entry<Key,JlData> e = it.next();
+        if (e.getKey().isSameFile(iKey))
+        {
+          nBytes -= getSize(e.getValue());
+          it.remove();
+        }
+      }
+      for (Iterator<Key> it = mSoft.keySet().iterator(); it.hasNext(); )
+        if (it.next().isSameFile(iKey)) it.remove();
+
+      admit(iKey,idData);
+    }
+    return idData;
+  }
+
+  /**
+   * Removes all entries of a file from the cache.
+   *
+   * @param iFile
+   *          The file.
+   */
+  public static synchronized void invalidate(File iFile)
+  {
+    String sPath;
+    try
+    {
+      sPath = iFile.getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      return;
+    }
+    for (Iterator<Map.Entry<Key,JlData>> it = mStrong.entrySet().iterator(); it.hasNext(); )
+    {
+      Map.Entry<Key,JlData> e = it.next();
+      if (e.getKey().sPath.equals(sPath))
+      {
+        nBytes -= getSize(e.getValue());
+        it.remove();
+      }
+    }
+    for (Iterator<Key> it = mSoft.keySet().iterator(); it.hasNext(); )
+      if (it.next().sPath.equals(sPath)) it.remove();
+  }
+
+  /**
+   * Removes all entries from the cache and resets the hit and miss counters.
+   */
+  public static synchronized void clear()
+  {
+    mStrong.clear();
+    mSoft.clear();
+    nBytes    = 0;
+    nHits     = 0;
+    nSoftHits = 0;
+    nMisses   = 0;
+  }
+
+  /**
+   * Returns the number of bytes occupied by the components of a data instance.
+   *
+   * @param idData
+   *          The data instance.
+   */
+  public static long getSize(JlData idData)
+  {
+    long nSize = 0;
+    for (int nC=0; nC<idData.getDimension(); nC++)
+    {
+      Class<?> cType = idData.getCompType(nC);
+      int nSize1 = cType==byte.class ? 1 : cType==short.class || cType==char.class ? 2
+        : cType==int.class || cType==float.class ? 4 : 8;
+      nSize += (long)idData.getCapacity()*nSize1;
+    }
+    return nSize;
+  }
+
+  // -- Workers --
+
+  /**
+   * Looks up an entry in both tiers. An entry found in the soft tier is moved back to the strong
+   * tier. Must be called while holding the class lock.
+   */
+  private static JlData lookup(Key iKey)
+  {
+    expunge();
+    JlData idData = mStrong.get(iKey);
+    if (idData!=null)
+    {
+      nHits++;
+      return idData;
+    }
+    SoftEntry iSoft = mSoft.remove(iKey);
+    idData = iSoft!=null ? iSoft.get() : null;
+    if (idData==null) return null;
+    nSoftHits++;
+    admit(iKey,idData);
+    return idData;
+  }
+
+  /**
+   * Adds an entry to the strong tier or, if it alone exceeds the limit, to the soft tier. Must be
+   * called while holding the class lock.
+   */
+  private static void admit(Key iKey, JlData idData)
+  {
+    long nSize = getSize(idData);
+    if (nSize>nMaxBytes)
+    {
+      mSoft.put(iKey,new SoftEntry(iKey,idData,iRefQueue));
+      return;
+    }
+    mStrong.put(iKey,idData);
+    nBytes += nSize;
+    trim();
+  }
+
+  /**
+   * Moves least recently used entries to the soft tier until the strong tier fits into the
+   * limit. Must be called while holding the class lock.
+   */
+  private static void trim()
+  {
+    Iterator<Map.Entry<Key,JlData>> it = mStrong.entrySet().iterator();
+    while (nBytes>nMaxBytes && it.hasNext())
+    {
+      Map.Entry<Key,JlData> e = it.next();
+      it.remove();
+      nBytes -= getSize(e.getValue());
+      mSoft.put(e.getKey(),new SoftEntry(e.getKey(),e.getValue(),iRefQueue));
+    }
+  }
+
+  /**
+   * Removes soft entries cleared by the garbage collector. Must be called while holding the class
+   * lock.
+   */
+  private static void expunge()
+  {
+    SoftEntry iSoft;
+    while ((iSoft=(SoftEntry)iRefQueue.poll())!=null)
+      if (mSoft.get(iSoft.iKey)==iSoft) mSoft.remove(iSoft.iKey);
+  }
+
+}
+
+// EOF
@@ -0,0 +1,558 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Observable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Loads a corpus of audio, dLabPro XML, and jLab binary data files in parallel.
+ *
+ * <p>Files are decoded on a bounded thread pool. The sum of the sizes of all files which have
+ * been submitted but not yet delivered is limited (see {@link #setMaxOutstandingBytes(long)}), so
+ * the peak memory does not depend on the corpus size. Results ({@link Item}s) are delivered
+ * one at a time, either in the order of the file list or as they complete, to a {@link Listener}
+ * and/or a {@link JlFifoQueue} (followed by <code>null</code> after the last item). Observers are
+ * notified with a {@link Progress} snapshot after each delivered item.</p>
+ *
+ * <p>The file type is determined by the (case-insensitive) file name extension:
+ * <code>.wav</code>, <code>.aif</code>, <code>.aiff</code>, <code>.aifc</code>, <code>.au</code>,
+ * and <code>.snd</code> files are read by
+ * {@link JlDataFile#readAudioFile(File, boolean)}, jLab binary data files by
+ * {@link JlDataFile#readBin(File)}, all other files by
+ * {@link JlDataFile#readXml(File, java.util.AbstractCollection)}.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public class JlCorpusLoader extends Observable
+{
+  /**
+   * Result of loading one file.
+   */
+  public static final class Item
+  {
+    /**
+     * Zero-based index of the file in the file list.
+     */
+    public final int nIndex;
+
+    /**
+     * The file.
+     */
+    public final File iFile;
+
+    /**
+     * The data, <code>null</code> on errors.
+     */
+    public final JlData idData;
+
+    /**
+     * The error, <code>null</code> on success.
+     */
+    public final Throwable iError;
+
+    /**
+     * The file size in bytes when the file was submitted for loading.
+     */
+    public final long nSize;
+
+    Item(int nIndex, File iFile, JlData idData, Throwable iError, long nSize)
+    {
+      this.nIndex = nIndex;
+      this.iFile  = iFile;
+      this.idData = idData;
+      this.iError = iError;
+      this.nSize  = nSize;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "#"+nIndex+" "+iFile+(iError!=null ? " FAILED: "+iError : "");
+    }
+  }
+
+  /**
+   * Receives loaded items. Items are delivered one at a time from a worker thread.
+   */
+  public interface Listener
+  {
+    /**
+     * Called for each loaded or failed file.
+     *
+     * @param iItem
+     *          The item.
+     */
+    void delivered(Item iItem);
+  }
+
+  /**
+   * Snapshot of the progress of a corpus loader.
+   */
+  public static final class Progress
+  {
+    public final int  nFiles;        // Number of files in the corpus
+    public final int  nDone;         // Number of delivered files (incl. failed)
+    public final int  nFailed;       // Number of failed files
+    public final long nBytes;        // Number of file bytes delivered
+    public final long nNanos;        // Time since start in nanoseconds
+    public final boolean bFinished;  // All files delivered or loader cancelled
+
+    Progress(int nFiles, int nDone, int nFailed, long nBytes, long nNanos, boolean bFinished)
+    {
+      this.nFiles    = nFiles;
+      this.nDone     = nDone;
+      this.nFailed   = nFailed;
+      this.nBytes    = nBytes;
+      this.nNanos    = nNanos;
+      this.bFinished = bFinished;
+    }
+
+    /**
+     * Returns the throughput in megabytes (10<sup>6</sup> bytes) of file data per second.
+     */
+    public double getMBps()
+    {
+      return nNanos>0 ? nBytes*1E3/nNanos : 0;
+    }
+
+    /**
+     * Returns the throughput in files per second.
+     */
+    public double getFilesPerSecond()
+    {
+      return nNanos>0 ? nDone*1E9/nNanos : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format(Locale.ENGLISH,"%d/%d files (%d failed), %.1f MB/s, %.1f files/s",
+        nDone,nFiles,nFailed,getMBps(),getFilesPerSecond());
+    }
+  }
+
+  private final List<File>   lFiles;
+  private int                nThreads  = Runtime.getRuntime().availableProcessors();
+  private long               nMaxBytes = 256L<<20; // Max. outstanding file bytes
+  private boolean            bOrdered  = true;     // Deliver in order of the file list
+  private boolean            bNorm     = false;    // Normalize audio samples
+  private Listener           iListener = null;
+  private JlFifoQueue        iTarget   = null;
+
+  private ExecutorService    iPool;
+  private Thread             iDispatcher;
+  private final Object       iDeliver  = new Object();   // Serializes deliveries
+  private final Object       iLock     = new Object();   // Guards the fields below
+  private long               nOutstanding;                // Submitted, not delivered bytes
+  private Map<Integer,Item>  mPending;                    // Completed, not delivered items
+  private int                nNext;                       // Next index to deliver (ordered)
+  private int                nDone;
+  private int                nFailed;
+  private long               nBytesDone;
+  private long               nStart;
+  private volatile boolean   bCancelled;
+  private boolean            bFinished;
+
+  /**
+   * Creates a corpus loader.
+   *
+   * @param lFiles
+   *          The files to load.
+   * @throws IllegalArgumentException
+   *          If <code>lFiles</code> is <code>null</code>.
+   */
+  public JlCorpusLoader(List<File> lFiles) throws IllegalArgumentException
+  {
+    if (lFiles==null) throw new IllegalArgumentException("No file list");
+    this.lFiles = Collections.unmodifiableList(new ArrayList<File>(lFiles));
+  }
+
+  /**
+   * Lists the files in a directory tree matching a glob pattern, e.g. <code>"**&#47;*.wav"</code>.
+   * The pattern is matched against the path relative to <code>iDir</code>.
+   *
+   * @param iDir
+   *          The root directory.
+   * @param sGlob
+   *          The glob pattern (see {@link java.nio.file.FileSystem#getPathMatcher(String)}).
+   * @return The sorted list of matching files.
+   * @throws IOException
+   *          On I/O errors.
+   */
+  public static List<File> glob(File iDir, String sGlob) throws IOException
+  {
+    final Path iRoot = iDir.toPath();
+    final PathMatcher iMatcher = FileSystems.getDefault().getPathMatcher("glob:"+sGlob);
+    try (Stream<Path> s = Files.walk(iRoot))
+    {
+      return s.filter(p -> Files.isRegularFile(p) && iMatcher.matches(iRoot.relativize(p)))
+        .sorted().map(Path::toFile).collect(Collectors.toList());
+    }
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Returns the (unmodifiable) file list.
+   */
+  public List<File> getFiles()
+  {
+    return lFiles;
+  }
+
+  /**
+   * Sets the number of loader threads (default: number of processors).
+   */
+  public void setThreads(int nThreads)
+  {
+    this.nThreads = Math.max(nThreads,1);
+  }
+
+  /**
+   * Limits the sum of the sizes of files which have been submitted for loading but not yet
+   * delivered (default: 256 MB). A file larger than the limit is loaded alone.
+   *
+   * @param nMaxBytes
+   *          The limit in bytes.
+   */
+  public void setMaxOutstandingBytes(long nMaxBytes)
+  {
+    this.nMaxBytes = Math.max(nMaxBytes,1);
+  }
+
+  /**
+   * Determines whether items are delivered in the order of the file list (default) or as they
+   * complete.
+   */
+  public void setOrdered(boolean bOrdered)
+  {
+    this.bOrdered = bOrdered;
+  }
+
+  /**
+   * Determines whether audio samples are normalized (see
+   * {@link JlDataFile#readAudioFile(File, boolean)}).
+   */
+  public void setNorm(boolean bNorm)
+  {
+    this.bNorm = bNorm;
+  }
+
+  /**
+   * Sets the listener receiving the loaded items.
+   */
+  public void setListener(Listener iListener)
+  {
+    this.iListener = iListener;
+  }
+
+  /**
+   * Sets a queue receiving the loaded {@link Item}s followed by <code>null</code>. The loader
+   * waits while the queue is full.
+   */
+  public void setTarget(JlFifoQueue iTarget)
+  {
+    this.iTarget = iTarget;
+  }
+
+  /**
+   * Returns a snapshot of the current progress.
+   */
+  public Progress getProgress()
+  {
+    synchronized (iLock)
+    {
+      return new Progress(lFiles.size(),nDone,nFailed,nBytesDone,
+        nStart>0 ? System.nanoTime()-nStart : 0,bFinished);
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the loader is running.
+   */
+  public boolean isActive()
+  {
+    synchronized (iLock)
+    {
+      return nStart>0 && !bFinished;
+    }
+  }
+
+  // -- Operations --
+
+  /**
+   * Starts loading in the background.
+   *
+   * @throws IllegalThreadStateException
+   *          If the loader was already started.
+   */
+  public void start() throws IllegalThreadStateException
+  {
+    synchronized (iLock)
+    {
+      if (nStart>0) throw new IllegalThreadStateException("Already started");
+      nStart       = System.nanoTime();
+      nOutstanding = 0;
+      mPending     = new HashMap<Integer,Item>();
+    }
+    final AtomicInteger nThread = new AtomicInteger();
+    iPool = Executors.newFixedThreadPool(nThreads,new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r,"JlCorpusLoader-"+nThread.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    iDispatcher = new Thread(this::dispatch,"JlCorpusLoader-dispatcher");
+    iDispatcher.setDaemon(true);
+    iDispatcher.start();
+    if (lFiles.isEmpty()) finish();
+  }
+
+  /**
+   * Waits until all files have been delivered or the loader was cancelled.
+   *
+   * @throws InterruptedException
+   *          If the calling thread was interrupted.
+   */
+  public void await() throws InterruptedException
+  {
+    synchronized (iLock)
+    {
+      while (!bFinished) iLock.wait();
+    }
+  }
+
+  /**
+   * Loads all files and waits for completion. Equivalent to {@link #start()} followed by
+   * {@link #await()}.
+   *
+   * @return The final progress.
+   * @throws InterruptedException
+   *          If the calling thread was interrupted.
+   */
+  public Progress load() throws InterruptedException
+  {
+    start();
+    await();
+    return getProgress();
+  }
+
+  /**
+   * Cancels loading. Items already completed may still be delivered; no new files are started.
+   */
+  public void cancel()
+  {
+    synchronized (iLock)
+    {
+      bCancelled = true; // Under the lock, so that the dispatcher cannot submit after shutdown
+    }
+    if (iDispatcher!=null) iDispatcher.interrupt();
+    if (iPool!=null) iPool.shutdownNow();
+    finish();
+  }
+
+  // -- Workers --
+
+  /**
+   * Submits the files to the thread pool respecting the limit of outstanding bytes.
+   */
+  private void dispatch()
+  {
+    try
+    {
+      for (int i=0; i<lFiles.size() && !bCancelled; i++)
+      {
+        final int  nIndex = i;
+        final File iFile  = lFiles.get(i);
+        final long nSize  = iFile.length();
+        synchronized (iLock)
+        {
+          while (!bCancelled && nOutstanding>0 && nOutstanding+budget(nSize)>nMaxBytes)
+            iLock.wait();
+          if (bCancelled) break;
+          nOutstanding += budget(nSize);
+          iPool.execute(() -> complete(nIndex,loadFile(nIndex,iFile,nSize)));
+        }
+      }
+    }
+    catch (InterruptedException | RejectedExecutionException e)
+    {
+      // Cancelled
+    }
+    finally
+    {
+      iPool.shutdown();
+    }
+  }
+
+  /**
+   * Returns the number of outstanding bytes reserved for a file of <code>nSize</code> bytes.
+   * Empty files reserve one byte, so that they count against the limit, too.
+   */
+  private static long budget(long nSize)
+  {
+    return Math.max(nSize,1);
+  }
+
+  /**
+   * Loads one file.
+   */
+  private Item loadFile(int nIndex, File iFile, long nSize)
+  {
+    try
+    {
+      return new Item(nIndex,iFile,readFile(iFile,bNorm),null,nSize);
+    }
+    catch (Throwable e)
+    {
+      return new Item(nIndex,iFile,null,e,nSize);
+    }
+  }
+
+  /**
+   * Reads an audio, dLabPro XML, or jLab binary data file. The file type is determined as
+   * described in the class documentation.
+   *
+   * @param iFile
+   *          The file.
+   * @param bNorm
+   *          Normalize audio samples (see {@link JlDataFile#readAudioFile(File, boolean)}).
+   * @return The data.
+   * @throws SAXException
+   *          On unrecoverable XML parser errors.
+   * @throws IOException
+   *          On I/O errors or if the file cannot be decoded.
+   */
+  public static JlData readFile(File iFile, boolean bNorm) throws SAXException, IOException
+  {
+    JlData idData;
+    String sName = iFile.getName().toLowerCase(Locale.ENGLISH);
+    if (sName.matches(".*\\.(wav|aif|aiff|aifc|au|snd)"))
+    {
+      idData = JlDataFile.readAudioFile(iFile,bNorm);
+      if (idData.getDimension()==0)
+        throw new IOException("Cannot decode audio file "+iFile);
+    }
+    else if (JlDataBinFile.isBinFile(iFile))
+      idData = JlDataFile.readBin(iFile);
+    else
+      idData = JlDataFile.readXml(iFile,null);
+    return idData;
+  }
+
+  /**
+   * Delivers a completed item (and, if ordered, all items waiting for it).
+   */
+  private void complete(int nIndex, Item iItem)
+  {
+    synchronized (iLock)
+    {
+      if (bCancelled) return;
+      mPending.put(nIndex,iItem);
+      if (bOrdered && nIndex!=nNext) return; // Delivered by the thread completing nNext
+    }
+    // Deliver serially; delivery lock is separate so that the dispatcher is not blocked
+    synchronized (iDeliver)
+    {
+      while (true)
+      {
+        Item iNext;
+        synchronized (iLock)
+        {
+          iNext = bOrdered ? mPending.remove(nNext) : mPending.remove(nIndex);
+          if (bCancelled) return;
+          if (iNext==null) break;
+          if (bOrdered) nNext++;
+        }
+        deliver(iNext);
+        synchronized (iLock)
+        {
+          nOutstanding -= budget(iNext.nSize); // Exactly what dispatch() reserved
+          nDone++;
+          if (iNext.iError!=null) nFailed++;
+          nBytesDone += iNext.nSize;
+          iLock.notifyAll();
+        }
+        setChanged();
+        notifyObservers(getProgress());
+        if (!bOrdered) break;
+      }
+      synchronized (iLock)
+      {
+        if (nDone<lFiles.size()) return;
+      }
+    }
+    finish();
+  }
+
+  private void deliver(Item iItem)
+  {
+    if (iItem.iError!=null)
+      JlObject.WARNING("JlCorpusLoader: "+iItem);
+    try
+    {
+      if (iListener!=null) iListener.delivered(iItem);
+      if (iTarget!=null)
+      {
+        iTarget.awaitSpace(0);
+        iTarget.put(iItem);
+      }
+    }
+    catch (Exception e)
+    {
+      JlObject.ERROR("JlCorpusLoader: delivery of "+iItem.iFile+" failed ("+e+")");
+    }
+  }
+
+  private void finish()
+  {
+    synchronized (iLock)
+    {
+      if (bFinished) return;
+      bFinished = true;
+      iLock.notifyAll();
+    }
+    if (iTarget!=null)
+      try
+      {
+        iTarget.awaitSpace(1000);
+        iTarget.put(null);
+      }
+      catch (Exception e)
+      {
+        JlObject.WARNING("JlCorpusLoader: cannot signal end of corpus ("+e+")");
+      }
+    if (iPool!=null) iPool.shutdown();
+    setChanged();
+    notifyObservers(getProgress());
+  }
+
+}
+
+// EOF
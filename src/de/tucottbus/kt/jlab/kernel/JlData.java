@@ -78,9 +78,10 @@ class JlDataComp implements Serializable
     int nCopy = getLength();
     if (nCopy > nLength) nCopy = nLength;
 
-    Object iGhost = iData;
-    iData = Array.newInstance(getType(), nLength);
-    if (iGhost != null) System.arraycopy(iGhost, 0, iData, 0, nCopy);
+    // Copy before replacing, so that concurrent readers never see an unfilled array
+    Object iNew = Array.newInstance(getType(), nLength);
+    if (iData != null) System.arraycopy(iData, 0, iNew, 0, nCopy);
+    iData = iNew;
   }
 }
 
@@ -0,0 +1,602 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Binary columnar file format for {@link JlData} instances. A file consists of
+ * <ol>
+ *   <li>a header containing the description fields of the data instance,</li>
+ *   <li>a component directory (name, type, compression, file offset, stored and raw size, and
+ *     CRC-32 checksum of each component), and</li>
+ *   <li>one contiguous block per component holding the values as little-endian primitives,
+ *     optionally deflate-compressed.</li>
+ * </ol>
+ * <p>Supported component types are <code>byte</code>, <code>short</code>, <code>char</code>,
+ * <code>int</code>, <code>long</code>, <code>float</code>, <code>double</code>, and
+ * <code>String</code> (stored as length-prefixed UTF-8, <code>null</code> preserved).</p>
+ *
+ * <p>Files are read through a memory mapping. Uncompressed numeric components are copied in bulk
+ * from the mapped block, and a selection of components and a record range can be loaded without
+ * touching the rest of the file.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ * @see JlDataFile#writeBin(JlData, File, boolean)
+ * @see JlDataFile#readBin(File, String[], int, int)
+ */
+public final class JlDataBinFile
+{
+  private static final int MAGIC   = 0x42444C4A; // "JLDB" little endian
+  private static final int VERSION = 1;
+
+  private static final byte T_BYTE   = 1;
+  private static final byte T_SHORT  = 2;
+  private static final byte T_CHAR   = 3;
+  private static final byte T_INT    = 4;
+  private static final byte T_LONG   = 5;
+  private static final byte T_FLOAT  = 6;
+  private static final byte T_DOUBLE = 7;
+  private static final byte T_STRING = 8;
+
+  private static final int  DIRENT   = 2+8+8+8+4;  // Fixed part of directory entry
+
+  private JlDataBinFile()
+  {
+  }
+
+  // -- Writing --
+
+  /**
+   * Writes a data instance to a binary file.
+   *
+   * @param idData
+   *          The data instance.
+   * @param iFile
+   *          The file.
+   * @param bCompress
+   *          If <code>true</code> component blocks are deflate-compressed. Components which do not
+   *          shrink are stored uncompressed.
+   * @throws IOException
+   *          On I/O errors.
+   * @throws IllegalArgumentException
+   *          If <code>idData</code> contains a component type which cannot be stored.
+   */
+  public static void write(JlData idData, File iFile, boolean bCompress)
+  throws IOException, IllegalArgumentException
+  {
+    int    nDim  = idData.getDimension();
+    int    nRec  = idData.getLength();
+    byte[] aType = new byte[nDim];
+    for (int nC=0; nC<nDim; nC++)
+      aType[nC] = typeCode(idData.getCompType(nC));
+
+    // Header and directory
+    ByteArrayOutputStream iHdr = new ByteArrayOutputStream();
+    ByteBuffer b = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(MAGIC).putInt(VERSION).putInt(nDim).putInt(nRec);
+    b.putDouble(idData.rinc).putDouble(idData.rwid).putDouble(idData.rofs);
+    b.putDouble(idData.noffset).putDouble(idData.cinc).putDouble(idData.cofs);
+    b.putDouble(idData.vinc).putLong(idData.nblock);
+    b.putDouble(idData.descr0).putDouble(idData.descr1).putDouble(idData.descr2);
+    b.putDouble(idData.descr3).putDouble(idData.descr4);
+    iHdr.write(b.array(),0,b.position());
+    putString(iHdr,idData.runit);
+    putString(iHdr,idData.cunit);
+    putString(iHdr,idData.vunit);
+    putString(iHdr,idData.rtext);
+    putString(iHdr,idData.ftext);
+    putString(iHdr,idData.vrtext);
+    int[] aDirPos = new int[nDim];
+    for (int nC=0; nC<nDim; nC++)
+    {
+      putString(iHdr,idData.getCompName(nC));
+      aDirPos[nC] = iHdr.size();
+      iHdr.write(new byte[DIRENT],0,DIRENT); // Patched below
+    }
+    ByteBuffer iDir = ByteBuffer.wrap(iHdr.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+    RandomAccessFile raf = new RandomAccessFile(iFile,"rw");
+    try
+    {
+      raf.setLength(0);
+      FileChannel fc = raf.getChannel();
+      long nPos = align(iDir.capacity());
+
+      // Component blocks
+      for (int nC=0; nC<nDim; nC++)
+      {
+        ByteBuffer iRaw = encode(idData.getComp(nC),aType[nC],nRec);
+        CRC32 iCrc = new CRC32();
+        iCrc.update(iRaw.array(),0,iRaw.limit());
+        long nRaw = iRaw.limit();
+        boolean bDeflated = false;
+        if (bCompress && nRaw>0)
+        {
+          ByteArrayOutputStream iZip = new ByteArrayOutputStream((int)(nRaw/2));
+          Deflater iDef = new Deflater(Deflater.BEST_SPEED);
+          DeflaterOutputStream dos = new DeflaterOutputStream(iZip,iDef);
+          dos.write(iRaw.array(),0,iRaw.limit());
+          dos.close();
+          iDef.end();
+          if (iZip.size()<nRaw)
+          {
+            iRaw = ByteBuffer.wrap(iZip.toByteArray());
+            bDeflated = true;
+          }
+        }
+        long nStored = iRaw.remaining();
+        writeFully(fc,iRaw,nPos);
+        iDir.position(aDirPos[nC]);
+        iDir.put(aType[nC]).put((byte)(bDeflated?1:0)).putLong(nPos).putLong(nStored)
+          .putLong(nRaw).putInt((int)iCrc.getValue());
+        nPos = align(nPos+nStored);
+      }
+
+      // Header
+      iDir.clear();
+      writeFully(fc,iDir,0);
+      raf.setLength(nPos);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  // -- Reading --
+
+  /**
+   * Reads a complete data instance from a binary file and verifies the checksums.
+   *
+   * @param iFile
+   *          The file.
+   * @return The data instance.
+   * @throws IOException
+   *          On I/O errors, invalid files, or checksum errors.
+   */
+  public static JlData read(File iFile) throws IOException
+  {
+    return read(iFile,null,0,-1);
+  }
+
+  /**
+   * Reads a selection of components and records from a binary file. Checksums are verified if
+   * all records are read. The <code>rofs</code> field is adjusted to the first record read.
+   *
+   * @param iFile
+   *          The file.
+   * @param aCompNames
+   *          The names of the components to read (in this order), <code>null</code> for all
+   *          components. Unknown names are ignored.
+   * @param nFirst
+   *          The zero-based index of the first record to read.
+   * @param nCount
+   *          The number of records to read, -1 for all records from <code>nFirst</code> on.
+   * @return The data instance.
+   * @throws IOException
+   *          On I/O errors, invalid, corrupt or truncated files, or checksum errors.
+   * @throws IllegalArgumentException
+   *          If the record range is invalid.
+   */
+  public static JlData read(File iFile, String[] aCompNames, int nFirst, int nCount)
+  throws IOException, IllegalArgumentException
+  {
+    RandomAccessFile raf = new RandomAccessFile(iFile,"r");
+    try
+    {
+      FileChannel fc = raf.getChannel();
+      long nFileSize = fc.size();
+
+      // Header
+      MappedByteBuffer iMap = fc.map(FileChannel.MapMode.READ_ONLY,0,Math.min(nFileSize,
+        Integer.MAX_VALUE));
+      iMap.order(ByteOrder.LITTLE_ENDIAN);
+      if (iMap.remaining()<16 || iMap.getInt()!=MAGIC)
+        throw new IOException("Not a jLab binary data file: "+iFile);
+      int nVersion = iMap.getInt();
+      if (nVersion!=VERSION)
+        throw new IOException("Unsupported file version "+nVersion+" in "+iFile);
+      int nDim = iMap.getInt();
+      int nRec = iMap.getInt();
+      if (nDim<0 || nRec<0 || (long)nDim*(DIRENT+4)>iMap.remaining())
+        throw new IOException("Corrupt header ("+nDim+" components, "+nRec+" records) in "
+          +iFile);
+      if (nFirst<0 || nFirst>nRec || nCount<-1 || (nCount>=0 && nFirst+nCount>nRec))
+        throw new IllegalArgumentException("Invalid record range ["+nFirst+","+(nFirst+nCount)
+          +") for "+nRec+" records");
+      if (nCount<0) nCount = nRec-nFirst;
+      JlData idData = new JlData();
+      idData.rinc    = iMap.getDouble();
+      idData.rwid    = iMap.getDouble();
+      idData.rofs    = iMap.getDouble()+nFirst*idData.rinc;
+      idData.noffset = iMap.getDouble();
+      idData.cinc    = iMap.getDouble();
+      idData.cofs    = iMap.getDouble();
+      idData.vinc    = iMap.getDouble();
+      idData.nblock  = iMap.getLong();
+      idData.descr0  = iMap.getDouble();
+      idData.descr1  = iMap.getDouble();
+      idData.descr2  = iMap.getDouble();
+      idData.descr3  = iMap.getDouble();
+      idData.descr4  = iMap.getDouble();
+      idData.runit   = getString(iMap);
+      idData.cunit   = getString(iMap);
+      idData.vunit   = getString(iMap);
+      idData.rtext   = getString(iMap);
+      idData.ftext   = getString(iMap);
+      idData.vrtext  = getString(iMap);
+
+      // Directory
+      String[] aName = new String[nDim];
+      byte[]   aType = new byte[nDim];
+      boolean[] aZip = new boolean[nDim];
+      long[]   aOfs  = new long[nDim];
+      long[]   aLen  = new long[nDim];
+      long[]   aRaw  = new long[nDim];
+      int[]    aCrc  = new int[nDim];
+      for (int nC=0; nC<nDim; nC++)
+      {
+        aName[nC] = getString(iMap);
+        aType[nC] = iMap.get();
+        aZip [nC] = iMap.get()!=0;
+        aOfs [nC] = iMap.getLong();
+        aLen [nC] = iMap.getLong();
+        aRaw [nC] = iMap.getLong();
+        aCrc [nC] = iMap.getInt();
+        long nSize = typeSize(aType[nC]);
+        typeClass(aType[nC]); // Validate type code
+        if (aOfs[nC]<0 || aLen[nC]<0 || aOfs[nC]+aLen[nC]>nFileSize
+          || (nSize>0 && (aZip[nC] ? aRaw[nC] : aLen[nC])!=nSize*nRec))
+          throw new IOException("Corrupt directory entry of component \""+aName[nC]+"\" in "
+            +iFile);
+      }
+
+      // Component selection
+      int[] aSel;
+      if (aCompNames==null)
+      {
+        aSel = new int[nDim];
+        for (int nC=0; nC<nDim; nC++) aSel[nC] = nC;
+      }
+      else
+      {
+        int[] aTmp = new int[aCompNames.length];
+        int   nSel = 0;
+        for (String sName : aCompNames)
+          for (int nC=0; nC<nDim; nC++)
+            if (aName[nC].equals(sName)) { aTmp[nSel++] = nC; break; }
+        aSel = new int[nSel];
+        System.arraycopy(aTmp,0,aSel,0,nSel);
+      }
+      for (int nC : aSel)
+        idData.addComp(typeClass(aType[nC]),aName[nC]);
+      idData.allocate(nCount);
+      idData.setNRecs(nCount);
+
+      // Component blocks
+      boolean bVerify = nFirst==0 && nCount==nRec;
+      for (int i=0; i<aSel.length; i++)
+      {
+        int    nC    = aSel[i];
+        int    nSize = typeSize(aType[nC]);
+        Object iComp = idData.getComp(i);
+        if (iComp==null) continue; // No records
+        ByteBuffer iBlk;
+        if (!aZip[nC] && nSize>0)
+        {
+          // Map the requested record range only
+          iBlk = fc.map(FileChannel.MapMode.READ_ONLY,aOfs[nC]+(long)nFirst*nSize,
+            (long)nCount*nSize);
+        }
+        else
+        {
+          iBlk = fc.map(FileChannel.MapMode.READ_ONLY,aOfs[nC],aLen[nC]);
+          if (aZip[nC]) iBlk = inflate(iBlk,aRaw[nC]);
+        }
+        iBlk.order(ByteOrder.LITTLE_ENDIAN);
+        if (bVerify)
+        {
+          CRC32 iCrc = new CRC32();
+          iCrc.update(iBlk.duplicate());
+          if ((int)iCrc.getValue()!=aCrc[nC])
+            throw new IOException("Checksum error in component \""+aName[nC]+"\" of "+iFile);
+        }
+        decode(iBlk,aType[nC],iComp,(aZip[nC]||nSize==0)?nFirst:0,nCount);
+      }
+      return idData;
+    }
+    catch (BufferUnderflowException e)
+    {
+      throw new IOException("Truncated or corrupt jLab binary data file: "+iFile,e);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  /**
+   * Determines whether a file is a jLab binary data file.
+   *
+   * @param iFile
+   *          The file.
+   * @return <code>true</code> if the file starts with the jLab binary data signature.
+   */
+  public static boolean isBinFile(File iFile)
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(iFile,"r"))
+    {
+      return raf.length()>=4 && Integer.reverseBytes(raf.readInt())==MAGIC;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  // -- Workers --
+
+  private static ByteBuffer encode(Object iComp, byte nType, int nRec)
+  {
+    int nSize = typeSize(nType);
+    if (nType==T_STRING)
+    {
+      String[] a = (String[])iComp;
+      ByteArrayOutputStream os = new ByteArrayOutputStream(nRec*8);
+      for (int nR=0; nR<nRec; nR++) putString(os,a[nR]);
+      return ByteBuffer.wrap(os.toByteArray());
+    }
+    ByteBuffer b = ByteBuffer.allocate(nRec*nSize).order(ByteOrder.LITTLE_ENDIAN);
+    switch (nType)
+    {
+    case T_BYTE  : b.put((byte[])iComp,0,nRec); break;
+    case T_SHORT : b.asShortBuffer ().put((short[] )iComp,0,nRec); break;
+    case T_CHAR  : b.asCharBuffer  ().put((char[]  )iComp,0,nRec); break;
+    case T_INT   : b.asIntBuffer   ().put((int[]   )iComp,0,nRec); break;
+    case T_LONG  : b.asLongBuffer  ().put((long[]  )iComp,0,nRec); break;
+    case T_FLOAT : b.asFloatBuffer ().put((float[] )iComp,0,nRec); break;
+    case T_DOUBLE: b.asDoubleBuffer().put((double[])iComp,0,nRec); break;
+    }
+    b.clear();
+    return b;
+  }
+
+  private static void decode(ByteBuffer b, byte nType, Object iComp, int nFirst, int nCount)
+  throws IOException
+  {
+    if (nType==T_STRING)
+    {
+      String[] a = (String[])iComp;
+      for (int nR=0; nR<nFirst; nR++) skipString(b);
+      for (int nR=0; nR<nCount; nR++) a[nR] = getString(b);
+      return;
+    }
+    b.position(nFirst*typeSize(nType));
+    switch (nType)
+    {
+    case T_BYTE  : b.get((byte[])iComp,0,nCount); break;
+    case T_SHORT : b.asShortBuffer ().get((short[] )iComp,0,nCount); break;
+    case T_CHAR  : b.asCharBuffer  ().get((char[]  )iComp,0,nCount); break;
+    case T_INT   : b.asIntBuffer   ().get((int[]   )iComp,0,nCount); break;
+    case T_LONG  : b.asLongBuffer  ().get((long[]  )iComp,0,nCount); break;
+    case T_FLOAT : b.asFloatBuffer ().get((float[] )iComp,0,nCount); break;
+    case T_DOUBLE: b.asDoubleBuffer().get((double[])iComp,0,nCount); break;
+    }
+  }
+
+  private static ByteBuffer inflate(ByteBuffer iSrc, long nRaw) throws IOException
+  {
+    if (nRaw>Integer.MAX_VALUE)
+      throw new IOException("Compressed component too large");
+    byte[] aSrc = new byte[iSrc.remaining()];
+    iSrc.get(aSrc);
+    byte[] aDst = new byte[(int)nRaw];
+    Inflater iInf = new Inflater();
+    try
+    {
+      iInf.setInput(aSrc);
+      int nPos = 0;
+      while (nPos<aDst.length && !iInf.finished())
+      {
+        int n = iInf.inflate(aDst,nPos,aDst.length-nPos);
+        if (n==0 && (iInf.needsInput() || iInf.needsDictionary())) break;
+        nPos += n;
+      }
+      if (nPos!=aDst.length)
+        throw new IOException("Truncated compressed component");
+    }
+    catch (DataFormatException e)
+    {
+      throw new IOException(e.getMessage(),e);
+    }
+    finally
+    {
+      iInf.end();
+    }
+    return ByteBuffer.wrap(aDst);
+  }
+
+  private static void putString(ByteArrayOutputStream os, String s)
+  {
+    byte[] a = s!=null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    int    n = a!=null ? a.length : -1;
+    os.write(n); os.write(n>>8); os.write(n>>16); os.write(n>>24);
+    if (a!=null) os.write(a,0,a.length);
+  }
+
+  private static String getString(ByteBuffer b) throws IOException
+  {
+    int n = b.getInt();
+    if (n<0) return null;
+    if (n>b.remaining()) throw new IOException("Corrupt string");
+    if (b.hasArray())
+    {
+      String s = new String(b.array(),b.arrayOffset()+b.position(),n,StandardCharsets.UTF_8);
+      b.position(b.position()+n);
+      return s;
+    }
+    byte[] a = new byte[n];
+    b.get(a);
+    return new String(a,StandardCharsets.UTF_8);
+  }
+
+  private static void skipString(ByteBuffer b) throws IOException
+  {
+    int n = b.getInt();
+    if (n>b.remaining()) throw new IOException("Corrupt string");
+    if (n>0) b.position(b.position()+n);
+  }
+
+  private static void writeFully(FileChannel fc, ByteBuffer b, long nPos) throws IOException
+  {
+    while (b.hasRemaining())
+      nPos += fc.write(b,nPos);
+  }
+
+  private static long align(long nPos)
+  {
+    return (nPos+7)&~7L;
+  }
+
+  private static byte typeCode(Class<?> cType) throws IllegalArgumentException
+  {
+    if (cType==byte.class  ) return T_BYTE;
+    if (cType==short.class ) return T_SHORT;
+    if (cType==char.class  ) return T_CHAR;
+    if (cType==int.class   ) return T_INT;
+    if (cType==long.class  ) return T_LONG;
+    if (cType==float.class ) return T_FLOAT;
+    if (cType==double.class) return T_DOUBLE;
+    if (cType==String.class) return T_STRING;
+    throw new IllegalArgumentException("Component type "+cType.getSimpleName()
+      +" cannot be stored");
+  }
+
+  private static Class<?> typeClass(byte nType) throws IOException
+  {
+    switch (nType)
+    {
+    case T_BYTE  : return byte.class;
+    case T_SHORT : return short.class;
+    case T_CHAR  : return char.class;
+    case T_INT   : return int.class;
+    case T_LONG  : return long.class;
+    case T_FLOAT : return float.class;
+    case T_DOUBLE: return double.class;
+    case T_STRING: return String.class;
+    }
+    throw new IOException("Unknown component type code "+nType);
+  }
+
+  private static int typeSize(byte nType)
+  {
+    switch (nType)
+    {
+    case T_BYTE  : return 1;
+    case T_SHORT :
+    case T_CHAR  : return 2;
+    case T_INT   :
+    case T_FLOAT : return 4;
+    case T_LONG  :
+    case T_DOUBLE: return 8;
+    }
+    return 0;
+  }
+
+  // -- Main method (DEBUGGING ONLY!) --
+
+  public static void main(String[] args) throws Exception
+  {
+    // Round trip and speed comparison against XML
+    int    nDim  = 40;
+    int    nRec  = 25000;
+    JlData idSrc = new JlData();
+    idSrc.addNComps(float.class,nDim-2);
+    idSrc.addComp(int.class,"label");
+    idSrc.addComp(String.class,"text");
+    idSrc.allocate(nRec);
+    idSrc.setNRecs(nRec);
+    idSrc.rinc = 10; idSrc.runit = "ms"; idSrc.rtext = "Test \u00e4";
+    java.util.Random iRnd = new java.util.Random(0);
+    for (int nR=0; nR<nRec; nR++)
+    {
+      for (int nC=0; nC<nDim-2; nC++) idSrc.dStore(iRnd.nextGaussian(),nR,nC);
+      idSrc.dStore(nR%17,nR,nDim-2);
+      idSrc.sStore(nR%5==0?null:"r"+nR,nR,nDim-1);
+    }
+
+    File iBin = File.createTempFile("jldb",".bin");
+    File iXml = File.createTempFile("jldb",".xml");
+    iBin.deleteOnExit(); iXml.deleteOnExit();
+    for (boolean bZip : new boolean[]{ false, true })
+    {
+      long t0 = System.nanoTime();
+      write(idSrc,iBin,bZip);
+      long t1 = System.nanoTime();
+      JlData idDst = read(iBin);
+      long t2 = System.nanoTime();
+      JlData idSel = read(iBin,new String[]{ "label", "comp_3" },1000,500);
+      int nErr = 0;
+      for (int nR=0; nR<nRec; nR++)
+        for (int nC=0; nC<nDim; nC++)
+        {
+          Object a = idSrc.fetch(nR,nC), b = idDst.fetch(nR,nC);
+          if (a==null ? b!=null : !a.equals(b)) nErr++;
+        }
+      for (int nR=0; nR<500; nR++)
+        if (idSel.dFetch(nR,0)!=idSrc.dFetch(nR+1000,nDim-2)
+          || idSel.dFetch(nR,1)!=idSrc.dFetch(nR+1000,3)) nErr++;
+      System.out.printf("\nBinary (deflate=%b): %d bytes, write %.1f ms, read %.1f ms, %d errors",
+        bZip,iBin.length(),(t1-t0)/1E6,(t2-t1)/1E6,nErr);
+    }
+    long t0 = System.nanoTime();
+    JlDataFile.writeXmlFile(idSrc,iXml);
+    long t1 = System.nanoTime();
+    JlDataFile.readXml(iXml,null);
+    long t2 = System.nanoTime();
+    System.out.printf("\nXML                 : %d bytes, write %.1f ms, read %.1f ms\n",
+      iXml.length(),(t1-t0)/1E6,(t2-t1)/1E6);
+
+    // Truncated files must be rejected with an IOException
+    write(idSrc,iBin,false);
+    byte[] aFile = java.nio.file.Files.readAllBytes(iBin.toPath());
+    int nBad = 0;
+    for (int nLen : new int[]{ 0, 3, 8, 15, 20, 100, 200, 500, 1000, aFile.length/2,
+      aFile.length-1 })
+    {
+      java.nio.file.Files.write(iBin.toPath(),java.util.Arrays.copyOf(aFile,nLen));
+      try
+      {
+        read(iBin);
+        nBad++;
+      }
+      catch (IOException e)
+      {
+      }
+      catch (RuntimeException e)
+      {
+        System.out.print("\nTruncated to "+nLen+" bytes: "+e);
+        nBad++;
+      }
+    }
+    System.out.printf("Truncated files     : %d not rejected with an IOException\n",nBad);
+  }
+
+}
+
+// EOF
@@ -1,7 +1,6 @@
 package de.tucottbus.kt.jlab.kernel;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,6 +10,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.AbstractCollection;
 import java.util.Vector;
 import java.util.zip.GZIPInputStream;
@@ -25,6 +29,7 @@ import javax.sound.sampled.AudioSystem;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
 
 import org.xml.sax.SAXException;
 
@@ -105,7 +110,6 @@ public class JlDataFile extends JlObject
       int      nYps = nBps/8;
       double   nSfr = ais.getFormat().getSampleRate();
       boolean  bBen = ais.getFormat().isBigEndian();
-      float    full = (float)Math.pow(2,nBps-1);
       log("\n   - Sampling frequency: "+nSfr+" Hz");
       log("\n   - Frame size        : "+nBpf+" bytes");
       log("\n   - Sample size       : "+nBps+" bits ("+nYps+" bytes)");
@@ -121,53 +125,39 @@ public class JlDataFile extends JlObject
         idAudio.addNComps(short.class,nXC);
       idAudio.rinc = 1/nSfr;
       idAudio.runit = "s";
-      idAudio.allocate(ais.available()/nBpf);
+      long nFrames = ais.getFrameLength();
+      if (nFrames==AudioSystem.NOT_SPECIFIED || nFrames>Integer.MAX_VALUE)
+        nFrames = ais.available()/nBpf;
+      idAudio.allocate((int)nFrames);
       log("\n   - Target sample type: "+idAudio.getCompType(0).getSimpleName());
       log("\n   - Frames allocated  : "+idAudio.getCapacity());
       
-      // Set an arbitrary buffer size of 1024 frames.
-      int nBytes = 1024*nBpf;
-      byte[] aBytes = new byte[nBytes];
       try
       {
-        int    nBytesRead = 0;
-        double nNorm      = bNorm ? Math.pow(2,nBps-1) : 1;
-        if (nYps*8!=nBps)
-          throw new Exception("Sample size not an integer byte");
+        if (nYps*8!=nBps || nYps<1 || nYps>4 || nBpf!=nXC*nYps)
+          throw new Exception("Sample size of "+nBps+" bits not supported");
         if (enc!=Encoding.PCM_SIGNED && enc!=Encoding.PCM_UNSIGNED )
           throw new Exception("Audio encoding "+enc+" not supported");
 
-        // Try to read numBytes bytes from the file.
-        while ((nBytesRead = ais.read(aBytes))!=-1)
-          for (int nF=0; nF<nBytesRead/nBpf; nF++)
-          {
-            // Read one frame
-            int nR = idAudio.addRecs(1,50000);
-            for (int nC=0; nC<nXC; nC++)
-            {
-              // Read one sample
-              int nPos = nF*nBpf+nC*nYps;
-              long temp = 0;
-              for (int i=0; i<nYps; i++)
-                if (bBen)
-                  temp |= (int)(aBytes[nPos+i]&0xFF)<<((nYps-i-1)*8);
-                else
-                  temp |= (int)(aBytes[nPos+i]&0xFF)<<(i*8);
-              
-              if (enc==Encoding.PCM_SIGNED)
-              {
-                int bitsPerLong = 64;
-                int extensionBits = bitsPerLong - nBps;
-                float sample = (temp << extensionBits) >> extensionBits;
-                idAudio.dStore(sample/nNorm,nR,nC);
-              }
-              else if (enc==Encoding.PCM_UNSIGNED)
-              {
-                float sample = temp - full;
-                idAudio.dStore(sample/nNorm,nR,nC);
-              }
-            }
-          }
+        // Read and decode blocks of 65536 frames
+        byte[]   aBytes = new byte[65536*nBpf];
+        int[]    aTmp   = new int[65536];
+        Object[] aComps = new Object[nXC];
+        double   nNorm  = bNorm ? Math.pow(2,nBps-1) : 1;
+        boolean  bSgn   = enc==Encoding.PCM_SIGNED;
+        int      nFill  = 0;
+        int      nRead  = 0;
+        while ((nRead = ais.read(aBytes,nFill,aBytes.length-nFill))!=-1)
+        {
+          nFill += nRead;
+          int nXF = nFill/nBpf;
+          if (nXF==0) continue;
+          int nR = idAudio.addRecs(nXF,Math.max(nXF,idAudio.getLength()/2));
+          for (int nC=0; nC<nXC; nC++) aComps[nC] = idAudio.getComp(nC);
+          decodePcm(aBytes,nXF,nXC,nBps,bSgn,bBen,aComps,nR,nNorm,aTmp);
+          nFill -= nXF*nBpf;
+          System.arraycopy(aBytes,nXF*nBpf,aBytes,0,nFill);
+        }
         
         log("\n   - Frames read       : "+idAudio.getLength());
       }
@@ -185,6 +175,107 @@ public class JlDataFile extends JlObject
     return idAudio;
   }
   
+  /**
+   * Decodes interleaved linear PCM samples into component arrays.
+   * 
+   * @param aBytes
+   *          The PCM bytes, at least {@code nFrames*nChannels*nBits/8}.
+   * @param nFrames
+   *          The number of frames to decode.
+   * @param nChannels
+   *          The number of channels (interleaved).
+   * @param nBits
+   *          The sample size, 8, 16, 24, or 32 bits.
+   * @param bSigned
+   *          {@code true} for signed, {@code false} for unsigned (offset binary) samples.
+   * @param bBigEndian
+   *          Byte order of the samples.
+   * @param aComps
+   *          One {@code byte[]}, {@code short[]}, {@code int[]}, {@code float[]}, or
+   *          {@code double[]} array per channel to store the samples to, {@code null}
+   *          to skip a channel.
+   * @param nOfs
+   *          Index of the first element to store in the component arrays.
+   * @param nNorm
+   *          The samples are divided by this value (only for {@code float[]} and
+   *          {@code double[]} component arrays).
+   * @param aTmp
+   *          A buffer of at least {@code nFrames} elements, may be {@code null}.
+   * @throws IllegalArgumentException
+   *          If the sample size or a component type is not supported.
+   */
+  static void decodePcm(byte[] aBytes, int nFrames, int nChannels, int nBits, boolean bSigned,
+    boolean bBigEndian, Object[] aComps, int nOfs, double nNorm, int[] aTmp)
+  {
+    if (aTmp==null || aTmp.length<nFrames) aTmp = new int[nFrames];
+    ByteBuffer iBuf = ByteBuffer.wrap(aBytes,0,nFrames*nChannels*(nBits/8))
+      .order(bBigEndian?ByteOrder.BIG_ENDIAN:ByteOrder.LITTLE_ENDIAN);
+    ShortBuffer iShorts = nBits==16 ? iBuf.asShortBuffer() : null;
+    IntBuffer   iInts   = nBits==32 ? iBuf.asIntBuffer()   : null;
+    int         nFlip   = bSigned ? 0 : 1<<(nBits-1);
+
+    for (int nC=0; nC<nChannels; nC++)
+    {
+      if (aComps[nC]==null) continue;
+
+      // De-interleave one channel, unsigned samples: flip MSB to convert to signed
+      switch (nBits)
+      {
+      case 8:
+        for (int nF=0, i=nC; nF<nFrames; nF++, i+=nChannels)
+          aTmp[nF] = (byte)(aBytes[i]^nFlip);
+        break;
+      case 16:
+        for (int nF=0, i=nC; nF<nFrames; nF++, i+=nChannels)
+          aTmp[nF] = (short)(iShorts.get(i)^nFlip);
+        break;
+      case 24:
+        int b0 = bBigEndian ? 2 : 0;
+        int b2 = bBigEndian ? 0 : 2;
+        for (int nF=0, i=nC*3; nF<nFrames; nF++, i+=nChannels*3)
+        {
+          int v = (aBytes[i+b0]&0xFF) | (aBytes[i+1]&0xFF)<<8 | (aBytes[i+b2]&0xFF)<<16;
+          aTmp[nF] = ((v^nFlip)<<8)>>8;
+        }
+        break;
+      case 32:
+        for (int nF=0, i=nC; nF<nFrames; nF++, i+=nChannels)
+          aTmp[nF] = iInts.get(i)^nFlip;
+        break;
+      default:
+        throw new IllegalArgumentException("Sample size of "+nBits+" bits not supported");
+      }
+
+      // Store into component array
+      Object iComp = aComps[nC];
+      if (iComp instanceof double[])
+      {
+        double[] a = (double[])iComp;
+        for (int nF=0; nF<nFrames; nF++) a[nOfs+nF] = aTmp[nF]/nNorm;
+      }
+      else if (iComp instanceof float[])
+      {
+        float[] a = (float[])iComp;
+        for (int nF=0; nF<nFrames; nF++) a[nOfs+nF] = (float)(aTmp[nF]/nNorm);
+      }
+      else if (iComp instanceof int[])
+        System.arraycopy(aTmp,0,iComp,nOfs,nFrames);
+      else if (iComp instanceof short[])
+      {
+        short[] a = (short[])iComp;
+        for (int nF=0; nF<nFrames; nF++) a[nOfs+nF] = (short)aTmp[nF];
+      }
+      else if (iComp instanceof byte[])
+      {
+        byte[] a = (byte[])iComp;
+        for (int nF=0; nF<nFrames; nF++) a[nOfs+nF] = (byte)aTmp[nF];
+      }
+      else
+        throw new IllegalArgumentException("Component type "
+          +(iComp==null?"null":iComp.getClass().getSimpleName())+" not supported");
+    }
+  }
+
   /**
    * Reads an audio file into a {@link JlData} instance.
    * <p><b style="color:red">NOTE:</b> concept implementation; not thoroughly
@@ -195,6 +286,7 @@ public class JlDataFile extends JlObject
    *          If <code>true</code> the samples will be converted into doubles
    *          and normalized to a range between -1 and 1.
    * @return a {@link JlData} instance containing the audio data
+   * @see JlAudioCache#readAudioFile(File, boolean)
    */
   public static JlData readAudioFile(File iFile, boolean bNorm)
   {
@@ -209,9 +301,41 @@ public class JlDataFile extends JlObject
     {
       e.printStackTrace();
     }
+
+    // RIFF/WAVE formats the stream reader cannot decode (e.g. IEEE float) are read through a
+    // memory mapping
+    if (idAudio.getLength()==0)
+      try
+      {
+        JlMappedAudioFile iMap = mapAudioFile(iFile);
+        if (iMap.getFrames()>0)
+          idAudio = iMap.toJlData(0,(int)Math.min(iMap.getFrames(),Integer.MAX_VALUE),bNorm);
+        iMap.close();
+      }
+      catch (IOException e)
+      {
+        // Not a supported RIFF/WAVE file
+      }
     return idAudio; 
   }
 
+  /**
+   * Memory-maps a RIFF/WAVE file. Unlike {@link #readAudioFile(File, boolean)} the samples are
+   * not decoded; opening is instant and the heap usage does not depend on the file size. Use
+   * {@link JlMappedAudioFile#toJlData(long, int, boolean)} to obtain {@link JlData} instances for
+   * ranges of frames.
+   * 
+   * @param iFile
+   *          The WAVE file.
+   * @return The mapped file.
+   * @throws IOException
+   *          On I/O errors or if the file is not a supported RIFF/WAVE file.
+   */
+  public static JlMappedAudioFile mapAudioFile(File iFile) throws IOException
+  {
+    return new JlMappedAudioFile(iFile);
+  }
+
   /**
    * Writes a {@link JlData} instance into an audio file output stream. The 
    * sample size is 16 bits.
@@ -332,72 +456,138 @@ public class JlDataFile extends JlObject
   public static void writeXml(JlData idData, OutputStream os)
   throws IOException
   {
-    BufferedWriter iFwr = new BufferedWriter(new OutputStreamWriter(os,"ISO-8859-1"));
+    Writer        iFwr = new OutputStreamWriter(os,"ISO-8859-1");
+    StringBuilder sb   = new StringBuilder(XML_BUFFER+1024);
+    char[]        aBuf = new char[XML_BUFFER];
     
     // Preamble, instance and field tags
     String sLsep  = System.getProperty("line.separator");
     String sRunit = idData.runit!=null ? new String(idData.runit) : "";
     String sCunit = idData.cunit!=null ? new String(idData.cunit) : "";
     String sVunit = idData.vunit!=null ? new String(idData.vunit) : "";
-    iFwr.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" ?>"+sLsep);
-    iFwr.write("<INSTANCE name=\"\" class=\"data\">"+sLsep);
-    iFwr.write("\t<FIELD name=\"dim\" type=\"long\">"+idData.getDimension()+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"nrec\" type=\"long\">"+idData.getLength()+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"maxrec\" type=\"long\">"+idData.getCapacity()+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"reclen\" type=\"long\">0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"nblock\" type=\"long\">0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"rofs\" type=\"double\">"+idData.rofs+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"rinc\" type=\"double\">"+idData.rinc+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"rwid\" type=\"double\">"+idData.rwid+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"runit\" type=\"char[10]\" arrlen=\"10\">"+sRunit+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"cofs\" type=\"double\">"+idData.cofs+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"cinc\" type=\"double\">"+idData.cinc+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"cunit\" type=\"char[10]\" arrlen=\"10\">"+sCunit+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"vunit\" type=\"char[10]\" arrlen=\"10\">"+sVunit+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"descr0\" type=\"double\">0.0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"descr1\" type=\"double\">0.0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"descr2\" type=\"double\">0.0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"descr3\" type=\"double\">0.0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"descr4\" type=\"double\">0.0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"rtext\" type=\"text\">"+idData.rtext+"</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"ftext\" type=\"text\"></FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"vrtext\" type=\"text\"></FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"noffset\" type=\"long\">0</FIELD>"+sLsep);
-    iFwr.write("\t<FIELD name=\"check\" type=\"short\">0</FIELD>"+sLsep);
-    iFwr.write("\t<TABLE name=\".~table\">"+sLsep);
+    sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" ?>").append(sLsep);
+    sb.append("<INSTANCE name=\"\" class=\"data\">").append(sLsep);
+    sb.append("\t<FIELD name=\"dim\" type=\"long\">").append(idData.getDimension()).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"nrec\" type=\"long\">").append(idData.getLength()).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"maxrec\" type=\"long\">").append(idData.getCapacity()).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"reclen\" type=\"long\">0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"nblock\" type=\"long\">0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"rofs\" type=\"double\">").append(idData.rofs).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"rinc\" type=\"double\">").append(idData.rinc).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"rwid\" type=\"double\">").append(idData.rwid).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"runit\" type=\"char[10]\" arrlen=\"10\">").append(sRunit).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"cofs\" type=\"double\">").append(idData.cofs).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"cinc\" type=\"double\">").append(idData.cinc).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"cunit\" type=\"char[10]\" arrlen=\"10\">").append(sCunit).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"vunit\" type=\"char[10]\" arrlen=\"10\">").append(sVunit).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"descr0\" type=\"double\">0.0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"descr1\" type=\"double\">0.0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"descr2\" type=\"double\">0.0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"descr3\" type=\"double\">0.0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"descr4\" type=\"double\">0.0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"rtext\" type=\"text\">").append(idData.rtext).append("</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"ftext\" type=\"text\"></FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"vrtext\" type=\"text\"></FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"noffset\" type=\"long\">0</FIELD>").append(sLsep);
+    sb.append("\t<FIELD name=\"check\" type=\"short\">0</FIELD>").append(sLsep);
+    sb.append("\t<TABLE name=\".~table\">").append(sLsep);
     
     // Component list
-    for (int nC=0; nC<idData.getDimension(); nC++)
+    int      nDim   = idData.getDimension();
+    Object[] aComps = new Object[nDim];
+    for (int nC=0; nC<nDim; nC++)
     {
       String sName = idData.getCompName(nC);
       String sType = idData.getCompType(nC).getSimpleName();
       if (sType.equals("String")) sType = "char[255]";
-      iFwr.write("\t\t<COMP name=\""+sName+"\" type=\""+sType+"\"/>"+sLsep);
+      sb.append("\t\t<COMP name=\"").append(sName).append("\" type=\"").append(sType).append("\"/>")
+        .append(sLsep);
+      aComps[nC] = idData.getComp(nC);
     }
     
     // Record list
     for (int nR=0; nR<idData.getLength(); nR++)
     {
-      iFwr.write("\t\t<REC>"+sLsep);
-      for (int nC=0; nC<idData.getDimension(); nC++)
+      sb.append("\t\t<REC>").append(sLsep);
+      for (int nC=0; nC<nDim; nC++)
       {
-        String sVal = "";
-        try
-        {
-           sVal = idData.fetch(nR,nC).toString();
-        }
-        catch (NullPointerException e) {}
-        sVal = sVal.replaceAll("<","&lt;").replaceAll(">","&gt;");
-        iFwr.write("\t\t\t<CELL>"+sVal+"</CELL>"+sLsep);
+        sb.append("\t\t\t<CELL>");
+        appendXmlCell(sb,aComps[nC],nR);
+        sb.append("</CELL>").append(sLsep);
       }
-      iFwr.write("\t\t</REC>"+sLsep);
+      sb.append("\t\t</REC>").append(sLsep);
+      if (sb.length()>=XML_BUFFER) drainXml(sb,aBuf,iFwr);
     }
-    iFwr.write("\t</TABLE>"+sLsep);
-    iFwr.write("</INSTANCE>"+sLsep);
+    sb.append("\t</TABLE>").append(sLsep);
+    sb.append("</INSTANCE>").append(sLsep);
+    drainXml(sb,aBuf,iFwr);
     
     iFwr.close();
   }
   
+  /**
+   * Size of the character buffer used by {@link #writeXml(JlData, OutputStream)}.
+   */
+  private static final int XML_BUFFER = 65536;
+  
+  /**
+   * Appends one cell value to an XML string buffer. Primitive values are formatted without boxing
+   * exactly like their <code>toString</code> methods, <code>&lt;</code> and <code>&gt;</code> are
+   * escaped in a single pass. Missing values (<code>null</code> or index out of range) produce no
+   * characters.
+   * 
+   * @param sb
+   *          The string buffer.
+   * @param iComp
+   *          The component array.
+   * @param nR
+   *          The record index.
+   */
+  private static void appendXmlCell(StringBuilder sb, Object iComp, int nR)
+  {
+    if      (iComp instanceof double[]) { if (nR<((double[])iComp).length) sb.append(((double[])iComp)[nR]); }
+    else if (iComp instanceof float[])  { if (nR<((float[])iComp).length) sb.append(((float[])iComp)[nR]); }
+    else if (iComp instanceof int[])    { if (nR<((int[])iComp).length) sb.append(((int[])iComp)[nR]); }
+    else if (iComp instanceof short[])  { if (nR<((short[])iComp).length) sb.append(((short[])iComp)[nR]); }
+    else if (iComp instanceof long[])   { if (nR<((long[])iComp).length) sb.append(((long[])iComp)[nR]); }
+    else if (iComp instanceof byte[])   { if (nR<((byte[])iComp).length) sb.append(((byte[])iComp)[nR]); }
+    else if (iComp instanceof boolean[]){ if (nR<((boolean[])iComp).length) sb.append(((boolean[])iComp)[nR]); }
+    else if (iComp instanceof char[])
+    {
+      if (nR<((char[])iComp).length) appendXmlEscaped(sb,((char[])iComp)[nR]);
+    }
+    else if (iComp instanceof Object[])
+    {
+      Object[] a = (Object[])iComp;
+      Object   o = nR<a.length ? a[nR] : null;
+      if (o==null) return;
+      String s = o.toString();
+      for (int i=0; i<s.length(); i++) appendXmlEscaped(sb,s.charAt(i));
+    }
+  }
+  
+  private static void appendXmlEscaped(StringBuilder sb, char c)
+  {
+    if      (c=='<') sb.append("&lt;");
+    else if (c=='>') sb.append("&gt;");
+    else             sb.append(c);
+  }
+  
+  /**
+   * Writes the content of a string buffer through a reusable character array and clears the
+   * buffer.
+   */
+  private static void drainXml(StringBuilder sb, char[] aBuf, Writer iWr) throws IOException
+  {
+    for (int i=0; i<sb.length(); i+=aBuf.length)
+    {
+      int n = Math.min(aBuf.length,sb.length()-i);
+      sb.getChars(i,i+n,aBuf,0);
+      iWr.write(aBuf,0,n);
+    }
+    sb.setLength(0);
+  }
+  
   /**
    * Writes a {@link JlData} instance into a dLabPro compatible XML file.
    * <p><b style="color:red">NOTE:</b> concept implementation; not thoroughly
@@ -442,7 +632,10 @@ public class JlDataFile extends JlObject
   }
 
   /**
-   * Reads a {@link JlData} instance from an XML or GZipped XML file.
+   * Reads a {@link JlData} instance from an XML or GZipped XML file. Files with the plain dLabPro
+   * data structure are read by a fast StAX reader which pre-allocates the declared number of
+   * records and parses cells without intermediate strings. Other files are read by the SAX
+   * handler (see {@link #readXml(InputStream, AbstractCollection)}).
    * 
    * @param file
    *          The file to read.
@@ -458,33 +651,223 @@ public class JlDataFile extends JlObject
    */
   public static JlData readXml(File file, AbstractCollection<Throwable> warnings)
   throws IllegalArgumentException, FileNotFoundException, SAXException, IOException
+  {
+    return readXml(file,null,0,-1,warnings);
+  }
+  
+  /**
+   * Reads a selection of components and records of a {@link JlData} instance from an XML or
+   * GZipped XML file. Cells of components and records which are not selected are skipped without
+   * conversion and parsing stops after the last selected record. For uncompressed files, record
+   * ranges are read through a {@link JlDataXmlIndex} of record byte offsets; the index is built
+   * on the first range read and cached, so later range reads seek directly to the first record.
+   * The <code>rofs</code> field of the result is adjusted to the first record read.
+   * 
+   * @param file
+   *          The file to read.
+   * @param aCompNames
+   *          The names of the components to read (in this order), <code>null</code> for all
+   *          components. Unknown names are ignored.
+   * @param nFirst
+   *          The zero-based index of the first record to read.
+   * @param nCount
+   *          The number of records to read, -1 for all records from <code>nFirst</code> on.
+   * @param warnings
+   *          Filled with non-fatal XML parser warnings, can be <code>null</code>.
+   * @return The data instance (empty on errors).
+   * @throws IllegalArgumentException
+   *          If parameter <code>file</code> is <code>null</code> or the record range is invalid.
+   * @throws SAXException
+   *          On unrecoverable XML parser errors.
+   * @throws IOException
+   *          On I/O errors.
+   */
+  public static JlData readXml(File file, String[] aCompNames, int nFirst, int nCount,
+    AbstractCollection<Throwable> warnings)
+  throws IllegalArgumentException, FileNotFoundException, SAXException, IOException
   {
     if (file==null) throw new IllegalArgumentException();
+    if (nFirst<0 || nCount<-1)
+      throw new IllegalArgumentException("Invalid record range");
     
-    //System.out.print("\nJlDataFile.readXml \""+file.getAbsolutePath()+"\"");
-    FileInputStream fis = null;
-    GZIPInputStream zis = null; 
+    // Fast path
+    InputStream is = null;
+    XMLDataReader reader = new XMLDataReader();
+    reader.setCompFilter(aCompNames);
+    JlDataXmlIndex index = null;
+    if ((nFirst>0 || nCount>=0) && !isGzip(file))
+      index = JlDataXmlIndex.get(file);
+    if (index!=null)
+    {
+      int nRecs = index.getRecordCount();
+      int nF    = Math.min(nFirst,nRecs);
+      int nN    = nCount<0 ? nRecs-nF : Math.min(nCount,nRecs-nF);
+      is = index.openRange(nF,nN);
+      reader.setRecordOffset(nF);
+      reader.setRange(0,nN);
+    }
+    else
+    {
+      is = openXml(file);
+      reader.setRange(nFirst,nCount);
+    }
     try
     {
-      //System.out.print("\n- Try loading XML GZipped ... ");
-      fis = new FileInputStream(file);
-      zis = new GZIPInputStream(fis);
-      return readXml(zis,warnings);
+      JlData idData = reader.read(is);
+      if (warnings!=null)
+        warnings.addAll(reader.getWarnings());
+      return idData;
     }
-    catch (ZipError | ZipException e)
+    catch (XMLStreamException | XMLDataReader.UnsupportedStructureException e)
+    {
+      // Fall back to SAX (also reports syntax errors as SAXExceptions)
+    }
+    finally
     {
-      //System.out.print("FAILED ("+e.toString()+")\n- Try loading XML ... ");
-      fis = new FileInputStream(file);
-      return readXml(fis,warnings);
+      is.close();
+    }
+    
+    // SAX fallback
+    JlData idData;
+    is = openXml(file);
+    try
+    {
+      idData = readXml(is,warnings);
+    }
+    finally
+    {
+      is.close();
+    }
+    if (aCompNames==null && nFirst==0 && nCount<0) return idData;
+    return select(idData,aCompNames,nFirst,nCount);
+  }
+  
+  /**
+   * Copies a selection of components and records into a new data instance.
+   */
+  private static JlData select(JlData idSrc, String[] aCompNames, int nFirst, int nCount)
+  {
+    int nF = Math.min(nFirst,idSrc.getLength());
+    int nN = nCount<0 ? idSrc.getLength()-nF : Math.min(nCount,idSrc.getLength()-nF);
+    JlData idDst = new JlData();
+    idDst.dcopy(idSrc);
+    idDst.rofs += nF*idSrc.rinc;
+    Vector<Integer> lComps = new Vector<Integer>();
+    if (aCompNames==null)
+      for (int nC=0; nC<idSrc.getDimension(); nC++) lComps.add(nC);
+    else
+      for (String sName : aCompNames)
+        for (int nC=0; nC<idSrc.getDimension(); nC++)
+          if (!lComps.contains(nC) && sName.equals(idSrc.getCompName(nC)))
+          {
+            lComps.add(nC);
+            break;
+          }
+    for (int nC : lComps)
+      idDst.addComp(idSrc.getCompType(nC),idSrc.getCompName(nC));
+    idDst.allocate(nN);
+    idDst.setNRecs(nN);
+    if (nN>0)
+      for (int i=0; i<lComps.size(); i++)
+        System.arraycopy(idSrc.getComp(lComps.get(i)),nF,idDst.getComp(i),0,nN);
+    return idDst;
+  }
+  
+  /**
+   * Determines whether a file is GZip compressed.
+   */
+  private static boolean isGzip(File file) throws IOException
+  {
+    FileInputStream fis = new FileInputStream(file);
+    try
+    {
+      return fis.read()==0x1F && fis.read()==0x8B;
     }
     finally
     {
-      //System.out.print("\n- cleanup");
-      if (zis!=null) zis.close();
-      if (fis!=null) fis.close();
+      fis.close();
+    }
+  }
+  
+  /**
+   * Opens an XML or GZipped XML file.
+   */
+  private static InputStream openXml(File file) throws FileNotFoundException, IOException
+  {
+    FileInputStream fis = new FileInputStream(file);
+    try
+    {
+      return new GZIPInputStream(new BufferedInputStream(fis,65536),65536);
+    }
+    catch (ZipError | ZipException e)
+    {
+      fis.close();
+      return new BufferedInputStream(new FileInputStream(file),65536);
     }
   }
   
+  /**
+   * Writes a {@link JlData} instance into a binary columnar file. Reading and writing this format
+   * is much faster and the files are much smaller than dLabPro XML.
+   * 
+   * @param idData
+   *          The data instance.
+   * @param iFile
+   *          The file.
+   * @param bCompress
+   *          If <code>true</code> the components are deflate-compressed.
+   * @throws IOException
+   *          On I/O errors.
+   * @throws IllegalArgumentException
+   *          If <code>idData</code> contains a component type which cannot be stored.
+   * @see JlDataBinFile
+   */
+  public static void writeBin(JlData idData, File iFile, boolean bCompress)
+  throws IOException, IllegalArgumentException
+  {
+    JlDataBinFile.write(idData,iFile,bCompress);
+  }
+
+  /**
+   * Reads a {@link JlData} instance from a binary columnar file.
+   * 
+   * @param iFile
+   *          The file.
+   * @return The data instance.
+   * @throws IOException
+   *          On I/O errors, invalid files, or checksum errors.
+   * @see #writeBin(JlData, File, boolean)
+   */
+  public static JlData readBin(File iFile) throws IOException
+  {
+    return JlDataBinFile.read(iFile);
+  }
+
+  /**
+   * Reads a selection of components and records from a binary columnar file. Only the selected
+   * parts of uncompressed components are accessed.
+   * 
+   * @param iFile
+   *          The file.
+   * @param aCompNames
+   *          The names of the components to read, <code>null</code> for all components.
+   * @param nFirst
+   *          The zero-based index of the first record to read.
+   * @param nCount
+   *          The number of records to read, -1 for all records from <code>nFirst</code> on.
+   * @return The data instance.
+   * @throws IOException
+   *          On I/O errors, invalid files, or checksum errors.
+   * @throws IllegalArgumentException
+   *          If the record range is invalid.
+   * @see #writeBin(JlData, File, boolean)
+   */
+  public static JlData readBin(File iFile, String[] aCompNames, int nFirst, int nCount)
+  throws IOException, IllegalArgumentException
+  {
+    return JlDataBinFile.read(iFile,aCompNames,nFirst,nCount);
+  }
+
   // -- Main method (DEBUGGING ONLY!) --
   
   public static void main(String[] args)
@@ -494,6 +877,7 @@ public class JlDataFile extends JlObject
     //String filename = "D:/btu/workspaces-juno/develop/uasr-data/vm.de/VMX/flists/all.flst";
     //String filename = "D:/btu/workspaces-juno/develop/uasr-data/vm.de/VMX/log/hmm_frm-cmx-0_5.dn3";
     String filename = "S:/tmp/Histogram.dn3";
+    checkXmlRoundTrip(120000);
     try
     {
       Vector<Throwable> warnings = new Vector<Throwable>();
@@ -512,4 +896,101 @@ public class JlDataFile extends JlObject
     
   }
   
+  /**
+   * Checks {@link #writeXml(JlData, OutputStream)} against the former cell formatting
+   * (<code>fetch(...).toString()</code> with escaped angle brackets) and reads the written table
+   * back through {@link #readXml(InputStream, AbstractCollection)}. Prints the number of
+   * mismatching cells of either check. The read-back check skips the <code>byte</code> and
+   * <code>boolean</code> components, which have no dLabPro counterpart.
+   * 
+   * @param nRecs
+   *          The number of records of the test table.
+   */
+  private static void checkXmlRoundTrip(int nRecs)
+  {
+    Class<?>[] aTypes = { double.class, float.class, int.class, short.class, long.class,
+      char.class, String.class, byte.class, boolean.class };
+    int nXmlDim = 7;                                  // Components readXml can read back
+    double[] aSpecial = { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, -0.0 };
+    String[] aStrings = { null, "a<b>c", "\u00e4\u00f6\u00fc", "\u0394\u03b5", "" };
+    
+    JlData idData = new JlData();
+    for (int nC=0; nC<aTypes.length; nC++) idData.addComp(aTypes[nC],"C"+nC);
+    idData.addRecs(nRecs,nRecs);
+    java.util.Random iRnd = new java.util.Random(4711);
+    for (int nR=0; nR<nRecs; nR++)
+    {
+      double nVal = nR%10==0 ? aSpecial[(nR/10)%aSpecial.length] : iRnd.nextGaussian()*1E4;
+      idData.store(nVal,nR,0);
+      idData.store((float)nVal,nR,1);
+      idData.store(iRnd.nextInt(),nR,2);
+      idData.store((short)iRnd.nextInt(),nR,3);
+      idData.store(iRnd.nextLong()>>11,nR,4);            // readXml parses via double
+      idData.store("a<>\u00e9".charAt(nR%4),nR,5);
+      idData.store(aStrings[nR%aStrings.length],nR,6);
+      idData.store((byte)iRnd.nextInt(),nR,7);
+      idData.store(nR%3==0,nR,8);
+    }
+    
+    // Cell formatting against the former implementation
+    int nFmtErr = 0;
+    StringBuilder sb = new StringBuilder();
+    for (int nC=0; nC<idData.getDimension(); nC++)
+      for (int nR=0; nR<nRecs; nR++)
+      {
+        Object oVal = idData.fetch(nR,nC);
+        String sOld = oVal!=null ? oVal.toString() : "";
+        sOld = sOld.replaceAll("<","&lt;").replaceAll(">","&gt;");
+        sb.setLength(0);
+        appendXmlCell(sb,idData.getComp(nC),nR);
+        if (!sOld.equals(sb.toString())) nFmtErr++;
+      }
+    System.out.println("writeXml: "+nFmtErr+" cell(s) formatted differently");
+    
+    // Write and read back
+    JlData idXml = new JlData();
+    for (int nC=0; nC<nXmlDim; nC++) idXml.addComp(aTypes[nC],"C"+nC);
+    idXml.addRecs(nRecs,nRecs);
+    for (int nC=0; nC<nXmlDim; nC++)
+      for (int nR=0; nR<nRecs; nR++)
+        idXml.store(idData.fetch(nR,nC),nR,nC);
+    try
+    {
+      java.io.ByteArrayOutputStream iBos = new java.io.ByteArrayOutputStream();
+      long nTime = System.nanoTime();
+      writeXml(idXml,iBos);
+      System.out.println("writeXml: "+nRecs+" records, "+iBos.size()+" bytes in "
+        +(System.nanoTime()-nTime)/1000000+" ms");
+      Vector<Throwable> warnings = new Vector<Throwable>();
+      JlData idRead = readXml(new ByteArrayInputStream(iBos.toByteArray()),warnings);
+      for (Throwable w : warnings)
+        System.err.println(w.getMessage());
+      
+      int nRtErr = 0;
+      if (idRead.getDimension()!=nXmlDim || idRead.getLength()!=nRecs)
+      {
+        System.err.println("ERROR: read back "+idRead.getDimension()+" x "+idRead.getLength()
+          +" instead of "+nXmlDim+" x "+nRecs);
+        return;
+      }
+      for (int nC=0; nC<nXmlDim; nC++)
+        for (int nR=0; nR<nRecs; nR++)
+        {
+          Object oVal = idXml.fetch(nR,nC);
+          String sVal = oVal!=null ? oVal.toString() : "";
+          StringBuilder sLatin1 = new StringBuilder(sVal.length());
+          for (int i=0; i<sVal.length(); i++)
+            sLatin1.append(sVal.charAt(i)<256 ? sVal.charAt(i) : '?');
+          Object oRead = idRead.fetch(nR,nC);
+          String sRead = oRead!=null ? oRead.toString() : "";
+          if (!sLatin1.toString().equals(sRead)) nRtErr++;
+        }
+      System.out.println("readXml: "+nRtErr+" cell(s) differ after the round trip");
+    }
+    catch (Exception e)
+    {
+      System.err.println("ERROR: "+e.toString());
+    }
+  }
+  
 }
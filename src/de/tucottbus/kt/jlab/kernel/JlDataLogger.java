@@ -14,6 +14,15 @@ import java.lang.reflect.Array;
 
 /**
  * Logs buffers into a <code>JlData</code> instance.
+ * 
+ * <p>After appending a buffer, the logger notifies its observers in the logging thread; the
+ * argument is the new number of records (<code>Integer</code>). At the end of a stream the
+ * observers receive <code>"EOS"</code>. Observers must return quickly, e.g. by only scheduling
+ * an update of a live display.</p>
+ * 
+ * <p>Buffers are appended while holding the logger's monitor, and the number of records of the
+ * log data instance is increased only after the records have been copied. Other threads should
+ * read the number of records through {@link #getLength()} and use only that many records.</p>
  */
 public class JlDataLogger extends JlFifoQueue
 {
@@ -86,8 +95,8 @@ public class JlDataLogger extends JlFifoQueue
           int nFR = iData.getLength();
           int nXR = nLength / nComps;
           if (nXR * nComps < nLength) nXR++;
-          iData.allocate(nFR + Math.max(nXR,nIncrement));
-          iData.setNRecs(nFR + nXR);
+          if (nFR + nXR > iData.getCapacity())
+            iData.allocate(nFR + Math.max(nXR,nIncrement));
           //JlObject.log("\n ::: queLen=" + length() + ", bufLen=" + nLength +
           //  ", bufType=" + aBuffer.getClass().getSimpleName() +
           //  ", nFR=" + nFR + ", nXR=" + nXR + ", capacity=" +
@@ -97,8 +106,15 @@ public class JlDataLogger extends JlFifoQueue
           for (int nR = nFR, nB = 0; nR < nFR + nXR; nR++)
             for (int nC = 0; nC < nComps && nB < nLength; nC++, nB++)
               System.arraycopy(aBuffer, nB, iData.getComp(nC), nR, 1);
+
+          // Publish the records after copying them
+          iData.setNRecs(nFR + nXR);
         }
       }
+
+      // Notify observers of the new length
+      setChanged();
+      notifyObservers(Integer.valueOf(getLength()));
     }
   }
 
@@ -122,6 +138,15 @@ public class JlDataLogger extends JlFifoQueue
   {
     return iData;
   }
+
+  /**
+   * Returns the number of completely logged records. Records below this number are not
+   * modified by the logger (unless it is cleared).
+   */
+  public synchronized int getLength()
+  {
+    return iData.getLength();
+  }
 }
 
 /* EOF */
\ No newline at end of file
@@ -0,0 +1,297 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of record byte offsets in an uncompressed dLabPro XML data file. The index is built by
+ * a fast byte scan for <code>&lt;REC&gt;</code> tags (no XML parsing) and allows to read a range of
+ * records by seeking directly to the first record of the range (see
+ * {@link JlDataFile#readXml(File, String[], int, int, java.util.AbstractCollection)}).
+ *
+ * <p>Indexes are cached for the most recently used files and rebuilt if a file was modified.
+ * Files containing comments, CDATA sections, DTDs, or nested instances are not indexed.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public final class JlDataXmlIndex
+{
+  /**
+   * Maximal number of cached indexes.
+   */
+  private static final int CACHE_SIZE = 16;
+
+  private static final Map<String,JlDataXmlIndex> iCache
+    = new LinkedHashMap<String,JlDataXmlIndex>(CACHE_SIZE,0.75f,true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,JlDataXmlIndex> eldest)
+      {
+        return size()>CACHE_SIZE;
+      }
+    };
+
+  private static final byte[] TAIL = "\n</TABLE>\n</INSTANCE>\n".getBytes();
+
+  private final File   iFile;
+  private final long   nLength;        // File length when indexed
+  private final long   nLastModified;  // File time stamp when indexed
+  private final long[] aRecOfs;        // Byte offsets of <REC> tags
+  private final int    nRecs;          // Number of records
+  private final long   nTableEnd;      // Byte offset of </TABLE>
+
+  private JlDataXmlIndex(File iFile, long nLength, long nLastModified, long[] aRecOfs, int nRecs,
+    long nTableEnd)
+  {
+    this.iFile         = iFile;
+    this.nLength       = nLength;
+    this.nLastModified = nLastModified;
+    this.aRecOfs       = aRecOfs;
+    this.nRecs         = nRecs;
+    this.nTableEnd     = nTableEnd;
+  }
+
+  // -- Getters --
+
+  /**
+   * Returns the indexed file.
+   */
+  public File getFile()
+  {
+    return iFile;
+  }
+
+  /**
+   * Returns the number of records in the file.
+   */
+  public int getRecordCount()
+  {
+    return nRecs;
+  }
+
+  /**
+   * Returns the byte offset of a record.
+   *
+   * @param nRec
+   *          The zero-based record index, {@link #getRecordCount()} for the end of the table.
+   * @throws IndexOutOfBoundsException
+   *          If <code>nRec</code> is out of range.
+   */
+  public long getRecordOffset(int nRec)
+  {
+    if (nRec<0 || nRec>nRecs)
+      throw new IndexOutOfBoundsException("Record "+nRec+" out of range [0,"+nRecs+"]");
+    return nRec<nRecs ? aRecOfs[nRec] : nTableEnd;
+  }
+
+  /**
+   * Determines whether this index is still valid for its file.
+   */
+  public boolean isValid()
+  {
+    return iFile.length()==nLength && iFile.lastModified()==nLastModified;
+  }
+
+  // -- Operations --
+
+  /**
+   * Returns the (cached) index of a file.
+   *
+   * @param iFile
+   *          The file.
+   * @return The index or <code>null</code> if the file cannot be indexed (e.g. because it is
+   *         compressed or contains comments).
+   * @throws IOException
+   *          On I/O errors.
+   */
+  public static JlDataXmlIndex get(File iFile) throws IOException
+  {
+    String sKey = iFile.getCanonicalPath();
+    synchronized (iCache)
+    {
+      JlDataXmlIndex iIndex = iCache.get(sKey);
+      if (iIndex!=null && iIndex.isValid()) return iIndex;
+    }
+    JlDataXmlIndex iIndex = build(iFile);
+    if (iIndex!=null)
+      synchronized (iCache)
+      {
+        iCache.put(sKey,iIndex);
+      }
+    return iIndex;
+  }
+
+  /**
+   * Opens an input stream containing an XML document with all records of the range
+   * <code>[nFirst,nFirst+nCount)</code> and the header of the indexed file. Only the bytes of the
+   * header and the record range are read.
+   *
+   * @param nFirst
+   *          The zero-based index of the first record.
+   * @param nCount
+   *          The number of records.
+   * @return The input stream.
+   * @throws IOException
+   *          On I/O errors.
+   * @throws IndexOutOfBoundsException
+   *          If the record range is out of bounds.
+   */
+  InputStream openRange(int nFirst, int nCount) throws IOException, IndexOutOfBoundsException
+  {
+    long nHdrEnd = getRecordOffset(0);
+    long nBeg    = getRecordOffset(nFirst);
+    long nEnd    = getRecordOffset(nFirst+nCount);
+    RandomAccessFile rafHdr = new RandomAccessFile(iFile,"r");
+    RandomAccessFile rafRng = new RandomAccessFile(iFile,"r");
+    FileChannel fcHdr = rafHdr.getChannel();
+    FileChannel fcRng = rafRng.getChannel().position(nBeg);
+    InputStream isHdr = new BoundedInputStream(Channels.newInputStream(fcHdr),nHdrEnd);
+    InputStream isRng = new BoundedInputStream(Channels.newInputStream(fcRng),nEnd-nBeg);
+    return new SequenceInputStream(new SequenceInputStream(isHdr,isRng),
+      new ByteArrayInputStream(TAIL));
+  }
+
+  // -- Workers --
+
+  private static JlDataXmlIndex build(File iFile) throws IOException
+  {
+    long nLength = iFile.length();
+    long nLastModified = iFile.lastModified();
+    long[] aRecOfs = new long[1024];
+    int    nRecs   = 0;
+    long   nTableEnd = -1;
+    int    nInstances = 0;
+
+    InputStream is = new FileInputStream(iFile);
+    try
+    {
+      byte[] aBuf  = new byte[65536];
+      byte[] aTok  = new byte[16];
+      int    nTok  = -1;   // Length of tag name being collected, -1 if not in a tag name
+      long   nTag  = 0;    // Offset of current '<'
+      long   nPos  = 0;
+      int    nRead;
+      boolean bFirst = true;
+      while ((nRead=is.read(aBuf))>0)
+      {
+        int i = 0;
+        if (bFirst)
+        {
+          // Require an ASCII compatible encoding (optional UTF-8 byte order mark)
+          if (nRead>=3 && (aBuf[0]&0xFF)==0xEF && (aBuf[1]&0xFF)==0xBB && (aBuf[2]&0xFF)==0xBF)
+            i = 3;
+          if (aBuf[i]!='<') return null;
+          bFirst = false;
+        }
+        for (; i<nRead; i++)
+        {
+          byte b = aBuf[i];
+          if (b=='<')
+          {
+            nTok = 0;
+            nTag = nPos+i;
+          }
+          else if (nTok>=0)
+          {
+            boolean bName = (b>='A' && b<='Z') || (b>='a' && b<='z')
+              || (nTok==0 && (b=='/' || b=='!' || b=='?'));
+            if (bName && nTok<aTok.length)
+              aTok[nTok++] = b;
+            else
+            {
+              // Tag name complete
+              if (nTok>0 && aTok[0]=='!') return null; // Comment, CDATA, DTD
+              if (tokenIs(aTok,nTok,"REC"))
+              {
+                if (nTableEnd>=0) return null;
+                if (nRecs==aRecOfs.length) aRecOfs = Arrays.copyOf(aRecOfs,2*nRecs);
+                aRecOfs[nRecs++] = nTag;
+              }
+              else if (tokenIs(aTok,nTok,"/TABLE"))
+              {
+                if (nTableEnd>=0) return null;
+                nTableEnd = nTag;
+              }
+              else if (tokenIs(aTok,nTok,"INSTANCE") && ++nInstances>1)
+                return null;
+              nTok = -1;
+            }
+          }
+        }
+        nPos += nRead;
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+    if (nTableEnd<0 || nInstances!=1) return null;
+    return new JlDataXmlIndex(iFile,nLength,nLastModified,aRecOfs,nRecs,nTableEnd);
+  }
+
+  private static boolean tokenIs(byte[] aTok, int nTok, String sName)
+  {
+    if (nTok!=sName.length()) return false;
+    for (int i=0; i<nTok; i++)
+      if (aTok[i]!=sName.charAt(i)) return false;
+    return true;
+  }
+
+  // -- Nested classes --
+
+  /**
+   * Input stream returning at most a given number of bytes of an underlying stream.
+   */
+  private static class BoundedInputStream extends InputStream
+  {
+    private final InputStream is;
+    private long nLeft;
+
+    BoundedInputStream(InputStream is, long nLimit)
+    {
+      this.is    = is;
+      this.nLeft = nLimit;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      if (nLeft<=0) return -1;
+      int b = is.read();
+      if (b>=0) nLeft--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      if (nLeft<=0) return -1;
+      int n = is.read(b,off,(int)Math.min(len,nLeft));
+      if (n>0) nLeft -= n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      is.close();
+    }
+  }
+
+}
+
+// EOF
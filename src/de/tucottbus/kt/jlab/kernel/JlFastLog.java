@@ -0,0 +1,344 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.util.Random;
+
+/**
+ * Table-based fast logarithm. The logarithm of a float value <i>x</i> = <i>m</i>&middot;2<sup><i>e</i></sup>
+ * is computed as <i>e</i> + log<sub>2</sub>(<i>m</i>), where the exponent <i>e</i> is extracted
+ * from the IEEE 754 bit pattern and log<sub>2</sub>(<i>m</i>) is looked up in a table indexed by
+ * the leading {@link #getBits() mantissa bits}. The accuracy is selectable by the number of
+ * mantissa bits; the absolute error is bounded by {@link #getMaxError()}.
+ * <p>Instances are immutable and thread-safe. Use {@link #getInstance(int)} to obtain a shared
+ * instance.</p>
+ *
+ * <h3>Special cases</h3>
+ * <ul>
+ *   <li>Zero yields negative infinity, negative values and NaN yield NaN.</li>
+ *   <li>Infinity and subnormal values are passed to {@link Math#log(double)}.</li>
+ * </ul>
+ *
+ * @author Matthias Wolff, BTU Cottbus
+ */
+public final class JlFastLog
+{
+  /**
+   * The minimal number of mantissa bits.
+   */
+  public static final int MIN_BITS = 1;
+
+  /**
+   * The maximal number of mantissa bits (table size 2<sup>{@value}</sup> floats).
+   */
+  public static final int MAX_BITS = 20;
+
+  /**
+   * The default number of mantissa bits, absolute error &lt;3.1&middot;10<sup>-5</sup>.
+   */
+  public static final int DEFAULT_BITS = 14;
+
+  private static final double LN2      = Math.log(2.);
+  private static final double LOG10_2  = Math.log10(2.);
+  private static final int    MANT_BITS = 23;
+  private static final int    MANT_MASK = 0x007FFFFF;
+
+  /**
+   * Shared instances, indexed by number of bits.
+   */
+  private static final JlFastLog[] aInstances = new JlFastLog[MAX_BITS+1];
+
+  /**
+   * The number of mantissa bits.
+   */
+  private final int nBits;
+
+  /**
+   * The number of bits to shift the mantissa to obtain the table index.
+   */
+  private final int nShift;
+
+  /**
+   * The table of log<sub>2</sub>(<i>m</i>), 1&le;<i>m</i>&lt;2.
+   */
+  private final float[] aLog2;
+
+  // -- Constructors and factory --
+
+  /**
+   * Creates a new fast logarithm.
+   *
+   * @param nBits
+   *          The number of mantissa bits used as table index, {@link #MIN_BITS} through
+   *          {@link #MAX_BITS}.
+   * @throws IllegalArgumentException
+   *          If <code>nBits</code> is out of range.
+   */
+  public JlFastLog(int nBits)
+  {
+    if (nBits<MIN_BITS || nBits>MAX_BITS)
+      throw new IllegalArgumentException("nBits (" + nBits + ") out of range ["
+        + MIN_BITS + "," + MAX_BITS + "]");
+    this.nBits  = nBits;
+    this.nShift = MANT_BITS-nBits;
+    this.aLog2  = new float[1<<nBits];
+
+    // Table entries are taken at the cell centers to halve the error
+    double nCell = 1./aLog2.length;
+    for (int i=0; i<aLog2.length; i++)
+      aLog2[i] = (float)(Math.log(1.+(i+0.5)*nCell)/LN2);
+  }
+
+  /**
+   * Returns a shared fast logarithm instance.
+   *
+   * @param nBits
+   *          The number of mantissa bits, {@link #MIN_BITS} through {@link #MAX_BITS}.
+   * @return The instance.
+   * @throws IllegalArgumentException
+   *          If <code>nBits</code> is out of range.
+   */
+  public static JlFastLog getInstance(int nBits)
+  {
+    if (nBits<MIN_BITS || nBits>MAX_BITS)
+      throw new IllegalArgumentException("nBits (" + nBits + ") out of range ["
+        + MIN_BITS + "," + MAX_BITS + "]");
+    synchronized (aInstances)
+    {
+      if (aInstances[nBits]==null)
+        aInstances[nBits] = new JlFastLog(nBits);
+      return aInstances[nBits];
+    }
+  }
+
+  /**
+   * Returns the shared fast logarithm instance with {@link #DEFAULT_BITS} mantissa bits.
+   */
+  public static JlFastLog getInstance()
+  {
+    return getInstance(DEFAULT_BITS);
+  }
+
+  // -- Getters --
+
+  /**
+   * Returns the number of mantissa bits used as table index.
+   */
+  public int getBits()
+  {
+    return nBits;
+  }
+
+  /**
+   * Returns the upper bound of the absolute error of {@link #log(double)}. The bounds of the base
+   * 2 and base 10 logarithms are obtained by multiplication with log<sub>2</sub>(e) and
+   * log<sub>10</sub>(e) respectively. The float methods add the rounding error of the result
+   * (half an ulp).
+   */
+  public double getMaxError()
+  {
+    // Steepest slope at m=1: error is log(1+h/2), h being the table cell width
+    return Math.log(1.+0.5/aLog2.length);
+  }
+
+  // -- Logarithms --
+
+  /**
+   * Returns an approximation of the base 2 logarithm of a value.
+   *
+   * @param x
+   *          The value.
+   * @return log<sub>2</sub>(<code>x</code>)
+   */
+  public float log2(float x)
+  {
+    return (float)log2d(x);
+  }
+
+  /**
+   * Returns an approximation of the natural logarithm of a value.
+   *
+   * @param x
+   *          The value.
+   * @return ln(<code>x</code>)
+   */
+  public float log(float x)
+  {
+    return (float)(log2d(x)*LN2);
+  }
+
+  /**
+   * Returns an approximation of the base 10 logarithm of a value.
+   *
+   * @param x
+   *          The value.
+   * @return lg(<code>x</code>)
+   */
+  public float log10(float x)
+  {
+    return (float)(log2d(x)*LOG10_2);
+  }
+
+  /**
+   * Returns an approximation of the natural logarithm of a double value. The value is converted
+   * to float, values beyond the float range are passed to {@link Math#log(double)}.
+   *
+   * @param x
+   *          The value.
+   * @return ln(<code>x</code>)
+   */
+  public double log(double x)
+  {
+    if (x>Float.MAX_VALUE || (x>0. && x<Float.MIN_NORMAL)) return Math.log(x);
+    return log2d((float)x)*LN2;
+  }
+
+  /**
+   * Returns an approximation of the base 10 logarithm of a double value. The value is converted
+   * to float, values beyond the float range are passed to {@link Math#log10(double)}.
+   *
+   * @param x
+   *          The value.
+   * @return lg(<code>x</code>)
+   */
+  public double log10(double x)
+  {
+    if (x>Float.MAX_VALUE || (x>0. && x<Float.MIN_NORMAL)) return Math.log10(x);
+    return log2d((float)x)*LOG10_2;
+  }
+
+  /**
+   * Base 2 logarithm without rounding of the result to float.
+   */
+  private double log2d(float x)
+  {
+    int nX = Float.floatToRawIntBits(x);
+    int nE = (nX>>>MANT_BITS)-127;
+    if (nE<=-127 || nE>127)
+    {
+      // Zero, subnormal, negative, infinite, or NaN
+      if (x==0f) return Double.NEGATIVE_INFINITY;
+      return Math.log(x)/LN2;
+    }
+    return nE+(double)aLog2[(nX&MANT_MASK)>>>nShift];
+  }
+
+  // -- Array operations --
+
+  /**
+   * Computes the natural logarithms of an array of values.
+   *
+   * @param a
+   *          The values, will be overwritten with the logarithms.
+   * @return <code>a</code> filled with the logarithms.
+   */
+  public float[] log(float[] a)
+  {
+    if (a==null) return null;
+    for (int i=0; i<a.length; i++)
+      a[i] = log(a[i]);
+    return a;
+  }
+
+  /**
+   * Computes the natural logarithms of an array of values.
+   *
+   * @param a
+   *          The values, will be overwritten with the logarithms.
+   * @return <code>a</code> filled with the logarithms.
+   */
+  public double[] log(double[] a)
+  {
+    if (a==null) return null;
+    for (int i=0; i<a.length; i++)
+      a[i] = log(a[i]);
+    return a;
+  }
+
+  // -- Verification --
+
+  /**
+   * Measures the maximal absolute error of {@link #log(double)} against {@link Math#log(double)}.
+   * All table cells are probed at their boundaries and centers over the given range of exponents,
+   * followed by <code>nRand</code> random samples.
+   *
+   * @param nMinExp
+   *          The minimal binary exponent (&ge;-126).
+   * @param nMaxExp
+   *          The maximal binary exponent (&le;127).
+   * @param nRand
+   *          The number of additional random samples.
+   * @return The maximal absolute error measured.
+   */
+  public double measureMaxError(int nMinExp, int nMaxExp, int nRand)
+  {
+    nMinExp = Math.max(nMinExp,-126);
+    nMaxExp = Math.min(nMaxExp,127);
+    double nErr = 0.;
+    int    nN   = aLog2.length;
+    for (int nE=nMinExp; nE<=nMaxExp; nE++)
+    {
+      float nScale = Math.scalb(1f,nE);
+      for (int i=0; i<nN; i++)
+        for (int j=0; j<3; j++)
+        {
+          float x = nScale*(float)(1.+(i+0.5*j)/nN);
+          if (j==2) x = Math.nextAfter(x,0.);
+          nErr = Math.max(nErr,Math.abs(log((double)x)-Math.log(x)));
+        }
+    }
+    Random iRand = new Random(0);
+    for (int i=0; i<nRand; i++)
+    {
+      float x = Math.scalb(1f+iRand.nextFloat(),nMinExp+iRand.nextInt(nMaxExp-nMinExp+1));
+      nErr = Math.max(nErr,Math.abs(log((double)x)-Math.log(x)));
+    }
+    return nErr;
+  }
+
+  /**
+   * Main method (DEBUGGING ONLY!). Checks the error bound and compares the throughput of
+   * {@link #log(float)} and {@link Math#log(double)} for all supported accuracies.
+   *
+   * @param args
+   *          Not used.
+   */
+  public static void main(String[] args)
+  {
+    final int N = 1<<20;
+    float[] aX = new float[N];
+    Random iRand = new Random(0);
+    for (int i=0; i<N; i++)
+      aX[i] = Math.scalb(1f+iRand.nextFloat(),iRand.nextInt(64)-32);
+
+    // Reference
+    double nSum = 0.;
+    long   nRef = Long.MAX_VALUE;
+    for (int nRun=0; nRun<10; nRun++)
+    {
+      long nT = System.nanoTime();
+      for (int i=0; i<N; i++) nSum += Math.log(aX[i]);
+      nRef = Math.min(nRef,System.nanoTime()-nT);
+    }
+    JlObject.log(String.format("\nMath.log  : %6.2f ns/value",(double)nRef/N));
+
+    for (int nBits=4; nBits<=MAX_BITS; nBits+=2)
+    {
+      JlFastLog iLog = new JlFastLog(nBits);
+      long nTime = Long.MAX_VALUE;
+      for (int nRun=0; nRun<10; nRun++)
+      {
+        long nT = System.nanoTime();
+        for (int i=0; i<N; i++) nSum += iLog.log(aX[i]);
+        nTime = Math.min(nTime,System.nanoTime()-nT);
+      }
+      double nErr = iLog.measureMaxError(-32,32,N);
+      JlObject.log(String.format("\n%2d bits   : %6.2f ns/value, max. error %.3e (bound %.3e) %s",
+        nBits,(double)nTime/N,nErr,iLog.getMaxError(),
+        nErr<=iLog.getMaxError()+1E-7 ? "OK" : "FAILED"));
+    }
+    JlObject.log("\n(checksum "+nSum+")\n");
+  }
+}
+
+// EOF
@@ -189,6 +189,38 @@ public abstract class JlFifoQueue extends JlAsyncObservable implements Runnable
     return iQueue.size();
   }
 
+  /**
+   * Returns the maximal number of objects to be held in the queue.
+   * 
+   * @return The capacity, 0 for infinite
+   */
+  public int getCapacity()
+  {
+    return nLength;
+  }
+
+  /**
+   * Waits until the queue can accept another object without overflowing.
+   * 
+   * @param nTimeout
+   *          Maximal time to wait in milliseconds (0 to wait forever)
+   * @return <code>true</code> if there is space in the queue, <code>false</code>
+   *         on time-out
+   * @throws InterruptedException
+   *          if the calling thread was interrupted while waiting
+   */
+  public synchronized boolean awaitSpace(long nTimeout) throws InterruptedException
+  {
+    long nEnd = System.currentTimeMillis()+nTimeout;
+    while (nLength > 0 && iQueue.size() >= nLength)
+    {
+      long nWait = nTimeout > 0 ? nEnd-System.currentTimeMillis() : 0;
+      if (nTimeout > 0 && nWait <= 0) return false;
+      wait(nWait);
+    }
+    return true;
+  }
+
   /**
    * Removes one object from the queue.
    * 
@@ -199,6 +231,7 @@ public abstract class JlFifoQueue extends JlAsyncObservable implements Runnable
   {
     if (nIndex == TAIL) nIndex = iQueue.size() - 1;
     if (nIndex>=0 && nIndex<iQueue.size()) iQueue.removeElementAt(nIndex);
+    notifyAll(); // Wake up producers in awaitSpace
   }
 
   /**
@@ -208,6 +241,7 @@ public abstract class JlFifoQueue extends JlAsyncObservable implements Runnable
   {
     iQueue.clear();
     nChanged = 0;
+    notifyAll(); // Wake up producers in awaitSpace
   }
 
   /**
@@ -0,0 +1,389 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped RIFF/WAVE file. Opening a file only parses the header and maps the sample data;
+ * pages are loaded by the operating system when samples are accessed. The heap usage is
+ * independent of the file size.
+ *
+ * <p>Samples are accessed through {@link Channel channel views} (strided for interleaved
+ * multichannel files) or copied into a {@link JlData} instance for a range of frames through
+ * {@link #toJlData(long, int, boolean)}. Supported sample formats are 8, 16, 24, and 32 bit linear
+ * PCM and 32 and 64 bit IEEE float, including <code>WAVE_FORMAT_EXTENSIBLE</code>.</p>
+ *
+ * <p>Instances are safe for concurrent reading.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ * @see JlDataFile#mapAudioFile(File)
+ */
+public class JlMappedAudioFile
+{
+  /**
+   * Strided view of one channel of a mapped audio file.
+   */
+  public class Channel
+  {
+    private final int nChannel;
+
+    Channel(int nChannel)
+    {
+      this.nChannel = nChannel;
+    }
+
+    /**
+     * Returns the zero-based index of this channel.
+     */
+    public int getIndex()
+    {
+      return nChannel;
+    }
+
+    /**
+     * Returns the number of samples (frames) of this channel.
+     */
+    public long getLength()
+    {
+      return nFrames;
+    }
+
+    /**
+     * Returns one sample. PCM samples are returned as signed integer values, float samples
+     * as they are.
+     *
+     * @param nFrame
+     *          The zero-based frame index.
+     * @throws IndexOutOfBoundsException
+     *          If <code>nFrame</code> is out of range.
+     */
+    public double get(long nFrame)
+    {
+      if (nFrame<0 || nFrame>=nFrames)
+        throw new IndexOutOfBoundsException("Frame "+nFrame+" out of range [0,"+nFrames+")");
+      long nPos = nFrame*nBlockAlign+nChannel*nBytesPerSample;
+      return sample(aSegments[(int)(nPos/nSegmentSize)],(int)(nPos%nSegmentSize));
+    }
+
+    /**
+     * Copies a range of samples into an array.
+     *
+     * @param nFirst
+     *          The zero-based index of the first frame.
+     * @param aDst
+     *          The destination array.
+     * @param nOfs
+     *          The index of the first destination element.
+     * @param nCount
+     *          The number of samples to copy.
+     * @param nScale
+     *          The samples are multiplied by this factor.
+     * @throws IndexOutOfBoundsException
+     *          If the range is out of bounds.
+     */
+    public void get(long nFirst, double[] aDst, int nOfs, int nCount, double nScale)
+    {
+      if (nFirst<0 || nCount<0 || nFirst+nCount>nFrames)
+        throw new IndexOutOfBoundsException("Frames ["+nFirst+","+(nFirst+nCount)
+          +") out of range [0,"+nFrames+")");
+      long nPos = nFirst*nBlockAlign+nChannel*nBytesPerSample;
+      for (int i=0; i<nCount; i++, nPos+=nBlockAlign)
+        aDst[nOfs+i] = nScale*sample(aSegments[(int)(nPos/nSegmentSize)],(int)(nPos%nSegmentSize));
+    }
+  }
+
+  private static final int WAVE_FORMAT_PCM        = 0x0001;
+  private static final int WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+  private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+  /**
+   * Maximal size of one mapped segment (a multiple of the block size is used).
+   */
+  private static final long MAX_SEGMENT = 1L<<30;
+
+  private final File       iFile;
+  private final int        nChannels;
+  private final double     nSampleRate;
+  private final int        nBitsPerSample;
+  private final int        nBytesPerSample;
+  private final int        nBlockAlign;
+  private final boolean    bFloat;
+  private final long       nFrames;
+  private final long       nSegmentSize;
+  private ByteBuffer[]     aSegments;
+  private final Channel[]  aChannels;
+
+  /**
+   * Opens and maps a RIFF/WAVE file.
+   *
+   * @param iFile
+   *          The file.
+   * @throws IOException
+   *          On I/O errors or if the file is not a supported RIFF/WAVE file.
+   */
+  public JlMappedAudioFile(File iFile) throws IOException
+  {
+    this.iFile = iFile;
+    RandomAccessFile raf = new RandomAccessFile(iFile,"r");
+    try
+    {
+      FileChannel fc = raf.getChannel();
+      long nSize = fc.size();
+
+      // Parse header
+      ByteBuffer iHdr = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(fc,iHdr,0);
+      if (iHdr.getInt(0)!=fourcc("RIFF") || iHdr.getInt(8)!=fourcc("WAVE"))
+        throw new IOException("Not a RIFF/WAVE file: "+iFile);
+      long nPos = 12;
+      long nDataPos = -1, nDataLen = 0;
+      int  nFormat = -1, nChannels = 0, nBlockAlign = 0, nBits = 0;
+      double nSampleRate = 0;
+      ByteBuffer iChk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      while (nPos+8<=nSize && nDataPos<0)
+      {
+        iChk.clear();
+        readFully(fc,iChk,nPos);
+        int  nId  = iChk.getInt(0);
+        long nLen = iChk.getInt(4)&0xFFFFFFFFL;
+        if (nId==fourcc("fmt "))
+        {
+          if (nLen<16) throw new IOException("Invalid format chunk in "+iFile);
+          ByteBuffer iFmt = ByteBuffer.allocate((int)Math.min(nLen,40))
+            .order(ByteOrder.LITTLE_ENDIAN);
+          readFully(fc,iFmt,nPos+8);
+          nFormat     = iFmt.getShort(0)&0xFFFF;
+          nChannels   = iFmt.getShort(2)&0xFFFF;
+          nSampleRate = iFmt.getInt(4)&0xFFFFFFFFL;
+          nBlockAlign = iFmt.getShort(12)&0xFFFF;
+          nBits       = iFmt.getShort(14)&0xFFFF;
+          if (nFormat==WAVE_FORMAT_EXTENSIBLE && iFmt.capacity()>=26)
+            nFormat = iFmt.getShort(24)&0xFFFF;
+        }
+        else if (nId==fourcc("data"))
+        {
+          nDataPos = nPos+8;
+          nDataLen = (nLen==0 || nLen==0xFFFFFFFFL || nDataPos+nLen>nSize)
+            ? nSize-nDataPos : nLen; // Unfinished or streamed files
+        }
+        nPos += 8+nLen+(nLen&1);
+      }
+      if (nFormat<0)
+        throw new IOException("No format chunk in "+iFile);
+      if (nDataPos<0)
+        throw new IOException("No data chunk in "+iFile);
+      if (nFormat!=WAVE_FORMAT_PCM && nFormat!=WAVE_FORMAT_IEEE_FLOAT)
+        throw new IOException("Audio format 0x"+Integer.toHexString(nFormat)+" not supported");
+      boolean bFloat = nFormat==WAVE_FORMAT_IEEE_FLOAT;
+      if (bFloat ? nBits!=32 && nBits!=64 : nBits!=8 && nBits!=16 && nBits!=24 && nBits!=32)
+        throw new IOException("Sample size of "+nBits+" bits not supported");
+      if (nChannels<=0 || nBlockAlign<nChannels*nBits/8)
+        throw new IOException("Invalid format chunk in "+iFile);
+
+      this.nChannels       = nChannels;
+      this.nSampleRate     = nSampleRate;
+      this.nBitsPerSample  = nBits;
+      this.nBytesPerSample = nBits/8;
+      this.nBlockAlign     = nBlockAlign;
+      this.bFloat          = bFloat;
+      this.nFrames         = nDataLen/nBlockAlign;
+
+      // Map sample data in segments of whole frames
+      this.nSegmentSize = (MAX_SEGMENT/nBlockAlign)*nBlockAlign;
+      long nBytes = nFrames*nBlockAlign;
+      int  nSegs  = (int)((nBytes+nSegmentSize-1)/nSegmentSize);
+      aSegments = new ByteBuffer[nSegs];
+      for (int i=0; i<nSegs; i++)
+      {
+        long nOfs = i*nSegmentSize;
+        MappedByteBuffer iMap = fc.map(FileChannel.MapMode.READ_ONLY,nDataPos+nOfs,
+          Math.min(nSegmentSize,nBytes-nOfs));
+        aSegments[i] = iMap.order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+    finally
+    {
+      raf.close(); // Mappings stay valid
+    }
+
+    aChannels = new Channel[nChannels];
+    for (int i=0; i<nChannels; i++) aChannels[i] = new Channel(i);
+  }
+
+  private static int fourcc(String s)
+  {
+    return s.charAt(0) | s.charAt(1)<<8 | s.charAt(2)<<16 | s.charAt(3)<<24;
+  }
+
+  private static void readFully(FileChannel fc, ByteBuffer iBuf, long nPos) throws IOException
+  {
+    while (iBuf.hasRemaining())
+    {
+      int nRead = fc.read(iBuf,nPos+iBuf.position());
+      if (nRead<0) throw new IOException("Unexpected end of file");
+    }
+  }
+
+  /**
+   * Decodes one sample.
+   */
+  private double sample(ByteBuffer iSeg, int nPos)
+  {
+    switch (nBytesPerSample)
+    {
+    case 1:
+      return (iSeg.get(nPos)&0xFF)-128;
+    case 2:
+      return iSeg.getShort(nPos);
+    case 3:
+      return ((iSeg.get(nPos)&0xFF) | (iSeg.get(nPos+1)&0xFF)<<8 | iSeg.get(nPos+2)<<16);
+    case 4:
+      return bFloat ? iSeg.getFloat(nPos) : iSeg.getInt(nPos);
+    default:
+      return iSeg.getDouble(nPos);
+    }
+  }
+
+  // -- Getters --
+
+  /**
+   * Returns the file.
+   */
+  public File getFile()
+  {
+    return iFile;
+  }
+
+  /**
+   * Returns the number of channels.
+   */
+  public int getChannels()
+  {
+    return nChannels;
+  }
+
+  /**
+   * Returns a view of one channel.
+   *
+   * @param nChannel
+   *          The zero-based channel index.
+   */
+  public Channel getChannel(int nChannel)
+  {
+    return aChannels[nChannel];
+  }
+
+  /**
+   * Returns the sampling rate in Hz.
+   */
+  public double getSampleRate()
+  {
+    return nSampleRate;
+  }
+
+  /**
+   * Returns the number of bits per sample.
+   */
+  public int getBitsPerSample()
+  {
+    return nBitsPerSample;
+  }
+
+  /**
+   * Determines if the samples are IEEE floats.
+   */
+  public boolean isFloat()
+  {
+    return bFloat;
+  }
+
+  /**
+   * Returns the number of frames (samples per channel).
+   */
+  public long getFrames()
+  {
+    return nFrames;
+  }
+
+  /**
+   * Returns the value representing full scale, i.e. 2<sup>bits-1</sup> for PCM and 1 for float
+   * samples.
+   */
+  public double getFullScale()
+  {
+    return bFloat ? 1. : Math.pow(2,nBitsPerSample-1);
+  }
+
+  // -- Conversion --
+
+  /**
+   * Copies a range of frames into a new data instance. Component types and description fields
+   * are the same as with {@link JlDataFile#readAudioFile(File, boolean)}, the record offset
+   * <code>rofs</code> is set to the time of the first frame.
+   *
+   * @param nFirst
+   *          The zero-based index of the first frame.
+   * @param nCount
+   *          The number of frames, will be limited to the available frames.
+   * @param bNorm
+   *          If <code>true</code> the samples will be converted into doubles and normalized to a
+   *          range between -1 and 1.
+   * @return The data instance.
+   */
+  public JlData toJlData(long nFirst, int nCount, boolean bNorm)
+  {
+    nFirst = Math.max(0,Math.min(nFirst,nFrames));
+    nCount = (int)Math.max(0,Math.min(nCount,nFrames-nFirst));
+    Class<?> cType = bNorm||bFloat ? double.class : nBitsPerSample>16 ? int.class : short.class;
+    JlData idAudio = new JlData();
+    idAudio.addNComps(cType,nChannels);
+    idAudio.allocate(nCount);
+    idAudio.setNRecs(nCount);
+    idAudio.rinc  = 1/nSampleRate;
+    idAudio.rofs  = nFirst/nSampleRate;
+    idAudio.runit = "s";
+    double[] aBuf = cType==double.class ? null : new double[nCount];
+    double nScale = bNorm ? 1/getFullScale() : 1;
+    for (int nC=0; nC<nChannels; nC++)
+    {
+      Object iComp = idAudio.getComp(nC);
+      if (aBuf==null)
+        aChannels[nC].get(nFirst,(double[])iComp,0,nCount,nScale);
+      else
+      {
+        aChannels[nC].get(nFirst,aBuf,0,nCount,1);
+        if (iComp instanceof int[])
+          for (int i=0; i<nCount; i++) ((int[])iComp)[i] = (int)aBuf[i];
+        else
+          for (int i=0; i<nCount; i++) ((short[])iComp)[i] = (short)aBuf[i];
+      }
+    }
+    return idAudio;
+  }
+
+  /**
+   * Releases the mapped buffers. The mappings are unmapped when the buffers are garbage
+   * collected. Accessing samples after calling this method throws a
+   * {@link NullPointerException}.
+   */
+  public void close()
+  {
+    aSegments = null;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "JlMappedAudioFile[" + iFile + ", " + nChannels + " ch, " + nSampleRate + " Hz, "
+      + nBitsPerSample + (bFloat?" bit float, ":" bit PCM, ") + nFrames + " frames]";
+  }
+}
+
+// EOF
@@ -1,7 +1,36 @@
 package de.tucottbus.kt.jlab.kernel;
 
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class JlStatistics
 {
+  /**
+   * Kullback-Leibler divergence <i>D</i>(<i>P</i>||<i>Q</i>), see {@link #dkl(float[], float[])}.
+   */
+  public static final int DIST_KL        = 0;
+
+  /**
+   * Symmetric Kullback-Leibler divergence <i>D</i>(<i>P</i>||<i>Q</i>)+<i>D</i>(<i>Q</i>||<i>P</i>).
+   */
+  public static final int DIST_SKL       = 1;
+
+  /**
+   * Euclidean distance.
+   */
+  public static final int DIST_EUCLIDEAN = 2;
+
+  /**
+   * Cosine distance 1-cos(&ang;(<i>x</i>,<i>y</i>)).
+   */
+  public static final int DIST_COSINE    = 3;
+
+  /**
+   * Number of vectors per block of the distance matrix computation.
+   */
+  private static final int BLOCK = 64;
+
 
   /**
    * Computes the Kullback-Leibler-Divergence between two probability 
@@ -44,5 +73,314 @@ public class JlStatistics
 
     return (float)dkl;
   }
-  
+
+  // -- Distance matrices --
+
+  /**
+   * Computes the distance matrix between the records of two data instances. Each record is
+   * regarded as a vector, all components must be numeric.
+   *
+   * @param idX
+   *          First operand, must not be {@code null}
+   * @param idY
+   *          Second operand, must not be {@code null}
+   * @param nType
+   *          The distance type, one of the {@code DIST_XXX} constants
+   * @return A new data instance with one record per record of {@code idX} and one {@code float}
+   *         component per record of {@code idY}.
+   * @throws IllegalArgumentException
+   *           if the operands have different dimensions, if the distance type is unknown or, for
+   *           the Kullback-Leibler divergences, if a record contains negative values or does not
+   *           sum-up to unity.
+   * @see #distances(float[][], float[][], int)
+   */
+  public static JlData distanceMatrix(JlData idX, JlData idY, int nType)
+  throws IllegalArgumentException
+  {
+    float[][] aD = distances(toVectors(idX),toVectors(idY),nType);
+    JlData idD = new JlData();
+    idD.addNComps(float.class,idY.getLength());
+    idD.allocate(aD.length);
+    idD.setNRecs(aD.length);
+    for (int nC=0; nC<idD.getDimension(); nC++)
+    {
+      float[] aComp = (float[])idD.getComp(nC);
+      for (int nR=0; nR<aD.length; nR++)
+        aComp[nR] = aD[nR][nC];
+    }
+    return idD;
+  }
+
+  /**
+   * Computes the distance matrix between two sets of vectors. The computation is blocked for
+   * cache efficiency and runs in parallel on the common fork/join pool. Logarithms and norms are
+   * computed once per vector.
+   *
+   * @param X
+   *          First operand, an array of vectors, must not be {@code null}
+   * @param Y
+   *          Second operand, an array of vectors, must not be {@code null}
+   * @param nType
+   *          The distance type, one of the {@code DIST_XXX} constants
+   * @return The matrix {@code D[X.length][Y.length]} of distances between {@code X[i]} and
+   *         {@code Y[j]}
+   * @throws IllegalArgumentException
+   *           if the vectors have different sizes, if the distance type is unknown or, for the
+   *           Kullback-Leibler divergences, if a vector contains negative values or does not
+   *           sum-up to unity.
+   */
+  public static float[][] distances(float[][] X, float[][] Y, int nType)
+  throws IllegalArgumentException
+  {
+    if (nType<DIST_KL || nType>DIST_COSINE)
+      throw new IllegalArgumentException("Unknown distance type "+nType);
+    int nDim = X.length>0 ? X[0].length : Y.length>0 ? Y[0].length : 0;
+    float[][] D = new float[X.length][Y.length];
+    if (X.length==0 || Y.length==0) return D;
+
+    // Precompute per-vector terms
+    final double[] x  = flatten(X,nDim,"X");
+    final double[] y  = flatten(Y,nDim,"Y");
+    double[] lx = null, ly = null, hx = null, hy = null, nx = null, ny = null;
+    switch (nType)
+    {
+    case DIST_KL:
+    case DIST_SKL:
+      lx = logs(x,nDim,"X"); hx = dots(x,lx,nDim);
+      ly = logs(y,nDim,"Y"); hy = dots(y,ly,nDim);
+      break;
+    case DIST_COSINE:
+      nx = norms(x,nDim);
+      ny = norms(y,nDim);
+      break;
+    }
+
+    // Blocked parallel computation
+    ForkJoinPool.commonPool().invoke(new DistanceTask(nType,nDim,x,y,lx,ly,hx,hy,nx,ny,D,0,
+      (X.length+BLOCK-1)/BLOCK));
+    return D;
+  }
+
+  /**
+   * Fork/join task computing blocks of rows of a distance matrix.
+   */
+  private static class DistanceTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final int       nType, nDim, nFirst, nLast;
+    private final double[]  x, y, lx, ly, hx, hy, nx, ny;
+    private final float[][] D;
+
+    DistanceTask(int nType, int nDim, double[] x, double[] y, double[] lx, double[] ly,
+      double[] hx, double[] hy, double[] nx, double[] ny, float[][] D, int nFirst, int nLast)
+    {
+      this.nType = nType; this.nDim = nDim;
+      this.x  = x;  this.y  = y;
+      this.lx = lx; this.ly = ly;
+      this.hx = hx; this.hy = hy;
+      this.nx = nx; this.ny = ny;
+      this.D  = D;
+      this.nFirst = nFirst; this.nLast = nLast;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (nLast-nFirst>1)
+      {
+        int nMid = (nFirst+nLast)>>>1;
+        invokeAll(
+          new DistanceTask(nType,nDim,x,y,lx,ly,hx,hy,nx,ny,D,nFirst,nMid),
+          new DistanceTask(nType,nDim,x,y,lx,ly,hx,hy,nx,ny,D,nMid,nLast));
+        return;
+      }
+      int nX  = D.length;
+      int nY  = D[0].length;
+      int nI0 = nFirst*BLOCK;
+      int nI1 = Math.min(nI0+BLOCK,nX);
+      for (int nJ0=0; nJ0<nY; nJ0+=BLOCK)
+      {
+        int nJ1 = Math.min(nJ0+BLOCK,nY);
+        for (int i=nI0; i<nI1; i++)
+        {
+          int     nOi = i*nDim;
+          float[] Di  = D[i];
+          for (int j=nJ0; j<nJ1; j++)
+          {
+            int nOj = j*nDim;
+            switch (nType)
+            {
+            case DIST_KL:
+              Di[j] = (float)(hx[i]-dot(x,nOi,ly,nOj,nDim));
+              break;
+            case DIST_SKL:
+              Di[j] = (float)(hx[i]+hy[j]-dot(x,nOi,ly,nOj,nDim)-dot(y,nOj,lx,nOi,nDim));
+              break;
+            case DIST_EUCLIDEAN:
+            {
+              double nSum = 0;
+              for (int k=0; k<nDim; k++)
+              {
+                double d = x[nOi+k]-y[nOj+k];
+                nSum += d*d;
+              }
+              Di[j] = (float)Math.sqrt(nSum);
+              break;
+            }
+            case DIST_COSINE:
+              double nNorm = nx[i]*ny[j];
+              Di[j] = nNorm>0 ? (float)(1-dot(x,nOi,y,nOj,nDim)/nNorm) : 1f;
+              break;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts the records of a data instance into an array of vectors.
+   */
+  private static float[][] toVectors(JlData idData)
+  {
+    int nR = idData.getLength();
+    int nD = idData.getDimension();
+    float[][] X = new float[nR][nD];
+    for (int nC=0; nC<nD; nC++)
+    {
+      if (!JlObject.isNumericType(idData.getCompType(nC)))
+        throw new IllegalArgumentException("Component "+nC+" is not numeric");
+      Object iComp = idData.getComp(nC);
+      if (iComp instanceof float[])
+        for (int nRec=0; nRec<nR; nRec++) X[nRec][nC] = ((float[])iComp)[nRec];
+      else if (iComp instanceof double[])
+        for (int nRec=0; nRec<nR; nRec++) X[nRec][nC] = (float)((double[])iComp)[nRec];
+      else
+        for (int nRec=0; nRec<nR; nRec++) X[nRec][nC] = (float)idData.dFetch(nRec,nC);
+    }
+    return X;
+  }
+
+  /**
+   * Copies an array of vectors into one contiguous row-major array.
+   */
+  private static double[] flatten(float[][] X, int nDim, String sName)
+  {
+    double[] x = new double[X.length*nDim];
+    for (int i=0; i<X.length; i++)
+    {
+      if (X[i].length!=nDim)
+        throw new IllegalArgumentException("Operands have different sizes ("
+        +sName+"["+i+"].length="+X[i].length+"!="+nDim+")");
+      for (int k=0; k<nDim; k++)
+        x[i*nDim+k] = X[i][k];
+    }
+    return x;
+  }
+
+  /**
+   * Checks probability distributions and computes their logarithms (floored at 1E-100).
+   */
+  private static double[] logs(double[] x, int nDim, String sName)
+  {
+    double[] l = new double[x.length];
+    for (int i=0; i<x.length/Math.max(nDim,1); i++)
+    {
+      double nSum = 0;
+      for (int k=i*nDim; k<(i+1)*nDim; k++)
+      {
+        if (x[k]<0) throw new IllegalArgumentException(sName+"["+i+"]["+(k-i*nDim)+"] < 0");
+        nSum += x[k];
+        l[k] = Math.log(Math.max(1E-100,x[k]));
+      }
+      if (Math.abs(1-nSum)>1E-5)
+        throw new IllegalArgumentException(sName+"["+i+"] does not sum up to 1 (but to "+nSum
+        +")");
+    }
+    return l;
+  }
+
+  /**
+   * Computes the dot products of corresponding vectors of two contiguous arrays.
+   */
+  private static double[] dots(double[] a, double[] b, int nDim)
+  {
+    double[] d = new double[a.length/Math.max(nDim,1)];
+    for (int i=0; i<d.length; i++)
+      d[i] = dot(a,i*nDim,b,i*nDim,nDim);
+    return d;
+  }
+
+  /**
+   * Computes the Euclidean norms of the vectors in a contiguous array.
+   */
+  private static double[] norms(double[] a, int nDim)
+  {
+    double[] d = dots(a,a,nDim);
+    for (int i=0; i<d.length; i++)
+      d[i] = Math.sqrt(d[i]);
+    return d;
+  }
+
+  /**
+   * Computes the dot product of two vectors stored in contiguous arrays.
+   */
+  private static double dot(double[] a, int nOa, double[] b, int nOb, int nDim)
+  {
+    double nSum = 0;
+    for (int k=0; k<nDim; k++)
+      nSum += a[nOa+k]*b[nOb+k];
+    return nSum;
+  }
+
+  /**
+   * Main method (DEBUGGING ONLY!). Compares the throughput of {@link #distances(float[][],
+   * float[][], int)} with single calls of {@link #dkl(float[], float[])} and checks the results.
+   *
+   * @param args
+   *          Not used.
+   */
+  public static void main(String[] args)
+  {
+    final int N = 1000, M = 1000, DIM = 257;
+    Random iRand = new Random(0);
+    float[][] X = new float[N][DIM], Y = new float[M][DIM];
+    for (float[][] A : new float[][][]{ X, Y })
+      for (float[] a : A)
+      {
+        double nSum = 0;
+        for (int k=0; k<DIM; k++) nSum += a[k] = iRand.nextFloat();
+        for (int k=0; k<DIM; k++) a[k] /= nSum;
+      }
+
+    long nT = System.nanoTime();
+    float[][] R = new float[N][M];
+    for (int i=0; i<N; i++)
+      for (int j=0; j<M; j++)
+        R[i][j] = dkl(X[i],Y[j]);
+    double nRef = (System.nanoTime()-nT)/1E9;
+    JlObject.log(String.format("\ndkl loop      : %8.0f pairs/s",N*M/nRef));
+
+    String[] aNames = { "KL", "SKL", "Euclidean", "cosine" };
+    for (int nType=DIST_KL; nType<=DIST_COSINE; nType++)
+    {
+      float[][] D = null;
+      double nTime = Double.MAX_VALUE;
+      for (int nRun=0; nRun<5; nRun++)
+      {
+        nT = System.nanoTime();
+        D = distances(X,Y,nType);
+        nTime = Math.min(nTime,(System.nanoTime()-nT)/1E9);
+      }
+      double nErr = 0;
+      if (nType==DIST_KL)
+        for (int i=0; i<N; i++)
+          for (int j=0; j<M; j++)
+            nErr = Math.max(nErr,Math.abs(D[i][j]-R[i][j]));
+      JlObject.log(String.format("\n%-14s: %8.0f pairs/s%s",aNames[nType],N*M/nTime,
+        nType==DIST_KL ? String.format(" (max. deviation from dkl %.2e)",nErr) : ""));
+    }
+    JlObject.log("\n");
+  }
+
 }
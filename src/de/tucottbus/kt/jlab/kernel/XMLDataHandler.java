@@ -105,6 +105,11 @@ class XMLDataHandler extends DefaultHandler
   Locator                   locator;
   int                       nR;
   int                       nC;
+  int                       nNrec;     // Declared number of records (-1: unknown)
+  Object[]                  aComps;    // Component arrays of idData (valid after allocate)
+  char[]                    aCdata;    // Character data of the current element (reused)
+  int                       nCdata;    // Number of characters in aCdata
+  boolean                   bCdata;    // Character data received for current element
 
   /**
    * Creates a new dLabPro data XML handler.
@@ -116,6 +121,8 @@ class XMLDataHandler extends DefaultHandler
     idData    = new JlData();
     nR        = -1;
     nC        = -1;
+    nNrec     = -1;
+    aCdata    = new char[256];
   }
 
   // Overrides
@@ -144,6 +151,8 @@ class XMLDataHandler extends DefaultHandler
     
     XMLElement element = new XMLElement(name,attributes);
     stack.push(element);
+    nCdata = 0;
+    bCdata = false;
     if (stackTopIsIgnored()) return;
     if      (element.isINSTANCE()) handleINSTANCEstart(element);
     else if (element.isFIELD()   ) handleFIELDstart(element);
@@ -167,6 +176,8 @@ class XMLDataHandler extends DefaultHandler
     XMLElement element = stack.peek();
     assert(element.name.equals(name));
     
+    if (element.isFIELD() && bCdata)
+      element.cdata = new String(aCdata,0,nCdata);
     if (!stackTopIsIgnored())
       try
       {
@@ -187,9 +198,16 @@ class XMLDataHandler extends DefaultHandler
   public void characters(char[] ch, int start, int length)
   throws SAXException
   {
-    if (stack.peek().cdata==null)
-      stack.peek().cdata = "";
-    stack.peek().cdata += new String(ch, start, length);
+    // Collect in a reusable buffer; SAX may deliver the text of one element in several chunks
+    if (nCdata+length>aCdata.length)
+    {
+      char[] aGhost = aCdata;
+      aCdata = new char[Math.max(2*aGhost.length,nCdata+length)];
+      System.arraycopy(aGhost,0,aCdata,0,nCdata);
+    }
+    System.arraycopy(ch,start,aCdata,nCdata,length);
+    nCdata += length;
+    bCdata  = true;
   }
 
   @Override
@@ -273,32 +291,10 @@ class XMLDataHandler extends DefaultHandler
       }
     }
     
-    try
-    {
-      if      (F_NAME_VAL_RINC   .equals(name)) idData.rinc    = Double.valueOf(val); 
-      else if (F_NAME_VAL_RWID   .equals(name)) idData.rwid    = Double.valueOf(val);
-      else if (F_NAME_VAL_ROFS   .equals(name)) idData.rofs    = Double.valueOf(val);
-      else if (F_NAME_VAL_NOFFSET.equals(name)) idData.noffset = Double.valueOf(val);
-      else if (F_NAME_VAL_RUNIT  .equals(name)) idData.runit   = val;
-      else if (F_NAME_VAL_CINC   .equals(name)) idData.cinc    = Double.valueOf(val);
-      else if (F_NAME_VAL_COFS   .equals(name)) idData.cofs    = Double.valueOf(val);
-      else if (F_NAME_VAL_CUNIT  .equals(name)) idData.cunit   = val; 
-      else if (F_NAME_VAL_VUNIT  .equals(name)) idData.vunit   = val; 
-      else if (F_NAME_VAL_VINC   .equals(name)) idData.vinc    = Double.valueOf(val);
-      else if (F_NAME_VAL_NBLOCK .equals(name)) idData.nblock  = Long.valueOf(val);
-      else if (F_NAME_VAL_DESCR0 .equals(name)) idData.descr0  = Double.valueOf(val);
-      else if (F_NAME_VAL_DESCR1 .equals(name)) idData.descr1  = Double.valueOf(val);
-      else if (F_NAME_VAL_DESCR2 .equals(name)) idData.descr2  = Double.valueOf(val);
-      else if (F_NAME_VAL_DESCR3 .equals(name)) idData.descr3  = Double.valueOf(val);
-      else if (F_NAME_VAL_DESCR4 .equals(name)) idData.descr4  = Double.valueOf(val);
-      else if (F_NAME_VAL_RTEXT  .equals(name)) idData.rtext   = val; 
-      else if (F_NAME_VAL_FTEXT  .equals(name)) idData.ftext   = val; 
-      else if (F_NAME_VAL_VRTEXT .equals(name)) idData.vrtext  = val;
-    }
-    catch (NumberFormatException e)
-    {
+    if (F_NAME_VAL_NREC.equals(name))
+      try { nNrec = Integer.parseInt(val.trim()); } catch (NumberFormatException e) {}
+    if (!setField(idData,name,val))
       warning(String.format(WRN_F_BADVAL,val,name));
-    }
   }
 
   private void handleTABLEstart(XMLElement element) throws SAXException
@@ -343,20 +339,7 @@ class XMLDataHandler extends DefaultHandler
     if (name==null) { warning(WRN_C_NONAME); name="";       }
     if (type==null) { warning(WRN_C_NOTYPE); type="double"; }
 
-    Class<?> c = null;
-    if      (type.equals    (C_TYPE_VAL_UCHAR )) c = int.class;
-    else if (type.startsWith(C_TYPE_VAL_CHAR  )) c = String.class;
-    else if (type.equals    (C_TYPE_VAL_USHORT)) c = int.class;
-    else if (type.equals    (C_TYPE_VAL_SHORT )) c = short.class;
-    else if (type.equals    (C_TYPE_VAL_UINT  )) c = long.class;
-    else if (type.equals    (C_TYPE_VAL_INT   )) c = int.class;
-    else if (type.equals    (C_TYPE_VAL_ULONG )) c = long.class;
-    else if (type.equals    (C_TYPE_VAL_LONG  )) c = long.class;
-    else if (type.equals    (C_TYPE_VAL_FLOAT )) c = float.class;
-    else if (type.equals    (C_TYPE_VAL_DOUBLE)) c = double.class;
-    else if (type.equals    (C_TYPE_VAL_BOOL  )) c = boolean.class;
-    // TODO: C_TYPE_COMPLEX!
-    
+    Class<?> c = compType(type);
     if (c==null)
     {
       warning(String.format(WRN_C_BADTYPE,type));
@@ -383,7 +366,12 @@ class XMLDataHandler extends DefaultHandler
 
     nR++;
     if (idData.getCapacity()<=nR)
-      idData.allocate(nR+1000);
+    {
+      // Pre-allocate declared number of records, then grow geometrically
+      idData.allocate(nR==0 && nNrec>0 ? nNrec : Math.max(nR+1000,nR+nR/2));
+      aComps = new Object[idData.getDimension()];
+      for (int i=0; i<aComps.length; i++) aComps[i] = idData.getComp(i);
+    }
     idData.setNRecs(nR+1);
     nC = -1;
   }
@@ -419,19 +407,191 @@ class XMLDataHandler extends DefaultHandler
     }
 
     if (JlDataFile.isStringType(idData.getCompType(nC)))
-      idData.store(element.cdata,nR,nC);
+      idData.store(bCdata ? new String(aCdata,0,nCdata) : null,nR,nC);
     else if (JlDataFile.isNumericType(idData.getCompType(nC)))
       try
       {
-        idData.dStore(Double.valueOf(element.cdata).doubleValue(),nR,nC);
+        storeNumber(aComps[nC],nR,parseDouble(aCdata,0,nCdata));
       }
       catch (NumberFormatException e)
       {
-        warning(String.format(WRN_L_BADVAL,element.cdata,nR,nC));
+        warning(String.format(WRN_L_BADVAL,new String(aCdata,0,nCdata),nR,nC));
       }
     // TODO: else if (JlDataFile.isComplexType(idData.getCompType(nC))) ...
   }
 
+  // Value conversion (shared with XMLDataReader)
+  
+  /**
+   * Stores the value of a field in a data instance.
+   * 
+   * @param idData
+   *          The data instance.
+   * @param name
+   *          The field name, unknown names are ignored.
+   * @param val
+   *          The field value (cdata).
+   * @return <code>false</code> if the value is not a valid number for a numeric field.
+   */
+  static boolean setField(JlData idData, String name, String val)
+  {
+    try
+    {
+      if      (F_NAME_VAL_RINC   .equals(name)) idData.rinc    = Double.valueOf(val); 
+      else if (F_NAME_VAL_RWID   .equals(name)) idData.rwid    = Double.valueOf(val);
+      else if (F_NAME_VAL_ROFS   .equals(name)) idData.rofs    = Double.valueOf(val);
+      else if (F_NAME_VAL_NOFFSET.equals(name)) idData.noffset = Double.valueOf(val);
+      else if (F_NAME_VAL_RUNIT  .equals(name)) idData.runit   = val;
+      else if (F_NAME_VAL_CINC   .equals(name)) idData.cinc    = Double.valueOf(val);
+      else if (F_NAME_VAL_COFS   .equals(name)) idData.cofs    = Double.valueOf(val);
+      else if (F_NAME_VAL_CUNIT  .equals(name)) idData.cunit   = val; 
+      else if (F_NAME_VAL_VUNIT  .equals(name)) idData.vunit   = val; 
+      else if (F_NAME_VAL_VINC   .equals(name)) idData.vinc    = Double.valueOf(val);
+      else if (F_NAME_VAL_NBLOCK .equals(name)) idData.nblock  = Long.valueOf(val);
+      else if (F_NAME_VAL_DESCR0 .equals(name)) idData.descr0  = Double.valueOf(val);
+      else if (F_NAME_VAL_DESCR1 .equals(name)) idData.descr1  = Double.valueOf(val);
+      else if (F_NAME_VAL_DESCR2 .equals(name)) idData.descr2  = Double.valueOf(val);
+      else if (F_NAME_VAL_DESCR3 .equals(name)) idData.descr3  = Double.valueOf(val);
+      else if (F_NAME_VAL_DESCR4 .equals(name)) idData.descr4  = Double.valueOf(val);
+      else if (F_NAME_VAL_RTEXT  .equals(name)) idData.rtext   = val; 
+      else if (F_NAME_VAL_FTEXT  .equals(name)) idData.ftext   = val; 
+      else if (F_NAME_VAL_VRTEXT .equals(name)) idData.vrtext  = val;
+      return true;
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the Java type of a dLabPro component type.
+   * 
+   * @param type
+   *          The value of the <code>type</code> attribute of a <code>&lt;COMP&gt;</code> tag.
+   * @return The type or <code>null</code> if <code>type</code> is unknown.
+   */
+  static Class<?> compType(String type)
+  {
+    if      (type.equals    (C_TYPE_VAL_UCHAR )) return int.class;
+    else if (type.startsWith(C_TYPE_VAL_CHAR  )) return String.class;
+    else if (type.equals    (C_TYPE_VAL_USHORT)) return int.class;
+    else if (type.equals    (C_TYPE_VAL_SHORT )) return short.class;
+    else if (type.equals    (C_TYPE_VAL_UINT  )) return long.class;
+    else if (type.equals    (C_TYPE_VAL_INT   )) return int.class;
+    else if (type.equals    (C_TYPE_VAL_ULONG )) return long.class;
+    else if (type.equals    (C_TYPE_VAL_LONG  )) return long.class;
+    else if (type.equals    (C_TYPE_VAL_FLOAT )) return float.class;
+    else if (type.equals    (C_TYPE_VAL_DOUBLE)) return double.class;
+    else if (type.equals    (C_TYPE_VAL_BOOL  )) return boolean.class;
+    // TODO: C_TYPE_COMPLEX!
+    return null;
+  }
+
+  /**
+   * Stores a number into a component array. Equivalent to {@link JlData#dStore(double, int, int)}
+   * but without reflection.
+   * 
+   * @param iComp
+   *          The component array.
+   * @param nR
+   *          The record index.
+   * @param nVal
+   *          The value.
+   */
+  static void storeNumber(Object iComp, int nR, double nVal)
+  {
+    if      (iComp instanceof double[]) ((double[])iComp)[nR] = nVal;
+    else if (iComp instanceof float[] ) ((float[] )iComp)[nR] = (float)nVal;
+    else if (iComp instanceof int[]   ) ((int[]   )iComp)[nR] = (int)nVal;
+    else if (iComp instanceof long[]  ) ((long[]  )iComp)[nR] = (long)nVal;
+    else if (iComp instanceof short[] ) ((short[] )iComp)[nR] = (short)nVal;
+    else if (iComp instanceof byte[]  ) ((byte[]  )iComp)[nR] = (byte)nVal;
+    else if (iComp instanceof char[]  ) ((char[]  )iComp)[nR] = (char)nVal;
+  }
+
+  /**
+   * Powers of ten which are exactly representable as doubles.
+   */
+  private static final double[] EXACT_POW10 =
+  {
+    1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10, 1E11, 1E12, 1E13, 1E14, 1E15, 1E16,
+    1E17, 1E18, 1E19, 1E20, 1E21, 1E22
+  };
+
+  /**
+   * Parses a decimal floating point number from a character array without creating a string.
+   * The result is identical to {@link Double#parseDouble(String)}: numbers with up to 15
+   * significant digits and a decimal exponent of at most 22 are converted exactly (one rounding
+   * step), all other numbers are passed on to {@link Double#parseDouble(String)}.
+   * 
+   * @param a
+   *          The characters.
+   * @param nOfs
+   *          The offset of the first character.
+   * @param nLen
+   *          The number of characters.
+   * @return The number.
+   * @throws NumberFormatException
+   *          If the characters are not a valid number.
+   */
+  static double parseDouble(char[] a, int nOfs, int nLen) throws NumberFormatException
+  {
+    int i = nOfs, n = nOfs+nLen;
+    while (i<n && a[i]<=' ') i++;
+    while (n>i && a[n-1]<=' ') n--;
+    int     j      = i;
+    boolean bNeg   = false;
+    long    nMant  = 0;
+    int     nDigs  = 0;
+    int     nExp   = 0;
+    boolean bDigit = false;
+    if (j<n && (a[j]=='-' || a[j]=='+')) bNeg = a[j++]=='-';
+    for (; j<n && a[j]>='0' && a[j]<='9'; j++)
+    {
+      bDigit = true;
+      if (nMant==0 && a[j]=='0') continue;
+      nMant = nMant*10+(a[j]-'0');
+      if (++nDigs>15) return slowParseDouble(a,i,n);
+    }
+    if (j<n && a[j]=='.')
+      for (j++; j<n && a[j]>='0' && a[j]<='9'; j++)
+      {
+        bDigit = true;
+        nExp--;
+        if (nMant==0 && a[j]=='0') continue;
+        nMant = nMant*10+(a[j]-'0');
+        if (++nDigs>15) return slowParseDouble(a,i,n);
+      }
+    if (!bDigit) return slowParseDouble(a,i,n); // NaN, Infinity, hex, or invalid
+    if (j<n && (a[j]=='e' || a[j]=='E'))
+    {
+      j++;
+      boolean bExpNeg = false;
+      if (j<n && (a[j]=='-' || a[j]=='+')) bExpNeg = a[j++]=='-';
+      if (j>=n) return slowParseDouble(a,i,n);
+      int nE = 0;
+      for (; j<n && a[j]>='0' && a[j]<='9'; j++)
+        if ((nE = nE*10+(a[j]-'0'))>1000) return slowParseDouble(a,i,n);
+      nExp += bExpNeg ? -nE : nE;
+    }
+    if (j<n) return slowParseDouble(a,i,n); // Trailing characters (e.g. type suffix)
+    double nVal = nMant;
+    if (nMant!=0)
+    {
+      if      (nExp<0 && nExp>=-22) nVal /= EXACT_POW10[-nExp];
+      else if (nExp>0 && nExp<= 22) nVal *= EXACT_POW10[ nExp];
+      else if (nExp!=0) return slowParseDouble(a,i,n);
+    }
+    return bNeg ? -nVal : nVal;
+  }
+
+  private static double slowParseDouble(char[] a, int nFirst, int nEnd)
+  throws NumberFormatException
+  {
+    return Double.parseDouble(new String(a,nFirst,nEnd-nFirst));
+  }
+
   // Auxiliary methods
   
   /**
@@ -0,0 +1,415 @@
+// jLab
+
+package de.tucottbus.kt.jlab.kernel;
+
+import java.io.InputStream;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Vector;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.SAXParseException;
+
+/**
+ * StAX reader for dLabPro data files. This is the fast path of {@link JlDataFile#readXml(
+ * java.io.File, AbstractCollection) JlDataFile.readXml}: it pulls the plain
+ * <code>&lt;INSTANCE&gt;</code>/<code>&lt;FIELD&gt;</code>/<code>&lt;TABLE&gt;</code> structure
+ * written by dLabPro and jLab without building an element stack and parses cell values directly
+ * from the parser's character buffer. On any structure it does not handle exactly like
+ * {@link XMLDataHandler} (unknown or nested tags, DTDs, components after records) it throws an
+ * {@link UnsupportedStructureException}, and the caller falls back to the SAX handler.
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+class XMLDataReader implements XMLStreamConstants
+{
+  /**
+   * Thrown if a document requires the full SAX handler.
+   */
+  static class UnsupportedStructureException extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedStructureException(String sMsg)
+    {
+      super(sMsg);
+    }
+  }
+
+  /**
+   * One StAX factory per thread (factories are not guaranteed to be thread-safe).
+   */
+  private static final ThreadLocal<XMLInputFactory> iFactory = new ThreadLocal<XMLInputFactory>()
+  {
+    @Override
+    protected XMLInputFactory initialValue()
+    {
+      XMLInputFactory iF = XMLInputFactory.newInstance();
+      iF.setProperty(XMLInputFactory.IS_COALESCING,Boolean.FALSE);
+      iF.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE,Boolean.FALSE);
+      return iF;
+    }
+  };
+
+  private final Vector<SAXParseException> lWarnings = new Vector<SAXParseException>();
+  private XMLStreamReader xr;
+  private JlData          idData;
+  private char[]          aCdata = new char[256];   // Character data of current element (reused)
+  private int             nCdata;                   // Number of characters in aCdata
+  private int             nNrec  = -1;              // Declared number of records
+  private String[]        aCompFilter;              // Components to read (null: all)
+  private int             nFirst = 0;               // First record to read
+  private int             nCount = -1;              // Number of records to read (-1: all)
+  private int             nRecOfs = 0;              // Index of first record in the stream
+  private boolean         bStopped;                 // Stopped after last requested record
+
+  /**
+   * Selects the components to read.
+   *
+   * @param aCompNames
+   *          The names of the components to read (in this order), <code>null</code> for all
+   *          components. Unknown names are ignored. Cells of other components are skipped
+   *          without conversion.
+   */
+  void setCompFilter(String[] aCompNames)
+  {
+    this.aCompFilter = aCompNames;
+  }
+
+  /**
+   * Selects the records to read. Cells of records before the range are skipped without
+   * conversion, parsing stops after the last record of the range. The <code>rofs</code> field of
+   * the result is adjusted to the first record read.
+   *
+   * @param nFirst
+   *          The zero-based index of the first record to read.
+   * @param nCount
+   *          The number of records to read, -1 for all records from <code>nFirst</code> on.
+   */
+  void setRange(int nFirst, int nCount)
+  {
+    this.nFirst = Math.max(nFirst,0);
+    this.nCount = nCount;
+  }
+
+  /**
+   * Declares that the stream is an excerpt starting at a given record of a file (see
+   * {@link JlDataXmlIndex#openRange(int, int)}). Only affects record numbers in warnings and the
+   * <code>rofs</code> field of the result.
+   *
+   * @param nRecOfs
+   *          The zero-based index of the first record of the stream in the file.
+   */
+  void setRecordOffset(int nRecOfs)
+  {
+    this.nRecOfs = nRecOfs;
+  }
+
+  /**
+   * Reads a dLabPro data file.
+   *
+   * @param is
+   *          The XML input stream.
+   * @return The data instance.
+   * @throws XMLStreamException
+   *          On XML syntax errors.
+   * @throws UnsupportedStructureException
+   *          If the document must be read by {@link XMLDataHandler}.
+   */
+  JlData read(InputStream is) throws XMLStreamException, UnsupportedStructureException
+  {
+    idData = new JlData();
+    xr = iFactory.get().createXMLStreamReader(is);
+    try
+    {
+      if (nextElement()!=START_ELEMENT || !XMLDataHandler.TAG_INSTANCE.equals(xr.getLocalName()))
+        throw new UnsupportedStructureException("Root element is not <INSTANCE>");
+      String sClass = attribute(XMLDataHandler.I_ATTR_CLASS);
+      if (sClass!=null && !XMLDataHandler.I_CLASS_VAL_DATA.equals(sClass))
+        warning(XMLDataHandler.WRN_I_BADTYPE);
+
+      while (nextElement()==START_ELEMENT)
+      {
+        String sTag = xr.getLocalName();
+        if      (XMLDataHandler.TAG_FIELD.equals(sTag)) readField();
+        else if (XMLDataHandler.TAG_TABLE.equals(sTag)) readTable();
+        else throw new UnsupportedStructureException("<"+sTag+"> in <INSTANCE>");
+        if (bStopped) break;
+      }
+      if (!bStopped)
+        while (xr.hasNext()) xr.next(); // Check well-formedness of the remainder
+      if (nFirst+nRecOfs>0)
+        idData.rofs += (nFirst+nRecOfs)*idData.rinc;
+      return idData;
+    }
+    finally
+    {
+      xr.close();
+    }
+  }
+
+  /**
+   * Returns the list of warnings that occurred when reading.
+   */
+  AbstractCollection<SAXParseException> getWarnings()
+  {
+    return lWarnings;
+  }
+
+  // -- Element readers --
+
+  private void readField() throws XMLStreamException, UnsupportedStructureException
+  {
+    String name = attribute(XMLDataHandler.F_ATTR_NAME);
+    String type = attribute(XMLDataHandler.F_ATTR_TYPE);
+    String val  = readText() ? new String(aCdata,0,nCdata) : null;
+
+    if (name==null) { warning(XMLDataHandler.WRN_F_NONAME); return; }
+    if (type==null) { warning(XMLDataHandler.WRN_F_NOTYPE); return; }
+    if (val ==null)
+    {
+      if (type.equals("text") || type.startsWith("char"))
+        val = "";
+      else
+      {
+        warning(String.format(XMLDataHandler.WRN_F_NOVAL,name));
+        return;
+      }
+    }
+    if (XMLDataHandler.F_NAME_VAL_NREC.equals(name))
+      try { nNrec = Integer.parseInt(val.trim()); } catch (NumberFormatException e) {}
+    if (!XMLDataHandler.setField(idData,name,val))
+      warning(String.format(XMLDataHandler.WRN_F_BADVAL,val,name));
+  }
+
+  private void readTable() throws XMLStreamException, UnsupportedStructureException
+  {
+    Vector<String>   lNames = new Vector<String>();   // Components in the file
+    Vector<Class<?>> lTypes = new Vector<Class<?>>();
+    int[]      aMap   = null;                          // File component -> idData component
+    Object[]   aComps = null;
+    Class<?>[] aTypes = null;
+    int        nRf    = -1;                            // Record index in the stream
+    while (nextElement()==START_ELEMENT)
+    {
+      String sTag = xr.getLocalName();
+      if (XMLDataHandler.TAG_COMP.equals(sTag))
+      {
+        if (aMap!=null) throw new UnsupportedStructureException("<COMP> after <REC>");
+        String name = attribute(XMLDataHandler.C_ATTR_NAME);
+        String type = attribute(XMLDataHandler.C_ATTR_TYPE);
+        if (name==null) { warning(XMLDataHandler.WRN_C_NONAME); name="";       }
+        if (type==null) { warning(XMLDataHandler.WRN_C_NOTYPE); type="double"; }
+        Class<?> c = XMLDataHandler.compType(type);
+        if (c==null)
+        {
+          warning(String.format(XMLDataHandler.WRN_C_BADTYPE,type));
+          c = double.class;
+        }
+        lNames.add(name);
+        lTypes.add(c);
+        if (nextElement()!=END_ELEMENT)
+          throw new UnsupportedStructureException("Content in <COMP>");
+      }
+      else if (XMLDataHandler.TAG_REC.equals(sTag))
+      {
+        if (aMap==null) aMap = createComps(lNames,lTypes);
+        int nDim = lNames.size();
+        nRf++;
+        if (nRf<nFirst)
+        {
+          skipElement();
+          continue;
+        }
+        if (nCount>=0 && nRf>=nFirst+nCount)
+        {
+          bStopped = true;
+          return;
+        }
+        int nR = nRf-nFirst;
+        if (idData.getCapacity()<=nR)
+        {
+          // Pre-allocate declared number of records, then grow geometrically
+          int nAlloc = Math.max(nR+1000,nR+nR/2);
+          if (nR==0 && nNrec>0) nAlloc = Math.max(nNrec-nRecOfs-nFirst,1);
+          if (nR==0 && nCount>=0) nAlloc = Math.min(nAlloc,Math.max(nCount,1));
+          idData.allocate(nAlloc);
+          aComps = new Object[idData.getDimension()];
+          aTypes = new Class<?>[idData.getDimension()];
+          for (int i=0; i<aComps.length; i++)
+          {
+            aComps[i] = idData.getComp(i);
+            aTypes[i] = idData.getCompType(i);
+          }
+        }
+        idData.setNRecs(nR+1);
+        int nC = -1;
+        while (nextElement()==START_ELEMENT)
+        {
+          if (!XMLDataHandler.TAG_CELL.equals(xr.getLocalName()))
+            throw new UnsupportedStructureException("<"+xr.getLocalName()+"> in <REC>");
+          nC++;
+          if (nC>=nDim)
+          {
+            skipElement();
+            warning(String.format(XMLDataHandler.WRN_L_TOOMANY,nRf+nRecOfs));
+            continue;
+          }
+          int nO = aMap[nC];
+          if (nO<0)
+          {
+            skipElement();
+            continue;
+          }
+          boolean bCdata = readText();
+          if (aTypes[nO]==String.class)
+            idData.store(bCdata ? new String(aCdata,0,nCdata) : null,nR,nO);
+          else if (JlObject.isNumericType(aTypes[nO]))
+            try
+            {
+              XMLDataHandler.storeNumber(aComps[nO],nR,
+                XMLDataHandler.parseDouble(aCdata,0,nCdata));
+            }
+            catch (NumberFormatException e)
+            {
+              warning(String.format(XMLDataHandler.WRN_L_BADVAL,new String(aCdata,0,nCdata),
+                nRf+nRecOfs,nC));
+            }
+        }
+        if (nC<nDim-1)
+          warning(String.format(XMLDataHandler.WRN_L_TOOFEW,nRf+nRecOfs));
+      }
+      else
+        throw new UnsupportedStructureException("<"+sTag+"> in <TABLE>");
+    }
+    if (aMap==null) createComps(lNames,lTypes);
+  }
+
+  /**
+   * Adds the selected components to the data instance.
+   *
+   * @return The map from component indexes in the file to component indexes in the data
+   *         instance (-1 for skipped components).
+   */
+  private int[] createComps(Vector<String> lNames, Vector<Class<?>> lTypes)
+  {
+    int[] aMap = new int[lNames.size()];
+    if (aCompFilter==null)
+      for (int nC=0; nC<aMap.length; nC++)
+        aMap[nC] = idData.addComp(lTypes.get(nC),lNames.get(nC));
+    else
+    {
+      Arrays.fill(aMap,-1);
+      for (String sName : aCompFilter)
+        for (int nC=0; nC<aMap.length; nC++)
+          if (aMap[nC]<0 && lNames.get(nC).equals(sName))
+          {
+            aMap[nC] = idData.addComp(lTypes.get(nC),lNames.get(nC));
+            break;
+          }
+    }
+    return aMap;
+  }
+
+  // -- Auxiliary methods --
+
+  /**
+   * Advances to the next start or end tag, skipping character data, comments and processing
+   * instructions.
+   *
+   * @return {@link #START_ELEMENT}, {@link #END_ELEMENT}, or {@link #END_DOCUMENT}.
+   */
+  private int nextElement() throws XMLStreamException, UnsupportedStructureException
+  {
+    while (xr.hasNext())
+    {
+      int nEvent = xr.next();
+      switch (nEvent)
+      {
+      case START_ELEMENT:
+      case END_ELEMENT:
+        return nEvent;
+      case DTD:
+      case ENTITY_REFERENCE:
+        throw new UnsupportedStructureException("DTD or unresolved entity");
+      }
+    }
+    return END_DOCUMENT;
+  }
+
+  /**
+   * Reads the character data of the current element into {@link #aCdata} and advances to the
+   * end tag.
+   *
+   * @return <code>true</code> if the element has character data.
+   */
+  private boolean readText() throws XMLStreamException, UnsupportedStructureException
+  {
+    nCdata = 0;
+    boolean bCdata = false;
+    while (true)
+    {
+      int nEvent = xr.next();
+      switch (nEvent)
+      {
+      case CHARACTERS:
+      case CDATA:
+      case SPACE:
+        int nLen = xr.getTextLength();
+        if (nCdata+nLen>aCdata.length)
+        {
+          char[] aGhost = aCdata;
+          aCdata = new char[Math.max(2*aGhost.length,nCdata+nLen)];
+          System.arraycopy(aGhost,0,aCdata,0,nCdata);
+        }
+        System.arraycopy(xr.getTextCharacters(),xr.getTextStart(),aCdata,nCdata,nLen);
+        nCdata += nLen;
+        bCdata  = true;
+        break;
+      case END_ELEMENT:
+        return bCdata;
+      case START_ELEMENT:
+        throw new UnsupportedStructureException("Nested element in <"+xr.getLocalName()+">");
+      case ENTITY_REFERENCE:
+        throw new UnsupportedStructureException("Unresolved entity");
+      }
+    }
+  }
+
+  /**
+   * Advances to the end tag of the current element without collecting character data.
+   */
+  private void skipElement() throws XMLStreamException, UnsupportedStructureException
+  {
+    for (int nDepth=1; nDepth>0; )
+      switch (nextElement())
+      {
+      case START_ELEMENT: nDepth++; break;
+      case END_ELEMENT  : nDepth--; break;
+      case END_DOCUMENT : throw new XMLStreamException("Unexpected end of document");
+      }
+  }
+
+  private String attribute(String sName)
+  {
+    for (int i=0; i<xr.getAttributeCount(); i++)
+      if (sName.equals(xr.getAttributeLocalName(i)))
+        return xr.getAttributeValue(i);
+    return null;
+  }
+
+  private void warning(String sMsg)
+  {
+    Location l = xr.getLocation();
+    lWarnings.add(new SAXParseException(sMsg,l.getPublicId(),l.getSystemId(),l.getLineNumber(),
+      l.getColumnNumber()));
+  }
+
+}
+
+// EOF
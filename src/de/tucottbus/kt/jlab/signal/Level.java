@@ -2,6 +2,8 @@
 
 package de.tucottbus.kt.jlab.signal;
 
+import de.tucottbus.kt.jlab.kernel.JlFastLog;
+
 /**
  * This class provides utilities for (sound pressure) level computation.
  * 
@@ -115,6 +117,86 @@ public class Level
     return ampToLevel(aAmp,nRef,-96);
   }
 
+  /**
+   * Computes the levels of an array amplitude values using a table-based logarithm. The absolute
+   * error of the levels is bounded by 20&middot;lg(e)&middot;{@link JlFastLog#getMaxError()}.
+   *
+   * @param aAmp
+   *          The array of amplitude values, will be overwritten with the level values.
+   * @param nRef
+   *          The reference value (0 dB).
+   * @param nMin
+   *          The minimal level in dB.
+   * @param iLog
+   *          The fast logarithm, <code>null</code> for {@link JlFastLog#getInstance()}.
+   * @return <code>aAmp</code> filled with the level values.
+   */
+  public static double[] ampToLevelFast(double[] aAmp, double nRef, double nMin, JlFastLog iLog)
+  {
+    if (aAmp==null) return null;
+    if (iLog==null) iLog = JlFastLog.getInstance();
+    double nRefLevel = 20*Math.log10(nRef);
+    for (int i=0; i<aAmp.length; i++)
+      aAmp[i]=Math.max(20*iLog.log10(aAmp[i])-nRefLevel,nMin);
+    return aAmp;
+  }
+
+  /**
+   * Computes the levels of an array amplitude values using a table-based logarithm. The absolute
+   * error of the levels is bounded by 20&middot;lg(e)&middot;{@link JlFastLog#getMaxError()}.
+   *
+   * @param aAmp
+   *          The array of amplitude values, will be overwritten with the level values.
+   * @param nRef
+   *          The reference value (0 dB).
+   * @param nMin
+   *          The minimal level in dB.
+   * @param iLog
+   *          The fast logarithm, <code>null</code> for {@link JlFastLog#getInstance()}.
+   * @return <code>aAmp</code> filled with the level values.
+   */
+  public static float[] ampToLevelFast(float[] aAmp, float nRef, float nMin, JlFastLog iLog)
+  {
+    if (aAmp==null) return null;
+    if (iLog==null) iLog = JlFastLog.getInstance();
+    float nRefLevel = (float)(20*Math.log10(nRef));
+    for (int i=0; i<aAmp.length; i++)
+      aAmp[i]=Math.max(20*iLog.log10(aAmp[i])-nRefLevel,nMin);
+    return aAmp;
+  }
+
+  /**
+   * Computes the levels of an array amplitude values using the default table-based logarithm.
+   * Equal to {@link #ampToLevelFast(double[], double, double, JlFastLog)
+   * ampToLevelFast(aAmp,nRef,-96,null)}.
+   *
+   * @param aAmp
+   *          The array of amplitude values, will be overwritten with the level values.
+   * @param nRef
+   *          The reference value (0 dB).
+   * @return <code>aAmp</code> filled with the level values.
+   */
+  public static double[] ampToLevelFast(double[] aAmp, double nRef)
+  {
+    return ampToLevelFast(aAmp,nRef,-96,null);
+  }
+
+  /**
+   * Computes the levels of an array amplitude values using the default table-based logarithm.
+   * Equal to {@link #ampToLevelFast(float[], float, float, JlFastLog)
+   * ampToLevelFast(aAmp,nRef,-96,null)}.
+   *
+   * @param aAmp
+   *          The array of amplitude values, will be overwritten with the level values.
+   * @param nRef
+   *          The reference value (0 dB).
+   * @return <code>aAmp</code> filled with the level values.
+   */
+  public static float[] ampToLevelFast(float[] aAmp, float nRef)
+  {
+    return ampToLevelFast(aAmp,nRef,-96,null);
+  }
+
   /**
    * Computes the amplitude value of a level.
    * 
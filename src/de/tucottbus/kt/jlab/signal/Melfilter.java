@@ -13,6 +13,7 @@ package de.tucottbus.kt.jlab.signal;
 import java.text.DecimalFormat;
 import java.util.Random;
 
+import de.tucottbus.kt.jlab.kernel.JlFastLog;
 import de.tucottbus.kt.jlab.kernel.JlFifoQueue;
 import de.tucottbus.kt.jlab.kernel.JlObject;
 
@@ -64,6 +65,7 @@ public class Melfilter extends JlFifoQueue
   protected              convcore c;
   private   final        int      nWhatToDo; 
   protected final        Random   rand             = new Random(0);
+  protected volatile     JlFastLog iFastLog        = null;                      // table-based logarithm (null: use Math.log)
 
   /**
    * Creates a new <code>JlMelfilter</code> object with the given capacity and 
@@ -113,6 +115,38 @@ public class Melfilter extends JlFifoQueue
 
   }
   
+  /**
+   * Sets a table-based logarithm to be used instead of {@link Math#log(double)} when computing
+   * logarithmic spectra. The output deviates from the exact logarithm by at most
+   * {@link JlFastLog#getMaxError()}.
+   * 
+   * @param iFastLog
+   *          The fast logarithm, <code>null</code> to use {@link Math#log(double)} (default).
+   */
+  public void setFastLog(JlFastLog iFastLog)
+  {
+    this.iFastLog = iFastLog;
+  }
+
+  /**
+   * Returns the table-based logarithm used for logarithmic spectra or <code>null</code> if
+   * {@link Math#log(double)} is used.
+   */
+  public JlFastLog getFastLog()
+  {
+    return iFastLog;
+  }
+
+  /**
+   * Computes the natural logarithm using the {@link #setFastLog(JlFastLog) fast logarithm}, if
+   * any.
+   */
+  protected final float log(float x)
+  {
+    JlFastLog iLog = iFastLog;
+    return iLog!=null ? iLog.log(x) : (float)Math.log(x);
+  }
+
   private final void init()
   {
     // Init sine and cosine tables
@@ -345,7 +379,7 @@ public class Melfilter extends JlFifoQueue
     {
       if (in[i] == Float.POSITIVE_INFINITY)in[i] = Float.MAX_VALUE;
       //out[i] = (float)(0.5 * (Math.log(in[i]) / log10));
-      out[i] = (float)Math.max(nMinLog,Math.log(in[i])); // 0.5 kommt magnitude wo die Wurzelbildung gespart werden kann
+      out[i] = Math.max(nMinLog,log(in[i])); // 0.5 kommt magnitude wo die Wurzelbildung gespart werden kann
       out[fftLen - 1 - i] = out[i];
     }     
     return out;
@@ -454,7 +488,7 @@ public class Melfilter extends JlFifoQueue
                  aOutputConv = c.convolve(aOutputMag);
                  for(int i = 0; i < dimension; i++)
                  {
-                   aOutputLog[i] = (float)Math.log(aOutputConv[i]) - nMinLog;
+                   aOutputLog[i] = log(aOutputConv[i]) - nMinLog;
                  }
                }
                else
@@ -0,0 +1,467 @@
+// jLab
+
+package de.tucottbus.kt.jlab.signal;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import de.tucottbus.kt.jlab.kernel.JlData;
+import de.tucottbus.kt.jlab.kernel.JlFifoQueue;
+
+/**
+ * Mel-frequency cepstral coefficient queue. The queue accepts <code>float[]</code> vectors of
+ * logarithmic Mel energies as produced by {@link Melfilter} (mode 0), computes the cepstral
+ * coefficients by a discrete cosine transform (DCT-II) and optionally applies cepstral mean
+ * normalization and appends delta and delta-delta coefficients.
+ *
+ * <p>Delta coefficients are computed by linear regression over &plusmn;{@link #getDeltaWin()}
+ * frames. The required look-ahead is kept in ring buffers of past frames, the output latency is
+ * <code>getDeltaWin()</code> frames for delta and twice as much for delta-delta coefficients. At
+ * the start and the end of an utterance (<code>null</code>) the first and last frames are
+ * replicated. The output vectors contain the cepstral coefficients followed by the delta and
+ * delta-delta coefficients, if any. <code>null</code> is passed to the output queue after all
+ * pending frames.</p>
+ *
+ * <p>For offline processing of complete utterances use
+ * {@link #compute(JlData, int, boolean, boolean, boolean, int)}.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public class Mfcc extends JlFifoQueue
+{
+  /**
+   * Ring buffer computing regression coefficients of a range of vector elements.
+   */
+  private static class Regression
+  {
+    private final float[][] aRing;      // Ring of vectors
+    private final float[]   aTmp;       // Buffer for replication
+    private final int       nWin;       // Regression half width
+    private final int       nFrom;      // First element to regress
+    private final int       nTo;        // First element to store regression to
+    private final int       nCount;     // Number of elements to regress
+    private final float     nNorm;      // Regression normalization
+    private long            nPushed;    // Vectors pushed since reset
+
+    Regression(int nWidth, int nFrom, int nTo, int nCount, int nWin)
+    {
+      this.aRing  = new float[2*nWin+1][nWidth];
+      this.aTmp   = new float[nWidth];
+      this.nWin   = nWin;
+      this.nFrom  = nFrom;
+      this.nTo    = nTo;
+      this.nCount = nCount;
+      float nSum = 0f;
+      for (int d=1; d<=nWin; d++) nSum += d*d;
+      this.nNorm  = 1f/(2*nSum);
+    }
+
+    /**
+     * Pushes a vector and returns the center vector with the regression coefficients filled in
+     * or <code>null</code> if the look-ahead is not yet complete. The returned array is reused.
+     */
+    float[] push(float[] x)
+    {
+      int R = aRing.length;
+      System.arraycopy(x,0,aRing[(int)(nPushed%R)],0,x.length);
+      if (nPushed==0)
+        for (int i=1; i<R; i++)
+          System.arraycopy(x,0,aRing[i],0,x.length);
+      nPushed++;
+      long nCenter = nPushed-1-nWin;
+      if (nCenter<0) return null;
+
+      float[] aCenter = aRing[(int)(nCenter%R)];
+      for (int k=0; k<nCount; k++)
+      {
+        float nSum = 0f;
+        for (int d=1; d<=nWin; d++)
+          nSum += d*(aRing[(int)((nCenter+d)%R)][nFrom+k]-aRing[(int)((nCenter-d+R)%R)][nFrom+k]);
+        aCenter[nTo+k] = nSum*nNorm;
+      }
+      return aCenter;
+    }
+
+    /**
+     * Returns the number of vectors pending in the look-ahead.
+     */
+    int pending()
+    {
+      return nPushed>0 ? nWin : 0;
+    }
+
+    /**
+     * Replicates the last vector pushed. Used to flush the look-ahead.
+     */
+    float[] pushLast()
+    {
+      int R = aRing.length;
+      System.arraycopy(aRing[(int)((nPushed-1)%R)],0,aTmp,0,aTmp.length);
+      return push(aTmp);
+    }
+
+    void reset()
+    {
+      nPushed = 0;
+    }
+  }
+
+  // Settings
+  private final int     nIn;                              // Number of Mel channels
+  private final int     nCoeffs;                          // Number of cepstral coefficients
+  private final boolean bDelta;                           // Compute delta coefficients
+  private final boolean bDeltaDelta;                      // Compute delta-delta coefficients
+  private final int     nDeltaWin;                        // Regression half width
+  private boolean       bCmn            = false;          // Cepstral mean normalization
+  private float         nCmnAlpha       = 0.005f;         // CMN adaption rate
+
+  // State
+  private final float[][] aCos;                           // DCT table
+  private final float[]   aCep;                           // Current output vector
+  private final float[]   aMean;                          // Running cepstral mean
+  private long            nFrames       = 0;              // Frames since start of utterance
+  private final Regression iDelta;                        // Delta regression
+  private final Regression iDeltaDelta;                   // Delta-delta regression
+
+  /**
+   * Creates a new MFCC queue computing 13 cepstral coefficients and delta and delta-delta
+   * coefficients over &plusmn;2 frames from 30 Mel channels.
+   *
+   * @param nCapacity
+   *          The maximal number of vectors to be held in the queue (0 for infinite).
+   * @param iOutputQueue
+   *          The output queue (may be <code>null</code>).
+   */
+  public Mfcc(int nCapacity, JlFifoQueue iOutputQueue)
+  {
+    this(nCapacity,iOutputQueue,30,13,true,true,2);
+  }
+
+  /**
+   * Creates a new MFCC queue.
+   *
+   * @param nCapacity
+   *          The maximal number of vectors to be held in the queue (0 for infinite).
+   * @param iOutputQueue
+   *          The output queue (may be <code>null</code>).
+   * @param nIn
+   *          The number of Mel channels. Longer input vectors are truncated.
+   * @param nCoeffs
+   *          The number of cepstral coefficients (including <i>c</i><sub>0</sub>).
+   * @param bDelta
+   *          Append delta coefficients.
+   * @param bDeltaDelta
+   *          Append delta-delta coefficients (implies <code>bDelta</code>).
+   * @param nDeltaWin
+   *          The regression half width in frames.
+   * @throws IllegalArgumentException
+   *          If any of the dimensions is out of range.
+   */
+  public Mfcc(int nCapacity, JlFifoQueue iOutputQueue, int nIn, int nCoeffs, boolean bDelta,
+    boolean bDeltaDelta, int nDeltaWin)
+  {
+    super(nCapacity,iOutputQueue);
+    if (nIn<=0 || nCoeffs<=0 || nCoeffs>nIn)
+      throw new IllegalArgumentException("Illegal dimensions (nIn=" + nIn + ", nCoeffs="
+        + nCoeffs + ")");
+    if (nDeltaWin<=0 && (bDelta || bDeltaDelta))
+      throw new IllegalArgumentException("nDeltaWin (" + nDeltaWin + ") must be positive");
+    this.nIn         = nIn;
+    this.nCoeffs     = nCoeffs;
+    this.bDelta      = bDelta || bDeltaDelta;
+    this.bDeltaDelta = bDeltaDelta;
+    this.nDeltaWin   = nDeltaWin;
+    this.aCos        = createDctTable(nIn,nCoeffs);
+    this.aCep        = new float[getOutputDimension()];
+    this.aMean       = new float[nCoeffs];
+    int nW = getOutputDimension();
+    this.iDelta      = this.bDelta ? new Regression(nW,0,nCoeffs,nCoeffs,nDeltaWin) : null;
+    this.iDeltaDelta = bDeltaDelta ? new Regression(nW,nCoeffs,2*nCoeffs,nCoeffs,nDeltaWin) : null;
+  }
+
+  // -- Queue implementation --
+
+  /**
+   * Implementation of <code>JlFifoQueue.process</code>.
+   */
+  protected void process(boolean bFlush)
+  {
+    while (length()>0)
+    {
+      Object iBuffer = get(HEAD);
+      if (iBuffer==null)
+      {
+        // End of utterance: flush look-ahead
+        if (iDelta!=null)
+          for (int i=iDelta.pending(); i>0; i--)
+            emitDelta(iDelta.pushLast());
+        if (iDeltaDelta!=null)
+          for (int i=iDeltaDelta.pending(); i>0; i--)
+            emit(iDeltaDelta.pushLast());
+        if (iOutputQueue!=null) iOutputQueue.put(null);
+        reset();
+      }
+      else if (iBuffer instanceof float[])
+      {
+        float[] aIn = (float[])iBuffer;
+        if (aIn.length<nIn)
+        {
+          remove(HEAD);
+          throw new IllegalArgumentException("Input vector too short (" + aIn.length + "<"
+            + nIn + ")");
+        }
+        dct(aCos,aIn,aCep);
+        if (bCmn)
+        {
+          float nW = Math.max(1f/(nFrames+1),nCmnAlpha);
+          for (int k=0; k<nCoeffs; k++)
+          {
+            aMean[k] += nW*(aCep[k]-aMean[k]);
+            aCep[k] -= aMean[k];
+          }
+        }
+        nFrames++;
+        if (iDelta!=null) emitDelta(iDelta.push(aCep));
+        else emit(aCep);
+      }
+      else
+      {
+        remove(HEAD);
+        throw new IllegalArgumentException("Invalid buffer type ("
+          + iBuffer.getClass().getSimpleName() + ") for this queue (should be float[])");
+      }
+      remove(HEAD);
+      if (!bFlush) break;
+    }
+  }
+
+  /**
+   * Passes a vector with delta coefficients to the delta-delta regression or to the output.
+   */
+  private void emitDelta(float[] x)
+  {
+    if (x==null) return;
+    if (iDeltaDelta!=null) emit(iDeltaDelta.push(x));
+    else emit(x);
+  }
+
+  /**
+   * Passes a copy of a complete vector to the output queue.
+   */
+  private void emit(float[] x)
+  {
+    if (x==null || iOutputQueue==null) return;
+    iOutputQueue.put(x.clone());
+  }
+
+  /**
+   * Resets the utterance state.
+   */
+  private void reset()
+  {
+    nFrames = 0;
+    Arrays.fill(aMean,0f);
+    if (iDelta!=null) iDelta.reset();
+    if (iDeltaDelta!=null) iDeltaDelta.reset();
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Returns the dimension of the output vectors.
+   */
+  public int getOutputDimension()
+  {
+    return nCoeffs*(1+(bDelta?1:0)+(bDeltaDelta?1:0));
+  }
+
+  /**
+   * Returns the number of cepstral coefficients.
+   */
+  public int getCoeffs()
+  {
+    return nCoeffs;
+  }
+
+  /**
+   * Returns the regression half width in frames.
+   */
+  public int getDeltaWin()
+  {
+    return nDeltaWin;
+  }
+
+  /**
+   * Determines if cepstral mean normalization is enabled.
+   */
+  public boolean isCmn()
+  {
+    return bCmn;
+  }
+
+  /**
+   * Enables or disables running cepstral mean normalization. The mean is estimated by a
+   * cumulative average over the first 1/<code>nAlpha</code> frames of an utterance and by an
+   * exponential average afterwards.
+   *
+   * @param bCmn
+   *          Enable normalization.
+   * @param nAlpha
+   *          The adaption rate, 0 &lt; <code>nAlpha</code> &le; 1.
+   */
+  public void setCmn(boolean bCmn, float nAlpha)
+  {
+    if (nAlpha<=0f || nAlpha>1f)
+      throw new IllegalArgumentException("nAlpha (" + nAlpha + ") out of range (0,1]");
+    this.bCmn      = bCmn;
+    this.nCmnAlpha = nAlpha;
+  }
+
+  // -- Static API --
+
+  /**
+   * Creates a table of DCT-II basis functions.
+   *
+   * @param nIn
+   *          The number of input values.
+   * @param nCoeffs
+   *          The number of coefficients.
+   * @return An array <code>a[nCoeffs][nIn]</code>.
+   */
+  public static float[][] createDctTable(int nIn, int nCoeffs)
+  {
+    float[][] aCos  = new float[nCoeffs][nIn];
+    double    nNorm = Math.sqrt(2./nIn);
+    for (int k=0; k<nCoeffs; k++)
+      for (int n=0; n<nIn; n++)
+        aCos[k][n] = (float)(nNorm*Math.cos(Math.PI*k*(n+0.5)/nIn));
+    return aCos;
+  }
+
+  /**
+   * Computes a DCT-II using a table created by {@link #createDctTable(int, int)}.
+   *
+   * @param aCos
+   *          The table.
+   * @param aIn
+   *          The input values (at least <code>aCos[0].length</code>).
+   * @param aOut
+   *          Array to store the coefficients to (at least <code>aCos.length</code>).
+   */
+  public static void dct(float[][] aCos, float[] aIn, float[] aOut)
+  {
+    for (int k=0; k<aCos.length; k++)
+    {
+      float[] aBase = aCos[k];
+      float   nSum  = 0f;
+      for (int n=0; n<aBase.length; n++)
+        nSum += aBase[n]*aIn[n];
+      aOut[k] = nSum;
+    }
+  }
+
+  /**
+   * Computes cepstral coefficients and, optionally, delta and delta-delta coefficients for a
+   * complete utterance. Records are processed in parallel. Unlike the queue, cepstral mean
+   * normalization subtracts the utterance mean.
+   *
+   * @param idMel
+   *          The logarithmic Mel energies, one record per frame, one numeric component per
+   *          channel.
+   * @param nCoeffs
+   *          The number of cepstral coefficients (including <i>c</i><sub>0</sub>).
+   * @param bCmn
+   *          Subtract the cepstral mean.
+   * @param bDelta
+   *          Append delta coefficients.
+   * @param bDeltaDelta
+   *          Append delta-delta coefficients (implies <code>bDelta</code>).
+   * @param nDeltaWin
+   *          The regression half width in frames.
+   * @return A new data instance containing one <code>float</code> component per coefficient
+   *          named <code>c</code><i>k</i>, <code>d</code><i>k</i> and <code>dd</code><i>k</i>.
+   * @throws IllegalArgumentException
+   *          If any of the dimensions is out of range.
+   */
+  public static JlData compute(JlData idMel, int nCoeffs, boolean bCmn, boolean bDelta,
+    boolean bDeltaDelta, int nDeltaWin)
+  {
+    final int nIn = idMel.getDimension();
+    final int nR  = idMel.getLength();
+    if (nIn<=0 || nCoeffs<=0 || nCoeffs>nIn)
+      throw new IllegalArgumentException("Illegal dimensions (nIn=" + nIn + ", nCoeffs="
+        + nCoeffs + ")");
+    if (nDeltaWin<=0 && (bDelta || bDeltaDelta))
+      throw new IllegalArgumentException("nDeltaWin (" + nDeltaWin + ") must be positive");
+    bDelta = bDelta || bDeltaDelta;
+
+    // Result
+    JlData idCep = new JlData();
+    idCep.dcopy(idMel);
+    for (int k=0; k<nCoeffs; k++) idCep.addComp(float.class,"c"+k);
+    if (bDelta) for (int k=0; k<nCoeffs; k++) idCep.addComp(float.class,"d"+k);
+    if (bDeltaDelta) for (int k=0; k<nCoeffs; k++) idCep.addComp(float.class,"dd"+k);
+    idCep.allocate(nR);
+    idCep.setNRecs(nR);
+    if (nR==0) return idCep;
+    final float[][] aOut = new float[idCep.getDimension()][];
+    for (int nC=0; nC<aOut.length; nC++) aOut[nC] = (float[])idCep.getComp(nC);
+
+    // Cepstra
+    final float[][] aCos = createDctTable(nIn,nCoeffs);
+    final float[][] aMel = new float[nIn][];
+    for (int nC=0; nC<nIn; nC++)
+      if (idMel.getCompType(nC)==float.class)
+        aMel[nC] = (float[])idMel.getComp(nC);
+    IntStream.range(0,nR).parallel().forEach(nRec ->
+    {
+      float[] aIn = new float[nIn];
+      float[] aCep = new float[nCoeffs];
+      for (int nC=0; nC<nIn; nC++)
+        aIn[nC] = aMel[nC]!=null ? aMel[nC][nRec] : (float)idMel.dFetch(nRec,nC);
+      dct(aCos,aIn,aCep);
+      for (int k=0; k<nCoeffs; k++) aOut[k][nRec] = aCep[k];
+    });
+
+    // Cepstral mean normalization
+    if (bCmn)
+      IntStream.range(0,nCoeffs).parallel().forEach(k ->
+      {
+        double nSum = 0.;
+        for (int nRec=0; nRec<nR; nRec++) nSum += aOut[k][nRec];
+        float nMean = (float)(nSum/nR);
+        for (int nRec=0; nRec<nR; nRec++) aOut[k][nRec] -= nMean;
+      });
+
+    // Dynamic features
+    if (bDelta) regress(aOut,0,nCoeffs,nCoeffs,nR,nDeltaWin);
+    if (bDeltaDelta) regress(aOut,nCoeffs,2*nCoeffs,nCoeffs,nR,nDeltaWin);
+    return idCep;
+  }
+
+  /**
+   * Computes regression coefficients over component arrays, replicating the first and last
+   * records.
+   */
+  private static void regress(final float[][] aComps, final int nFrom, final int nTo,
+    final int nCount, final int nR, final int nWin)
+  {
+    float nSum = 0f;
+    for (int d=1; d<=nWin; d++) nSum += d*d;
+    final float nNorm = 1f/(2*nSum);
+    IntStream.range(0,nCount).parallel().forEach(k ->
+    {
+      float[] x = aComps[nFrom+k];
+      float[] y = aComps[nTo+k];
+      for (int nRec=0; nRec<nR; nRec++)
+      {
+        float nReg = 0f;
+        for (int d=1; d<=nWin; d++)
+          nReg += d*(x[Math.min(nRec+d,nR-1)]-x[Math.max(nRec-d,0)]);
+        y[nRec] = nReg*nNorm;
+      }
+    });
+  }
+}
+
+// EOF
@@ -0,0 +1,646 @@
+// jLab
+
+package de.tucottbus.kt.jlab.signal;
+
+import java.util.stream.IntStream;
+
+import de.tucottbus.kt.jlab.kernel.JlData;
+import de.tucottbus.kt.jlab.kernel.JlFifoQueue;
+
+/**
+ * Fundamental frequency (F0) tracker queue. The queue accepts <code>short[]</code>,
+ * <code>float[]</code> or <code>double[]</code> sample buffers and emits one
+ * <code>float[]{F0}</code> vector per frame, F0 being 0 for unvoiced frames. Pass the output to a
+ * {@link de.tucottbus.kt.jlab.kernel.JlDataLogger JlDataLogger} to obtain a data component which
+ * can be displayed as an oscillogram.
+ *
+ * <p>The algorithm follows the autocorrelation method by P.&nbsp;Boersma: each frame of three
+ * periods of the {@link #getFMin() minimal F0} is Hann-windowed, its autocorrelation function is
+ * computed by {@link FFT} and normalized by the autocorrelation of the window. The
+ * {@link #getCandidates() strongest} local maxima in the admissible lag range are F0 candidates,
+ * an unvoiced candidate is added based on the voicing and silence thresholds. The final path
+ * through the candidates is found by Viterbi search with costs for voiced/unvoiced transitions and
+ * octave jumps. In the queue, decisions are delayed by a bounded {@link #getLookahead()
+ * look-ahead}; {@link #track(JlData, int, double, double)} searches complete utterances.</p>
+ *
+ * <p><code>null</code> (end of utterance) flushes the look-ahead and is passed to the output queue.
+ * </p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public class Pitch extends JlFifoQueue
+{
+  /**
+   * F0 candidates of one frame. Index 0 is the unvoiced candidate.
+   */
+  static class Candidates
+  {
+    final float[] aFreq;
+    final float[] aStrength;
+    int           nCount;
+
+    Candidates(int nMax)
+    {
+      aFreq     = new float[nMax+1];
+      aStrength = new float[nMax+1];
+    }
+  }
+
+  /**
+   * Frame analyzer holding the FFT buffers. Not thread-safe.
+   */
+  static class Analyzer
+  {
+    private final double   nSampleRate;
+    private final int      nFrameLen;
+    private final int      nMinLag;
+    private final int      nMaxLag;
+    private final double[] aWindow;
+    private final double[] aWinAcf;
+    private final double[] aReal;
+    private final double[] aImag;
+
+    Analyzer(double nSampleRate, int nFrameLen, double nFMin, double nFMax)
+    {
+      this.nSampleRate = nSampleRate;
+      this.nFrameLen   = nFrameLen;
+      int nFftLen = 1;
+      while (nFftLen<2*nFrameLen) nFftLen<<=1;
+      this.aWindow = Window.get(Window.HANN,nFrameLen,false);
+      this.aReal   = new double[nFftLen];
+      this.aImag   = new double[nFftLen];
+      this.nMinLag = Math.max((int)Math.floor(nSampleRate/nFMax),2);
+      this.nMaxLag = Math.min((int)Math.ceil(nSampleRate/nFMin),nFrameLen/2);
+
+      // Normalized autocorrelation of the window
+      for (int i=0; i<nFftLen; i++)
+      {
+        aReal[i] = i<nFrameLen ? aWindow[i] : 0.;
+        aImag[i] = 0.;
+      }
+      acf();
+      this.aWinAcf = new double[nMaxLag+2];
+      for (int i=0; i<aWinAcf.length; i++)
+        aWinAcf[i] = aReal[i]/aReal[0];
+    }
+
+    /**
+     * Replaces the contents of the FFT buffers by its (unnormalized) autocorrelation function.
+     */
+    private void acf()
+    {
+      FFT.fft(aReal,aImag,true);
+      for (int i=0; i<aReal.length; i++)
+      {
+        aReal[i] = aReal[i]*aReal[i]+aImag[i]*aImag[i];
+        aImag[i] = 0.;
+      }
+      FFT.fft(aReal,aImag,false);
+    }
+
+    /**
+     * Computes the F0 candidates of a frame.
+     *
+     * @param aFrame
+     *          The samples.
+     * @param nOfs
+     *          The index of the first sample of the frame in <code>aFrame</code>.
+     * @param nGlobalPeak
+     *          The absolute peak of the signal (or of the signal so far).
+     * @param iParams
+     *          The parameters.
+     * @param iCand
+     *          The candidates to fill in.
+     */
+    void analyze(double[] aFrame, int nOfs, double nGlobalPeak, Params iParams,
+      Candidates iCand)
+    {
+      // Remove mean, window
+      double nMean = 0.;
+      double nPeak = 0.;
+      for (int i=0; i<nFrameLen; i++) nMean += aFrame[nOfs+i];
+      nMean /= nFrameLen;
+      for (int i=0; i<aReal.length; i++)
+      {
+        if (i<nFrameLen)
+        {
+          double x = aFrame[nOfs+i]-nMean;
+          nPeak = Math.max(nPeak,Math.abs(x));
+          aReal[i] = x*aWindow[i];
+        }
+        else aReal[i] = 0.;
+        aImag[i] = 0.;
+      }
+
+      // Unvoiced candidate
+      double nVt = iParams.nVoicingThreshold;
+      double nLocal = nGlobalPeak>0. ? nPeak/nGlobalPeak : 0.;
+      iCand.aFreq[0]     = 0f;
+      iCand.aStrength[0] = (float)(nVt+Math.max(0.,2.-nLocal/(iParams.nSilenceThreshold/(1.+nVt))));
+      iCand.nCount       = 1;
+      if (nPeak==0.) return;
+
+      // Normalized autocorrelation
+      acf();
+      double r0 = aReal[0];
+      for (int i=0; i<=nMaxLag+1; i++)
+        aReal[i] = aReal[i]/r0/aWinAcf[i];
+
+      // Voiced candidates: strongest local maxima
+      int nMax = iCand.aFreq.length;
+      for (int nLag=nMinLag; nLag<=nMaxLag; nLag++)
+      {
+        double rm = aReal[nLag-1], r = aReal[nLag], rp = aReal[nLag+1];
+        if (r<=rm || r<rp || r<0.5*nVt) continue;
+        double nDen   = rm-2*r+rp;
+        double nDelta = nDen<0. ? 0.5*(rm-rp)/nDen : 0.;
+        double nStr   = Math.min(r-0.25*(rm-rp)*nDelta,1.);
+        double nFreq  = nSampleRate/(nLag+nDelta);
+        nStr -= iParams.nOctaveBias*Math.log(iParams.nFMin*(nLag+nDelta)/nSampleRate)/Math.log(2.);
+
+        // Insert into candidate list sorted by strength
+        int i = iCand.nCount;
+        if (i==nMax)
+        {
+          if (nStr<=iCand.aStrength[nMax-1]) continue;
+          i--;
+        }
+        else iCand.nCount++;
+        for (; i>1 && iCand.aStrength[i-1]<nStr; i--)
+        {
+          iCand.aFreq[i]     = iCand.aFreq[i-1];
+          iCand.aStrength[i] = iCand.aStrength[i-1];
+        }
+        iCand.aFreq[i]     = (float)nFreq;
+        iCand.aStrength[i] = (float)nStr;
+      }
+    }
+  }
+
+  /**
+   * Tracker parameters.
+   */
+  static class Params
+  {
+    double nFMin              = 60.;
+    double nFMax              = 500.;
+    double nVoicingThreshold  = 0.45;
+    double nSilenceThreshold  = 0.03;
+    double nOctaveBias        = 0.01;
+    double nOctaveJumpCost    = 0.35;
+    double nVuvCost           = 0.14;
+    int    nCandidates        = 5;
+
+    /**
+     * Returns the transition score between two candidates.
+     */
+    final double transition(float nFreq1, float nFreq2)
+    {
+      if (nFreq1==0f && nFreq2==0f) return 0.;
+      if (nFreq1==0f || nFreq2==0f) return -nVuvCost;
+      return -nOctaveJumpCost*Math.abs(Math.log(nFreq1/nFreq2)/Math.log(2.));
+    }
+  }
+
+  // Settings
+  private final Params   iParams;
+  private final double   nSampleRate;                     // Sampling rate in Hz
+  private final int      nFrameLen;                       // Analysis frame length in samples
+  private final int      crate;                           // Frame rate in samples
+  private int            nLookahead    = 20;              // Viterbi look-ahead in frames
+
+  // State
+  private final Analyzer iAnalyzer;
+  private final double[] aBuffer;                         // Sample buffer (one frame)
+  private int            nFill         = 0;               // Samples in buffer
+  private double         nGlobalPeak   = 0.;              // Running absolute peak
+  private Candidates[]   aCand         = null;            // Candidate ring
+  private float[][]      aScore        = null;            // Score ring
+  private int[][]        aBack         = null;            // Back pointer ring
+  private long           nFrames       = 0;               // Frames analyzed
+  private long           nEmitted      = 0;               // Frames emitted
+
+  /**
+   * Creates a new F0 tracker queue for a F0 range of 60 to 500 Hz and a frame rate of 10 ms.
+   *
+   * @param nCapacity
+   *          The maximal number of buffers to be held in the queue (0 for infinite).
+   * @param iOutputQueue
+   *          The output queue (may be <code>null</code>).
+   * @param nSampleRate
+   *          The sampling rate in Hz.
+   */
+  public Pitch(int nCapacity, JlFifoQueue iOutputQueue, double nSampleRate)
+  {
+    this(nCapacity,iOutputQueue,nSampleRate,60.,500.,(int)Math.round(nSampleRate/100.));
+  }
+
+  /**
+   * Creates a new F0 tracker queue.
+   *
+   * @param nCapacity
+   *          The maximal number of buffers to be held in the queue (0 for infinite).
+   * @param iOutputQueue
+   *          The output queue (may be <code>null</code>).
+   * @param nSampleRate
+   *          The sampling rate in Hz.
+   * @param nFMin
+   *          The minimal F0 in Hz.
+   * @param nFMax
+   *          The maximal F0 in Hz.
+   * @param crate
+   *          The frame rate in samples.
+   * @throws IllegalArgumentException
+   *          If any of the parameters is out of range.
+   */
+  public Pitch(int nCapacity, JlFifoQueue iOutputQueue, double nSampleRate, double nFMin,
+    double nFMax, int crate)
+  {
+    super(nCapacity,iOutputQueue);
+    checkParams(nSampleRate,nFMin,nFMax,crate);
+    this.iParams     = new Params();
+    iParams.nFMin    = nFMin;
+    iParams.nFMax    = nFMax;
+    this.nSampleRate = nSampleRate;
+    this.nFrameLen   = getFrameLen(nSampleRate,nFMin);
+    this.crate       = crate;
+    this.iAnalyzer   = new Analyzer(nSampleRate,nFrameLen,nFMin,nFMax);
+    this.aBuffer     = new double[nFrameLen];
+    setLookahead(nLookahead);
+  }
+
+  private static void checkParams(double nSampleRate, double nFMin, double nFMax, int crate)
+  {
+    if (nSampleRate<=0.)
+      throw new IllegalArgumentException("nSampleRate (" + nSampleRate + ") must be positive");
+    if (nFMin<=0. || nFMax<=nFMin || nFMax>=nSampleRate/4)
+      throw new IllegalArgumentException("Illegal F0 range (" + nFMin + "..." + nFMax + " Hz)");
+    if (crate<=0)
+      throw new IllegalArgumentException("crate (" + crate + ") must be positive");
+  }
+
+  /**
+   * Returns the analysis frame length (three periods of the minimal F0).
+   */
+  private static int getFrameLen(double nSampleRate, double nFMin)
+  {
+    return (int)Math.ceil(3.*nSampleRate/nFMin);
+  }
+
+  // -- Queue implementation --
+
+  /**
+   * Implementation of <code>JlFifoQueue.process</code>.
+   */
+  protected void process(boolean bFlush)
+  {
+    while (length()>0)
+    {
+      Object iBuffer = get(HEAD);
+      if (iBuffer==null)
+      {
+        finish();
+        if (iOutputQueue!=null) iOutputQueue.put(null);
+      }
+      else
+      {
+        if (!(iBuffer instanceof short[] || iBuffer instanceof float[]
+          || iBuffer instanceof double[]))
+        {
+          remove(HEAD);
+          throw new IllegalArgumentException("Invalid buffer type ("
+            + iBuffer.getClass().getSimpleName() + ") for this queue (should be short[], "
+            + "float[] or double[])");
+        }
+        if (iBuffer instanceof short[])
+          for (short x : (short[])iBuffer) push(x);
+        else if (iBuffer instanceof float[])
+          for (float x : (float[])iBuffer) push(x);
+        else
+          for (double x : (double[])iBuffer) push(x);
+      }
+      remove(HEAD);
+      if (!bFlush) break;
+    }
+  }
+
+  /**
+   * Appends one sample to the frame buffer and analyzes the frame when complete.
+   */
+  private void push(double x)
+  {
+    nGlobalPeak = Math.max(nGlobalPeak,Math.abs(x));
+    aBuffer[nFill++] = x;
+    if (nFill==nFrameLen)
+    {
+      step();
+      int nKeep = Math.max(nFrameLen-crate,0);
+      System.arraycopy(aBuffer,nFrameLen-nKeep,aBuffer,0,nKeep);
+      nFill = nKeep;
+    }
+  }
+
+  /**
+   * Analyzes the buffered frame and performs one Viterbi step.
+   */
+  private void step()
+  {
+    int R = aCand.length;
+    int t = (int)(nFrames%R);
+    Candidates iCand = aCand[t];
+    iAnalyzer.analyze(aBuffer,0,nGlobalPeak,iParams,iCand);
+    if (nFrames==0)
+      for (int j=0; j<iCand.nCount; j++)
+      {
+        aScore[t][j] = iCand.aStrength[j];
+        aBack[t][j]  = -1;
+      }
+    else
+      viterbi(aCand[(t-1+R)%R],aScore[(t-1+R)%R],iCand,aScore[t],aBack[t],iParams);
+    nFrames++;
+
+    // Emit the frame leaving the look-ahead
+    if (nFrames-nEmitted>nLookahead)
+      emit(1);
+  }
+
+  /**
+   * Emits all pending frames and resets the tracker.
+   */
+  private void finish()
+  {
+    if (nFrames>nEmitted) emit((int)(nFrames-nEmitted));
+    nFrames     = 0;
+    nEmitted    = 0;
+    nFill       = 0;
+    nGlobalPeak = 0.;
+  }
+
+  /**
+   * Backtracks from the best state of the last frame and emits the oldest pending frames.
+   *
+   * @param nCount
+   *          The number of frames to emit.
+   */
+  private void emit(int nCount)
+  {
+    int   R     = aCand.length;
+    int   nLast = (int)((nFrames-1)%R);
+    int   nPend = (int)(nFrames-nEmitted);
+    int[] aPath = new int[nPend];
+    int   j     = 0;
+    for (int i=1; i<aCand[nLast].nCount; i++)
+      if (aScore[nLast][i]>aScore[nLast][j]) j = i;
+    for (int k=nPend-1; k>=0; k--)
+    {
+      aPath[k] = j;
+      if (k>0) j = aBack[(int)((nEmitted+k)%R)][j];
+    }
+    for (int k=0; k<nCount; k++)
+    {
+      Candidates iCand = aCand[(int)((nEmitted+k)%R)];
+      if (iOutputQueue!=null) iOutputQueue.put(new float[]{ iCand.aFreq[aPath[k]] });
+    }
+    nEmitted += nCount;
+  }
+
+  /**
+   * Performs one Viterbi step. Scores are normalized to a maximum of zero.
+   */
+  static void viterbi(Candidates iPrev, float[] aPrevScore, Candidates iCand, float[] aScore,
+    int[] aBack, Params iParams)
+  {
+    float nMax = Float.NEGATIVE_INFINITY;
+    for (int j=0; j<iCand.nCount; j++)
+    {
+      double nBest = Double.NEGATIVE_INFINITY;
+      int    iBest = 0;
+      for (int i=0; i<iPrev.nCount; i++)
+      {
+        double nS = aPrevScore[i]+iParams.transition(iPrev.aFreq[i],iCand.aFreq[j]);
+        if (nS>nBest) { nBest=nS; iBest=i; }
+      }
+      aScore[j] = (float)(nBest+iCand.aStrength[j]);
+      aBack[j]  = iBest;
+      nMax = Math.max(nMax,aScore[j]);
+    }
+    for (int j=0; j<iCand.nCount; j++) aScore[j] -= nMax;
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Returns the minimal F0 in Hz.
+   */
+  public double getFMin()
+  {
+    return iParams.nFMin;
+  }
+
+  /**
+   * Returns the maximal F0 in Hz.
+   */
+  public double getFMax()
+  {
+    return iParams.nFMax;
+  }
+
+  /**
+   * Returns the analysis frame length in samples.
+   */
+  public int getFrameLen()
+  {
+    return nFrameLen;
+  }
+
+  /**
+   * Returns the frame rate in samples.
+   */
+  public int getCrate()
+  {
+    return crate;
+  }
+
+  /**
+   * Returns the sampling rate in Hz.
+   */
+  public double getSampleRate()
+  {
+    return nSampleRate;
+  }
+
+  /**
+   * Returns the Viterbi look-ahead in frames.
+   */
+  public int getLookahead()
+  {
+    return nLookahead;
+  }
+
+  /**
+   * Sets the Viterbi look-ahead, i.e. the delay of the output. Must not be called while buffers are
+   * being processed.
+   *
+   * @param nLookahead
+   *          The look-ahead in frames, 0 for no delay (the decision for each frame is made when
+   *          it is analyzed).
+   */
+  public synchronized void setLookahead(int nLookahead)
+  {
+    this.nLookahead = Math.max(nLookahead,0);
+    int R = this.nLookahead+2; // Pending frames plus the previous frame of the Viterbi step
+    aCand  = new Candidates[R];
+    aScore = new float[R][iParams.nCandidates+1];
+    aBack  = new int[R][iParams.nCandidates+1];
+    for (int i=0; i<R; i++) aCand[i] = new Candidates(iParams.nCandidates);
+    nFrames  = 0;
+    nEmitted = 0;
+  }
+
+  /**
+   * Returns the maximal number of voiced candidates per frame.
+   */
+  public int getCandidates()
+  {
+    return iParams.nCandidates;
+  }
+
+  /**
+   * Returns the voicing threshold.
+   */
+  public double getVoicingThreshold()
+  {
+    return iParams.nVoicingThreshold;
+  }
+
+  /**
+   * Sets the voicing threshold, i.e. the normalized autocorrelation required for voiced frames.
+   *
+   * @param nThreshold
+   *          The threshold (default 0.45).
+   */
+  public void setVoicingThreshold(double nThreshold)
+  {
+    iParams.nVoicingThreshold = nThreshold;
+  }
+
+  /**
+   * Returns the silence threshold.
+   */
+  public double getSilenceThreshold()
+  {
+    return iParams.nSilenceThreshold;
+  }
+
+  /**
+   * Sets the silence threshold relative to the absolute signal peak. Frames with lower peaks are
+   * likely to be unvoiced.
+   *
+   * @param nThreshold
+   *          The threshold (default 0.03).
+   */
+  public void setSilenceThreshold(double nThreshold)
+  {
+    iParams.nSilenceThreshold = nThreshold;
+  }
+
+  /**
+   * Sets the Viterbi transition costs.
+   *
+   * @param nOctaveJumpCost
+   *          The cost of a F0 change by one octave (default 0.35).
+   * @param nVuvCost
+   *          The cost of a voiced/unvoiced transition (default 0.14).
+   */
+  public void setTransitionCosts(double nOctaveJumpCost, double nVuvCost)
+  {
+    iParams.nOctaveJumpCost = nOctaveJumpCost;
+    iParams.nVuvCost        = nVuvCost;
+  }
+
+  // -- Static API --
+
+  /**
+   * Tracks the F0 of a complete signal using default parameters and a frame rate of 10 ms.
+   * Frames are analyzed in parallel, the Viterbi search covers the whole signal.
+   *
+   * @param idSignal
+   *          The signal. The sampling rate is derived from the record increment
+   *          <code>rinc</code>, which must be given in seconds.
+   * @param nComp
+   *          The index of the signal component.
+   * @param nFMin
+   *          The minimal F0 in Hz.
+   * @param nFMax
+   *          The maximal F0 in Hz.
+   * @return A new data instance with one <code>float</code> component <code>F0</code> in Hz, 0
+   *         for unvoiced frames.
+   * @throws IllegalArgumentException
+   *          If the sampling rate cannot be determined or any of the parameters is out of range.
+   */
+  public static JlData track(JlData idSignal, int nComp, double nFMin, double nFMax)
+  {
+    if (idSignal.rinc<=0.)
+      throw new IllegalArgumentException("Sampling rate unknown (rinc=" + idSignal.rinc + ")");
+    final double nSampleRate = 1./idSignal.rinc;
+    final int    crate       = (int)Math.round(nSampleRate/100.);
+    checkParams(nSampleRate,nFMin,nFMax,crate);
+    final Params iParams   = new Params();
+    iParams.nFMin          = nFMin;
+    iParams.nFMax          = nFMax;
+    final int    nFrameLen = getFrameLen(nSampleRate,nFMin);
+
+    // Get samples
+    final int nR = idSignal.getLength();
+    final double[] aX;
+    if (idSignal.getCompType(nComp)==double.class && ((double[])idSignal.getComp(nComp)).length==nR)
+      aX = (double[])idSignal.getComp(nComp);
+    else
+    {
+      aX = new double[nR];
+      for (int nRec=0; nRec<nR; nRec++) aX[nRec] = idSignal.dFetch(nRec,nComp);
+    }
+    double nPeak = 0.;
+    for (int nRec=0; nRec<nR; nRec++) nPeak = Math.max(nPeak,Math.abs(aX[nRec]));
+    final double nGlobalPeak = nPeak;
+
+    // Candidates (parallel)
+    final int nT = nR>=nFrameLen ? (nR-nFrameLen)/crate+1 : 0;
+    final Candidates[] aCand = new Candidates[nT];
+    final ThreadLocal<Analyzer> iAnalyzer = ThreadLocal.withInitial(
+      () -> new Analyzer(nSampleRate,nFrameLen,nFMin,nFMax));
+    IntStream.range(0,nT).parallel().forEach(t ->
+    {
+      aCand[t] = new Candidates(iParams.nCandidates);
+      iAnalyzer.get().analyze(aX,t*crate,nGlobalPeak,iParams,aCand[t]);
+    });
+
+    // Viterbi search
+    JlData idF0 = new JlData();
+    idF0.addComp(float.class,"F0");
+    idF0.allocate(nT);
+    idF0.setNRecs(nT);
+    idF0.rinc  = crate/nSampleRate;
+    idF0.rofs  = idSignal.rofs+0.5*nFrameLen/nSampleRate;
+    idF0.runit = "s";
+    idF0.vunit = "Hz";
+    if (nT==0) return idF0;
+    float[][] aScore = new float[nT][iParams.nCandidates+1];
+    int[][]   aBack  = new int[nT][iParams.nCandidates+1];
+    for (int j=0; j<aCand[0].nCount; j++) aScore[0][j] = aCand[0].aStrength[j];
+    for (int t=1; t<nT; t++)
+      viterbi(aCand[t-1],aScore[t-1],aCand[t],aScore[t],aBack[t],iParams);
+    float[] aF0 = (float[])idF0.getComp(0);
+    int j = 0;
+    for (int i=1; i<aCand[nT-1].nCount; i++)
+      if (aScore[nT-1][i]>aScore[nT-1][j]) j = i;
+    for (int t=nT-1; t>=0; t--)
+    {
+      aF0[t] = aCand[t].aFreq[j];
+      j = aBack[t][j];
+    }
+    return idF0;
+  }
+}
+
+// EOF
@@ -0,0 +1,577 @@
+// jLab
+
+package de.tucottbus.kt.jlab.signal;
+
+import java.util.ArrayDeque;
+import java.util.Vector;
+
+import de.tucottbus.kt.jlab.kernel.JlFifoQueue;
+
+/**
+ * Voice activity detection queue. The queue accepts <code>short[]</code> sample buffers, analyzes
+ * them in frames of {@link #getFrameLen() frame length} samples with a frame rate of
+ * {@link #getCrate() crate} samples, and classifies each frame as speech or non-speech based on
+ *
+ * <ul>
+ *   <li>the frame energy above an adaptive noise floor,</li>
+ *   <li>the zero-crossing rate and</li>
+ *   <li>the spectral flux (half-wave rectified change of the normalized magnitude spectrum).</li>
+ * </ul>
+ *
+ * <p>Frame decisions are smoothed by an onset and a hangover counter. Speech segments are
+ * reported to observers as {@link Segment} objects when they start and when they end.</p>
+ *
+ * <h3>Gating</h3>
+ * <p>If {@link #setGating(boolean) gating} is enabled (default), only speech samples are passed to
+ * the output queue. The samples of each speech segment are preceded by a pre-roll of
+ * {@link #getPreroll()} frames and followed by <code>null</code> (end of utterance). Otherwise all
+ * samples are passed unchanged. A <code>null</code> input buffer (end of stream) closes the
+ * current segment; it is passed to the output queue only if gating is disabled.</p>
+ *
+ * @author Matthias Wolff, BTU Cottbus-Senftenberg
+ */
+public class Vad extends JlFifoQueue
+{
+  /**
+   * A speech segment.
+   */
+  public static class Segment
+  {
+    /**
+     * Zero-based index of the first sample of this segment.
+     */
+    public final long nStart;
+
+    /**
+     * Zero-based index of the first sample after this segment, -1 if the segment is still open.
+     */
+    public long nEnd = -1;
+
+    Segment(long nStart)
+    {
+      this.nStart = nStart;
+    }
+
+    /**
+     * Determines if the segment is still open.
+     */
+    public boolean isOpen()
+    {
+      return nEnd<0;
+    }
+
+    /**
+     * Returns the length of this segment in samples or -1 if the segment is still open.
+     */
+    public long getLength()
+    {
+      return nEnd<0 ? -1 : nEnd-nStart;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Segment[" + nStart + "," + (nEnd<0 ? "..." : nEnd+"") + ")";
+    }
+  }
+
+  // Settings
+  private int      nFrameLen        = 400;                // Analysis frame length in samples
+  private int      crate            = 160;                // Frame rate in samples
+  private double   nThreshold       = 12.;                // Energy threshold above noise floor in dB
+  private double   nFluxThreshold   = 0.3;                // Spectral flux threshold (0...1)
+  private double   nZcrThreshold    = 0.25;               // Zero-crossing rate threshold (0...1)
+  private double   nFloorAdapt      = 0.02;               // Noise floor adaption rate (rising)
+  private double   nFloorDecay      = 0.1;                // Noise floor adaption rate (falling)
+  private double   nMinFloor        = 0.;                 // Lower bound of noise floor in dB
+  private int      nMinStatLen      = 30;                 // Frames per minimum statistics block
+  private int      nOnset           = 3;                  // Speech frames required to start a segment
+  private int      nHangover        = 30;                 // Non-speech frames required to end a segment
+  private int      nPreroll         = 10;                 // Frames passed before the onset
+  private boolean  bGating          = true;               // Pass speech samples only
+
+  // State
+  private short[]  aFrame           = null;               // Sliding analysis frame
+  private short[]  aHop             = null;               // Current hop being collected
+  private int      nHop             = 0;                  // Samples in current hop
+  private double[] aWindow          = null;               // Analysis window
+  private double[] aReal            = null;               // FFT buffer, real part
+  private double[] aImag            = null;               // FFT buffer, imaginary part
+  private double[] aSpec            = null;               // Previous normalized magnitude spectrum
+  private ArrayDeque<short[]> iPending = new ArrayDeque<short[]>(); // Hops awaiting a decision
+  private double   nFloor           = Double.NaN;         // Noise floor in dB
+  private double[] aBlockMin        = new double[10];     // Minimal levels of the last blocks
+  private int      nBlocks          = 0;                  // Completed minimum statistics blocks
+  private double   nCurMin          = Double.POSITIVE_INFINITY; // Minimal level of current block
+  private int      nCurFrames       = 0;                  // Frames in current block
+  private int      nSpeechRun       = 0;                  // Consecutive speech frames
+  private int      nSilenceRun      = 0;                  // Consecutive non-speech frames
+  private long     nSamples         = 0;                  // Samples analyzed so far
+  private long     nFrames          = 0;                  // Frames analyzed so far
+  private long     nSpeechFrames    = 0;                  // Frames within speech segments
+  private Segment  iSegment         = null;               // Current speech segment
+  private Vector<Segment> iSegments = new Vector<Segment>(); // Completed speech segments
+
+  /**
+   * Creates a new voice activity detection queue.
+   *
+   * @param nCapacity
+   *          The maximal number of buffers to be held in the queue (0 for infinite).
+   * @param iOutputQueue
+   *          The output queue (may be <code>null</code>).
+   */
+  public Vad(int nCapacity, JlFifoQueue iOutputQueue)
+  {
+    super(nCapacity,iOutputQueue);
+    init();
+  }
+
+  /**
+   * (Re-)initializes the analysis buffers.
+   */
+  private synchronized void init()
+  {
+    int nFftLen = 1;
+    while (nFftLen<nFrameLen) nFftLen<<=1;
+    aFrame  = new short[nFrameLen];
+    aHop    = new short[crate];
+    nHop    = 0;
+    aWindow = Window.get(Window.HANN,nFrameLen,false);
+    aReal   = new double[nFftLen];
+    aImag   = new double[nFftLen];
+    aSpec   = null;
+  }
+
+  // -- Queue implementation --
+
+  /**
+   * Implementation of <code>JlFifoQueue.process</code>.
+   */
+  protected void process(boolean bFlush)
+  {
+    while (length()>0)
+    {
+      Object iBuffer = get(HEAD);
+      if (iBuffer==null)
+        endOfStream();
+      else if (iBuffer instanceof short[])
+      {
+        short[] aBuffer = (short[])iBuffer;
+        if (!bGating && iOutputQueue!=null) iOutputQueue.put(aBuffer);
+        for (int i=0; i<aBuffer.length; )
+        {
+          int nCopy = Math.min(crate-nHop,aBuffer.length-i);
+          System.arraycopy(aBuffer,i,aHop,nHop,nCopy);
+          nHop += nCopy;
+          i    += nCopy;
+          if (nHop==crate) processHop();
+        }
+      }
+      else
+      {
+        remove(HEAD);
+        throw new IllegalArgumentException("Invalid buffer type ("
+          + iBuffer.getClass().getSimpleName() + ") for this queue (should be short[])");
+      }
+      remove(HEAD);
+      if (!bFlush) break;
+    }
+  }
+
+  /**
+   * Analyzes the frame ending with the current hop and passes the hop according to the smoothed
+   * decision.
+   */
+  private void processHop()
+  {
+    // Slide analysis frame
+    int nKeep = Math.max(nFrameLen-crate,0);
+    System.arraycopy(aFrame,nFrameLen-nKeep,aFrame,0,nKeep);
+    System.arraycopy(aHop,crate-(nFrameLen-nKeep),aFrame,nKeep,nFrameLen-nKeep);
+    short[] aHopCopy = aHop.clone();
+    nHop = 0;
+
+    // Frame decision
+    boolean bSpeech = isSpeechFrame();
+    nFrames++;
+    if (bSpeech) { nSpeechRun++; nSilenceRun=0; }
+    else         { nSilenceRun++; nSpeechRun=0; }
+
+    if (iSegment==null)
+    {
+      iPending.addLast(aHopCopy);
+      if (nSpeechRun>=nOnset)
+      {
+        // Speech onset: pass pre-roll and onset frames
+        iSegment = new Segment(nSamples+crate-(long)iPending.size()*crate);
+        setChanged();
+        notifyObserversAsync(iSegment);
+        while (!iPending.isEmpty())
+        {
+          nSpeechFrames++;
+          if (bGating && iOutputQueue!=null) iOutputQueue.put(iPending.removeFirst());
+          else iPending.removeFirst();
+        }
+      }
+      else
+        while (iPending.size()>nOnset+nPreroll) iPending.removeFirst();
+    }
+    else
+    {
+      nSpeechFrames++;
+      if (bGating && iOutputQueue!=null) iOutputQueue.put(aHopCopy);
+      if (nSilenceRun>=nHangover)
+        closeSegment(nSamples+crate);
+    }
+    nSamples += crate;
+  }
+
+  /**
+   * Closes the current speech segment.
+   *
+   * @param nEnd
+   *          Zero-based index of the first sample after the segment.
+   */
+  private void closeSegment(long nEnd)
+  {
+    if (iSegment==null) return;
+    iSegment.nEnd = nEnd;
+    iSegments.add(iSegment);
+    if (bGating && iOutputQueue!=null) iOutputQueue.put(null);
+    setChanged();
+    notifyObserversAsync(iSegment);
+    iSegment = null;
+  }
+
+  /**
+   * Handles the end of the input stream.
+   */
+  private void endOfStream()
+  {
+    if (iSegment!=null && nHop>0)
+    {
+      short[] aRest = new short[nHop];
+      System.arraycopy(aHop,0,aRest,0,nHop);
+      if (bGating && iOutputQueue!=null) iOutputQueue.put(aRest);
+    }
+    nSamples += nHop;
+    nHop = 0;
+    closeSegment(nSamples);
+    if (!bGating && iOutputQueue!=null) iOutputQueue.put(null);
+    iPending.clear();
+    nSpeechRun = 0;
+    nSilenceRun = 0;
+  }
+
+  /**
+   * Computes the frame features and the (unsmoothed) frame decision. Adapts the noise floor.
+   */
+  private boolean isSpeechFrame()
+  {
+    // Energy and zero-crossing rate
+    double nEnergy = 0.;
+    int    nZc     = 0;
+    for (int i=0; i<nFrameLen; i++)
+    {
+      nEnergy += (double)aFrame[i]*aFrame[i];
+      if (i>0 && (aFrame[i]>=0)!=(aFrame[i-1]>=0)) nZc++;
+    }
+    nEnergy = 10*Math.log10(nEnergy/nFrameLen+1E-10);
+    double nZcr = (double)nZc/nFrameLen;
+
+    // Spectral flux
+    for (int i=0; i<aReal.length; i++)
+    {
+      aReal[i] = i<nFrameLen ? aFrame[i]*aWindow[i] : 0.;
+      aImag[i] = 0.;
+    }
+    FFT.fft(aReal,aImag,true);
+    int    nBins = aReal.length/2+1;
+    double nSum  = 0.;
+    for (int i=0; i<nBins; i++)
+    {
+      aReal[i] = Math.sqrt(aReal[i]*aReal[i]+aImag[i]*aImag[i]);
+      nSum += aReal[i];
+    }
+    double nFlux = 0.;
+    if (nSum>0.)
+      for (int i=0; i<nBins; i++)
+        aReal[i] /= nSum;
+    if (aSpec!=null)
+      for (int i=0; i<nBins; i++)
+        nFlux += Math.max(aReal[i]-aSpec[i],0.);
+    if (aSpec==null) aSpec = new double[nBins];
+    System.arraycopy(aReal,0,aSpec,0,nBins);
+
+    // Decision
+    double nLevel = Math.max(nEnergy,nMinFloor);
+    if (Double.isNaN(nFloor)) nFloor = nLevel;
+    double  nSnr    = nEnergy-nFloor;
+    boolean bSpeech = nSnr>nThreshold
+      || (nSnr>nThreshold/2 && (nFlux>nFluxThreshold || nZcr>nZcrThreshold));
+
+    // Noise floor: follow decreases faster than increases, increases only outside speech; a
+    // single (digitally) silent frame must not pull the floor down to the lower bound
+    if (nLevel<nFloor)
+      nFloor += nFloorDecay*(nLevel-nFloor);
+    else if (!bSpeech && iSegment==null)
+      nFloor += nFloorAdapt*(nLevel-nFloor);
+
+    // Minimum statistics: the noise floor cannot be above the minimal level of the last
+    // aBlockMin.length*nMinStatLen frames; if it is below, all these frames were louder (e.g.
+    // after silence or a rise of the noise level) and the floor is raised, even within speech
+    nCurMin = Math.min(nCurMin,nLevel);
+    if (++nCurFrames==nMinStatLen)
+    {
+      aBlockMin[nBlocks++%aBlockMin.length] = nCurMin;
+      nCurMin    = Double.POSITIVE_INFINITY;
+      nCurFrames = 0;
+      if (nBlocks>=aBlockMin.length)
+      {
+        double nWinMin = Double.POSITIVE_INFINITY;
+        for (double nMin : aBlockMin) nWinMin = Math.min(nWinMin,nMin);
+        if (nWinMin>nFloor) nFloor = nWinMin;
+      }
+    }
+
+    return bSpeech;
+  }
+
+  // -- Getters and setters --
+
+  /**
+   * Returns the completed speech segments.
+   */
+  public Segment[] getSegments()
+  {
+    return iSegments.toArray(new Segment[iSegments.size()]);
+  }
+
+  /**
+   * Clears the list of completed speech segments.
+   */
+  public void clearSegments()
+  {
+    iSegments.clear();
+  }
+
+  /**
+   * Returns the fraction of frames within speech segments (including pre-roll and hangover).
+   */
+  public double getSpeechRatio()
+  {
+    return nFrames>0 ? (double)nSpeechFrames/nFrames : 0.;
+  }
+
+  /**
+   * Returns the current noise floor in dB (relative to a sample value of 1).
+   */
+  public double getNoiseFloor()
+  {
+    return nFloor;
+  }
+
+  /**
+   * Returns the lower bound of the noise floor in dB.
+   */
+  public double getMinFloor()
+  {
+    return nMinFloor;
+  }
+
+  /**
+   * Sets the lower bound of the noise floor. Frame energies below this bound are treated as being
+   * at the bound. The default, 0 dB, corresponds to an RMS of one quantization step of 16 bit
+   * samples.
+   *
+   * @param nMinFloor
+   *          The lower bound in dB (relative to a sample value of 1).
+   */
+  public void setMinFloor(double nMinFloor)
+  {
+    this.nMinFloor = nMinFloor;
+  }
+
+  /**
+   * Determines if only speech samples are passed to the output queue.
+   */
+  public boolean isGating()
+  {
+    return bGating;
+  }
+
+  /**
+   * Enables or disables gating.
+   *
+   * @param bGating
+   *          If <code>true</code>, only speech samples are passed to the output queue, each
+   *          segment being terminated by <code>null</code>. If <code>false</code>, all samples are
+   *          passed unchanged.
+   */
+  public void setGating(boolean bGating)
+  {
+    this.bGating = bGating;
+  }
+
+  /**
+   * Returns the analysis frame length in samples.
+   */
+  public int getFrameLen()
+  {
+    return nFrameLen;
+  }
+
+  /**
+   * Sets the analysis frame length. Must not be called while buffers are being processed.
+   *
+   * @param nFrameLen
+   *          The frame length in samples.
+   */
+  public void setFrameLen(int nFrameLen)
+  {
+    if (nFrameLen<=0)
+      throw new IllegalArgumentException("nFrameLen (" + nFrameLen + ") must be positive");
+    this.nFrameLen = nFrameLen;
+    init();
+  }
+
+  /**
+   * Returns the frame rate in samples.
+   */
+  public int getCrate()
+  {
+    return crate;
+  }
+
+  /**
+   * Sets the frame rate. Must not be called while buffers are being processed.
+   *
+   * @param crate
+   *          The frame rate in samples.
+   */
+  public void setCrate(int crate)
+  {
+    if (crate<=0)
+      throw new IllegalArgumentException("crate (" + crate + ") must be positive");
+    this.crate = crate;
+    init();
+  }
+
+  /**
+   * Returns the energy threshold above the noise floor in dB.
+   */
+  public double getThreshold()
+  {
+    return nThreshold;
+  }
+
+  /**
+   * Sets the energy threshold above the noise floor. Frames exceeding half this threshold are
+   * also classified as speech if their spectral flux or zero-crossing rate exceeds the respective
+   * threshold.
+   *
+   * @param nThreshold
+   *          The threshold in dB.
+   */
+  public void setThreshold(double nThreshold)
+  {
+    this.nThreshold = nThreshold;
+  }
+
+  /**
+   * Returns the spectral flux threshold.
+   */
+  public double getFluxThreshold()
+  {
+    return nFluxThreshold;
+  }
+
+  /**
+   * Sets the spectral flux threshold.
+   *
+   * @param nFluxThreshold
+   *          The threshold, 0 through 1.
+   */
+  public void setFluxThreshold(double nFluxThreshold)
+  {
+    this.nFluxThreshold = nFluxThreshold;
+  }
+
+  /**
+   * Returns the zero-crossing rate threshold.
+   */
+  public double getZcrThreshold()
+  {
+    return nZcrThreshold;
+  }
+
+  /**
+   * Sets the zero-crossing rate threshold.
+   *
+   * @param nZcrThreshold
+   *          The threshold in zero crossings per sample.
+   */
+  public void setZcrThreshold(double nZcrThreshold)
+  {
+    this.nZcrThreshold = nZcrThreshold;
+  }
+
+  /**
+   * Returns the number of consecutive speech frames required to start a segment.
+   */
+  public int getOnset()
+  {
+    return nOnset;
+  }
+
+  /**
+   * Sets the number of consecutive speech frames required to start a segment.
+   *
+   * @param nOnset
+   *          The number of frames.
+   */
+  public void setOnset(int nOnset)
+  {
+    this.nOnset = Math.max(nOnset,1);
+  }
+
+  /**
+   * Returns the number of consecutive non-speech frames required to end a segment.
+   */
+  public int getHangover()
+  {
+    return nHangover;
+  }
+
+  /**
+   * Sets the number of consecutive non-speech frames required to end a segment.
+   *
+   * @param nHangover
+   *          The number of frames.
+   */
+  public void setHangover(int nHangover)
+  {
+    this.nHangover = Math.max(nHangover,1);
+  }
+
+  /**
+   * Returns the number of frames passed to the output queue before the onset of a segment.
+   */
+  public int getPreroll()
+  {
+    return nPreroll;
+  }
+
+  /**
+   * Sets the number of frames passed to the output queue before the onset of a segment.
+   *
+   * @param nPreroll
+   *          The number of frames.
+   */
+  public void setPreroll(int nPreroll)
+  {
+    this.nPreroll = Math.max(nPreroll,0);
+  }
+}
+
+// EOF